@@ -1,6 +1,8 @@
 package bei7473p5254d69jcuat.tenyu.communication;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.util.*;
@@ -21,6 +23,7 @@ import glb.Glb.*;
 import glb.util.*;
 import glb.util.Bits;
 import glb.util.Bits.*;
+import glb.util.Util.*;
 import jetbrains.exodus.env.*;
 
 /**
@@ -29,6 +32,12 @@ import jetbrains.exodus.env.*;
  * 分割DLの状況が書き込まれる。
  * レジューム対応かつ分割DL対応。
  *
+ * 近傍から<filename>.chunkHashesを得られた場合、受信した断片毎に検証し、
+ * 検証に成功したビットだけがwriteBitsに立つ。
+ * 壊れた断片は他の近傍に再割り当てされ、それを返した近傍にはそのDLで以後割り当てない。
+ * 印象値は下げない。一覧は近傍の多数決で選ばれたものに過ぎず、
+ * 嘘をつく近傍の一覧に一致しない正直な近傍を罰する事になりうるから。
+ *
  * @author exceptiontenyu@gmail.com
  *
  */
@@ -142,7 +151,8 @@ public class Downloader implements GlbMemberDynamicState {
 			}
 
 			//全部分を取得できていたら成功
-			if (f.validateFile()) {
+			//DL途中なら検証済みのビットから再開するので、ファイル全体のハッシュ値を計算しない
+			if (!f.isDownloading() && f.validateFile()) {
 				Glb.debug("already downloaded file=" + f);
 				return true;
 			}
@@ -294,6 +304,8 @@ public class Downloader implements GlbMemberDynamicState {
 			return false;
 		}
 
+		ctx.setChunkHashes(resolveChunkHashes(f, onlySuccess));
+
 		//このアルゴリズムのための特殊な値
 		int algorithmVal = 0;
 		for (int i = 1; i <= successCount; i++) {
@@ -840,86 +852,310 @@ public class Downloader implements GlbMemberDynamicState {
 		//				Glb.tryW(txn -> new StaticGameStore(txn), null));
 	}
 
+	/**
+	 * 近傍から受け取ったチャンクハッシュ一覧のうち使用するものを決める。
+	 * ローカルに検証済みのものがあればそれを使う。
+	 * 無ければ最も多くの近傍が返したものを使う。
+	 *
+	 * @param f
+	 * @param hasStates	ファイルを持っていると返信した近傍への問い合わせ
+	 * @return	チャンクハッシュ一覧。得られなければnullで、断片毎の検証は行われない
+	 */
+	private ChunkHashes resolveChunkHashes(TenyutalkFileMetadataI f,
+			List<AsyncRequestState<HasFile>> hasStates) {
+		ChunkHashes local = f.loadChunkHashes();
+		if (local != null)
+			return local;
+
+		//根 : その根を持つチャンクハッシュ一覧
+		Map<ByteArrayWrapper, List<ChunkHashes>> byRoot = new HashMap<>();
+		for (AsyncRequestState<HasFile> state : hasStates) {
+			try {
+				HasFileResponse res = (HasFileResponse) state.getReq().getRes()
+						.getContent();
+				if (res.getChunkHashes() == null)
+					continue;
+				ChunkHashes c = ChunkHashes
+						.deserializeStatic(res.getChunkHashes());
+				if (!f.validateChunkHashes(c)) {
+					Glb.getLogger().warn("invalid chunkHashes edge="
+							+ state.getTo());
+					continue;
+				}
+				byRoot.computeIfAbsent(new ByteArrayWrapper(c.getRoot()),
+						k -> new ArrayList<>()).add(c);
+			} catch (Exception e) {
+				Glb.getLogger().warn("", e);
+			}
+		}
+
+		List<ChunkHashes> major = null;
+		for (List<ChunkHashes> e : byRoot.values()) {
+			if (major == null || e.size() > major.size())
+				major = e;
+		}
+		if (major == null) {
+			Glb.debug("no chunkHashes. chunk verification is disabled file="
+					+ f);
+			return null;
+		}
+
+		ChunkHashes r = major.get(0);
+		//中断後に再開する時も同じ一覧で検証できるように
+		if (!f.writeChunkHashes(r)) {
+			Glb.getLogger().warn("Failed to write chunkHashes file=" + f);
+		}
+		return r;
+	}
+
+	/**
+	 * 断片の再割り当てを行う最大回数
+	 */
+	private static final int retryRoundMax = 3;
+
 	/**
 	 * 通信とwriteBitsの書き込み
+	 *
+	 * 受信した断片毎に検証し、検証に成功したビットを立てる。
+	 * 壊れていた断片や受信に失敗した断片は他の近傍に再割り当てする。
+	 * writeBitsは毎回書き込まれるので、中断されても検証済みのビットから再開できる。
+	 *
 	 * @param ctx
-	 * @return
+	 * @return	ファイルのDLに成功したか
 	 */
 	private boolean requestAndWrite(DownloadCtx ctx) {
-		AsyncRequestStatesNoRetry<
-				GetFile> dlStates = new AsyncRequestStatesNoRetry<>(
-						() -> ctx.getHasNeighbors());
-
-		//分散DL開始
+		//近傍 : 担当する荷物
+		Map<InfoByEdge, List<BitZone>> assigned = new LinkedHashMap<>();
 		for (InfoByEdge e : ctx.getByEdge()) {
-			for (BitZone load : e.getAssignedLoads()) {
-				AsyncRequestState<HasFile> has = e.getReq();
-				P2PEdge to = e.getEdge();
-				if (to == null || has == null)
-					continue;
-				//近傍毎に異なるリクエストを送信する事と
-				//currentBitIndexという外部状態を更新する必要があるので
-				//AsyncRequestStatesNoRetry側のメソッドとして実装できなかった
-				GetFile req = new GetFile();
-				req.setPosition(load.getStartIndex() * WriteBits.unit);
-				req.setSize(load.size() * WriteBits.unit);
-				req.setFile(ctx.getFile());
-
-				RequestFutureP2PEdge dlState = Glb.getP2p()
-						.requestFileAsync(req, to);
-				dlStates.add(new AsyncRequestState<GetFile>(dlState, req, to));
+			assigned.put(e, e.getAssignedLoads());
+		}
+
+		for (int round = 0; round <= retryRoundMax
+				&& assigned.size() > 0; round++) {
+			AsyncRequestStatesNoRetry<
+					GetFile> dlStates = new AsyncRequestStatesNoRetry<>(
+							() -> ctx.getHasNeighbors());
+			//dlStatesのリクエストと同じ並びで、各リクエストを担当した近傍
+			List<InfoByEdge> suppliers = new ArrayList<>();
+
+			//再割り当てが必要なビット : 直前に担当した近傍
+			Map<Integer, InfoByEdge> retry = new TreeMap<>();
+
+			//分散DL開始
+			for (Map.Entry<InfoByEdge, List<BitZone>> entry : assigned
+					.entrySet()) {
+				InfoByEdge e = entry.getKey();
+				for (BitZone load : entry.getValue()) {
+					AsyncRequestState<HasFile> has = e.getReq();
+					P2PEdge to = e.getEdge();
+					if (to == null || has == null)
+						continue;
+					//近傍毎に異なるリクエストを送信する事と
+					//currentBitIndexという外部状態を更新する必要があるので
+					//AsyncRequestStatesNoRetry側のメソッドとして実装できなかった
+					GetFile req = new GetFile();
+					long position = load.getStartIndex() * WriteBits.unit;
+					//最後のビットはWriteBits.unitに満たない場合がある
+					long end = Math.min(
+							(load.getLastIndex() + 1) * WriteBits.unit,
+							ctx.getFile().getFileSize());
+					req.setPosition(position);
+					req.setSize(end - position);
+					req.setFile(ctx.getFile());
+
+					RequestFutureP2PEdge dlState = Glb.getP2p()
+							.requestFileAsync(req, to);
+					if (dlState == null) {
+						for (int i = load.getStartIndex(); i <= load
+								.getLastIndex(); i++)
+							retry.put(i, e);
+						continue;
+					}
+					dlStates.add(
+							new AsyncRequestState<GetFile>(dlState, req, to));
+					suppliers.add(e);
+				}
 			}
-		}
-
-		//全リクエストの終了を待機
-		dlStates.waitAllDone(ctx.getDlTimeout());
 
-		if (ctx.getFile().validateFile()) {
-			//全て成功
-			ctx.getFile().deleteWriteBits();
-			return true;
-		} else {
-			//未DL部分が存在している
-			//原因として通信失敗、そもそもその部分を持っているノードが居ない等
+			//全リクエストの終了を待機
+			dlStates.waitAllDone(ctx.getDlTimeout());
 
-			//成功したところについてwriteBitを立てる
 			for (int requestIndex = 0; requestIndex < dlStates.getRequests()
 					.size(); requestIndex++) {
 				AsyncRequestState<GetFile> getFile = dlStates.getRequests()
 						.get(requestIndex);
-				if (getFile.getState().isSuccess()) {
-					int bitCountThisEdge = (int) (getFile.getReq().getSize()
-							/ WriteBits.unit);
-					int startBitIndex = (int) (getFile.getReq().getPosition()
-							/ WriteBits.unit);
-					//1リクエスト中では連続した領域が問い合わされるのでこの処理で良い
-					for (int currentBitIndex = startBitIndex; currentBitIndex < bitCountThisEdge
-							+ startBitIndex; currentBitIndex++) {
-						ctx.getWriteBits().getBits().stand(currentBitIndex);
-					}
+				InfoByEdge e = suppliers.get(requestIndex);
+				int startBitIndex = (int) (getFile.getReq().getPosition()
+						/ WriteBits.unit);
+				int bitCountThisEdge = (int) ((getFile.getReq().getSize()
+						+ WriteBits.unit - 1) / WriteBits.unit);
+				if (!getFile.getState().isSuccess()) {
+					//通信失敗。近傍の責任とは限らないので印象値は変えない
+					for (int i = startBitIndex; i < startBitIndex
+							+ bitCountThisEdge; i++)
+						retry.put(i, e);
+					continue;
 				}
-			}
 
-			//writeBitsが全て立っているか
-			if (ctx.getWriteBits().getBits().isFilledOne()) {
-				//それなのに検証に成功していないので、ファイルとwriteBitsを削除する。
-				ctx.getFile().delete();
-				Glb.debug(
-						"Failed to validate. and all bits is one. file is deleted.");
-			} else {
-				//一部が成功しただけなので全体の整合性検証を通過しなかった
-				//writeBitsをファイルに書き込む
-				if (!ctx.getFile().writeWriteBits(ctx.getWriteBits())) {
-					Glb.getLogger().error("Failed to write writeBits ",
-							new Exception());
+				List<Integer> corrupted = verifyAndStand(ctx, startBitIndex,
+						bitCountThisEdge);
+				if (corrupted.size() > 0) {
+					Glb.getLogger()
+							.warn("corrupted chunks=" + corrupted.size()
+									+ " edge=" + e.getEdge() + " path="
+									+ ctx.getFile().getRelativePathStr());
+					//このDLでは以後その近傍に割り当てない
+					e.setCorrupted(true);
+					ctx.setCorruptedFound(true);
+					for (Integer i : corrupted)
+						retry.put(i, e);
 				}
 			}
 
-			Glb.getLogger().info("download not completed path="
-					+ ctx.getFile().getRelativePathStr());
+			//検証済みのビットを書き込む
+			if (!ctx.getFile().writeWriteBits(ctx.getWriteBits())) {
+				Glb.getLogger().error("Failed to write writeBits ",
+						new Exception());
+			}
 
-			return false;
+			if (retry.size() == 0)
+				break;
+			assigned = reassign(ctx, retry);
+			Glb.debug("reassigned round=" + round + " bits=" + retry.size());
+		}
+
+		//writeBitsが全て立っているか
+		if (ctx.getWriteBits().getBits().isFilledOne()) {
+			if (ctx.getFile().validateFile()) {
+				//全て成功
+				ctx.getFile().deleteWriteBits();
+				return true;
+			}
+			//それなのに検証に成功していないので、ファイルとwriteBitsを削除する。
+			//チャンクハッシュ一覧が誤っていた可能性があるのでそれも削除される
+			ctx.getFile().delete();
+			Glb.debug(
+					"Failed to validate. and all bits is one. file is deleted.");
+		}
+
+		//一覧と一致しない断片があった場合、一覧が誤っていた可能性があるので
+		//次回のDLで選び直されるよう削除する
+		if (ctx.isCorruptedFound()) {
+			ctx.getFile().deleteChunkHashes();
+		}
+
+		//未DL部分が存在している
+		//原因として通信失敗、そもそもその部分を持っているノードが居ない等
+		Glb.getLogger().info("download not completed path="
+				+ ctx.getFile().getRelativePathStr());
+
+		return false;
+	}
+
+	/**
+	 * 受信した断片をチャンク毎に検証し、正しいチャンクのビットを立てる。
+	 * チャンクハッシュ一覧が無い場合、検証せずに全てのビットを立てる。
+	 *
+	 * @param ctx
+	 * @param startBitIndex	受信した断片の最初のビット
+	 * @param bitCount		受信した断片のビット数
+	 * @return	壊れていたビット一覧
+	 */
+	private List<Integer> verifyAndStand(DownloadCtx ctx, int startBitIndex,
+			int bitCount) {
+		List<Integer> corrupted = new ArrayList<>();
+		ChunkHashes chunkHashes = ctx.getChunkHashes();
+		if (chunkHashes == null) {
+			//1リクエスト中では連続した領域が問い合わされるのでこの処理で良い
+			for (int i = startBitIndex; i < startBitIndex + bitCount; i++)
+				ctx.getWriteBits().getBits().stand(i);
+			return corrupted;
+		}
+
+		long fileSize = ctx.getFile().getFileSize();
+		try (FileChannel ch = FileChannel.open(ctx.getFile().getRelativePath(),
+				StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate((int) WriteBits.unit);
+			for (int i = startBitIndex; i < startBitIndex + bitCount; i++) {
+				byte[] h = ChunkHashes.hashChunk(ch, i, fileSize, buf);
+				if (chunkHashes.verify(i, h)) {
+					ctx.getWriteBits().getBits().stand(i);
+				} else {
+					corrupted.add(i);
+				}
+			}
+		} catch (IOException e) {
+			Glb.getLogger().error("", e);
+			for (int i = startBitIndex; i < startBitIndex + bitCount; i++)
+				if (!corrupted.contains(i))
+					corrupted.add(i);
 		}
+		return corrupted;
+	}
+
+	/**
+	 * 受信できなかったビットを、そのビットを持っている他の近傍に割り当てる。
+	 * 壊れた断片を返した近傍は候補から外れる。
+	 * 直前の担当近傍以外に候補が無ければ、通信失敗だった場合に限り同じ近傍に再度割り当てる。
+	 *
+	 * @param ctx
+	 * @param retry	再割り当てが必要なビット : 直前に担当した近傍
+	 * @return	近傍 : 担当する荷物
+	 */
+	private Map<InfoByEdge, List<BitZone>> reassign(DownloadCtx ctx,
+			Map<Integer, InfoByEdge> retry) {
+		//近傍 : 担当するビット一覧
+		Map<InfoByEdge, List<Integer>> bitsByEdge = new LinkedHashMap<>();
+		for (Map.Entry<Integer, InfoByEdge> entry : retry.entrySet()) {
+			int bitIndex = entry.getKey();
+			InfoByEdge previous = entry.getValue();
+			InfoByEdge selected = null;
+			int selectedCount = Integer.MAX_VALUE;
+			//byEdgeはレイテンシ順なので、同数なら低レイテンシの近傍が選ばれる
+			for (InfoByEdge e : ctx.getByEdge()) {
+				if (e == previous || e.isCorrupted()
+						|| !e.getWriteBits().getBits().isStand(bitIndex))
+					continue;
+				List<Integer> bits = bitsByEdge.get(e);
+				int count = bits == null ? 0 : bits.size();
+				if (count < selectedCount) {
+					selected = e;
+					selectedCount = count;
+				}
+			}
+			if (selected == null && previous != null
+					&& !previous.isCorrupted()) {
+				selected = previous;
+			}
+			if (selected == null) {
+				Glb.debug("no neighbor can supply bitIndex=" + bitIndex);
+				continue;
+			}
+			bitsByEdge.computeIfAbsent(selected, k -> new ArrayList<>())
+					.add(bitIndex);
+		}
+
+		Map<InfoByEdge, List<BitZone>> r = new LinkedHashMap<>();
+		for (Map.Entry<InfoByEdge, List<Integer>> entry : bitsByEdge
+				.entrySet()) {
+			//連続したビットは1リクエストにまとめる
+			List<BitZone> loads = new ArrayList<>();
+			BitZone current = null;
+			for (Integer bitIndex : entry.getValue()) {
+				if (current != null
+						&& current.getLastIndex() + 1 == bitIndex) {
+					current.setLastIndex(bitIndex);
+					continue;
+				}
+				current = new BitZone();
+				current.setBit(false);
+				current.setStartIndex(bitIndex);
+				current.setLastIndex(bitIndex);
+				loads.add(current);
+			}
+			r.put(entry.getKey(), loads);
+		}
+		return r;
 	}
 
 	public static long firstSleep = 1000L * 20;
@@ -994,6 +1230,32 @@ public class Downloader implements GlbMemberDynamicState {
 		 */
 		private WriteBits writeBits;
 
+		/**
+		 * 受信した断片の検証に使われる。nullなら断片毎の検証は行われない
+		 */
+		private ChunkHashes chunkHashes;
+
+		/**
+		 * 一覧と一致しない断片を受信したか
+		 */
+		private boolean corruptedFound = false;
+
+		public ChunkHashes getChunkHashes() {
+			return chunkHashes;
+		}
+
+		public boolean isCorruptedFound() {
+			return corruptedFound;
+		}
+
+		public void setCorruptedFound(boolean corruptedFound) {
+			this.corruptedFound = corruptedFound;
+		}
+
+		public void setChunkHashes(ChunkHashes chunkHashes) {
+			this.chunkHashes = chunkHashes;
+		}
+
 		/**
 		 * @return	DL中の仮パス。
 		 */
@@ -1128,6 +1390,20 @@ public class Downloader implements GlbMemberDynamicState {
 		private AsyncRequestState<HasFile> req;
 		private WriteBits writeBits;
 
+		/**
+		 * 壊れた断片を返したか。
+		 * trueになった近傍にはこのDLで再度割り当てられない
+		 */
+		private boolean corrupted = false;
+
+		public boolean isCorrupted() {
+			return corrupted;
+		}
+
+		public void setCorrupted(boolean corrupted) {
+			this.corrupted = corrupted;
+		}
+
 		public void addBitCount(int add) {
 			bitCountLoad += add;
 		}
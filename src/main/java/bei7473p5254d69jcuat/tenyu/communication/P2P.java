@@ -96,19 +96,16 @@ public class P2P implements GlbMemberDynamicState {
 	}
 
 	private static Object deserialize(Object in) {
-		byte[] read = null;
 		if (in instanceof ByteBuf) {
 			//プロトコル1の場合
-			ByteBuf buf = (ByteBuf) in;
-			read = new byte[buf.readableBytes()];
-			buf.getBytes(buf.readerIndex(), read);
+			//byte[]にコピーせずにデシリアライズする
+			return Glb.getUtil().fromKryoBytesForCommunication((ByteBuf) in);
 		} else if (in instanceof byte[]) {
 			//プロトコル2の場合
-			read = (byte[]) in;
+			return Glb.getUtil().fromKryoBytesForCommunication((byte[]) in);
 		} else {
 			throw new IllegalArgumentException("invalid type");
 		}
-		return Glb.getUtil().fromKryoBytesForCommunication(read);
 	}
 
 	public static long getInitlatency() {
@@ -177,6 +174,18 @@ public class P2P implements GlbMemberDynamicState {
 
 	private EventLoopGroup group;
 
+	/**
+	 * 近傍毎の多重化された接続。小さなリクエストで使用される
+	 */
+	private P2PConnectionPool pool;
+
+	/**
+	 * 多重化された接続で受信したリクエストを処理している間、そのリクエストID。
+	 * 返信にリクエストIDを付けるために使う。
+	 * 受信処理中に同期的に返信される事を前提とする。
+	 */
+	private static final ThreadLocal<Long> multiplexedRequestId = new ThreadLocal<>();
+
 	/**
 	 * アイドルによるタイムアウト時間
 	 */
@@ -307,6 +316,12 @@ public class P2P implements GlbMemberDynamicState {
 
 		//リクエストレスポンス用のハンドラを作成
 		RequestHandler handler = new RequestHandler(reqM, send);
+
+		//多重化された接続が使えればそれを使う
+		ChannelFuture pooled = requestPooled(handler, toAddr, send);
+		if (pooled != null)
+			return new RequestFuture(pooled, handler, toAddr, true);
+
 		//通信を管理するオブジェクト
 		Bootstrap b = setupClient(handler, toAddr, send.length, true);
 		ChannelFuture cf = null;
@@ -439,32 +454,24 @@ public class P2P implements GlbMemberDynamicState {
 
 		//リクエストレスポンス用のハンドラを作成
 		RequestHandler handler = new RequestHandler(m, send);
+
+		//多重化された接続が使えればそれを使う
+		ChannelFuture pooled = requestPooled(handler, addr, send);
+		if (pooled != null) {
+			Message r = waitResponse(handler, req);
+			//相手が多重化に対応していなかった場合だけ従来の接続でやり直す
+			if (r != null || !pool.isUnsupported(addr))
+				return r;
+			handler = new RequestHandler(m, send);
+		}
+
 		//通信を管理するオブジェクト
 		Bootstrap b = setupClient(handler, addr, send.length, true);
 		ChannelFuture cf = null;
 		try {
 			//接続。同期
 			cf = b.connect().sync();
-			//レスポンスが来るまで待つが、一定時間が経過したらレスポンスが来てなくても終わる。
-			//レスポンス待機開始日時
-			long start = System.currentTimeMillis();
-			//レスポンス待機の経過時間
-			long elapsed = 0;
-			//どの程度の時間待つか
-			long responseTimeout = transferTimeout + 5000;
-			//待機処理
-			while (elapsed < responseTimeout) {
-				Thread.sleep(10);
-				//レスポンスが来て、処理を終えたか
-				if (handler.isDone()) {
-					//isDone()になった場合だけオブジェクトを返す。
-					//さもないと、ハンドラ実行中にこのメソッドが返って
-					//Responseがマルチスレッドで処理される可能性がある。
-					return req.getRes();
-				}
-				//経過時間の更新
-				elapsed = System.currentTimeMillis() - start;
-			}
+			return waitResponse(handler, req);
 		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 		} finally {
@@ -474,6 +481,53 @@ public class P2P implements GlbMemberDynamicState {
 		return null;
 	}
 
+	/**
+	 * @return	レスポンス待機の最大時間。ミリ秒
+	 */
+	private long getResponseTimeout() {
+		return transferTimeout + 5000;
+	}
+
+	/**
+	 * レスポンスが来るまで待つが、一定時間が経過したらレスポンスが来てなくても終わる。
+	 * @param handler	レスポンスを処理するハンドラ
+	 * @param req		送信したリクエスト
+	 * @return	ハンドラが処理を終えた場合のレスポンス
+	 */
+	private Message waitResponse(RequestHandler handler, Request req) {
+		try {
+			handler.getFuture().get(getResponseTimeout(),
+					TimeUnit.MILLISECONDS);
+		} catch (java.util.concurrent.TimeoutException e) {
+			Glb.debug("response timeout");
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+		}
+		//isDone()になった場合だけオブジェクトを返す。
+		//さもないと、ハンドラ実行中にこのメソッドが返って
+		//Responseがマルチスレッドで処理される可能性がある。
+		if (handler.isDone())
+			return req.getRes();
+		return null;
+	}
+
+	/**
+	 * 多重化された接続でリクエストする。
+	 * @return	多重化された接続を使えない場合null
+	 */
+	private ChannelFuture requestPooled(RequestHandler handler,
+			InetSocketAddress addr, byte[] send) {
+		//大きなメッセージは多重化された接続を占有してしまうので従来の接続を使う
+		if (pool == null || send.length > OnePortManyProtocolDecoder.maxFrame)
+			return null;
+		try {
+			return pool.request(handler, addr, send);
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			return null;
+		}
+	}
+
 	public Message requestSync(Message m, Long receiverUserId, int nodeNumber) {
 		return requestSync(m,
 				new NodeIdentifierUser(receiverUserId, nodeNumber));
@@ -662,29 +716,50 @@ public class P2P implements GlbMemberDynamicState {
 				+ m.getContent().getClass().getSimpleName() + ":addr="
 				+ isa(ctx) + ":threadId=" + Thread.currentThread().getId());
 
-		byte[] send = serialize(m);
-		if (send == null || send.length == 0)
+		//多重化された接続の場合、リクエストIDを付けて同じ接続で返信する
+		if (Boolean.TRUE.equals(ctx.channel()
+				.attr(OnePortManyProtocolDecoder.multiplexed).get())) {
+			return responseMultiplexed(m, ctx);
+		}
+
+		//byte[]を経由せずNettyのバッファに直接シリアライズする
+		ByteBuf send = ctx.alloc().buffer();
+		int size;
+		try {
+			size = Glb.getUtil().toKryoBytesForCommunication(m, send);
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			send.release();
 			return false;
+		}
+		if (size == 0) {
+			send.release();
+			return false;
+		}
 
-		Glb.debug("response size=" + send.length);
+		Glb.debug("response size=" + size);
 
 		//返信用パイプライン構築
 		byte protocolId = OnePortManyProtocolEncoder.setupPipelineClient(
-				ctx.pipeline(), send.length,
-				OnePortManyProtocolDecoder.getProtocolId(send.length));
+				ctx.pipeline(), size,
+				OnePortManyProtocolDecoder.getProtocolId(size));
 
 		//Netty用形式に
 		Object sendFormatted = null;
 		switch (protocolId) {
 		case 1:
-			sendFormatted = Unpooled.wrappedBuffer(send);
+			sendFormatted = send;
 			break;
 		case 2:
-			sendFormatted = new ChunkedStream(new ByteArrayInputStream(send));
+			//ストリームのクローズ時にsendが解放される
+			sendFormatted = new ChunkedStream(
+					new ByteBufInputStream(send, true));
 			break;
 		}
-		if (sendFormatted == null)
+		if (sendFormatted == null) {
+			send.release();
 			return false;
+		}
 
 		//返信
 		try {
@@ -696,6 +771,43 @@ public class P2P implements GlbMemberDynamicState {
 		return false;
 	}
 
+	private boolean responseMultiplexed(Message m, ChannelHandlerContext ctx) {
+		Long requestId = multiplexedRequestId.get();
+		if (requestId == null) {
+			//受信処理の外から返信された
+			Glb.getLogger().warn("no request id on multiplexed channel",
+					new Exception());
+			return false;
+		}
+
+		ByteBuf send = ctx.alloc().buffer();
+		try {
+			send.writeInt(0);
+			send.writeLong(requestId);
+			int size = Glb.getUtil().toKryoBytesForCommunication(m, send);
+			if (size == 0 || Long.BYTES
+					+ size > OnePortManyProtocolDecoder.multiplexedFrameMax) {
+				send.release();
+				return false;
+			}
+			//長さフィールド
+			send.setInt(0, Long.BYTES + size);
+			Glb.debug("response size=" + size + " requestId=" + requestId);
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			send.release();
+			return false;
+		}
+
+		try {
+			ctx.writeAndFlush(send);
+			return true;
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+		}
+		return false;
+	}
+
 	/**
 	 * @param p		送信するファイル
 	 * @param pos	開始位置。ファイルの何バイト目から送信するか
@@ -978,9 +1090,15 @@ public class P2P implements GlbMemberDynamicState {
 			Glb.getLogger().error("", e);
 		}
 
+		pool = new P2PConnectionPool(group, connectionTimeout,
+				getResponseTimeout());
+
 		long period = 1000;
 		closeThread = Glb.getExecutorPeriodic().scheduleAtFixedRate(() -> {
 			try {
+				//多重化された接続のヘルスチェック
+				pool.evictIdle();
+
 				if (autoClose.size() > 0) {
 					for (ChannelFuture cf : autoClose) {
 						if (cf.isDone()) {
@@ -999,6 +1117,12 @@ public class P2P implements GlbMemberDynamicState {
 
 	public void stop() {
 		Glb.debug(() -> "P2P Server is stopping.");
+		try {
+			if (pool != null)
+				pool.closeAll();
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+		}
 		try {
 			if (group != null)
 				group.shutdownGracefully(500, shutdownTime,
@@ -1070,6 +1194,10 @@ public class P2P implements GlbMemberDynamicState {
 		private InetSocketAddress addr;
 		private RequestHandler handler;
 		private ChannelFuture state;
+		/**
+		 * {@link P2PConnectionPool}の共有された接続で送信されたか
+		 */
+		private boolean pooled = false;
 
 		public RequestFuture(ChannelFuture state, RequestHandler handler,
 				InetSocketAddress addr) {
@@ -1078,10 +1206,32 @@ public class P2P implements GlbMemberDynamicState {
 			this.addr = addr;
 		}
 
+		public RequestFuture(ChannelFuture state, RequestHandler handler,
+				InetSocketAddress addr, boolean pooled) {
+			this(state, handler, addr);
+			this.pooled = pooled;
+		}
+
 		public RequestFuture(RequestFuture o) {
 			state = o.getState();
 			handler = o.getHandler();
 			addr = o.getAddr();
+			pooled = o.isPooled();
+		}
+
+		public boolean isPooled() {
+			return pooled;
+		}
+
+		/**
+		 * このリクエストのための接続を閉じる。
+		 * 共有された接続は他のリクエストも使っているので閉じない。
+		 * その場合の時間切れは{@link P2PConnectionPool}がリクエスト毎に扱う
+		 */
+		public void close() {
+			if (pooled || state == null || state.channel() == null)
+				return;
+			state.channel().close();
 		}
 
 		public InetSocketAddress getAddr() {
@@ -1202,7 +1352,7 @@ public class P2P implements GlbMemberDynamicState {
 		@Override
 		public void channelInactive(ChannelHandlerContext ctx)
 				throws Exception {
-			done = true;
+			finish();
 		}
 
 		@Override
@@ -1271,6 +1421,12 @@ public class P2P implements GlbMemberDynamicState {
 		protected Message reqM;
 		protected byte[] send;
 
+		/**
+		 * ハンドラの処理が終わったら完了する。
+		 * 値はレスポンスで、無ければnull
+		 */
+		protected final CompletableFuture<Message> future = new CompletableFuture<>();
+
 		public RequestHandler(Message reqMessage, byte[] send) {
 			if (!(reqMessage.getContent() instanceof Request))
 				throw new IllegalArgumentException();
@@ -1282,10 +1438,22 @@ public class P2P implements GlbMemberDynamicState {
 			ctx.writeAndFlush(Unpooled.wrappedBuffer(send));
 		}
 
+		/**
+		 * ハンドラの処理を終える。レスポンスを待っている処理が再開される
+		 */
+		protected void finish() {
+			done = true;
+			future.complete(getReq() == null ? null : getReq().getRes());
+		}
+
+		public CompletableFuture<Message> getFuture() {
+			return future;
+		}
+
 		@Override
 		public void channelInactive(ChannelHandlerContext ctx)
 				throws Exception {
-			done = true;
+			finish();
 			if (getReq().getRes() == null)
 				Glb.debug(() -> "channelInactive No Response: " + getReq() + ":"
 						+ ctx.channel().remoteAddress() + ":threadId="
@@ -1307,7 +1475,7 @@ public class P2P implements GlbMemberDynamicState {
 			} catch (Exception e) {
 				Glb.getLogger().error("", e);
 			} finally {
-				done = true;
+				finish();
 			}
 		}
 
@@ -1415,7 +1583,7 @@ public class P2P implements GlbMemberDynamicState {
 
 		public void exceptionCaught(ChannelHandlerContext ctx,
 				Throwable cause) {
-			done = true;
+			finish();
 			Glb.debug(
 					() -> "exceptionCaught" + cause.getClass().getSimpleName());
 			ctx.close();
@@ -1486,18 +1654,59 @@ public class P2P implements GlbMemberDynamicState {
 	}
 
 	private static class ServerHandler extends ChannelInboundHandlerAdapter {
+		/**
+		 * 多重化された接続のリクエストを処理する。
+		 * 接続の読み込みスレッドで処理すると1つの遅いリクエストが
+		 * 同じ接続の他のリクエストを全て待たせるので、別スレッドで処理する。
+		 * 溢れたリクエストは処理されず、クライアント側で時間切れになる
+		 */
+		private static final ThreadPoolExecutor multiplexedExecutor = createMultiplexedExecutor();
+
+		private static ThreadPoolExecutor createMultiplexedExecutor() {
+			ThreadPoolExecutor r = new ThreadPoolExecutor(16, 16, 60,
+					TimeUnit.SECONDS, new ArrayBlockingQueue<>(1024),
+					new ThreadPoolExecutor.AbortPolicy());
+			//使われていない間はスレッドを残さない
+			r.allowCoreThreadTimeOut(true);
+			return r;
+		}
+
 		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			if (msg instanceof ByteBuf && isMultiplexed(ctx)) {
+				ByteBuf whole = (ByteBuf) msg;
+				try {
+					//多重化された接続ではフレームの先頭がリクエストID
+					long requestId = whole.readLong();
+					multiplexedExecutor.execute(
+							() -> process(ctx, whole, requestId));
+				} catch (Exception e) {
+					Glb.getLogger().warn("", e);
+					ReferenceCountUtil.release(msg);
+				}
+				return;
+			}
+			process(ctx, msg, null);
+		}
+
+		/**
+		 * @param ctx
+		 * @param msg		受信したデータ。処理後に解放される
+		 * @param requestId	多重化された接続のリクエストID。それ以外はnull
+		 */
+		private void process(ChannelHandlerContext ctx, Object msg,
+				Long requestId) {
 			try {
 				Glb.debug("Server received: msg class="
 						+ msg.getClass().getSimpleName());
+				if (requestId != null)
+					multiplexedRequestId.set(requestId);
 				//受信したデータの全体
-				byte[] whole = null;
+				//プロトコル2ではCompositeByteBufなのでbyte[]にコピーせず扱う
+				ByteBuf whole = null;
 				if (msg instanceof byte[]) {
-					whole = (byte[]) msg;
+					whole = Unpooled.wrappedBuffer((byte[]) msg);
 				} else if (msg instanceof ByteBuf) {
-					ByteBuf buf = (ByteBuf) msg;
-					whole = new byte[buf.readableBytes()];
-					buf.getBytes(buf.readerIndex(), whole);
+					whole = (ByteBuf) msg;
 				} else {
 					throw new IllegalArgumentException();
 				}
@@ -1517,18 +1726,25 @@ public class P2P implements GlbMemberDynamicState {
 			} catch (Exception e) {
 				Glb.getLogger().error("", e);
 			} finally {
+				multiplexedRequestId.remove();
 				ReferenceCountUtil.release(msg);
 			}
 		}
 
+		private static boolean isMultiplexed(ChannelHandlerContext ctx) {
+			return Boolean.TRUE.equals(ctx.channel()
+					.attr(OnePortManyProtocolDecoder.multiplexed).get());
+		}
+
 		public void exceptionCaught(ChannelHandlerContext ctx,
 				Throwable cause) {
 			Glb.debug(cause);
 			ctx.close();
 		}
 
-		private ResultCode received(ChannelHandlerContext ctx, byte[] data) {
-			Glb.debug("Server received: data.length=" + data.length);
+		private ResultCode received(ChannelHandlerContext ctx, ByteBuf data) {
+			int length = data.readableBytes();
+			Glb.debug("Server received: data.length=" + length);
 
 			//パッケージ専用Kryo
 			Kryo k = Glb.getKryoForCommunication();
@@ -1544,7 +1760,7 @@ public class P2P implements GlbMemberDynamicState {
 				if (defense.isOverCount(addr))
 					return ResultCode.OVER_COUNT;
 
-				if (defense.isOverSize(addr, data.length))
+				if (defense.isOverSize(addr, length))
 					return ResultCode.OVER_SIZE;
 
 				if (!(o instanceof Message)) {
@@ -1553,7 +1769,7 @@ public class P2P implements GlbMemberDynamicState {
 				}
 				Message message = (Message) o;
 				message.setMyMessage(false);
-				message.setSize(data.length);
+				message.setSize(length);
 				Glb.debug(() -> "received Message:"
 						+ (message.getEdgeByInnermostPackage() == null ? ""
 								: message.getEdgeByInnermostPackage())
@@ -1618,8 +1834,10 @@ public class P2P implements GlbMemberDynamicState {
 				//https://github.com/netty/netty/issues/1952
 				//Netty will notice that the connection has been closed after attempting to read from the channel, and close the connection for you. Calling channel.close() immediately after channel.read() will actually let Netty close the channel even before attempting to read.
 				//恐らく受信が中途半端に終わる場合がある？
-				ctx.writeAndFlush(Unpooled.EMPTY_BUFFER)
-						.addListener(ChannelFutureListener.CLOSE);
+				//多重化された接続は次のリクエストのために閉じない
+				if (!isMultiplexed(ctx))
+					ctx.writeAndFlush(Unpooled.EMPTY_BUFFER)
+							.addListener(ChannelFutureListener.CLOSE);
 			}
 			return null;
 		}
@@ -1629,6 +1847,9 @@ public class P2P implements GlbMemberDynamicState {
 				throws Exception {
 			super.userEventTriggered(ctx, evt);
 			Glb.debug("ev:" + evt);
+			//多重化された接続はアイドルで閉じる
+			if (evt instanceof IdleStateEvent && isMultiplexed(ctx))
+				ctx.close();
 		}
 	}
 }
@@ -0,0 +1,372 @@
+package bei7473p5254d69jcuat.tenyu.communication;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import bei7473p5254d69jcuat.tenyu.communication.P2P.*;
+import bei7473p5254d69jcuat.tenyu.communication.netty.*;
+import glb.*;
+import io.netty.bootstrap.*;
+import io.netty.buffer.*;
+import io.netty.channel.*;
+import io.netty.channel.socket.*;
+import io.netty.channel.socket.nio.*;
+import io.netty.handler.codec.*;
+import io.netty.handler.timeout.*;
+import io.netty.util.*;
+
+/**
+ * 近傍毎に長期間維持される接続の管理。
+ *
+ * 1つの接続上で複数のリクエストを並行して送信し、
+ * リクエストIDによって返信を対応付ける。
+ * リクエスト毎にTCP接続を作成するとハンドシェイクやエフェメラルポートの消費が
+ * 頻繁な問い合わせで問題になるので作成した。
+ *
+ * 接続の形式は{@link OnePortManyProtocolDecoder#multiplexedProtocolId}を参照。
+ *
+ * 多重化に対応していないノードは一定時間記録され、その間は使用されない。
+ * 呼び出し側はその場合従来のリクエスト毎の接続を使う。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class P2PConnectionPool {
+	/**
+	 * 1接続で同時に返信待ちにできるリクエストの最大数
+	 */
+	private static final int maxPendingPerConnection = 256;
+
+	/**
+	 * 返信待ちが無い状態でこの時間が経過した接続は閉じる。ミリ秒
+	 * サーバー側より先に閉じる
+	 */
+	private static final long idleTimeout = 1000L
+			* OnePortManyProtocolDecoder.multiplexedClientIdleTimeout;
+
+	/**
+	 * 多重化に対応していないと判明したノードに再度試すまでの時間。ミリ秒
+	 */
+	private static final long unsupportedInterval = 1000L * 60 * 30;
+
+	/**
+	 * 接続先 : 接続
+	 */
+	private final ConcurrentMap<InetSocketAddress,
+			PooledConnection> connections = new ConcurrentHashMap<>();
+
+	/**
+	 * 多重化に対応していない接続先 : 判明した日時
+	 */
+	private final ConcurrentMap<InetSocketAddress,
+			Long> unsupported = new ConcurrentHashMap<>();
+
+	private final AtomicLong nextRequestId = new AtomicLong();
+
+	private final EventLoopGroup group;
+
+	/**
+	 * 接続のタイムアウト。ミリ秒
+	 */
+	private final int connectionTimeout;
+
+	/**
+	 * 返信のタイムアウト。ミリ秒
+	 */
+	private final long responseTimeout;
+
+	public P2PConnectionPool(EventLoopGroup group, int connectionTimeout,
+			long responseTimeout) {
+		this.group = group;
+		this.connectionTimeout = connectionTimeout;
+		this.responseTimeout = responseTimeout;
+	}
+
+	/**
+	 * @param addr
+	 * @return	addrは多重化に対応していないと判明していて、再試行の時期ではないか
+	 */
+	public boolean isUnsupported(InetSocketAddress addr) {
+		Long date = unsupported.get(addr);
+		if (date == null)
+			return false;
+		if (System.currentTimeMillis() - date > unsupportedInterval) {
+			unsupported.remove(addr, date);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 多重化された接続でリクエストを送信する。
+	 *
+	 * @param handler	返信を処理するハンドラ。パイプラインには登録されない
+	 * @param addr		接続先
+	 * @param send		シリアライズされたリクエスト
+	 * @return	返信を処理し終えたら成功、
+	 * 接続や送信に失敗したり返信が無いまま時間切れになったら失敗になる状態。
+	 * 多重化された接続を使えない場合null
+	 */
+	public ChannelFuture request(RequestHandler handler,
+			InetSocketAddress addr, byte[] send) {
+		if (handler == null || addr == null || send == null
+				|| isUnsupported(addr))
+			return null;
+		//サーバー側はこれより大きいリクエストを受け付けない
+		if (send.length > OnePortManyProtocolDecoder.maxFrame)
+			return null;
+
+		PooledConnection c = connections.compute(addr,
+				(k, old) -> old != null && old.isUsable() ? old
+						: new PooledConnection(k));
+		return c.request(nextRequestId.incrementAndGet(), handler, send);
+	}
+
+	/**
+	 * 切断された接続と、返信待ちが無いまま一定時間使われていない接続を閉じる。
+	 * 定期的に呼ぶ。
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (PooledConnection c : connections.values()) {
+			if (!c.isUsable()) {
+				connections.remove(c.addr, c);
+				c.close();
+			} else if (c.pending.size() == 0
+					&& now - c.lastUsed > idleTimeout) {
+				connections.remove(c.addr, c);
+				c.close();
+			}
+		}
+	}
+
+	public void closeAll() {
+		for (PooledConnection c : connections.values())
+			c.close();
+		connections.clear();
+	}
+
+	public int size() {
+		return connections.size();
+	}
+
+	/**
+	 * 返信待ちのリクエスト
+	 */
+	private static class Pending {
+		private final RequestHandler handler;
+		private final ChannelPromise state;
+		private ScheduledFuture<?> timeout;
+
+		public Pending(RequestHandler handler, ChannelPromise state) {
+			this.handler = handler;
+			this.state = state;
+		}
+	}
+
+	/**
+	 * 1つの接続先への長期間維持される接続
+	 */
+	private class PooledConnection {
+		private final InetSocketAddress addr;
+		private final ChannelFuture connected;
+		/**
+		 * リクエストID : 返信待ちのリクエスト
+		 */
+		private final ConcurrentMap<Long, Pending> pending = new ConcurrentHashMap<>();
+		private volatile long lastUsed = System.currentTimeMillis();
+		/**
+		 * この接続で1件でも返信を受信したか
+		 */
+		private volatile boolean received = false;
+		private volatile boolean closed = false;
+
+		public PooledConnection(InetSocketAddress addr) {
+			this.addr = addr;
+			Bootstrap b = new Bootstrap();
+			b.group(group).channel(NioSocketChannel.class)
+					.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+							connectionTimeout)
+					.remoteAddress(addr)
+					.handler(new ChannelInitializer<SocketChannel>() {
+						@Override
+						protected void initChannel(SocketChannel ch)
+								throws Exception {
+							ChannelPipeline p = ch.pipeline();
+							p.addLast(new LengthFieldBasedFrameDecoder(
+									OnePortManyProtocolDecoder.multiplexedDecoderMax,
+									0,
+									OnePortManyProtocolDecoder.lengthFieldLength,
+									0,
+									OnePortManyProtocolDecoder.lengthFieldLength));
+							p.addLast(new IdleStateHandler(0, 0,
+									idleTimeout, TimeUnit.MILLISECONDS));
+							p.addLast(new MultiplexedClientHandler(
+									PooledConnection.this));
+						}
+					});
+			connected = b.connect();
+			//最初のリスナーなので、どのリクエストよりも先にプロトコルIDが書き込まれる
+			connected.addListener((ChannelFutureListener) f -> {
+				if (f.isSuccess()) {
+					f.channel().writeAndFlush(f.channel().alloc().buffer(1)
+							.writeByte(
+									OnePortManyProtocolDecoder.multiplexedProtocolId));
+				} else {
+					closed();
+				}
+			});
+		}
+
+		public boolean isUsable() {
+			if (closed)
+				return false;
+			if (!connected.isDone())
+				return true;
+			return connected.isSuccess() && connected.channel().isActive()
+					&& pending.size() < maxPendingPerConnection;
+		}
+
+		public ChannelFuture request(long id, RequestHandler handler,
+				byte[] send) {
+			lastUsed = System.currentTimeMillis();
+			Channel ch = connected.channel();
+			Pending p = new Pending(handler, ch.newPromise());
+			pending.put(id, p);
+			p.timeout = ch.eventLoop().schedule(
+					() -> fail(id, new IOException("response timeout")),
+					responseTimeout,
+					TimeUnit.MILLISECONDS);
+
+			connected.addListener((ChannelFutureListener) f -> {
+				if (!f.isSuccess()) {
+					fail(id, f.cause());
+					return;
+				}
+				ByteBuf frame = f.channel().alloc().buffer(
+						OnePortManyProtocolDecoder.multiplexedHeaderLength
+								+ send.length);
+				frame.writeInt(Long.BYTES + send.length);
+				frame.writeLong(id);
+				frame.writeBytes(send);
+				f.channel().writeAndFlush(frame).addListener(
+						(ChannelFutureListener) w -> {
+							if (!w.isSuccess())
+								fail(id, w.cause());
+						});
+			});
+			return p.state;
+		}
+
+		/**
+		 * 返信を受信した
+		 * @param ctx
+		 * @param frame	長さフィールドを除いたフレーム
+		 */
+		public void received(ChannelHandlerContext ctx, ByteBuf frame) {
+			lastUsed = System.currentTimeMillis();
+			long id = frame.readLong();
+			Pending p = pending.remove(id);
+			if (p == null) {
+				Glb.debug("response for unknown or expired request id=" + id);
+				return;
+			}
+			received = true;
+			if (p.timeout != null)
+				p.timeout.cancel(false);
+			try {
+				p.handler.channelRead0(ctx, frame);
+			} catch (Exception e) {
+				Glb.getLogger().error("", e);
+			}
+			if (p.handler.getReq().getRes() != null) {
+				p.state.trySuccess();
+			} else {
+				p.state.tryFailure(new IOException("invalid response"));
+			}
+		}
+
+		private void fail(long id, Throwable cause) {
+			Pending p = pending.remove(id);
+			if (p == null)
+				return;
+			if (p.timeout != null)
+				p.timeout.cancel(false);
+			p.handler.finish();
+			p.state.tryFailure(
+					cause == null ? new IOException("request failed") : cause);
+		}
+
+		/**
+		 * 接続が閉じられた、または接続に失敗した
+		 */
+		public void closed() {
+			//こちらから閉じた場合は多重化に対応していないとは判断できない
+			boolean byUs = closed;
+			closed = true;
+			//プロトコルIDを受け付けられず切断されたと考えられる
+			if (!byUs && !received && connected.isSuccess())
+				unsupported.put(addr, System.currentTimeMillis());
+			connections.remove(addr, this);
+			for (Long id : new ArrayList<>(pending.keySet()))
+				fail(id, new IOException("connection closed"));
+		}
+
+		public void close() {
+			closed = true;
+			connected.channel().close();
+		}
+	}
+
+	/**
+	 * 多重化された接続で返信を受信し、リクエストIDに対応するハンドラに渡す
+	 */
+	private static class MultiplexedClientHandler
+			extends ChannelInboundHandlerAdapter {
+		private final PooledConnection connection;
+
+		public MultiplexedClientHandler(PooledConnection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg)
+				throws Exception {
+			try {
+				if (msg instanceof ByteBuf)
+					connection.received(ctx, (ByteBuf) msg);
+			} finally {
+				ReferenceCountUtil.release(msg);
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx)
+				throws Exception {
+			connection.closed();
+			super.channelInactive(ctx);
+		}
+
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+				throws Exception {
+			if (evt instanceof IdleStateEvent
+					&& connection.pending.size() == 0) {
+				connection.close();
+				return;
+			}
+			super.userEventTriggered(ctx, evt);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx,
+				Throwable cause) {
+			Glb.debug(
+					() -> "exceptionCaught" + cause.getClass().getSimpleName());
+			connection.close();
+		}
+	}
+}
@@ -11,6 +11,7 @@ import org.codehaus.janino.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.*;
 import glb.*;
 import glb.Conf.*;
+import glb.util.*;
 import glb.util.Util.*;
 
 /**
@@ -95,6 +96,42 @@ public strictfp class CPUProvement {
 
 	private DynamicProblem dp;
 
+	/**
+	 * コンパイル済み問題クラスの最大保持数
+	 */
+	private static final int compiledMax = 64;
+
+	/**
+	 * 問題作成情報のハッシュ値 : コンパイル済み問題クラス
+	 *
+	 * 問題関数のコードはハッシュ値だけから決まるので、同じ問題の作成や検証で
+	 * 生成とコンパイルを繰り返さないためにクラスを保持する。
+	 * コンパイルの度に{@link SimpleCompiler}がクラスローダーを作成するので、
+	 * 古いクラスがここから除去されればクラスローダーごとアンロードされうる。
+	 */
+	private static final Map<ByteArrayWrapper, Class<?>> compiled = new LinkedHashMap<ByteArrayWrapper,
+			Class<?>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<ByteArrayWrapper, Class<?>> eldest) {
+			return size() > compiledMax;
+		}
+	};
+
+	private static Class<?> getCompiled(ByteArrayWrapper key) {
+		synchronized (compiled) {
+			return compiled.get(key);
+		}
+	}
+
+	private static void putCompiled(ByteArrayWrapper key, Class<?> c) {
+		synchronized (compiled) {
+			compiled.put(key, c);
+		}
+	}
+
 	/**
 	 * @return	検証1回あたりの平均時間
 	 */
@@ -162,19 +199,6 @@ public strictfp class CPUProvement {
 		//ハッシュ作成オブジェクト
 		md = getMD();
 
-		//コンパイラ関係
-		//Janinoによるオンメモリコンパイル。
-		//Java9からtools.jarが削除されたのでJDKから変更
-		compiler = new SimpleCompiler();
-		compiler.setCompileErrorHandler(new ErrorHandler() {
-			@Override
-			public void handleError(String message, Location optionalLocation)
-					throws CompileException {
-				Glb.getLogger().error(
-						message + "Location:" + optionalLocation.toString());
-			}
-		});
-
 		//動的作成されるクラス名の末尾
 		StringBuilder suffix = new StringBuilder();
 		//多数の近傍ノードが問題を送信してくる事、1ノードでも多数の問題を解く事、
@@ -187,20 +211,15 @@ public strictfp class CPUProvement {
 
 		Glb.debug(() -> className);
 
-		//ハッシュから動的コードを作成
-		code = generateProblem(h, className);
-
-		//Glb.debug(code);
-
-		//コンパイラ用タスク作成
-		compiler.cook(code);
-
-		//動的プログラムのロード
-		Class<?> heaped = compiler.getClassLoader()
-				.loadClass(packageStr + "." + className);
+		ByteArrayWrapper key = new ByteArrayWrapper(h);
+		Class<?> heaped = getCompiled(key);
 		if (heaped == null) {
-			Glb.getLogger().error("failure");
-			return;
+			heaped = compile(h);
+			if (heaped == null) {
+				Glb.getLogger().error("failure");
+				return;
+			}
+			putCompiled(key, heaped);
 		}
 		Object o = heaped.getDeclaredConstructor().newInstance();
 		if (o == null || !(o instanceof DynamicProblem)) {
@@ -213,6 +232,37 @@ public strictfp class CPUProvement {
 		Glb.debug(() -> "作成: " + (end - start) + "ms");
 	}
 
+	/**
+	 * 問題関数のコードを作成しコンパイルする
+	 * @param h	問題作成情報のハッシュ値
+	 * @return	問題クラス。失敗したらnull
+	 */
+	private Class<?> compile(byte[] h) throws Exception {
+		//コンパイラ関係
+		//Janinoによるオンメモリコンパイル。
+		//Java9からtools.jarが削除されたのでJDKから変更
+		compiler = new SimpleCompiler();
+		compiler.setCompileErrorHandler(new ErrorHandler() {
+			@Override
+			public void handleError(String message, Location optionalLocation)
+					throws CompileException {
+				Glb.getLogger().error(
+						message + "Location:" + optionalLocation.toString());
+			}
+		});
+
+		//ハッシュから動的コードを作成
+		code = generateProblem(h, className);
+
+		//Glb.debug(code);
+
+		//コンパイラ用タスク作成
+		compiler.cook(code);
+
+		//動的プログラムのロード
+		return compiler.getClassLoader().loadClass(packageStr + "." + className);
+	}
+
 	/**
 	 * 動的な問題関数の作成。
 	 * 対象配列があり、そのハッシュ値が出力になるので、
@@ -530,6 +580,9 @@ public strictfp class CPUProvement {
 			}
 		} else {
 			for (int i = 0; i < 1000 * 1000; i++) {
+				//並列処理の期限を過ぎたら中断する
+				if (i % 1000 == 0 && ComputeExecutor.isExpired())
+					break;
 				long argLCandidate = ThreadLocalRandom.current()
 						.nextLong(Long.MIN_VALUE, Long.MAX_VALUE);
 				double argDCandidate = ThreadLocalRandom.current()
@@ -581,7 +634,12 @@ public strictfp class CPUProvement {
 				double argD);
 	}
 
+	/**
+	 * @return	問題関数のコード。コンパイル済みクラスが使われた場合ここで作成される
+	 */
 	public String getCode() {
+		if (code == null && p.getHash() != null)
+			code = generateProblem(p.getHash(), className);
 		return code;
 	}
 
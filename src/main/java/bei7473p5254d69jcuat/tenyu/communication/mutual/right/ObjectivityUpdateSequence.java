@@ -126,6 +126,20 @@ public class ObjectivityUpdateSequence extends P2PSequence {
 	 */
 	private UserMessageList userMessageList;
 
+	/**
+	 * userMessageListをチャンクに分けたもの。近傍へのチャンクの提供に使われる
+	 */
+	private UserMessageListChunks userMessageListChunks;
+
+	/**
+	 * 近傍から通知されたリスト。シーケンスをまたいで通知が届く場合があるのでstatic
+	 */
+	private static final UserMessageListSwarm swarm = new UserMessageListSwarm();
+
+	public static UserMessageListSwarm getSwarm() {
+		return swarm;
+	}
+
 	/**
 	 * 2分毎
 	 */
@@ -151,6 +165,7 @@ public class ObjectivityUpdateSequence extends P2PSequence {
 		//userMessageListは拡散処理によって新たなリストが設定される可能性があり
 		//反映処理の前にnullを入れないといけない
 		userMessageList = null;
+		userMessageListChunks = null;
 		return Glb.getObje().applyMessageList(l) > 0;
 	}
 
@@ -208,6 +223,8 @@ public class ObjectivityUpdateSequence extends P2PSequence {
 	public void resetConcrete() {
 		nextHistoryIndex = Glb.getObje().getCore().getHistoryIndex() + 1;
 		userMessageList = null;
+		userMessageListChunks = null;
+		swarm.removeOlder(nextHistoryIndex);
 		skipApply.set(false);
 		statements.clear();
 		setupStatements();
@@ -217,7 +234,21 @@ public class ObjectivityUpdateSequence extends P2PSequence {
 		this.nextHistoryIndex = historyIndex;
 	}
 
+	public UserMessageListChunks getUserMessageListChunks() {
+		return userMessageListChunks;
+	}
+
 	public void setUserMessageList(UserMessageList userMessageList) {
+		setUserMessageList(userMessageList, null);
+	}
+
+	/**
+	 * @param userMessageList
+	 * @param chunks	近傍に提供するチャンク。nullなら提供しない
+	 */
+	public void setUserMessageList(UserMessageList userMessageList,
+			UserMessageListChunks chunks) {
+		this.userMessageListChunks = chunks;
 		this.userMessageList = userMessageList;
 	}
 }
@@ -1,13 +1,13 @@
 package bei7473p5254d69jcuat.tenyu.communication.mutual.right;
 
 import java.util.*;
-import java.util.concurrent.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.communication.packaging.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.*;
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.Objectivity.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.core.*;
 import glb.*;
 import glb.util.*;
@@ -75,7 +75,7 @@ public class UserMessageList implements ValidatableI{
 						.getContent() instanceof UserMessageListRequestI))
 			return false;
 
-		LoadSetting setting = Glb.getObje().getCore().getConfig()
+		LoadSetting setting = Glb.getObje().getCoreReadOnly()
 				.getLoadSetting();
 
 		//件数チェック
@@ -201,7 +201,7 @@ public class UserMessageList implements ValidatableI{
 	 * validatedフラグが設定される。
 	 *
 	 * 検証処理が重くメッセージスループットのボトルネックになるので
-	 * 並列処理で解決する。コア数が増えれば解決する。
+	 * 署名検証を含む検証を{@link SignatureVerifier}で並列処理する。コア数が増えれば解決する。
 	 *
 	 * @return 客観に反映可能か
 	 */
@@ -211,10 +211,11 @@ public class UserMessageList implements ValidatableI{
 			if (messagesSize == 0)
 				return true;
 
-			LoadSetting setting = Glb.getObje().getCore().getConfig()
-					.getLoadSetting();
+			//メッセージ毎に客観コアのコピーを作らないようにスナップショットから読む
+			CoreSnapshot core = Glb.getObje().getCoreReadOnly();
+			LoadSetting setting = core.getLoadSetting();
 
-			long end = Glb.getObje().getCore().getHistoryIndex();
+			long end = core.getHistoryIndex();
 			long start = end
 					- setting.getUserMessageListHistoryIndexTolerance();
 			if (historyIndex < start || historyIndex > end)
@@ -230,96 +231,73 @@ public class UserMessageList implements ValidatableI{
 			//ここに追加されたものは削除される
 			removeList = new ArrayList<>();
 
-			int coreNum = Glb.getConf().getPhysicalCoreNumber();
-			if (coreNum == 0)
-				coreNum = 1;
-			//1コアあたりの処理件数
-			int perCore = messagesSize / coreNum;
-			int surplus = messagesSize % coreNum;
-
-			ExecutorService executor = Executors.newFixedThreadPool(coreNum);
-			for (int coreIndex = 0; coreIndex < coreNum; coreIndex++) {
-				int coreIndexTmp = coreIndex;
-				int perCoreTmp = perCore + (coreIndex == 0 ? surplus : 0);
-
-				executor.execute(() -> {
-					int startIndex = coreIndexTmp * perCoreTmp;
-					for (int i = startIndex; i < startIndex + perCoreTmp; i++) {
-						Message m = messages.get(i);
-
-						//署名と内容が不正なら除去
-						if (!m.validateAndSetup()) {
-							Glb.debug(new Exception(
-									"Failed to validateAndSetup()"));
-							addToRemoveList(m);
-							continue;
-						}
-
-						//内容が無いまたは適切なクラスでなければ除去
-						//validateAndSetupの後じゃないと動作しない
-						if (m.getContent() == null || !(m
-								.getContent() instanceof UserMessageListRequestI)) {
-							Glb.debug("content is null");
-							addToRemoveList(m);
-							continue;
-						}
-
-						//重複していたら除去
-						if (isDup(new ByteArrayWrapper(
-								m.getInnermostPack().getContentBinary()))) {
-							Glb.debug("dup");
-							addToRemoveList(m);
-							continue;
-						}
-
-						//ユーザー毎の同時最大同時反映件数のチェック
-						Long userId = m.getUserId();
-						//これまでに許可されたメッセージ件数
-						Integer count = messageCount.get(userId);
-						if (count == null) {
-							count = 0;
-						}
-						//1メッセージリスト中の最大メッセージ数
-						long countMax = 0;
-						if (setting == null) {
-							countMax = 5;
-						} else if (Glb.getObje().getCore()
-								.isHeavyLoadServerToUserMessageListServer(
-										userId)) {
-							//サーバー
-							countMax = setting.getServerCountMax();
-						} else if (Glb.getConst().getAuthor().getId()
-								.equals(userId)) {
-							//作者
-							countMax = setting.getAuthorCountMax();
-						} else if (Glb.getObje().getCore().getManagerList()
-								.isManager(userId)) {
-							//運営
-							countMax = setting.getAdminCountMax();
-						} else {
-							countMax = setting
-									.getUserMessageListCountMaxStandard();
-						}
-
-						if (count >= countMax) {
-							Glb.debug("count over");
-							addToRemoveList(m);
-							continue;
-						} else {
-							count++;
-							messageCount.put(userId, count);
-						}
-					}
-				});
-			}
+			//署名検証を含む重い検証をまとめて並列に行う
+			boolean[] valid = Glb.getSignatureVerifier().verifyAll(messages,
+					m -> m.validateAndSetup());
+
+			//件数制限は先着順なので、以降はリスト内の順序通りに処理する
+			for (int i = 0; i < messagesSize; i++) {
+				Message m = messages.get(i);
+
+				//署名と内容が不正なら除去
+				if (!valid[i]) {
+					Glb.debug(new Exception("Failed to validateAndSetup()"));
+					addToRemoveList(m);
+					continue;
+				}
+
+				//内容が無いまたは適切なクラスでなければ除去
+				//validateAndSetupの後じゃないと動作しない
+				if (m.getContent() == null || !(m
+						.getContent() instanceof UserMessageListRequestI)) {
+					Glb.debug("content is null");
+					addToRemoveList(m);
+					continue;
+				}
 
-			//新規受付停止
-			executor.shutdown();
-			//完了待機
-			try {
-				executor.awaitTermination(1000L * 60, TimeUnit.MILLISECONDS);
-			} catch (InterruptedException e) {
-				Glb.getLogger().info("", e);
+				//重複していたら除去
+				if (isDup(new ByteArrayWrapper(
+						m.getInnermostPack().getContentBinary()))) {
+					Glb.debug("dup");
+					addToRemoveList(m);
+					continue;
+				}
+
+				//ユーザー毎の同時最大同時反映件数のチェック
+				Long userId = m.getUserId();
+				//これまでに許可されたメッセージ件数
+				Integer count = messageCount.get(userId);
+				if (count == null) {
+					count = 0;
+				}
+				//1メッセージリスト中の最大メッセージ数
+				long countMax = 0;
+				if (setting == null) {
+					countMax = 5;
+				} else if (core
+						.isHeavyLoadServerToUserMessageListServer(userId)) {
+					//サーバー
+					countMax = setting.getServerCountMax();
+				} else if (Glb.getConst().getAuthor().getId()
+						.equals(userId)) {
+					//作者
+					countMax = setting.getAuthorCountMax();
+				} else if (core.isManager(userId)) {
+					//運営
+					countMax = setting.getAdminCountMax();
+				} else {
+					countMax = setting
+							.getUserMessageListCountMaxStandard();
+				}
+
+				if (count >= countMax) {
+					Glb.debug("count over");
+					addToRemoveList(m);
+					continue;
+				} else {
+					count++;
+					messageCount.put(userId, count);
+				}
 			}
 
 			//除去リストに追加されたメッセージを除去する
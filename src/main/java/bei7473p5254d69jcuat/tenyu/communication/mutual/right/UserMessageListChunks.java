@@ -0,0 +1,168 @@
+package bei7473p5254d69jcuat.tenyu.communication.mutual.right;
+
+import java.util.*;
+
+import glb.*;
+
+/**
+ * シリアライズされたユーザーメッセージリストを固定サイズのチャンクに分けたもの。
+ *
+ * 拡散においてリスト全体を1つの近傍から取得すると、その近傍に送信負荷が集中する。
+ * チャンク毎のダイジェスト一覧を通知し、受信側は複数の近傍から異なるチャンクを並行して取得し、
+ * チャンク毎にダイジェストと照合する。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class UserMessageListChunks {
+	/**
+	 * 1チャンクのサイズ
+	 */
+	public static final int chunkSize = 1024 * 128;
+
+	/**
+	 * チャンク数の上限
+	 */
+	public static final int chunkCountMax = 1000;
+
+	/**
+	 * @param l	拡散対象のリスト
+	 * @return	チャンクに分けられたリスト。失敗したらnull
+	 */
+	public static UserMessageListChunks create(UserMessageList l) {
+		if (l == null)
+			return null;
+		try {
+			byte[] serialized = Glb.getUtil().toKryoBytesForCommunication(l);
+			if (chunkCount(serialized.length) > chunkCountMax) {
+				Glb.getLogger()
+						.warn("too many chunks size=" + serialized.length);
+				return null;
+			}
+			return new UserMessageListChunks(l.getNextHistoryIndex(),
+					serialized);
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			return null;
+		}
+	}
+
+	/**
+	 * 近傍から受信したシリアライズされたリストをそのまま使う。
+	 * 再度シリアライズすると通知されたダイジェストと一致する保証が無いので。
+	 *
+	 * @param nextHistoryIndex
+	 * @param serialized	受信したリスト
+	 * @return	チャンクに分けられたリスト
+	 */
+	public static UserMessageListChunks create(long nextHistoryIndex,
+			byte[] serialized) {
+		if (serialized == null
+				|| chunkCount(serialized.length) > chunkCountMax)
+			return null;
+		return new UserMessageListChunks(nextHistoryIndex, serialized);
+	}
+
+	/**
+	 * @param totalSize	シリアライズされたリストのサイズ
+	 * @return	チャンク数
+	 */
+	public static int chunkCount(int totalSize) {
+		int r = totalSize / chunkSize;
+		if (totalSize % chunkSize > 0)
+			r++;
+		return r;
+	}
+
+	/**
+	 * @param digests	チャンク毎のダイジェスト一覧
+	 * @return	リスト全体を識別するハッシュ値
+	 */
+	public static byte[] listHash(List<byte[]> digests) {
+		return Glb.getUtil()
+				.hashSecure(digests.toArray(new byte[digests.size()][]));
+	}
+
+	/**
+	 * @param digests	チャンク毎のダイジェスト一覧
+	 * @param index		チャンク番号
+	 * @param chunk		受信したチャンク
+	 * @return	受信したチャンクが正しいか
+	 */
+	public static boolean verify(List<byte[]> digests, int index,
+			byte[] chunk) {
+		if (digests == null || chunk == null || index < 0
+				|| index >= digests.size())
+			return false;
+		return Arrays.equals(digests.get(index),
+				Glb.getUtil().hashSecure(chunk));
+	}
+
+	/**
+	 * このリストが反映されるとこのヒストリーインデックスになる
+	 */
+	private final long nextHistoryIndex;
+
+	/**
+	 * シリアライズされたリスト
+	 */
+	private final byte[] serialized;
+
+	/**
+	 * チャンク毎のダイジェスト
+	 */
+	private final List<byte[]> digests;
+
+	private final byte[] listHash;
+
+	private UserMessageListChunks(long nextHistoryIndex, byte[] serialized) {
+		this.nextHistoryIndex = nextHistoryIndex;
+		this.serialized = serialized;
+		int count = chunkCount(serialized.length);
+		List<byte[]> digests = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			digests.add(Glb.getUtil().hashSecure(getChunk(i)));
+		}
+		this.digests = Collections.unmodifiableList(digests);
+		this.listHash = listHash(digests);
+	}
+
+	/**
+	 * @param index	チャンク番号
+	 * @return	チャンク。範囲外ならnull
+	 */
+	public byte[] getChunk(int index) {
+		if (index < 0 || index >= chunkCount(serialized.length))
+			return null;
+		int start = index * chunkSize;
+		int end = Math.min(start + chunkSize, serialized.length);
+		return Arrays.copyOfRange(serialized, start, end);
+	}
+
+	public int getChunkCount() {
+		return digests.size();
+	}
+
+	public List<byte[]> getDigests() {
+		return digests;
+	}
+
+	public byte[] getListHash() {
+		return listHash;
+	}
+
+	public long getNextHistoryIndex() {
+		return nextHistoryIndex;
+	}
+
+	public int getTotalSize() {
+		return serialized.length;
+	}
+
+	@Override
+	public String toString() {
+		return "UserMessageListChunks [nextHistoryIndex=" + nextHistoryIndex
+				+ ", totalSize=" + serialized.length + ", chunkCount="
+				+ digests.size() + "]";
+	}
+}
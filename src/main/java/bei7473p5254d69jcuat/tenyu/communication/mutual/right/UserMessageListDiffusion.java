@@ -1,20 +1,67 @@
 package bei7473p5254d69jcuat.tenyu.communication.mutual.right;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
+import bei7473p5254d69jcuat.tenyu.communication.P2P.*;
 import bei7473p5254d69jcuat.tenyu.communication.mutual.P2PStatement.*;
+import bei7473p5254d69jcuat.tenyu.communication.mutual.right.UserMessageListSwarm.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.HasUserMessageList.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetUserMessageList.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetUserMessageListChunks.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.catchup.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.takeoverserver.usermessagelist.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.*;
 import glb.*;
 
+/**
+ * ユーザーメッセージリストを拡散する。
+ *
+ * リストを受信したノードはチャンク毎のダイジェスト一覧を近傍に通知する。
+ * 通知を受けたノードは、同じリストを通知した複数の近傍から異なるチャンクを並行して取得し、
+ * チャンク毎に検証する。これにより特定の近傍に送信負荷が集中せず、
+ * 問い合わせの待ち時間も無くなる。
+ *
+ * 通知が届かない場合や通知されたリストを取得できなかった場合、
+ * 従来通り近傍に問い合わせて1つの近傍からリスト全体を取得する。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
 public class UserMessageListDiffusion
 		extends P2PStatementFreeTiming<ObjectivityUpdateSequence> {
+	/**
+	 * 通知された複数の近傍からチャンクを並行して取得するか。
+	 * falseなら問い合わせと1近傍からの取得のみ行う
+	 */
+	private static boolean swarmMode = true;
+
+	/**
+	 * 通知を待つ時間。この時間通知が無ければ近傍に問い合わせる
+	 */
+	private static final long announceWait = 2000;
+
+	/**
+	 * チャンク取得の最大回数
+	 */
+	private static final int chunkRoundMax = 3;
+
+	/**
+	 * チャンク取得1回あたりのタイムアウト時間
+	 */
+	private static final long chunkRoundTimeout = 1000L * 10;
+
+	public static boolean isSwarmMode() {
+		return swarmMode;
+	}
+
+	public static void setSwarmMode(boolean swarmMode) {
+		UserMessageListDiffusion.swarmMode = swarmMode;
+	}
+
 	private ObjectivityUpdateSequence seq;
 
 	public UserMessageListDiffusion(ObjectivityUpdateSequence userMessages) {
@@ -40,9 +87,24 @@ public class UserMessageListDiffusion
 						new Exception());
 				break;
 			}
-			try {
-				Thread.sleep(2000);
-			} catch (InterruptedException e) {
+			if (swarmMode) {
+				//通知があればすぐに取得を始める
+				UserMessageListSwarm swarm = ObjectivityUpdateSequence
+						.getSwarm();
+				Announced announced = swarm.waitMajor(
+						Glb.getObje().getCore().getHistoryIndex() + 1,
+						announceWait);
+				if (announced != null) {
+					if (getAnnounced(announced))
+						break;
+					//同じリストが再び選ばれないようにし、問い合わせによる取得を試みる
+					swarm.failed(announced.getListHash());
+				}
+			} else {
+				try {
+					Thread.sleep(announceWait);
+				} catch (InterruptedException e) {
+				}
 			}
 			try {
 				//レイテンシ昇順の近傍一覧
@@ -71,18 +133,7 @@ public class UserMessageListDiffusion
 					//信用を高める。なお問い合わせ先に選ばれたことはレイテンシが短い事を意味し、
 					//ここで信用を高める事は低レイテンシな近傍を増やす事に繋がる
 					to.updateImpression(1.02);
-					seq.setUserMessageList(list);
-					//この検証処理をset前にやると処理時間がかかるので拡散が遅れる
-					//すぐに拡散させつつ、検証に失敗すればnullに設定する。この動作は各ノードが行うので
-					//間違ったリストは必ず排除される。
-					//この検証処理は非常に時間がかかるので反映処理の開始時間を超える可能性があるが、
-					//その場合でもできるだけ追いつくように動作する。それで問題無いと判断した。
-					if (!list.validateAndRemove()) {
-						Glb.getLogger().error(
-								"validateAndRemove() returns false",
-								new Exception());
-						seq.setUserMessageList(null);
-					}
+					received(list, null, null);
 					break;
 				} else {
 					//持っていると言ったのに取得できなかったら信用を低下させる
@@ -100,6 +151,173 @@ public class UserMessageListDiffusion
 		}
 	}
 
+	/**
+	 * 取得したリストを設定し、近傍に通知する。
+	 *
+	 * @param list		取得したリスト
+	 * @param chunks	近傍から受信したチャンク。nullならlistから作成する
+	 * @param announcers	既に同じリストを通知してきた近傍。通知しない
+	 */
+	private void received(UserMessageList list, UserMessageListChunks chunks,
+			List<P2PEdge> announcers) {
+		if (chunks == null)
+			chunks = UserMessageListChunks.create(list);
+		seq.setUserMessageList(list, chunks);
+		UserMessageListAnnounce.send(chunks, announcers);
+		//この検証処理をset前にやると処理時間がかかるので拡散が遅れる
+		//すぐに拡散させつつ、検証に失敗すればnullに設定する。この動作は各ノードが行うので
+		//間違ったリストは必ず排除される。
+		//この検証処理は非常に時間がかかるので反映処理の開始時間を超える可能性があるが、
+		//その場合でもできるだけ追いつくように動作する。それで問題無いと判断した。
+		if (!list.validateAndRemove()) {
+			Glb.getLogger().error("validateAndRemove() returns false",
+					new Exception());
+			seq.setUserMessageList(null);
+		}
+	}
+
+	/**
+	 * 通知されたリストを、通知した近傍から分担して取得する。
+	 * 各チャンクは異なる近傍に割り当てられ、受信したチャンクはダイジェストと照合される。
+	 * 壊れたチャンクを返した近傍は信用を低下させ、以降の割り当てから外す。
+	 *
+	 * @param announced	通知されたリスト
+	 * @return	取得できたか
+	 */
+	private boolean getAnnounced(Announced announced) {
+		List<byte[]> digests = announced.getDigests();
+		byte[][] chunks = new byte[digests.size()][];
+		Set<P2PEdge> corrupted = new HashSet<>();
+		Set<P2PEdge> suppliers = new HashSet<>();
+
+		for (int round = 0; round < chunkRoundMax; round++) {
+			//取得中にも通知は増えるので毎回取り直す
+			List<P2PEdge> announcers = ObjectivityUpdateSequence.getSwarm()
+					.getAnnouncers(announced.getListHash());
+			announcers.removeAll(corrupted);
+			if (announcers.size() == 0)
+				return false;
+			Collections.sort(announcers,
+					Comparator.comparing(P2PEdge::getLatency));
+
+			//近傍 : 担当するチャンク番号
+			Map<P2PEdge, List<Integer>> assigned = new LinkedHashMap<>();
+			int missing = 0;
+			for (int i = 0; i < chunks.length; i++) {
+				if (chunks[i] != null)
+					continue;
+				//同じチャンクが前回と同じ近傍に割り当てられないように回をずらす
+				P2PEdge to = announcers
+						.get((missing + round) % announcers.size());
+				assigned.computeIfAbsent(to, k -> new ArrayList<>()).add(i);
+				missing++;
+			}
+			if (missing == 0)
+				break;
+
+			ReadonlyNeighborList neighborList = new ReadonlyNeighborList(
+					announcers);
+			AsyncRequestStatesNoRetry<
+					GetUserMessageListChunks> states = new AsyncRequestStatesNoRetry<>(
+							() -> neighborList);
+			int max = GetUserMessageListChunks.getMaxIndexes();
+			List<CompletableFuture<Message>> futures = new ArrayList<>();
+			for (Map.Entry<P2PEdge, List<Integer>> e : assigned.entrySet()) {
+				P2PEdge to = e.getKey();
+				List<Integer> indexes = e.getValue();
+				for (int from = 0; from < indexes.size(); from += max) {
+					int end = Math.min(indexes.size(), from + max);
+					GetUserMessageListChunks req = new GetUserMessageListChunks();
+					req.setListHash(announced.getListHash());
+					req.setIndexes(new ArrayList<>(indexes.subList(from, end)));
+					Message m = Message.build(req)
+							.packaging(req.createPackage(to)).finish();
+					RequestFutureP2PEdge state = Glb.getP2p().requestAsync(m,
+							to);
+					if (state == null)
+						continue;
+					states.add(new AsyncRequestState<>(state, req, to));
+					futures.add(state.getHandler().getFuture());
+				}
+			}
+
+			//全ての返信か時間切れを待つ
+			try {
+				CompletableFuture
+						.allOf(futures.toArray(new CompletableFuture<?>[0]))
+						.get(chunkRoundTimeout, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				Glb.debug("chunk round timeout round=" + round);
+			} catch (Exception e) {
+				Glb.debug(e);
+			}
+
+			for (AsyncRequestState<GetUserMessageListChunks> state : states
+					.getRequests()) {
+				if (!state.getState().isSuccess()
+						|| !(state.getReq().getRes()
+								.getContent() instanceof GetUserMessageListChunksResponse))
+					continue;
+				GetUserMessageListChunksResponse res = (GetUserMessageListChunksResponse) state
+						.getReq().getRes().getContent();
+				List<Integer> indexes = state.getReq().getIndexes();
+				for (int j = 0; j < indexes.size()
+						&& j < res.getChunks().size(); j++) {
+					int index = indexes.get(j);
+					byte[] chunk = res.getChunks().get(j);
+					if (UserMessageListChunks.verify(digests, index, chunk)) {
+						chunks[index] = chunk;
+						suppliers.add(state.getTo());
+					} else if (corrupted.add(state.getTo())) {
+						Glb.getLogger().warn("corrupted UserMessageList chunk="
+								+ index + " from=" + state.getTo());
+						state.getTo().updateImpression(0.9);
+					}
+				}
+			}
+		}
+
+		//連結
+		int totalSize = 0;
+		for (byte[] chunk : chunks) {
+			if (chunk == null)
+				return false;
+			totalSize += chunk.length;
+		}
+		if (totalSize != announced.getTotalSize())
+			return false;
+		byte[] serialized = new byte[totalSize];
+		int position = 0;
+		for (byte[] chunk : chunks) {
+			System.arraycopy(chunk, 0, serialized, position, chunk.length);
+			position += chunk.length;
+		}
+
+		UserMessageList list = null;
+		try {
+			Object o = Glb.getUtil().fromKryoBytesForCommunication(serialized);
+			if (o instanceof UserMessageList)
+				list = (UserMessageList) o;
+		} catch (Exception e) {
+			Glb.debug(e);
+		}
+		if (list == null
+				|| list.getNextHistoryIndex() != announced.getNextHistoryIndex()) {
+			Glb.getLogger().warn("invalid announced UserMessageList");
+			return false;
+		}
+
+		//チャンクを提供した近傍の信用を高める
+		for (P2PEdge e : suppliers)
+			if (!corrupted.contains(e))
+				e.updateImpression(1.02);
+
+		received(list, UserMessageListChunks.create(
+				announced.getNextHistoryIndex(), serialized),
+				announced.getAnnouncers());
+		return true;
+	}
+
 	/**
 	 * ユーザーメッセージリストを同期通信で取得する
 	 * @return	ユーザーメッセージリスト、取得できなかったらnull
@@ -149,7 +367,9 @@ public class UserMessageListDiffusion
 				Glb.getLogger().info("UserMessageList#count() is zero.");
 			} else {
 				Glb.getLogger().info("UserMessageList#count() is " + l.size());
-				seq.setUserMessageList(l);
+				UserMessageListChunks chunks = UserMessageListChunks.create(l);
+				seq.setUserMessageList(l, chunks);
+				UserMessageListAnnounce.send(chunks, null);
 			}
 		} else {
 			diffusion();
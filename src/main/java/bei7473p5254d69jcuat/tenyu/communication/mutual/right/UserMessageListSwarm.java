@@ -0,0 +1,209 @@
+package bei7473p5254d69jcuat.tenyu.communication.mutual.right;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.*;
+import glb.util.Util.*;
+
+/**
+ * 近傍から通知されたユーザーメッセージリストの記録。
+ * 同じリストを通知した近傍が多いほど、そのリストは並行して取得しやすく信用もできる。
+ *
+ * 通知されるハッシュ値は認証されていないので、1近傍は1ヒストリーインデックスあたり
+ * 1つのリストしか通知できない。1近傍が偽のリストで記録を埋めて
+ * 本物の通知を押し出したり多数決を操作する事を防ぐ。
+ * 多数決は通知した近傍の信用の合計で行う。
+ *
+ * 取得に失敗したリストは記録に残し、再び選ばれないようにする。
+ *
+ * 通知は拡散段階の開始前に届く場合もあるので、シーケンスの開始時に全て消すのではなく
+ * 古いヒストリーインデックスの通知だけを消す。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class UserMessageListSwarm {
+	/**
+	 * 1ヒストリーインデックスあたり記録するリストの種類の上限。
+	 * 1近傍1種類なので、通常は近傍数が先に上限になる
+	 */
+	private static final int announcedMax = 20;
+
+	/**
+	 * リストのハッシュ値 : 通知されたリスト
+	 */
+	private final Map<ByteArrayWrapper, Announced> announced = new HashMap<>();
+
+	/**
+	 * 通知を記録する
+	 * @param nextHistoryIndex
+	 * @param digests	チャンク毎のダイジェスト一覧
+	 * @param totalSize	シリアライズされたリストのサイズ
+	 * @param from		通知した近傍
+	 */
+	public synchronized void announced(long nextHistoryIndex,
+			List<byte[]> digests, int totalSize, P2PEdge from) {
+		ByteArrayWrapper key = new ByteArrayWrapper(
+				UserMessageListChunks.listHash(digests));
+		//1近傍1ヒストリーインデックスあたり1つまで。最初の通知を採用する
+		for (Announced e : announced.values())
+			if (e.getNextHistoryIndex() == nextHistoryIndex
+					&& e.announcers.contains(from))
+				return;
+		Announced a = announced.get(key);
+		if (a == null) {
+			int count = 0;
+			for (Announced e : announced.values())
+				if (e.getNextHistoryIndex() == nextHistoryIndex)
+					count++;
+			if (count >= announcedMax)
+				return;
+			a = new Announced(nextHistoryIndex, key.getByteArray(), digests,
+					totalSize);
+			announced.put(key, a);
+		}
+		a.announcers.add(from);
+		if (!a.failed)
+			notifyAll();
+	}
+
+	/**
+	 * @param nextHistoryIndex
+	 * @return	通知した近傍の信用の合計が最も大きいリスト。
+	 * 取得に失敗したリストは除く。無ければnull
+	 */
+	public synchronized Announced getMajor(long nextHistoryIndex) {
+		Announced r = null;
+		long rWeight = 0;
+		for (Announced e : announced.values()) {
+			if (e.getNextHistoryIndex() != nextHistoryIndex || e.failed)
+				continue;
+			long weight = e.getWeight();
+			if (r == null || weight > rWeight) {
+				r = e;
+				rWeight = weight;
+			}
+		}
+		return r == null ? null : r.copy();
+	}
+
+	/**
+	 * 通知が届くまで待つ
+	 * @param nextHistoryIndex
+	 * @param timeout
+	 * @return	{@link #getMajor(long)}。timeoutまでに通知が無ければnull
+	 */
+	public synchronized Announced waitMajor(long nextHistoryIndex,
+			long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		while (true) {
+			Announced r = getMajor(nextHistoryIndex);
+			if (r != null)
+				return r;
+			long remain = end - System.currentTimeMillis();
+			if (remain <= 0)
+				return null;
+			try {
+				wait(remain);
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 取得に失敗したリストを以降選ばれないようにする。
+	 * 通知した近傍の枠は占有されたままなので、同じ近傍が別のリストを通知し直す事はできない
+	 * @param listHash
+	 */
+	public synchronized void failed(byte[] listHash) {
+		Announced a = announced.get(new ByteArrayWrapper(listHash));
+		if (a != null)
+			a.failed = true;
+	}
+
+	/**
+	 * @param listHash
+	 * @return	このリストを通知した近傍一覧
+	 */
+	public synchronized List<P2PEdge> getAnnouncers(byte[] listHash) {
+		Announced a = announced.get(new ByteArrayWrapper(listHash));
+		if (a == null)
+			return new ArrayList<>();
+		return new ArrayList<>(a.announcers);
+	}
+
+	/**
+	 * @param nextHistoryIndex	これより古い通知を削除する
+	 */
+	public synchronized void removeOlder(long nextHistoryIndex) {
+		announced.values()
+				.removeIf(e -> e.getNextHistoryIndex() < nextHistoryIndex);
+	}
+
+	/**
+	 * 通知されたリスト
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	public static class Announced {
+		private final long nextHistoryIndex;
+		private final byte[] listHash;
+		private final List<byte[]> digests;
+		private final int totalSize;
+		/**
+		 * 通知した近傍。通知が届いた順
+		 */
+		private final List<P2PEdge> announcers = new ArrayList<>();
+		/**
+		 * 取得に失敗したか
+		 */
+		private boolean failed = false;
+
+		public Announced(long nextHistoryIndex, byte[] listHash,
+				List<byte[]> digests, int totalSize) {
+			this.nextHistoryIndex = nextHistoryIndex;
+			this.listHash = listHash;
+			this.digests = digests;
+			this.totalSize = totalSize;
+		}
+
+		private Announced copy() {
+			Announced r = new Announced(nextHistoryIndex, listHash, digests,
+					totalSize);
+			r.announcers.addAll(announcers);
+			return r;
+		}
+
+		/**
+		 * @return	通知した近傍の信用の合計
+		 */
+		private long getWeight() {
+			long r = 0;
+			for (P2PEdge e : announcers)
+				r += Math.max(0, e.credit());
+			return r;
+		}
+
+		public List<P2PEdge> getAnnouncers() {
+			return announcers;
+		}
+
+		public List<byte[]> getDigests() {
+			return digests;
+		}
+
+		public byte[] getListHash() {
+			return listHash;
+		}
+
+		public long getNextHistoryIndex() {
+			return nextHistoryIndex;
+		}
+
+		public int getTotalSize() {
+			return totalSize;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package bei7473p5254d69jcuat.tenyu.communication.netty;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import glb.*;
+import io.netty.buffer.*;
+import io.netty.channel.*;
+import io.netty.util.*;
+
+/**
+ * 分割されたデータを受信し、受信したバッファをコピーせずに結合する。
+ * 次のInboundHandlerに{@link CompositeByteBuf}を渡す。
+ *
+ * {@link ChunkedDataConcatMemory}はヒープ上に全体サイズのbyte[]を作成するので、
+ * 大きなメッセージを同時に複数受信するとヒープを圧迫しGCの停止時間が長くなる。
+ * こちらはNettyが受信に使ったプールされたダイレクトバッファをそのまま繋げる。
+ *
+ * 全接続で共有されるメモリ予算があり、実際に受信して保持しているサイズを計上する。
+ * ヘッダで宣言されたサイズで確保すると、巨大なサイズを宣言するだけで
+ * 他の受信を止められるのでそうしない。
+ * 予算を超えたら自動読み込みを止めて、他の受信が終わり予算が空くまで待つ。
+ *
+ * 次のハンドラはchannelRead内で同期的にメッセージを処理し解放する事を前提とする。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class ChunkedDataConcatComposite extends ChannelInboundHandlerAdapter {
+	/**
+	 * 全接続で同時に保持できる受信中のデータの合計サイズ
+	 * 最大サイズのメッセージを3件同時に受信できる。
+	 * 超過は読み込みを止めるまでに受信した分に限られる。
+	 */
+	public static final long memoryBudget = ChunkedDataConcatMemory.chunkedDataTotalSizeMax
+			* 3L;
+
+	/**
+	 * 全接続で保持している受信中のデータのサイズ
+	 */
+	private static final AtomicLong reserved = new AtomicLong();
+
+	/**
+	 * 予算が空くのを待っている受信。到着順
+	 */
+	private static final Queue<ChunkedDataConcatComposite> waiting = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * 読み込みを止めていない受信中の数。
+	 * 全ての受信が止まると誰も予算を返却しなくなるので、最後の1つは止めない
+	 */
+	private static final AtomicInteger receiving = new AtomicInteger();
+
+	public static long getReserved() {
+		return reserved.get();
+	}
+
+	/**
+	 * @return	他に読み込みを続ける受信があり、止めてよいか
+	 */
+	private static boolean tryPause() {
+		while (true) {
+			int current = receiving.get();
+			if (current <= 1)
+				return false;
+			if (receiving.compareAndSet(current, current - 1))
+				return true;
+		}
+	}
+
+	/**
+	 * 予算を返却し、予算内である限り待っている受信を到着順に再開する
+	 */
+	private static void release(long size) {
+		reserved.addAndGet(-size);
+		while (reserved.get() < memoryBudget) {
+			ChunkedDataConcatComposite w = waiting.poll();
+			if (w == null)
+				return;
+			w.ctx.executor().execute(() -> w.resume());
+		}
+	}
+
+	/**
+	 * 結合されたデータ
+	 */
+	private CompositeByteBuf whole;
+
+	/**
+	 * 受信したサイズ
+	 */
+	private int count;
+
+	/**
+	 * ヘッダで宣言されたデータ全体のサイズ
+	 */
+	private int size;
+
+	/**
+	 * 初回チャンクか
+	 */
+	private boolean first = true;
+
+	/**
+	 * この受信が予算に計上しているサイズ
+	 */
+	private long charged = 0;
+
+	/**
+	 * 予算超過で読み込みを止めているか
+	 */
+	private boolean paused = false;
+
+	/**
+	 * {@link #receiving}に数えられているか
+	 */
+	private boolean counted = false;
+
+	/**
+	 * 受信完了済みか
+	 */
+	private boolean finish = false;
+
+	private ChannelHandlerContext ctx;
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+		super.handlerAdded(ctx);
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg)
+			throws Exception {
+		try {
+			//分割されたデータ
+			ByteBuf chunk = (ByteBuf) msg;
+
+			//初回の場合、ヘッダを解釈する
+			if (first) {
+				//二度実行しないようにする
+				first = false;
+
+				//ここに来た段階の次の4バイトがヘッダを除いた全体サイズ
+				size = chunk.readInt();
+
+				//受信可能な最大サイズを超えていたら例外を投げる
+				if (size > ChunkedDataConcatMemory.chunkedDataTotalSizeMax
+						|| size < 0)
+					throw new IllegalArgumentException();
+
+				Glb.debug("start receive whole size=" + size);
+
+				whole = ctx.alloc().compositeDirectBuffer(Integer.MAX_VALUE);
+				counted = true;
+				receiving.incrementAndGet();
+			}
+
+			//今回受信したデータのサイズ
+			int chunkSize = chunk.readableBytes();
+
+			//サイズが超過したら例外を投げる
+			if (count + chunkSize > size || chunkSize < 0)
+				throw new IllegalArgumentException("count:" + count
+						+ " chunkSize:" + chunkSize + " size:" + size);
+
+			//受信したバッファをそのまま結合する
+			if (chunkSize > 0)
+				whole.addComponent(true, chunk.retain());
+
+			//書き込んだ分countを加算
+			count += chunkSize;
+
+			charge(ctx, chunkSize);
+
+			Glb.debug("size=" + size + " count=" + count + "chunkSize "
+					+ chunkSize);
+
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			throw e;
+		} finally {
+			ReferenceCountUtil.release(msg);
+		}
+	}
+
+	/**
+	 * 受信したサイズを予算に計上し、予算を超えたら読み込みを止める
+	 * @param ctx
+	 * @param chunkSize	今回受信したサイズ
+	 */
+	private void charge(ChannelHandlerContext ctx, int chunkSize) {
+		if (chunkSize <= 0)
+			return;
+		charged += chunkSize;
+		long current = reserved.addAndGet(chunkSize);
+		//全体を受信し終えたならすぐに返却されるので止めない
+		if (current <= memoryBudget || count >= size || paused || !counted)
+			return;
+		if (!tryPause())
+			return;
+		Glb.debug("memory budget exhausted. wait. size=" + size
+				+ " reserved=" + current);
+		paused = true;
+		counted = false;
+		ctx.channel().config().setAutoRead(false);
+		waiting.add(this);
+		//登録までの間に予算が空いていたら再開の機会を逃すので確認する
+		if (reserved.get() < memoryBudget && waiting.remove(this))
+			resume();
+	}
+
+	/**
+	 * 予算が空いたので受信を再開する。イベントループで呼ばれる
+	 */
+	private void resume() {
+		if (!paused)
+			return;
+		paused = false;
+		//待っている間に切断された
+		if (!ctx.channel().isActive() || ctx.isRemoved()) {
+			cleanup();
+			return;
+		}
+		counted = true;
+		receiving.incrementAndGet();
+		ctx.channel().config().setAutoRead(true);
+	}
+
+	//Chunked系で全体の受信が終わったら呼ばれる
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) {
+		Glb.debug("channelReadComplete count=" + count + " size=" + size);
+		//ChunkedDataConcatMemoryと同様、途中で呼ばれる場合がある
+		fireIfCompleted();
+	}
+
+	private void fireIfCompleted() {
+		if (count != size || whole == null)
+			return;
+
+		Glb.debug("channelReadComplete completed");
+
+		if (finish)
+			return;
+
+		//大抵、この直後アプリ固有ハンドラがあり、それを呼び出す
+		finish = true;
+		CompositeByteBuf r = whole;
+		whole = null;
+		try {
+			//次のハンドラが解放する
+			ctx.fireChannelRead(r);
+		} finally {
+			//次のハンドラは同期的に処理するので、ここで予算を返却できる
+			cleanup();
+		}
+	}
+
+	/**
+	 * 受信中のデータを解放し予算を返却する
+	 */
+	private void cleanup() {
+		waiting.remove(this);
+		paused = false;
+		if (counted) {
+			counted = false;
+			receiving.decrementAndGet();
+		}
+		if (whole != null) {
+			whole.release();
+			whole = null;
+		}
+		if (charged > 0) {
+			long c = charged;
+			charged = 0;
+			release(c);
+		}
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		cleanup();
+		super.handlerRemoved(ctx);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		cleanup();
+		super.channelInactive(ctx);
+	}
+
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+		Glb.debug("exceptionCaught " + cause);
+		cleanup();
+		ctx.close();
+	}
+
+}
@@ -1,6 +1,8 @@
 package bei7473p5254d69jcuat.tenyu.communication.netty;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.P2P.*;
@@ -20,9 +22,10 @@ import io.netty.util.*;
  * ゼロコピーではないということは、おおよそ5-10Gbps程度のファイル受信で
  * 1コアを使い切ってしまうだろう。
  *
- * ゼロコピーが無いならRandomAccessFileで並列書き込みするにあたって性能的ロスが無い。
- * ということでそうしている。
+ * ただしNettyが受信したダイレクトバッファを{@link ByteBuf#nioBuffers()}で取り出し
+ * {@link FileChannel}に位置指定で書き込めば、ヒープへのコピーは避けられる。
  * 各スレッドが1ファイルに対して異なる区間に書き込む。
+ * 位置指定書き込みなのでシークは不要で、同じファイルの他の区間への書き込みと干渉しない。
  *
  * このクラスの書き込み処理が呼ばれる前にファイル全体が作成されている必要がある。
  * リクエスト時点でファイルサイズが判明している前提であり（ファイル名を伝える時に同時に伝えられる）
@@ -48,6 +51,51 @@ public class ChunkedDataConcatFile extends ChannelInboundHandlerAdapter {
 	public static final long chunkedDataTotalSizeMax = 1000L * 1000L * 1000L
 			* 3L - jvmTolerance;
 
+	/**
+	 * 受信したデータをいつストレージに同期するか
+	 */
+	public static enum SyncPolicy {
+		/**
+		 * OSに任せる。既定
+		 */
+		NONE,
+		/**
+		 * 受信完了時に同期する
+		 */
+		ON_COMPLETE,
+		/**
+		 * {@link ChunkedDataConcatFile#syncInterval}バイト毎と受信完了時に同期する
+		 */
+		PERIODIC,
+	}
+
+	/**
+	 * ファイルは断片毎に受信され、受信後にハッシュ値で検証されるので、
+	 * 既定では同期しない。同期は断片毎に書き込みを待たせる
+	 */
+	private static volatile SyncPolicy syncPolicy = SyncPolicy.NONE;
+
+	/**
+	 * {@link SyncPolicy#PERIODIC}の場合の同期間隔。バイト
+	 */
+	private static volatile long syncInterval = 1000L * 1000 * 64;
+
+	public static SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	public static void setSyncPolicy(SyncPolicy syncPolicy) {
+		ChunkedDataConcatFile.syncPolicy = syncPolicy;
+	}
+
+	public static long getSyncInterval() {
+		return syncInterval;
+	}
+
+	public static void setSyncInterval(long syncInterval) {
+		ChunkedDataConcatFile.syncInterval = syncInterval;
+	}
+
 	/**
 	 * 書き込んだサイズ
 	 */
@@ -72,9 +120,14 @@ public class ChunkedDataConcatFile extends ChannelInboundHandlerAdapter {
 	private boolean first = true;
 
 	/**
-	 * pathへ順次書き込む機能
+	 * pathへ位置指定で書き込む
+	 */
+	private FileChannel channel;
+
+	/**
+	 * 最後に同期してから書き込んだサイズ
 	 */
-	private RandomAccessFile stream;
+	private long unsynced;
 
 	/**
 	 * ファイルパス。ここに受信する
@@ -129,12 +182,8 @@ public class ChunkedDataConcatFile extends ChannelInboundHandlerAdapter {
 				}
 				path = Paths.get(pathStr);
 
-				//受信ストリームを作成
 				//事前にファイルが作成されている前提
-				stream = new RandomAccessFile(pathStr, "rw");
-
-				//最初の書き込み位置
-				stream.seek(requestedPosition);
+				channel = FileChannel.open(path, StandardOpenOption.WRITE);
 
 				Glb.debug("start receive file requestedSize=" + requestedSize
 						+ " position=" + requestedPosition + " path="
@@ -150,19 +199,25 @@ public class ChunkedDataConcatFile extends ChannelInboundHandlerAdapter {
 						"count:" + count + " chunkSize:" + chunkSize
 								+ " requestedSize:" + requestedSize);
 
-			//受信したデータ
-			byte[] bytes = new byte[chunkSize];
-			chunk.readBytes(bytes);
-
-			//ファイルに書き込む
-			stream.write(bytes, 0, bytes.length);
-			//chunk.getBytes(chunk.readerIndex(), ch, chunkSize);
+			//受信したバッファをヒープにコピーせずファイルに書き込む
+			long position = requestedPosition + count;
+			for (ByteBuffer buf : chunk.nioBuffers()) {
+				while (buf.hasRemaining()) {
+					position += channel.write(buf, position);
+				}
+			}
+			chunk.skipBytes(chunkSize);
 
 			//書き込んだ分countを加算
 			count += chunkSize;
 
-			//次の書き込み位置を設定
-			stream.seek(requestedPosition + count);
+			if (syncPolicy == SyncPolicy.PERIODIC) {
+				unsynced += chunkSize;
+				if (unsynced >= syncInterval) {
+					channel.force(false);
+					unsynced = 0;
+				}
+			}
 		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 			throw e;
@@ -217,20 +272,19 @@ public class ChunkedDataConcatFile extends ChannelInboundHandlerAdapter {
 	}
 
 	/**
-	 * ストリームを閉じる
+	 * ファイルを閉じる
+	 * @param flush	同期方針に応じてストレージに同期するか
 	 */
 	private void close(boolean flush) {
-		if (stream != null) {
+		if (channel != null) {
 			try {
-				/*
-				 * https://stackoverflow.com/questions/7550190/how-do-i-flush-a-randomaccessfile-java
-				if (flush)
-					stream.flush();
-					*/
-				stream.close();
+				if (flush && syncPolicy != SyncPolicy.NONE)
+					channel.force(false);
+				channel.close();
 			} catch (Exception e) {
 				Glb.getLogger().warn("", e);
 			}
+			channel = null;
 		}
 	}
 
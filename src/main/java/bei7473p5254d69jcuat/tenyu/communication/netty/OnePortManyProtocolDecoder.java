@@ -9,6 +9,7 @@ import io.netty.channel.*;
 import io.netty.handler.codec.*;
 import io.netty.handler.stream.*;
 import io.netty.handler.timeout.*;
+import io.netty.util.*;
 
 /**
  * Port Unification
@@ -29,6 +30,54 @@ public class OnePortManyProtocolDecoder extends ByteToMessageDecoder {
 	public static final int transferTimeout = 7;//second
 	public static final int lengthFieldLength = 4;
 
+	/**
+	 * 多重化された長期間の接続のプロトコルID。
+	 * 接続の最初の1バイトがこのIDで、以降は
+	 * [4バイトの長さ][8バイトのリクエストID][メッセージ]
+	 * のフレームが双方向に任意の数だけ送受信される。
+	 * 返信には対応するリクエストのIDが付けられる。
+	 */
+	public static final byte multiplexedProtocolId = 4;
+	/**
+	 * 多重化された接続で受信する返信の1フレームの最大サイズ。長さフィールドを除く
+	 */
+	public static final int multiplexedFrameMax = ChunkedDataConcatMemory.chunkedDataTotalSizeMax;
+	/**
+	 * 多重化された接続で返信を受信するクライアント側のフレームデコーダーに渡す最大サイズ。
+	 * {@link LengthFieldBasedFrameDecoder}の最大サイズは長さフィールドを含む
+	 */
+	public static final int multiplexedDecoderMax = multiplexedFrameMax
+			+ lengthFieldLength;
+	/**
+	 * 多重化された接続でリクエストを受信するサーバー側のフレームデコーダーに渡す最大サイズ。
+	 * 多重化された接続で送信されるリクエストは{@link #maxFrame}以下なので、
+	 * 認証前の相手に大きなバッファを確保させられないようにそれを上限とする
+	 */
+	public static final int multiplexedRequestDecoderMax = maxFrame
+			+ Long.BYTES + lengthFieldLength;
+	/**
+	 * 多重化された接続のフレームのヘッダのサイズ
+	 */
+	public static final int multiplexedHeaderLength = lengthFieldLength
+			+ Long.BYTES;
+	/**
+	 * 多重化された接続である事を示すチャンネルの属性
+	 */
+	public static final AttributeKey<Boolean> multiplexed = AttributeKey
+			.valueOf(OnePortManyProtocolDecoder.class.getName()
+					+ ".multiplexed");
+	/**
+	 * 多重化された接続でこの時間送受信が無ければ閉じる。秒
+	 * サーバー側の値。クライアント側は{@link #multiplexedClientIdleTimeout}
+	 */
+	public static final int multiplexedIdleTimeout = 60;
+	/**
+	 * クライアント側のアイドルタイムアウト。秒
+	 * サーバー側が閉じようとしている接続に送信しないよう、サーバー側より少し短くする
+	 */
+	public static final int multiplexedClientIdleTimeout = multiplexedIdleTimeout
+			- 10;
+
 	/**
 	 * このハンドラが使用されるのはサーバー側か。
 	 * 常駐して任意のデータを受信するサーバーと
@@ -117,9 +166,10 @@ public class OnePortManyProtocolDecoder extends ByteToMessageDecoder {
 						ChunkedWriteHandler.class.getSimpleName(),
 						new ChunkedWriteHandler());
 			}
+			//受信したバッファをコピーせずに結合する
 			p.addAfter(ChunkedWriteHandler.class.getSimpleName(),
-					ChunkedDataConcatMemory.class.getSimpleName(),
-					new ChunkedDataConcatMemory());
+					ChunkedDataConcatComposite.class.getSimpleName(),
+					new ChunkedDataConcatComposite());
 			break;
 		case 3:
 			//file
@@ -153,6 +203,26 @@ public class OnePortManyProtocolDecoder extends ByteToMessageDecoder {
 					ChunkedDataConcatFile.class.getSimpleName(),
 					new ChunkedDataConcatFile(rfh));
 			break;
+		case multiplexedProtocolId:
+			//multiplexed
+			//長期間維持される接続なので読み込みタイムアウトではなくアイドルで閉じる
+			if (!server) {
+				Exception e = new IllegalArgumentException();
+				Glb.getLogger().error("multiplexed protocol to client", e);
+				in.clear();
+				ctx.close();
+				throw e;
+			}
+			ctx.channel().attr(multiplexed).set(true);
+			p.addAfter(OnePortManyProtocolDecoder.class.getSimpleName(),
+					IdleStateHandler.class.getSimpleName(),
+					new IdleStateHandler(0, 0, multiplexedIdleTimeout));
+			p.addAfter(IdleStateHandler.class.getSimpleName(),
+					LengthFieldBasedFrameDecoder.class.getSimpleName(),
+					new LengthFieldBasedFrameDecoder(
+							multiplexedRequestDecoderMax, 0, lengthFieldLength,
+							0, lengthFieldLength));
+			break;
 		default:
 			//例外
 			Exception e = new IllegalArgumentException();
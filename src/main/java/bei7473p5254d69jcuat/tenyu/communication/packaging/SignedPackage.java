@@ -104,7 +104,7 @@ public class SignedPackage extends Package implements ClassNameUnchangeableI {
 	public String getSignNominal(Long signerUserId) {
 		return Glb.getConf().getKeys().getSignNominal(
 				SignedPackage.class.getSimpleName(),
-				"" + Glb.getObje().getCore().getHistoryIndex(),
+				"" + Glb.getObje().getCoreReadOnly().getHistoryIndex(),
 				"" + signerUserId);
 	}
 
@@ -0,0 +1,66 @@
+package bei7473p5254d69jcuat.tenyu.communication.request;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
+
+/**
+ * {@link UserMessageListRequestI#apply(jetbrains.exodus.env.Transaction, long)}
+ * が読み書きするオブジェクトの一覧。
+ * メッセージリスト反映処理において、互いに干渉しないメッセージを判定するために使う。
+ *
+ * キーはストア名とそのメッセージがオブジェクトを識別するIDからなる。
+ * 同じストアのオブジェクトは全メッセージで同じ方法で識別する必要がある。
+ * 例えば社会性は個性系オブジェクトであるユーザーのIDで識別する。
+ *
+ * 書き込むオブジェクトは読み込みもするとみなす。
+ * 漏れがあると並列反映の結果が逐次反映と一致しなくなるので、
+ * 全て列挙できないメッセージはnullを返す事。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class ApplyKeys {
+	/**
+	 * @param store
+	 * @param id		そのストアにおけるオブジェクトの識別子
+	 * @return	キー
+	 */
+	public static String key(StoreName store, Object id) {
+		return store.getModelName() + ":" + id;
+	}
+
+	/**
+	 * 読み込むオブジェクト。書き込むオブジェクトも含む
+	 */
+	private final Set<String> reads = new HashSet<>();
+	/**
+	 * 書き込むオブジェクト
+	 */
+	private final Set<String> writes = new HashSet<>();
+
+	public ApplyKeys addRead(StoreName store, Object id) {
+		reads.add(key(store, id));
+		return this;
+	}
+
+	public ApplyKeys addWrite(StoreName store, Object id) {
+		String k = key(store, id);
+		reads.add(k);
+		writes.add(k);
+		return this;
+	}
+
+	public Set<String> getReads() {
+		return Collections.unmodifiableSet(reads);
+	}
+
+	public Set<String> getWrites() {
+		return Collections.unmodifiableSet(writes);
+	}
+
+	@Override
+	public String toString() {
+		return "ApplyKeys [reads=" + reads + ", writes=" + writes + "]";
+	}
+}
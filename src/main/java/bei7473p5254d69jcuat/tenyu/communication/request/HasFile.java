@@ -1,6 +1,8 @@
 package bei7473p5254d69jcuat.tenyu.communication.request;
 
 import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.*;
@@ -16,6 +18,37 @@ import io.netty.channel.*;
  *
  */
 public class HasFile extends P2PEdgeCommonKeyRequest {
+	/**
+	 * チャンクハッシュ一覧を作成中のファイル
+	 */
+	private static final Set<String> initializing = ConcurrentHashMap
+			.newKeySet();
+
+	/**
+	 * チャンクハッシュ一覧の作成はファイル全体を読むので、
+	 * 受信スレッドで行わずワーカーで行う。
+	 * 作成された一覧は次回以降の問い合わせで返される
+	 * @param file
+	 */
+	private static void initChunkHashesAsync(TenyutalkFileMetadataI file) {
+		String path = file.getRelativePathStr();
+		if (path == null || !initializing.add(path))
+			return;
+		try {
+			Glb.getExecutorSlow().execute(() -> {
+				try {
+					file.getChunkHashesAndInit();
+				} catch (Exception e) {
+					Glb.getLogger().error("", e);
+				} finally {
+					initializing.remove(path);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			initializing.remove(path);
+		}
+	}
+
 	private TenyutalkFileMetadataI file;
 
 	@Override
@@ -32,6 +65,14 @@ public class HasFile extends P2PEdgeCommonKeyRequest {
 				&& writeBits.toFile().exists()) {
 			try {
 				res.setWriteBits(Files.readAllBytes(writeBits));
+				//DL側が断片毎に検証できるように
+				//作成済みの場合だけ返す
+				ChunkHashes chunkHashes = file.loadChunkHashes();
+				if (chunkHashes != null) {
+					res.setChunkHashes(chunkHashes.serialize());
+				} else {
+					initChunkHashesAsync(file);
+				}
 			} catch (Exception ex) {
 				Glb.getLogger()
 						.warn("Failed to read writeBits path=" + writeBits, ex);
@@ -64,6 +105,13 @@ public class HasFile extends P2PEdgeCommonKeyRequest {
 		private byte[] writeBits;
 		public static final int writeBitsMax = 1000 * 1000;
 
+		/**
+		 * シリアライズされた{@link ChunkHashes}
+		 * nullは持っていない事を意味する
+		 */
+		private byte[] chunkHashes;
+		public static final int chunkHashesMax = 1000 * 1000 * 4;
+
 		@Override
 		public boolean isValid(Request req) {
 			return req instanceof HasFile;
@@ -78,6 +126,8 @@ public class HasFile extends P2PEdgeCommonKeyRequest {
 		protected boolean validateP2PEdgeCommonKeyResponseConcrete(Message m) {
 			if (writeBits != null && writeBits.length > writeBitsMax)
 				return false;
+			if (chunkHashes != null && chunkHashes.length > chunkHashesMax)
+				return false;
 			return true;
 		}
 
@@ -89,6 +139,14 @@ public class HasFile extends P2PEdgeCommonKeyRequest {
 			this.writeBits = writeBits;
 		}
 
+		public byte[] getChunkHashes() {
+			return chunkHashes;
+		}
+
+		public void setChunkHashes(byte[] chunkHashes) {
+			this.chunkHashes = chunkHashes;
+		}
+
 	}
 
 }
@@ -0,0 +1,119 @@
+package bei7473p5254d69jcuat.tenyu.communication.request;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.communication.*;
+import bei7473p5254d69jcuat.tenyu.communication.mutual.right.*;
+import bei7473p5254d69jcuat.tenyu.communication.packaging.P2PEdgeCommonKeyPackage.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.*;
+import glb.*;
+import io.netty.channel.*;
+
+/**
+ * ユーザーメッセージリストを受信した事を近傍に通知する。
+ * リストのチャンク毎のダイジェスト一覧を含むので、受信側は通知した複数の近傍から
+ * 異なるチャンクを並行して取得し検証できる。
+ * Response不要なのでRequestではなくContent
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+@RequestSequenceStart
+public class UserMessageListAnnounce extends MessageContent
+		implements P2PEdgeCommonKeyPackageContent {
+	/**
+	 * 近傍にリストを持っている事を通知する
+	 * @param chunks	通知するリスト
+	 * @param exclude	既に同じリストを通知してきた近傍。通知しない
+	 */
+	public static void send(UserMessageListChunks chunks,
+			List<P2PEdge> exclude) {
+		if (chunks == null)
+			return;
+		List<P2PEdge> neighbors = Glb.getSubje().getNeighborList()
+				.getNeighborsLowLatencySortConnectedIn5Minute();
+		for (P2PEdge to : neighbors) {
+			if (exclude != null && exclude.contains(to))
+				continue;
+			try {
+				UserMessageListAnnounce c = new UserMessageListAnnounce();
+				c.setNextHistoryIndex(chunks.getNextHistoryIndex());
+				c.setTotalSize(chunks.getTotalSize());
+				c.setDigests(new ArrayList<>(chunks.getDigests()));
+				Message m = Message.build(c).packaging(c.createPackage(to))
+						.finish();
+				Glb.getP2p().sendAsync(m, to);
+			} catch (Exception e) {
+				Glb.getLogger().error("", e);
+			}
+		}
+	}
+
+	/**
+	 * このリストが反映されるとこのヒストリーインデックスになる
+	 */
+	private long nextHistoryIndex = -1L;
+
+	/**
+	 * シリアライズされたリストのサイズ
+	 */
+	private int totalSize;
+
+	/**
+	 * チャンク毎のダイジェスト
+	 */
+	private List<byte[]> digests = new ArrayList<>();
+
+	@Override
+	protected final boolean validateConcreteContent(Message m) {
+		if (nextHistoryIndex < 0 || totalSize <= 0 || digests == null)
+			return false;
+		if (digests.size() > UserMessageListChunks.chunkCountMax
+				|| digests.size() != UserMessageListChunks
+						.chunkCount(totalSize))
+			return false;
+		int hashSize = Glb.getConst().getHashSize();
+		for (byte[] d : digests)
+			if (d == null || d.length != hashSize)
+				return false;
+		return true;
+	}
+
+	@Override
+	public boolean received(ChannelHandlerContext con, Received validated) {
+		P2PEdge from = validated.getEdgeByInnermostPackage();
+		long next = Glb.getObje().getCore().getHistoryIndex() + 1;
+		//古いリストの通知は無視する
+		if (nextHistoryIndex < next) {
+			Glb.debug("old UserMessageListAnnounce from=" + from);
+			return true;
+		}
+		ObjectivityUpdateSequence.getSwarm().announced(nextHistoryIndex,
+				digests, totalSize, from);
+		return true;
+	}
+
+	public List<byte[]> getDigests() {
+		return digests;
+	}
+
+	public long getNextHistoryIndex() {
+		return nextHistoryIndex;
+	}
+
+	public int getTotalSize() {
+		return totalSize;
+	}
+
+	public void setDigests(List<byte[]> digests) {
+		this.digests = digests;
+	}
+
+	public void setNextHistoryIndex(long nextHistoryIndex) {
+		this.nextHistoryIndex = nextHistoryIndex;
+	}
+
+	public void setTotalSize(int totalSize) {
+		this.totalSize = totalSize;
+	}
+}
@@ -24,4 +24,44 @@ public interface UserMessageListRequestI extends SignedPackageContent {
 	 * @return					成功したか
 	 */
 	boolean apply(Transaction txn, long historyIndex) throws Exception;
+
+	/**
+	 * @return	{@link #apply(Transaction, long)}が読み書きするオブジェクト。
+	 * 列挙できないならnull。nullのメッセージは以降の全メッセージと干渉するとみなされる
+	 */
+	default ApplyKeys getApplyKeys() {
+		return null;
+	}
+
+	/**
+	 * {@link #apply(Transaction, long)}のうちDBへの書き込みを伴わない部分。
+	 * オブジェクトの読み込みや構築、検証を行い、書き込みだけを後回しにする。
+	 *
+	 * 干渉しない他のメッセージと並列に、反映前の状態のスナップショットに対して呼ばれる。
+	 * {@link #getApplyKeys()}で宣言した以外のオブジェクトを読み込んではならない。
+	 *
+	 * @param txn				読み込み専用トランザクション
+	 * @param historyIndex		その回のhistoryIndex
+	 * @return	書き込み処理。準備できないならnullで、代わりに
+	 * {@link #apply(Transaction, long)}が呼ばれる
+	 */
+	default PreparedApply prepareApply(Transaction txn, long historyIndex)
+			throws Exception {
+		return null;
+	}
+
+	/**
+	 * {@link UserMessageListRequestI#prepareApply(Transaction, long)}で準備された書き込み処理。
+	 * メッセージリスト内の順序通りに共通のトランザクションで呼ばれる。
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	public static interface PreparedApply {
+		/**
+		 * @param txn	その回の他のUserRightMessageと共通のトランザクション
+		 * @return	{@link UserMessageListRequestI#apply(Transaction, long)}と同じ
+		 */
+		boolean commit(Transaction txn) throws Exception;
+	}
 }
@@ -0,0 +1,154 @@
+package bei7473p5254d69jcuat.tenyu.communication.request.catchup;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.communication.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
+import bei7473p5254d69jcuat.tenyu.db.store.satellite.*;
+import bei7473p5254d69jcuat.tenyu.db.store.satellite.HashStore.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.*;
+import glb.*;
+import io.netty.channel.*;
+
+/**
+ * ハッシュツリー上の複数のハッシュ配列を一度に取得するメッセージ。
+ * {@link GetHashArray}をキー毎に送信すると差異の数だけ往復が必要になるので、
+ * 同じレベルの差異をまとめて問い合わせる。
+ *
+ * depthを指定すると、各キーの下位depthレベル分の全ハッシュ配列も返される。
+ * 返信側の件数上限に達した場合、下位のハッシュ配列は途中までしか返されない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class GetHashArrays extends AbstractByStoreMessage {
+	/**
+	 * 一度に問い合わせられる最大キー数
+	 */
+	private static final int maxKeys = 100;
+
+	/**
+	 * 下位を何レベルまで返すかの上限
+	 */
+	private static final int maxDepth = 2;
+
+	/**
+	 * 返信されるハッシュ配列の最大件数
+	 */
+	private static final int maxRecords = 1000 * 2;
+
+	public static int getMaxKeys() {
+		return maxKeys;
+	}
+
+	public static int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public static int getMaxRecords() {
+		return maxRecords;
+	}
+
+	/**
+	 * {@link HashStoreKey#getKeyBA()}の一覧
+	 */
+	private List<byte[]> keys = new ArrayList<>();
+
+	/**
+	 * 各キーについて下位何レベルまで返すか。
+	 * 0ならキーのハッシュ配列だけ
+	 */
+	private int depth = 0;
+
+	@Override
+	protected final boolean validateAbstractByStoreMessageConcrete(Message m) {
+		if (keys == null || keys.size() == 0 || keys.size() > maxKeys)
+			return false;
+		for (byte[] key : keys)
+			if (key == null || key.length == 0)
+				return false;
+		return depth >= 0 && depth <= maxDepth;
+	}
+
+	public List<byte[]> getKeys() {
+		return keys;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public boolean isValid(Response res) {
+		return res instanceof GetHashArraysResponse;
+	}
+
+	@Override
+	public boolean received(ChannelHandlerContext ctx, Received validated) {
+		Glb.debug("storeName=" + storeName + " keys=" + keys.size() + " depth="
+				+ depth);
+
+		List<HashStoreKey> parsed = new ArrayList<>();
+		for (byte[] key : keys)
+			parsed.add(HashStoreKey.parse(key));
+
+		List<HashStoreRecordPositioned> r = HashStore
+				.getHashArraysSimple(parsed, depth, maxRecords, storeName);
+		if (r == null)
+			return false;
+		GetHashArraysResponse res = new GetHashArraysResponse();
+		res.setStoreName(storeName);
+		res.setHashArrays(r);
+		P2PEdge e = validated.getEdgeByInnermostPackage();
+		Message m = Message.build(res).packaging(res.createPackage(e)).finish();
+		return Glb.getP2p().response(m, ctx);
+	}
+
+	public void setKeys(List<byte[]> keys) {
+		this.keys = keys;
+	}
+
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	public static class GetHashArraysResponse
+			extends AbstractByStoreMessageResponse {
+		/**
+		 * 問い合わされたハッシュ配列とその下位のハッシュ配列。
+		 * 上位レベルから順に並ぶ。
+		 * 返信側に存在しないハッシュ配列は含まれない
+		 */
+		private List<HashStoreRecordPositioned> hashArrays = new ArrayList<>();
+
+		public List<HashStoreRecordPositioned> getHashArrays() {
+			return hashArrays;
+		}
+
+		@Override
+		protected final boolean validateAbstractByStoreMessageResponseConcrete(
+				Message m) {
+			if (hashArrays == null || hashArrays.size() > maxRecords)
+				return false;
+			for (HashStoreRecordPositioned e : hashArrays)
+				if (e == null || !e.validate())
+					return false;
+			return true;
+		}
+
+		@Override
+		public boolean isValid(Request req) {
+			return req instanceof GetHashArrays;
+		}
+
+		@Override
+		public boolean received(ChannelHandlerContext ctx, Received validated) {
+			return true;
+		}
+
+		public void setHashArrays(List<HashStoreRecordPositioned> hashArrays) {
+			this.hashArrays = hashArrays;
+		}
+	}
+
+}
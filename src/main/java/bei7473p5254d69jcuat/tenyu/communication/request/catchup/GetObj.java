@@ -7,9 +7,11 @@ import bei7473p5254d69jcuat.tenyu.communication.netty.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.*;
 import bei7473p5254d69jcuat.tenyu.db.store.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
 import glb.*;
 import glb.util.*;
 import io.netty.channel.*;
+import jetbrains.exodus.env.*;
 
 /**
  * 多数のオブジェクトをまとめて取得するメッセージ。
@@ -71,6 +73,8 @@ public class GetObj extends AbstractByStoreMessage {
 
 		//返信されるオブジェクト一覧
 		List<ModelI> objs = new ArrayList<>();
+		//返信される社会性からのエッジ
+		Map<Long, List<Edge>> edges = new HashMap<>();
 
 		//ID
 		if (idList != null) {
@@ -79,15 +83,14 @@ public class GetObj extends AbstractByStoreMessage {
 				ModelStore<? extends ModelI, ?> s = storeName.getStore(txn);
 				if (s == null)
 					return;
-				int count = 0;
-				for (Long id : ids) {
-					ModelI o = s.getRawObj(id);
+				List<Long> idsL = new ArrayList<>(ids.length);
+				for (int i = 0; i < ids.length && i <= max; i++)
+					idsL.add(ids[i]);
+				for (ModelI o : s.getRawObjs(idsL)) {
 					if (o == null)
 						continue;
 					objs.add(o);
-					count++;
-					if (count > max)
-						break;
+					putEdges(txn, o, edges);
 				}
 			});
 		}
@@ -99,15 +102,17 @@ public class GetObj extends AbstractByStoreMessage {
 				ModelStore<? extends ModelI, ?> s = storeName.getStore(txn);
 				if (s == null)
 					return;
-				int count = 0;
-				for (Long hid : hids) {
-					ModelI o = s.getRawObjByHid(hid);
+				List<Long> hidsL = new ArrayList<>(hids.length);
+				for (int i = 0; i < hids.length && i <= max; i++)
+					hidsL.add(hids[i]);
+				List<? extends ModelI> loaded = s.getRawObjsByHids(hidsL);
+				if (loaded == null)
+					return;
+				for (ModelI o : loaded) {
 					if (o == null)
 						continue;
 					objs.add(o);
-					count++;
-					if (count > max)
-						break;
+					putEdges(txn, o, edges);
 				}
 			});
 		}
@@ -118,6 +123,8 @@ public class GetObj extends AbstractByStoreMessage {
 		GetObjResponse res = new GetObjResponse();
 		res.setStoreName(storeName);
 		res.setObjs(objs);
+		if (edges.size() > 0)
+			res.setSocialityEdges(edges);
 		if (res.reduceSize()) {
 			Glb.getLogger().info("GetObjResponse is reduced");
 		}
@@ -129,6 +136,27 @@ public class GetObj extends AbstractByStoreMessage {
 		return Glb.getP2p().response(resM, ctx);
 	}
 
+	/**
+	 * oが外部化されたエッジを持つ社会性なら、そのエッジをedgesに加える。
+	 * 社会性自体はエッジ数とエッジのハッシュ値の合計しか持たないので、
+	 * エッジを送らなければ受信側はエッジを得られない
+	 *
+	 * @param txn	oを読み出したトランザクション
+	 * @param o
+	 * @param edges	社会性ID : エッジ一覧
+	 */
+	private static void putEdges(Transaction txn, ModelI o,
+			Map<Long, List<Edge>> edges) {
+		if (!(o instanceof Sociality))
+			return;
+		Sociality so = (Sociality) o;
+		if (!(so.getEdgeManager() instanceof ExternalEdgeManager))
+			return;
+		List<Edge> l = new ArrayList<>();
+		so.forEachEdge(txn, e -> l.add(e));
+		edges.put(so.getId(), l);
+	}
+
 	public IDList getIdList() {
 		return idList;
 	}
@@ -140,6 +168,13 @@ public class GetObj extends AbstractByStoreMessage {
 		 */
 		private List<ModelI> objs;
 
+		/**
+		 * 社会性ストアの場合、外部化されたエッジを持つ各社会性からのエッジ
+		 * 社会性ID : エッジ一覧
+		 * 該当する社会性が無ければnull
+		 */
+		private Map<Long, List<Edge>> socialityEdges;
+
 		public void setObjs(List<ModelI> objs) {
 			this.objs = objs;
 		}
@@ -148,6 +183,14 @@ public class GetObj extends AbstractByStoreMessage {
 			return objs;
 		}
 
+		public Map<Long, List<Edge>> getSocialityEdges() {
+			return socialityEdges;
+		}
+
+		public void setSocialityEdges(Map<Long, List<Edge>> socialityEdges) {
+			this.socialityEdges = socialityEdges;
+		}
+
 		@Override
 		protected final boolean validateAbstractByStoreMessageResponseConcrete(
 				Message m) {
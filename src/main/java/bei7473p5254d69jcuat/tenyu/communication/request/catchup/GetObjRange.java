@@ -3,12 +3,14 @@ package bei7473p5254d69jcuat.tenyu.communication.request.catchup;
 import java.util.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
+import bei7473p5254d69jcuat.tenyu.communication.netty.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.*;
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
 import glb.*;
+import glb.util.*;
 import io.netty.channel.*;
 
 /**
@@ -30,7 +32,8 @@ public class GetObjRange extends P2PEdgeCommonKeyRequest {
 
 	@Override
 	protected final boolean validateP2PEdgeCommonKeyConcrete(Message m) {
-		return count > 0 && count < max && startId >= 0 && storeName != null;
+		return count > 0 && count < max && (!raw || count <= GetObj.max)
+				&& startId >= 0 && storeName != null;
 	}
 
 	/**
@@ -43,6 +46,22 @@ public class GetObjRange extends P2PEdgeCommonKeyRequest {
 	 */
 	private long startId;
 	private StoreNameObjectivity storeName;
+	/**
+	 * DB上のシリアライズされた状態のまま返信を求めるか。
+	 * 返信側はデシリアライズと再シリアライズを省略でき、
+	 * 受信側は{@link GetObjRangeResponse#getObjs()}で必要になった時にデシリアライズする。
+	 * 範囲内に無いIDは飛ばされ、返信のサイズが大きすぎる場合は末尾が省略される。
+	 * 件数は{@link GetObj#max}まで
+	 */
+	private boolean raw = false;
+
+	public boolean isRaw() {
+		return raw;
+	}
+
+	public void setRaw(boolean raw) {
+		this.raw = raw;
+	}
 
 	public long getCount() {
 		return count;
@@ -68,8 +87,17 @@ public class GetObjRange extends P2PEdgeCommonKeyRequest {
 		boolean r = Glb.getObje().readRet(txn -> {
 			//対象ストア
 			ModelStore<?, ?> s = storeName.getStore(txn);
+			if (raw) {
+				List<byte[]> rawObjs = s.getRawBytesRange(startId, count,
+						ChunkedDataConcatMemory.chunkedDataTotalSizeMax
+								- GetObj.objSizeMax * 2);
+				if (rawObjs.size() == 0)
+					return false;
+				res.setRawObjs(rawObjs);
+				return true;
+			}
 			//要求されたIDを順次設定
-			for (long i = startId; i < count; i++) {
+			for (long i = startId; i < startId + count; i++) {
 				ModelI o = s.getRawObj(i);
 				//抜けがあるデータを返すと同調処理を壊す可能性がある
 				if (o == null)
@@ -107,19 +135,61 @@ public class GetObjRange extends P2PEdgeCommonKeyRequest {
 		 */
 		private List<ModelI> objs = new ArrayList<>();
 
+		/**
+		 * {@link GetObjRange#isRaw()}の場合の、
+		 * 問い合わされたオブジェクトのDB上のシリアライズされた状態の一覧
+		 */
+		private List<byte[]> rawObjs;
+
+		/**
+		 * rawObjsがあれば初回呼び出し時にデシリアライズする。
+		 * 他ノードから受け取ったバイト列なので、読み出すクラスが限定された
+		 * {@link Util#fromKryoBytesForCatchUp(byte[])}で読む。
+		 * 内容の検証は反映時に{@link ModelI#validateAtCatchUp()}で行われる。
+		 *
+		 * @return	問い合わされたオブジェクトの一覧。
+		 * デシリアライズできないものがあればnull
+		 */
 		public List<ModelI> getObjs() {
+			if (rawObjs != null) {
+				List<ModelI> decoded = new ArrayList<>(rawObjs.size());
+				for (byte[] b : rawObjs) {
+					Object o = Glb.getUtil().fromKryoBytesForCatchUp(b);
+					if (o == null || !(o instanceof ModelI))
+						return null;
+					decoded.add((ModelI) o);
+				}
+				objs = decoded;
+				rawObjs = null;
+			}
 			return objs;
 		}
 
+		public List<byte[]> getRawObjs() {
+			return rawObjs;
+		}
+
+		public void setRawObjs(List<byte[]> rawObjs) {
+			this.rawObjs = rawObjs;
+		}
+
 		@Override
 		protected final boolean validateP2PEdgeCommonKeyResponseConcrete(
 				Message m) {
+			if (rawObjs != null)
+				return rawObjs.size() > 0;
 			return objs != null && objs.size() > 0;
 		}
 
 		@Override
 		public boolean isValid(Request req) {
-			return req instanceof GetObjRange;
+			if (!(req instanceof GetObjRange))
+				return false;
+			GetObjRange r = (GetObjRange) req;
+			//要求より多くは返せない
+			if (rawObjs != null)
+				return r.isRaw() && rawObjs.size() <= r.getCount();
+			return objs != null && objs.size() <= r.getCount();
 		}
 
 		@Override
@@ -0,0 +1,133 @@
+package bei7473p5254d69jcuat.tenyu.communication.request.catchup;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.communication.*;
+import bei7473p5254d69jcuat.tenyu.communication.mutual.right.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.*;
+import glb.*;
+import io.netty.channel.*;
+
+/**
+ * {@link UserMessageListAnnounce}で通知されたユーザーメッセージリストの
+ * 一部のチャンクを取得するメッセージ。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class GetUserMessageListChunks extends P2PEdgeCommonKeyRequest {
+	/**
+	 * 一度に問い合わせられる最大チャンク数
+	 */
+	private static final int maxIndexes = 8;
+
+	public static int getMaxIndexes() {
+		return maxIndexes;
+	}
+
+	/**
+	 * 取得するリストのハッシュ値
+	 * {@link UserMessageListChunks#getListHash()}
+	 */
+	private byte[] listHash;
+
+	/**
+	 * 取得するチャンク番号一覧
+	 */
+	private List<Integer> indexes = new ArrayList<>();
+
+	@Override
+	protected boolean validateP2PEdgeCommonKeyConcrete(Message m) {
+		if (listHash == null
+				|| listHash.length != Glb.getConst().getHashSize())
+			return false;
+		if (indexes == null || indexes.size() == 0
+				|| indexes.size() > maxIndexes)
+			return false;
+		for (Integer i : indexes)
+			if (i == null || i < 0 || i >= UserMessageListChunks.chunkCountMax)
+				return false;
+		return true;
+	}
+
+	@Override
+	public boolean isValid(Response res) {
+		return res instanceof GetUserMessageListChunksResponse;
+	}
+
+	@Override
+	public boolean received(ChannelHandlerContext ctx, Received validated) {
+		ObjectivityUpdateSequence seq = Glb.getMiddle()
+				.getObjectivityUpdateSequence();
+		if (seq == null)
+			return false;
+		UserMessageListChunks chunks = seq.getUserMessageListChunks();
+		if (chunks == null || !Arrays.equals(listHash, chunks.getListHash()))
+			return false;
+
+		GetUserMessageListChunksResponse res = new GetUserMessageListChunksResponse();
+		for (Integer i : indexes) {
+			byte[] chunk = chunks.getChunk(i);
+			if (chunk == null)
+				return false;
+			res.getChunks().add(chunk);
+		}
+		P2PEdge e = validated.getEdgeByInnermostPackage();
+		Message resM = Message.build(res).packaging(res.createPackage(e))
+				.finish();
+		return Glb.getP2p().response(resM, ctx);
+	}
+
+	public List<Integer> getIndexes() {
+		return indexes;
+	}
+
+	public byte[] getListHash() {
+		return listHash;
+	}
+
+	public void setIndexes(List<Integer> indexes) {
+		this.indexes = indexes;
+	}
+
+	public void setListHash(byte[] listHash) {
+		this.listHash = listHash;
+	}
+
+	public static class GetUserMessageListChunksResponse
+			extends P2PEdgeCommonKeyResponse {
+		/**
+		 * 問い合わされたチャンク番号と同じ並びのチャンク
+		 */
+		private List<byte[]> chunks = new ArrayList<>();
+
+		public List<byte[]> getChunks() {
+			return chunks;
+		}
+
+		public void setChunks(List<byte[]> chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		protected boolean validateP2PEdgeCommonKeyResponseConcrete(Message m) {
+			if (chunks == null || chunks.size() > maxIndexes)
+				return false;
+			for (byte[] c : chunks)
+				if (c == null || c.length > UserMessageListChunks.chunkSize)
+					return false;
+			return true;
+		}
+
+		@Override
+		public boolean isValid(Request req) {
+			return req instanceof GetUserMessageListChunks;
+		}
+
+		@Override
+		public boolean received(ChannelHandlerContext ctx, Received validated) {
+			return true;//データ取得系なのでやる事無し
+		}
+	}
+}
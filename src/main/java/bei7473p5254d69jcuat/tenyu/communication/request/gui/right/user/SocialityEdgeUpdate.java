@@ -2,6 +2,8 @@ package bei7473p5254d69jcuat.tenyu.communication.request.gui.right.user;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.communication.packaging.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.UserMessageListRequestI.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.gui.right.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
@@ -63,22 +65,44 @@ public class SocialityEdgeUpdate extends UserRightRequest {
 				fromUserId, StoreNameObjectivity.USER));
 		if (s == null)
 			return false;
-		//キーが存在しなければ新規に作成されるのでDB処理がcreateになる
-		boolean create = s.getEdgeManager().getEdges()
-				.containsKey(e.getDestSocialityId());
-		if (!s.getEdgeManager().add(e, historyIndex))
+		//エッジは社会性の外部に書き込まれ、社会性はエッジ数とハッシュ値だけが更新される
+		if (!s.addEdge(txn, e, historyIndex))
 			return false;
-		if (create) {
-			if (store.create(s) == null)
-				throw new Exception("Failed to create");
-		} else {
-			if (!store.update(s))
-				throw new Exception("Failed to update");
-		}
+		if (!store.update(s))
+			throw new Exception("Failed to update");
 
 		return true;
 	}
 
+	/**
+	 * 社会性はそのユーザーのIDで識別する
+	 */
+	@Override
+	public ApplyKeys getApplyKeys() {
+		if (fromUserId == null)
+			return null;
+		return new ApplyKeys().addWrite(StoreNameObjectivity.SOCIALITY,
+				fromUserId);
+	}
+
+	@Override
+	public PreparedApply prepareApply(Transaction txn, long historyIndex)
+			throws Exception {
+		Sociality s = new SocialityStore(txn)
+				.getByIndividualityObject(new TenyuReferenceModelSimple<>(
+						fromUserId, StoreNameObjectivity.USER));
+		if (s == null)
+			return t -> false;
+		//エッジの書き込みは書き込みトランザクションが必要なので反映時に行う
+		return t -> {
+			if (!s.addEdge(t, e, historyIndex))
+				return false;
+			if (!new SocialityStore(t).update(s))
+				throw new Exception("Failed to update");
+			return true;
+		};
+	}
+
 	@Override
 	public String getName() {
 		return Lang.USER_EDGE_UPDATE.toString();
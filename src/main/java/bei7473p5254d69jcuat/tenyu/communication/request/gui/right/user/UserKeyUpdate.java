@@ -2,10 +2,13 @@ package bei7473p5254d69jcuat.tenyu.communication.request.gui.right.user;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.communication.packaging.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.UserMessageListRequestI.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.gui.right.*;
 import bei7473p5254d69jcuat.tenyu.db.store.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
 import glb.*;
 import jetbrains.exodus.env.*;
 
@@ -57,6 +60,28 @@ public class UserKeyUpdate extends UserRightRequest {
 		return true;
 	}
 
+	@Override
+	public ApplyKeys getApplyKeys() {
+		return new ApplyKeys().addWrite(StoreNameObjectivity.USER, userId);
+	}
+
+	@Override
+	public PreparedApply prepareApply(Transaction txn, long historyIndex)
+			throws Exception {
+		User exist = new UserStore(txn).get(userId);
+		if (exist == null)
+			return t -> false;
+		if (newPcKey != null)
+			exist.setPcPublicKey(newPcKey);
+		if (newMobileKey != null)
+			exist.setMobilePublicKey(newMobileKey);
+		return t -> {
+			if (!new UserStore(t).update(exist))
+				throw new Exception("Failed to update");
+			return true;
+		};
+	}
+
 	@Override
 	public String getName() {
 		return Lang.USER_KEY_UPDATE.toString();
@@ -2,10 +2,12 @@ package bei7473p5254d69jcuat.tenyu.communication.request.gui.right.user;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.communication.packaging.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.gui.right.*;
 import bei7473p5254d69jcuat.tenyu.db.store.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
 import glb.*;
 import jetbrains.exodus.env.*;
 
@@ -34,6 +36,18 @@ public class UserProfileUpdate extends UserRightRequest {
 		return true;
 	}
 
+	/**
+	 * 更新内容が丸ごと渡されるので準備する処理は無いが、
+	 * 干渉するオブジェクトを宣言する事で他のメッセージの並列反映を妨げない
+	 */
+	@Override
+	public ApplyKeys getApplyKeys() {
+		if (latest == null || latest.getId() == null)
+			return null;
+		return new ApplyKeys().addWrite(StoreNameObjectivity.USER,
+				latest.getId());
+	}
+
 	@Override
 	public String getName() {
 		return Lang.USER_UPDATE.toString();
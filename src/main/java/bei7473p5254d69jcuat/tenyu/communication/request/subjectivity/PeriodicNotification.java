@@ -61,7 +61,7 @@ public class PeriodicNotification extends P2PEdgeCommonKeyRequest {
 			i = Glb.getRnd().nextInt(results.size());
 			RequestFutureP2PEdge state = results.get(i);
 			if (state.getState().isDone()) {
-				state.getState().channel().close();
+				state.close();
 				results.remove(i);
 				if (state.isSuccess() && state.getHandler()
 						.getRes() instanceof PeriodicNotificationResponse) {
@@ -2,6 +2,7 @@ package bei7473p5254d69jcuat.tenyu.db;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 import glb.*;
@@ -845,6 +846,90 @@ public class DBUtil {
 		return r;
 	}
 
+	/**
+	 * まとめて取得する。
+	 * キーをストア上の順序に並べ替えて1つのカーソルで順に検索するので、
+	 * 1件ずつgetするより近いキー同士のB木の探索が効率化される。
+	 *
+	 * @param sInfo		対象ストア。非重複型
+	 * @param keys		取得するキー一覧
+	 * @param cnvValue	値を任意のオブジェクトにするコード
+	 * @return			keysと同じ順序、同じ件数の値一覧。見つからなかった位置はnull
+	 */
+	public <V> List<V> getMulti(StoreInfo sInfo, List<ByteIterable> keys,
+			Function<ByteIterable, V> cnvValue) {
+		List<V> r = new ArrayList<>(keys.size());
+		for (int i = 0; i < keys.size(); i++)
+			r.add(null);
+		if (keys.size() == 0)
+			return r;
+
+		//ストア上の順序に並べ替えたkeysの位置一覧
+		Integer[] order = new Integer[keys.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Comparator<ByteIterable> byKey = Comparator
+				.nullsFirst(Comparator.<ByteIterable>naturalOrder());
+		Arrays.sort(order, (a, b) -> byKey.compare(keys.get(a), keys.get(b)));
+
+		Store s = getStore(sInfo);
+		try (Cursor c = s.openCursor(txn)) {
+			ByteIterable preKey = null;
+			V preValue = null;
+			for (Integer index : order) {
+				ByteIterable key = keys.get(index);
+				if (key == null)
+					continue;
+				//同じキーが複数回指定された場合
+				if (preKey != null && preKey.compareTo(key) == 0) {
+					r.set(index, preValue);
+					continue;
+				}
+				ByteIterable val = c.getSearchKey(key);
+				preKey = key;
+				preValue = val == null ? null : cnvValue.apply(val);
+				r.set(index, preValue);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * 全件を順に処理する。{@link #getAll(StoreInfo)}と違い全件をメモリに載せない。
+	 * @param sInfo	対象ストア
+	 * @param f		キーと値を受け取る。falseを返したら終了
+	 */
+	public void forEach(StoreInfo sInfo,
+			BiFunction<ByteIterable, ByteIterable, Boolean> f) {
+		Store s = getStore(sInfo);
+		try (Cursor c = s.openCursor(txn)) {
+			while (c.getNext()) {
+				if (!f.apply(c.getKey(), c.getValue()))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * fromと同じかそれより大きいキーから順に処理する。
+	 * 範囲の読み出しに使う。
+	 * @param sInfo	対象ストア
+	 * @param from	開始キー。これを含む
+	 * @param f		キーと値を受け取る。falseを返したら終了
+	 */
+	public void forEachFrom(StoreInfo sInfo, ByteIterable from,
+			BiFunction<ByteIterable, ByteIterable, Boolean> f) {
+		Store s = getStore(sInfo);
+		try (Cursor c = s.openCursor(txn)) {
+			if (c.getSearchKeyRange(from) == null)
+				return;
+			do {
+				if (!f.apply(c.getKey(), c.getValue()))
+					break;
+			} while (c.getNext());
+		}
+	}
+
 	public long count(StoreInfo sInfo) {
 		return getStore(sInfo).count(txn);
 	}
@@ -860,6 +945,64 @@ public class DBUtil {
 		return getStore(sInfo).get(txn, key);
 	}
 
+	/**
+	 * 開かれたストアのキャッシュ
+	 * Environment : ストア名とストアの種類 : ストア
+	 *
+	 * xodusのStoreはトランザクションを跨いで使用できるので、
+	 * 一度開いたストアは再利用する。
+	 */
+	private static final ConcurrentMap<Environment,
+			ConcurrentMap<OpenedStoreKey, Store>> openedStores = new ConcurrentHashMap<>();
+
+	/**
+	 * トランザクション毎のコミット時処理
+	 * xodusのトランザクションはコミットフックを1つしか設定できないので、
+	 * ここで複数の処理をまとめる。
+	 */
+	private static final Map<Transaction, List<Runnable>> commitHooks = Collections
+			.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * txnがコミットされた時に実行される処理を追加する。
+	 * abortされた場合は実行されない。
+	 * 処理はコミット処理の中で呼ばれるので、DBにアクセスしてはならない。
+	 *
+	 * @param txn	書き込みトランザクション
+	 * @param hook	コミット時処理
+	 */
+	public static void addCommitHook(Transaction txn, Runnable hook) {
+		synchronized (commitHooks) {
+			List<Runnable> hooks = commitHooks.get(txn);
+			if (hooks == null) {
+				hooks = new ArrayList<>();
+				commitHooks.put(txn, hooks);
+				txn.setCommitHook(() -> {
+					List<Runnable> committed = commitHooks.remove(txn);
+					if (committed == null)
+						return;
+					for (Runnable r : committed) {
+						try {
+							r.run();
+						} catch (Exception e) {
+							Glb.getLogger().error("", e);
+						}
+					}
+				});
+			}
+			hooks.add(hook);
+		}
+	}
+
+	/**
+	 * Environmentを閉じる前に呼ぶ。
+	 * そのEnvironmentについてキャッシュされたストアを破棄する。
+	 * @param env	閉じられるEnvironment
+	 */
+	public static void clearOpenedStores(Environment env) {
+		openedStores.remove(env);
+	}
+
 	/**
 	 * openStoreはストアファイルの作成が伴うようで、
 	 * read-onlyトランザクションでは例外が出る。
@@ -867,14 +1010,72 @@ public class DBUtil {
 	 * 一度開いて閉じるということをしておかなければ、
 	 * read-onlyトランザクションは使えない。
 	 *
-	 * getStoreは既にストアが作成されている場合高速で（恐らく内部でキャッシュされている）
-	 * 100万回が50ms等で性能上の問題は無い。
+	 * 既に存在するストアは{@link #openedStores}にキャッシュされ、
+	 * 以降openStoreは呼ばれない。
+	 * このトランザクションで新規作成されたストアは
+	 * トランザクションがabortされると存在しなくなるのでキャッシュしない。
 	 * @param sInfo
 	 * @return
 	 */
 	public Store getStore(StoreInfo sInfo) {
-		return txn.getEnvironment().openStore(sInfo.getStoreName(),
-				sInfo.getType(), txn);
+		Environment env = txn.getEnvironment();
+		ConcurrentMap<OpenedStoreKey, Store> byEnv = openedStores
+				.computeIfAbsent(env, k -> new ConcurrentHashMap<>());
+		OpenedStoreKey key = new OpenedStoreKey(sInfo);
+		Store r = byEnv.get(key);
+		if (r != null)
+			return r;
+
+		boolean exist = env.storeExists(sInfo.getStoreName(), txn);
+		r = env.openStore(sInfo.getStoreName(), sInfo.getType(), txn);
+		if (exist && env.isOpen())
+			byEnv.put(key, r);
+		return r;
+	}
+
+	/**
+	 * {@link DBUtil#openedStores}のキー
+	 * {@link StoreInfo}のうちxodus上のストアを特定する情報だけを持つ
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static final class OpenedStoreKey {
+		private final String storeName;
+		private final StoreConfig type;
+
+		public OpenedStoreKey(StoreInfo sInfo) {
+			this.storeName = sInfo.getStoreName();
+			this.type = sInfo.getType();
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result
+					+ ((storeName == null) ? 0 : storeName.hashCode());
+			result = prime * result + ((type == null) ? 0 : type.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			OpenedStoreKey other = (OpenedStoreKey) obj;
+			if (storeName == null) {
+				if (other.storeName != null)
+					return false;
+			} else if (!storeName.equals(other.storeName))
+				return false;
+			if (type != other.type)
+				return false;
+			return true;
+		}
 	}
 
 	public boolean put(StoreInfo sInfo, ByteIterable key, ByteIterable val)
@@ -0,0 +1,261 @@
+package bei7473p5254d69jcuat.tenyu.db;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import glb.*;
+import glb.util.Util.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * {@link bei7473p5254d69jcuat.tenyu.db.store.ObjectStore}のメインストアから
+ * 読み出されchainversionupされたオブジェクトのキャッシュ。
+ * ストア毎に1つ作られ、サイズはシリアライズされた状態のバイト数で見積もられる。
+ *
+ * キャッシュされたオブジェクトは呼び出し側に渡されないので不変であり、
+ * 呼び出し側にはコピーが返される。
+ *
+ * 書き込みがあったキーはそのトランザクションがコミットされた時に初めて無効化される。
+ * abortされたトランザクションの書き込みはキャッシュに影響しない。
+ * 書き込んだトランザクション自身はそのキーについてキャッシュを使用しない。
+ *
+ * 無効化より前のスナップショットを持つトランザクションが
+ * 古いオブジェクトをキャッシュに登録しないように、
+ * 無効化されたトランザクションのHighAddress以下のトランザクションからは登録しない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ * @param <V>	キャッシュされるオブジェクトの型
+ */
+public class DecodedObjectCache<V> {
+	/**
+	 * 作成された全キャッシュ。運用者がサイズを調整するための統計情報の取得に使う
+	 */
+	private static final List<DecodedObjectCache<?>> caches = new CopyOnWriteArrayList<>();
+
+	/**
+	 * コミットされていない書き込みがあったキー
+	 * トランザクション : キャッシュ : キー一覧
+	 *
+	 * abortされたトランザクションは参照されなくなり自然に削除される。
+	 */
+	private static final Map<Transaction,
+			Map<DecodedObjectCache<?>, Set<ByteArrayWrapper>>> pending = Collections
+					.synchronizedMap(new WeakHashMap<>());
+
+	public static List<DecodedObjectCache<?>> getCaches() {
+		return Collections.unmodifiableList(caches);
+	}
+
+	/**
+	 * コミットされたトランザクションの書き込みについてキャッシュを無効化する
+	 * @param txn	コミットされたトランザクション
+	 */
+	private static void publish(Transaction txn) {
+		Map<DecodedObjectCache<?>, Set<ByteArrayWrapper>> byCache = pending
+				.remove(txn);
+		if (byCache == null)
+			return;
+		for (Map.Entry<DecodedObjectCache<?>,
+				Set<ByteArrayWrapper>> e : byCache.entrySet()) {
+			e.getKey().invalidate(txn.getHighAddress(), e.getValue());
+		}
+	}
+
+	/**
+	 * このキャッシュの名前。通常ストア名
+	 */
+	private final String name;
+
+	/**
+	 * シリアライズされた状態のバイト数でのサイズ上限
+	 */
+	private final long maxBytes;
+
+	/**
+	 * 現在のサイズ
+	 */
+	private long bytes = 0;
+
+	/**
+	 * 最後に無効化を行ったトランザクションのHighAddress
+	 */
+	private long invalidatedAddress = -1;
+
+	/**
+	 * アクセス順のLRU
+	 */
+	private final LinkedHashMap<ByteArrayWrapper,
+			CacheEntry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	/**
+	 * @param name		キャッシュ名
+	 * @param maxBytes	シリアライズされた状態のバイト数でのサイズ上限
+	 */
+	public DecodedObjectCache(String name, long maxBytes) {
+		this.name = name;
+		this.maxBytes = maxBytes;
+		caches.add(this);
+	}
+
+	/**
+	 * @param txn	読み出しに使われているトランザクション
+	 * @param key	メインストアのキー
+	 * @return	キャッシュされたオブジェクトのコピー。無ければnull
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Transaction txn, ByteArrayWrapper key) {
+		if (isPending(txn, key)) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		V cached;
+		synchronized (this) {
+			CacheEntry<V> e = entries.get(key);
+			if (e == null) {
+				missCount.incrementAndGet();
+				return null;
+			}
+			cached = e.value;
+		}
+		hitCount.incrementAndGet();
+		return (V) Glb.getKryoForPersistence().copy(cached);
+	}
+
+	/**
+	 * DBから読み出されたオブジェクトを登録する
+	 * @param txn	読み出しに使われたトランザクション
+	 * @param key	メインストアのキー
+	 * @param value	chainversionupされたオブジェクト。コピーが登録される
+	 * @param size	シリアライズされた状態のバイト数
+	 */
+	@SuppressWarnings("unchecked")
+	public void put(Transaction txn, ByteArrayWrapper key, V value,
+			int size) {
+		if (value == null || size > maxBytes || isPending(txn, key))
+			return;
+		V copy = (V) Glb.getKryoForPersistence().copy(value);
+		long address = txn.getHighAddress();
+		synchronized (this) {
+			//無効化より前のスナップショットから読み出されたかもしれない
+			if (address <= invalidatedAddress)
+				return;
+			CacheEntry<V> old = entries.put(key, new CacheEntry<>(copy, size));
+			if (old != null)
+				bytes -= old.size;
+			bytes += size;
+
+			Iterator<CacheEntry<V>> it = entries.values().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				CacheEntry<V> eldest = it.next();
+				it.remove();
+				bytes -= eldest.size;
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 書き込みを記録する。txnがコミットされた時にキャッシュから削除される。
+	 * @param txn	書き込みトランザクション
+	 * @param key	書き込まれたキー
+	 */
+	public void written(Transaction txn, ByteArrayWrapper key) {
+		synchronized (pending) {
+			Map<DecodedObjectCache<?>, Set<ByteArrayWrapper>> byCache = pending
+					.get(txn);
+			if (byCache == null) {
+				byCache = new HashMap<>();
+				pending.put(txn, byCache);
+				DBUtil.addCommitHook(txn, () -> publish(txn));
+			}
+			byCache.computeIfAbsent(this, k -> new HashSet<>()).add(key);
+		}
+	}
+
+	private boolean isPending(Transaction txn, ByteArrayWrapper key) {
+		synchronized (pending) {
+			Map<DecodedObjectCache<?>, Set<ByteArrayWrapper>> byCache = pending
+					.get(txn);
+			if (byCache == null)
+				return false;
+			Set<ByteArrayWrapper> keys = byCache.get(this);
+			return keys != null && keys.contains(key);
+		}
+	}
+
+	private synchronized void invalidate(long address,
+			Set<ByteArrayWrapper> keys) {
+		if (address > invalidatedAddress)
+			invalidatedAddress = address;
+		for (ByteArrayWrapper key : keys) {
+			CacheEntry<V> removed = entries.remove(key);
+			if (removed != null) {
+				bytes -= removed.size;
+				invalidationCount.incrementAndGet();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DecodedObjectCache [name=" + name + ", maxBytes=" + maxBytes
+				+ ", bytes=" + getBytes() + ", count=" + getCount()
+				+ ", hitCount=" + getHitCount() + ", missCount="
+				+ getMissCount() + ", evictionCount=" + getEvictionCount()
+				+ ", invalidationCount=" + getInvalidationCount() + "]";
+	}
+
+	private static class CacheEntry<V> {
+		private final V value;
+		private final int size;
+
+		public CacheEntry(V value, int size) {
+			this.value = value;
+			this.size = size;
+		}
+	}
+}
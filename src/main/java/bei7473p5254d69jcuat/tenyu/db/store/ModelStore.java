@@ -618,6 +618,16 @@ public abstract class ModelStore<T1 extends ModelI, T2 extends T1>
 		return vr;
 	}
 
+	/**
+	 * @param id
+	 * @return	メインストアにIDが存在するか。オブジェクトはデコードしない
+	 */
+	public boolean existById(Long id) {
+		if (id == null)
+			return false;
+		return util.get(getMainStoreInfo(), cnvKey(id)) != null;
+	}
+
 	public boolean existByCreateDate(Long id, long createDate) {
 		return util.getDupSingle(getCreateDateToIds(), cnvL(createDate),
 				cnvL(id), bi -> cnvL(bi)) != null;
@@ -708,10 +718,62 @@ public abstract class ModelStore<T1 extends ModelI, T2 extends T1>
 
 	public Map<Long, Long> getIdsByUpdateDate(Long startUpdateDate,
 			Long endUpdateDate, long max) {
-		return getIdsByDate(getCreateDateToIds(), startUpdateDate,
+		return getIdsByDate(getUpdateDateToIds(), startUpdateDate,
 				endUpdateDate, max);
 	}
 
+	/**
+	 * {@link #getIdsByCreateDate(Long, Long, long)}と違い
+	 * 同じ日時に作成された複数のIDも全て得られる。
+	 * @param startCreateDate	これを含む
+	 * @param endCreateDate		これを含む
+	 * @return	作成日時が範囲内のID
+	 */
+	public SortedIdSet getIdSetByCreateDate(long startCreateDate,
+			long endCreateDate) {
+		return getIdSetByDate(getCreateDateToIds(), startCreateDate,
+				endCreateDate);
+	}
+
+	/**
+	 * @param startUpdateDate	これを含む
+	 * @param endUpdateDate		これを含む
+	 * @return	更新日時が範囲内のID
+	 */
+	public SortedIdSet getIdSetByUpdateDate(long startUpdateDate,
+			long endUpdateDate) {
+		return getIdSetByDate(getUpdateDateToIds(), startUpdateDate,
+				endUpdateDate);
+	}
+
+	private SortedIdSet getIdSetByDate(StoreInfo s, long startDate,
+			long endDate) {
+		SortedIdSet.Builder b = new SortedIdSet.Builder();
+		if (startDate > endDate)
+			return b.build();
+		util.forEachFrom(s, cnvL(startDate), (k, v) -> {
+			if (cnvL(k) > endDate)
+				return false;
+			b.add(cnvL(v));
+			return true;
+		});
+		return b.build();
+	}
+
+	/**
+	 * メインストアのキーだけを走査する。オブジェクトはデコードしない
+	 * @return	全ID
+	 */
+	public SortedIdSet getAllIdSet() {
+		SortedIdSet.Builder b = new SortedIdSet.Builder();
+		util.forEach(getMainStoreInfo(), (k, v) -> {
+			if (k.getLength() == Long.BYTES)
+				b.add(cnvKey(k));
+			return true;
+		});
+		return b.build();
+	}
+
 	/**
 	 * @return	最後のID
 	 */
@@ -791,6 +853,75 @@ public abstract class ModelStore<T1 extends ModelI, T2 extends T1>
 		}
 	}
 
+	/**
+	 * {@link #getRawObj(Long)}をまとめて行う。
+	 * @param ids
+	 * @return	idsと同じ順序、同じ件数のchainversionupされていないオブジェクト一覧。
+	 * 見つからなかった位置はnull
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T1> getRawObjs(List<Long> ids) {
+		List<ByteIterable> keys = new ArrayList<>(ids.size());
+		for (Long id : ids)
+			keys.add(id == null ? null : cnvKey(id));
+		return util.getMulti(getMainStoreInfo(), keys, bi -> {
+			try {
+				Object o = cnvO(bi);
+				if (o == null || !(o instanceof ModelI))
+					return null;
+				return (T1) o;
+			} catch (IOException e) {
+				Glb.getLogger().error("", e);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * IDの範囲についてDB上のシリアライズされた状態をそのまま返す。
+	 * 1つのカーソルで順に読み、デシリアライズも再シリアライズもしないので、
+	 * 同調処理で大量に返信する場合に使う。
+	 *
+	 * @param startId	このIDから。このIDを含む
+	 * @param count		件数。startId+countのIDは含まれない
+	 * @param sizeMax	合計サイズがこれを超えたら以降のIDは読まない
+	 * @return	ID順のシリアライズされたオブジェクト一覧。
+	 * 範囲内に無いIDは飛ばされる
+	 */
+	public List<byte[]> getRawBytesRange(long startId, long count,
+			long sizeMax) {
+		long endId = startId + count;
+		List<byte[]> r = new ArrayList<>();
+		long[] size = { 0 };
+		util.forEachFrom(getMainStoreInfo(), cnvKey(startId), (k, v) -> {
+			if (cnvKey(k) >= endId)
+				return false;
+			size[0] += v.getLength();
+			if (size[0] > sizeMax)
+				return false;
+			r.add(cnvBA(v));
+			return true;
+		});
+		return r;
+	}
+
+	/**
+	 * {@link #getRawObjByHid(Long)}をまとめて行う。
+	 * hid→idとid→オブジェクトの変換がそれぞれ1つのカーソルで行われる。
+	 * @param hids
+	 * @return	hidsと同じ順序、同じ件数のchainversionupされていないオブジェクト一覧。
+	 * 見つからなかった位置はnull
+	 */
+	public List<T1> getRawObjsByHids(List<Long> hids) {
+		if (!needCatchUp())
+			return null;
+		List<ByteIterable> keys = new ArrayList<>(hids.size());
+		for (Long hid : hids)
+			keys.add(hid == null ? null : cnvL(hid));
+		List<Long> ids = util.getMulti(getHidStore(), keys, bi -> cnvKey(bi));
+		return getRawObjs(ids);
+	}
+
 	/**
 	 * hidからidを特定し、idに対応するオブジェクトをchainversionupせずに返す
 	 * @param hid
@@ -4,11 +4,13 @@ import static bei7473p5254d69jcuat.tenyu.db.DBUtil.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.ModelStore.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.administrated.individuality.*;
 import glb.*;
+import glb.util.Util.*;
 import jetbrains.exodus.*;
 import jetbrains.exodus.env.*;
 
@@ -177,6 +179,7 @@ public abstract class ObjectStore<K, V> {
 	 * @throws IOException
 	 */
 	public boolean deleteDirect(ByteIterable key) throws IOException {
+		written(key);
 		return util.delete(getMainStoreInfo(), key);
 	}
 
@@ -207,14 +210,13 @@ public abstract class ObjectStore<K, V> {
 	/**
 	 * まとめて取得する
 	 * @param keys
-	 * @return
+	 * @return	見つかったオブジェクト一覧。keysの順序を維持する
 	 */
 	public final List<V> get(List<K> keys) {
 		if (keys == null)
 			return null;
 		List<V> r = new ArrayList<>();
-		for (K key : keys) {
-			V v = get(key);
+		for (V v : getBatch(keys)) {
 			if (v == null)
 				continue;
 			r.add(v);
@@ -222,20 +224,114 @@ public abstract class ObjectStore<K, V> {
 		return r;
 	}
 
+	/**
+	 * まとめて取得する。
+	 * キャッシュに無いキーは1つのカーソルでまとめてDBから読み出される。
+	 * 参照：{@link DBUtil#getMulti(StoreInfo, List, java.util.function.Function)}
+	 *
+	 * @param keys
+	 * @return	keysと同じ順序、同じ件数のオブジェクト一覧。見つからなかった位置はnull
+	 */
+	public final List<V> getBatch(List<K> keys) {
+		if (keys == null)
+			return null;
+		List<V> r = new ArrayList<>(keys.size());
+		DecodedObjectCache<V> cache = getDecodedObjectCache();
+		//DBから読み出す必要があるキーとその位置
+		List<ByteIterable> loadKeys = new ArrayList<>();
+		List<Integer> loadIndexes = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i++) {
+			K key = keys.get(i);
+			V cached = null;
+			if (key != null && cache != null) {
+				cached = cache.get(util.getTxn(),
+						new ByteArrayWrapper(cnvBA(cnvKey(key))));
+			}
+			r.add(cached);
+			if (key != null && cached == null) {
+				loadKeys.add(cnvKey(key));
+				loadIndexes.add(i);
+			}
+		}
+		if (loadKeys.size() == 0)
+			return r;
+
+		List<ByteIterable> loaded = util.getMulti(getMainStoreInfo(), loadKeys,
+				bi -> new ArrayByteIterable(cnvBA(bi)));
+		for (int i = 0; i < loaded.size(); i++) {
+			ByteIterable bi = loaded.get(i);
+			if (bi == null)
+				continue;
+			try {
+				V v = chainversionup(bi);
+				if (cache != null && v != null)
+					cache.put(util.getTxn(),
+							new ByteArrayWrapper(cnvBA(loadKeys.get(i))), v,
+							bi.getLength());
+				r.set(loadIndexes.get(i), v);
+			} catch (Exception e) {
+				Glb.getLogger().warn("", e);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * 全件を順に処理する。{@link #getAll()}と違い全件をメモリに載せない。
+	 * @param f		キーとオブジェクトを受け取る。falseを返したら終了
+	 */
+	public final void forEach(BiFunction<K, V, Boolean> f) {
+		util.forEach(getMainStoreInfo(),
+				(k, v) -> f.apply(cnvKey(k), cnvVal(v)));
+	}
+
 	private final V getMain(ByteIterable key) {
 		//他のDB系インターフェースはthrows Exceptionにしているがここはtry catchを内部でやる
 		//特に優劣を決定できず、こうした方がコードが減るので
 		try {
+			DecodedObjectCache<V> cache = getDecodedObjectCache();
+			ByteArrayWrapper cacheKey = null;
+			if (cache != null) {
+				cacheKey = new ByteArrayWrapper(cnvBA(key));
+				V cached = cache.get(util.getTxn(), cacheKey);
+				if (cached != null)
+					return cached;
+			}
+
 			ByteIterable bi = util.get(getMainStoreInfo(), key);
 			if (bi == null)
 				return null;
-			return chainversionup(bi);
+			V r = chainversionup(bi);
+			if (cache != null)
+				cache.put(util.getTxn(), cacheKey, r, bi.getLength());
+			return r;
 		} catch (Exception e) {
 			Glb.getLogger().warn("", e);
 			return null;
 		}
 	}
 
+	/**
+	 * 頻繁に読み出されるストアはオーバーライドしてキャッシュを返す。
+	 * キャッシュはストアクラス毎にstaticに1つ作る。
+	 *
+	 * @return	デコード済みオブジェクトのキャッシュ。nullならキャッシュしない
+	 */
+	protected DecodedObjectCache<V> getDecodedObjectCache() {
+		return null;
+	}
+
+	/**
+	 * メインストアへの書き込みをキャッシュに通知する
+	 * @param key	書き込まれるキー
+	 */
+	private void written(ByteIterable key) {
+		DecodedObjectCache<V> cache = getDecodedObjectCache();
+		if (cache == null)
+			return;
+		cache.written(util.getTxn(), new ByteArrayWrapper(cnvBA(key)));
+	}
+
 	/**
 	 * @return	K:Vのストア
 	 */
@@ -301,6 +397,7 @@ public abstract class ObjectStore<K, V> {
 		if (key == null || val == null)
 			return false;
 
+		written(key);
 		if (last) {
 			return util.putRight(getMainStoreInfo(), key, val);
 		} else {
@@ -22,6 +22,17 @@ public class RoleStore extends IndividualityObjectStore<RoleI, Role> {
 		return getMainStoreInfoStatic(modelName);
 	}
 
+	/**
+	 * 権限は権限確認の度に読み出される
+	 */
+	private static final DecodedObjectCache<Role> cache = new DecodedObjectCache<>(
+			modelName, 1000L * 1000);
+
+	@Override
+	protected DecodedObjectCache<Role> getDecodedObjectCache() {
+		return cache;
+	}
+
 	public RoleStore(Transaction txn) {
 		super(txn);
 	}
@@ -116,6 +116,17 @@ public class UserStore extends IndividualityObjectStore<UserI, User> {
 		return r;
 	}
 
+	/**
+	 * ユーザーは署名検証等で頻繁に読み出される
+	 */
+	private static final DecodedObjectCache<User> cache = new DecodedObjectCache<>(
+			modelName, 1000L * 1000 * 16);
+
+	@Override
+	protected DecodedObjectCache<User> getDecodedObjectCache() {
+		return cache;
+	}
+
 	/**
 	 * 外部で開始されたトランザクションを受け取る。内部で閉じない
 	 *
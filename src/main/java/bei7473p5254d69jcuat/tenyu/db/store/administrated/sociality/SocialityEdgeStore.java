@@ -0,0 +1,251 @@
+package bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality;
+
+import static bei7473p5254d69jcuat.tenyu.db.DBUtil.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+import javax.management.modelmbean.*;
+
+import bei7473p5254d69jcuat.tenyu.db.*;
+import bei7473p5254d69jcuat.tenyu.db.store.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
+import glb.*;
+import jetbrains.exodus.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * {@link Sociality}から外部化されたエッジ。
+ * 出元社会性ID+行き先社会性ID : Edge
+ *
+ * エッジを社会性に埋め込むと、1エッジの更新で最大{@link EdgeManager#edgeMax}件のエッジを含む
+ * 社会性全体が再シリアライズされ、ハッシュツリーも全体のハッシュ値を計算し直す事になる。
+ * このストアはエッジ1件毎に書き込むので、更新量はエッジ数に依存しない。
+ *
+ * キーは出元、行き先の順にLong昇順で並ぶので、
+ * ある社会性からのエッジ一覧は前方一致で得られ、全エッジは出元社会性ID昇順に走査できる。
+ *
+ * このストアはハッシュツリーの管理対象ではない。
+ * 各エッジのハッシュ値は出元の{@link ExternalEdgeManager}に合算され、
+ * 社会性のハッシュ値を通じてハッシュツリーに反映される。
+ * 同調では社会性と共にそのエッジが送られ、
+ * 合算されたハッシュ値と一致した場合のみ反映される。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class SocialityEdgeStore
+		extends ObjectStore<SocialityEdgeStore.EdgeKey, Edge> {
+	public static final String modelName = "SocialityEdge";
+	private static final StoreInfo fromAndToToEdge = new StoreInfo(
+			modelName + "_fromAndToToEdge");
+
+	/**
+	 * 出元社会性ID+行き先社会性ID
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	public static class EdgeKey {
+		private final Long fromSocialityId;
+		private final Long toSocialityId;
+
+		public EdgeKey(Long fromSocialityId, Long toSocialityId) {
+			this.fromSocialityId = fromSocialityId;
+			this.toSocialityId = toSocialityId;
+		}
+
+		public Long getFromSocialityId() {
+			return fromSocialityId;
+		}
+
+		public Long getToSocialityId() {
+			return toSocialityId;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + ((fromSocialityId == null) ? 0
+					: fromSocialityId.hashCode());
+			result = prime * result
+					+ ((toSocialityId == null) ? 0 : toSocialityId.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			EdgeKey other = (EdgeKey) obj;
+			if (fromSocialityId == null) {
+				if (other.fromSocialityId != null)
+					return false;
+			} else if (!fromSocialityId.equals(other.fromSocialityId))
+				return false;
+			if (toSocialityId == null) {
+				if (other.toSocialityId != null)
+					return false;
+			} else if (!toSocialityId.equals(other.toSocialityId))
+				return false;
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "EdgeKey [fromSocialityId=" + fromSocialityId
+					+ ", toSocialityId=" + toSocialityId + "]";
+		}
+	}
+
+	public SocialityEdgeStore(Transaction txn) {
+		super(txn);
+	}
+
+	@Override
+	protected Edge chainversionup(ByteIterable bi) {
+		try {
+			if (bi == null)
+				return null;
+			Object o = cnvO(bi);
+			if (o instanceof Edge)
+				return (Edge) o;
+			throw new InvalidTargetObjectTypeException(
+					"not Edge object in SocialityEdgeStore");
+		} catch (IOException | InvalidTargetObjectTypeException e) {
+			Glb.getLogger().error("", e);
+			return null;
+		}
+	}
+
+	@Override
+	protected EdgeKey cnvKey(ByteIterable bi) {
+		byte[] b = cnvBA(bi);
+		return new EdgeKey(cnvL(cnvBA(Arrays.copyOfRange(b, 0, Long.BYTES))),
+				cnvL(cnvBA(Arrays.copyOfRange(b, Long.BYTES,
+						Long.BYTES * 2))));
+	}
+
+	@Override
+	protected ByteIterable cnvKey(EdgeKey key) {
+		byte[] from = cnvBA(cnvL(key.getFromSocialityId()));
+		byte[] to = cnvBA(cnvL(key.getToSocialityId()));
+		byte[] r = new byte[from.length + to.length];
+		System.arraycopy(from, 0, r, 0, from.length);
+		System.arraycopy(to, 0, r, from.length, to.length);
+		return cnvBA(r);
+	}
+
+	public Edge get(Long fromSocialityId, Long toSocialityId) {
+		if (fromSocialityId == null || toSocialityId == null)
+			return null;
+		return get(new EdgeKey(fromSocialityId, toSocialityId));
+	}
+
+	/**
+	 * エッジを作成または更新する
+	 * @param fromSocialityId	出元社会性ID
+	 * @param e	エッジ
+	 * @return	書き込みに成功したか
+	 * @throws IOException
+	 */
+	public boolean put(Long fromSocialityId, Edge e) throws IOException {
+		if (fromSocialityId == null || e == null
+				|| e.getDestSocialityId() == null)
+			return false;
+		return putDirect(
+				cnvKey(new EdgeKey(fromSocialityId, e.getDestSocialityId())),
+				cnvO(e));
+	}
+
+	public boolean delete(Long fromSocialityId, Long toSocialityId)
+			throws IOException {
+		if (fromSocialityId == null || toSocialityId == null)
+			return false;
+		return deleteDirect(
+				cnvKey(new EdgeKey(fromSocialityId, toSocialityId)));
+	}
+
+	/**
+	 * ある社会性からの全エッジを削除する
+	 * @param fromSocialityId	出元社会性ID
+	 * @return	削除された件数
+	 * @throws IOException
+	 */
+	public int deleteAll(Long fromSocialityId) throws IOException {
+		if (fromSocialityId == null)
+			return 0;
+		List<ByteIterable> keys = util.getKeys(fromAndToToEdge,
+				cnvL(fromSocialityId), bi -> cnvBA(cnvBA(bi)), -1);
+		for (ByteIterable key : keys) {
+			if (!deleteDirect(key))
+				throw new IOException("Failed to delete edge. key=" + key);
+		}
+		return keys.size();
+	}
+
+	/**
+	 * ある社会性からの全エッジを置き換える。
+	 * 同調で他ノードから受け取ったエッジを反映する
+	 * @param fromSocialityId	出元社会性ID
+	 * @param edges	新しいエッジ一覧
+	 * @throws IOException
+	 */
+	public void replaceAll(Long fromSocialityId, Collection<Edge> edges)
+			throws IOException {
+		deleteAll(fromSocialityId);
+		for (Edge e : edges) {
+			if (!put(fromSocialityId, e))
+				throw new IOException("Failed to put edge. fromSocialityId="
+						+ fromSocialityId + " edge=" + e);
+		}
+	}
+
+	/**
+	 * @param fromSocialityId	出元社会性ID
+	 * @return	ある社会性からの全エッジ。行き先社会性ID昇順
+	 */
+	public List<Edge> getEdges(Long fromSocialityId) {
+		List<Edge> r = new ArrayList<>();
+		forEach(fromSocialityId, e -> r.add(e));
+		return r;
+	}
+
+	/**
+	 * ある社会性からのエッジを行き先社会性ID昇順に処理する
+	 * @param fromSocialityId	出元社会性ID
+	 * @param f		エッジを受け取る。falseを返したら終了
+	 */
+	public void forEach(Long fromSocialityId, Function<Edge, Boolean> f) {
+		if (fromSocialityId == null)
+			return;
+		ByteIterable prefix = cnvL(fromSocialityId);
+		byte[] prefixBA = cnvBA(prefix);
+		util.forEachFrom(fromAndToToEdge, prefix, (k, v) -> {
+			if (!prefixEqual(prefixBA, cnvBA(k)))
+				return false;
+			return f.apply(cnvVal(v));
+		});
+	}
+
+	@Override
+	public StoreInfo getMainStoreInfo() {
+		return fromAndToToEdge;
+	}
+
+	@Override
+	public String getName() {
+		return modelName;
+	}
+
+	@Override
+	protected List<StoreInfo> getStoresObjectStoreConcrete() {
+		return new ArrayList<>();
+	}
+}
@@ -138,6 +138,21 @@ public class SocialityStore
 		});
 	}
 
+	/**
+	 * 埋め込み形式のエッジを持つ社会性は、読み出す度に最大{@link EdgeManager#edgeMax}件の
+	 * エッジのハッシュ値を計算して外部化される。
+	 * 読み出し時にDBに書き戻すとその社会性のハッシュ値が読み出したノードだけで変わるので、
+	 * 変換後のオブジェクトをキャッシュする。
+	 * 書き込まれた社会性は外部化された形式になり、キャッシュも無効化される
+	 */
+	private static final DecodedObjectCache<Sociality> cache = new DecodedObjectCache<>(
+			modelName, 1000L * 1000 * 64);
+
+	@Override
+	protected DecodedObjectCache<Sociality> getDecodedObjectCache() {
+		return cache;
+	}
+
 	public SocialityStore(Transaction txn) {
 		super(txn);
 	}
@@ -148,8 +163,13 @@ public class SocialityStore
 			if (bi == null)
 				return null;
 			Object o = cnvO(bi);
-			if (o instanceof Sociality)
-				return (Sociality) o;
+			if (o instanceof Sociality) {
+				//埋め込み形式のエッジは外部化される。DBには次の書き込みで反映される
+				//変換結果はcacheに保持される
+				Sociality r = (Sociality) o;
+				r.chainversionupEdgeManager();
+				return r;
+			}
 			throw new InvalidTargetObjectTypeException(
 					"not Sociality object in SocialityStore");
 		} catch (IOException | InvalidTargetObjectTypeException e) {
@@ -164,9 +184,81 @@ public class SocialityStore
 		if (!util.put(individualityObjectIdToId,
 				cnvBA(o.getIndividualityObjectStoreKey()), cnvL(o.getId())))
 			return false;
+		moveLegacyEdges(o);
+		invalidateFlowProximity(o);
 		return true;
 	}
 
+	/**
+	 * コミット時に{@link FlowProximityIndex}のうちこの社会性の影響を受ける項目を無効化する
+	 */
+	private void invalidateFlowProximity(SocialityI o) {
+		Transaction txn = util.getTxn();
+		Long id = o.getId();
+		addCommitHook(txn, () -> {
+			FlowProximityIndex idx = Glb.getFlowProximityIndex();
+			if (idx != null)
+				idx.invalidate(txn.getHighAddress(), id);
+		});
+	}
+
+	/**
+	 * 他ノードから受け取った社会性とそのエッジを反映する。
+	 *
+	 * 外部化された社会性はエッジ数とエッジのハッシュ値の合計だけを持つので、
+	 * エッジがそれに一致しなければ反映しない。
+	 * エッジを受け取れなかった場合、このノードのストア上のエッジが一致する場合のみ反映する。
+	 * 埋め込み形式の社会性はエッジを自身で持つので、ストア上の古いエッジは削除される。
+	 *
+	 * @param o	受け取った社会性
+	 * @param edges	oからのエッジ。受け取れなかった場合null
+	 * @return	反映されたか
+	 * @throws Exception
+	 */
+	public boolean catchUp(Sociality o, List<Edge> edges) throws Exception {
+		if (o == null)
+			return false;
+		SocialityEdgeStore es = new SocialityEdgeStore(util.getTxn());
+		EdgeManager em = o.getEdgeManager();
+		if (!(em instanceof ExternalEdgeManager)) {
+			if (!catchUp(o))
+				return false;
+			es.deleteAll(o.getId());
+			return true;
+		}
+
+		ExternalEdgeManager eem = (ExternalEdgeManager) em;
+		if (edges == null) {
+			if (!eem.matchesStore(util.getTxn(), o.getId())) {
+				Glb.getLogger().warn("edges not matched. id=" + o.getId(),
+						new IllegalStateException());
+				return false;
+			}
+			return catchUp(o);
+		}
+		if (!eem.matches(edges)) {
+			Glb.getLogger().warn("received edges not matched. id=" + o.getId(),
+					new IllegalStateException());
+			return false;
+		}
+		if (!catchUp(o))
+			return false;
+		es.replaceAll(o.getId(), edges);
+		return true;
+	}
+
+	/**
+	 * 外部化されたエッジ管理が持つ旧エッジを{@link SocialityEdgeStore}に移す
+	 */
+	private void moveLegacyEdges(SocialityI o) throws IOException {
+		if (!(o instanceof Sociality))
+			return;
+		EdgeManager em = ((Sociality) o).getEdgeManager();
+		if (em instanceof ExternalEdgeManager)
+			((ExternalEdgeManager) em).moveLegacyEdges(util.getTxn(),
+					o.getId());
+	}
+
 	@Override
 	protected boolean dbValidateAtUpdateAdministratedObjectConcrete(
 			SocialityI updated, SocialityI old, ValidationResult r) {
@@ -203,6 +295,8 @@ public class SocialityStore
 				cnvBA(o.getIndividualityObjectStoreKey())))
 			return false;
 
+		new SocialityEdgeStore(util.getTxn()).deleteAll(o.getId());
+		invalidateFlowProximity(o);
 		return true;
 	}
 
@@ -365,6 +459,8 @@ public class SocialityStore
 				return false;
 		}
 
+		moveLegacyEdges(updated);
+		invalidateFlowProximity(updated);
 		return true;
 	}
 
@@ -7,6 +7,7 @@ import java.nio.*;
 import java.security.*;
 import java.util.*;
 import java.util.Map.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 import bei7473p5254d69jcuat.tenyu.db.*;
@@ -264,6 +265,12 @@ public class HashStore extends ObjectStore<byte[], HashStoreValue>
 		return simple((s) -> s.getHashArray(cnvBA(key)), storeName);
 	}
 
+	public static List<HashStoreRecordPositioned> getHashArraysSimple(
+			List<HashStoreKey> keys, int depth, int max,
+			StoreNameObjectivity storeName) {
+		return simple((s) -> s.getHashArrays(keys, depth, max), storeName);
+	}
+
 	public static Long getLastHidSimple(StoreNameObjectivity storeName) {
 		return simple((s) -> s.getLastHidOfHashStore(), storeName);
 	}
@@ -332,6 +339,63 @@ public class HashStore extends ObjectStore<byte[], HashStoreValue>
 		return hid != null && hid >= 0L;
 	}
 
+	/**
+	 * 遅延更新モードのトランザクション一覧
+	 * トランザクション : ストア名 : 変更されたレベル0のhid : そのハッシュ値
+	 *
+	 * 1トランザクションで大量のオブジェクトが書き込まれる場合、
+	 * 1件毎にトップまで上位伝播させると中間のハッシュ配列が何度も書き換えられる。
+	 * 遅延更新モードでは変更されたhidだけを記録しておき、
+	 * {@link #commitDeferred(Transaction)}で各ハッシュ配列を1回だけ更新する。
+	 */
+	private static final Map<Transaction,
+			Map<String, TreeMap<Long, byte[]>>> deferred = new ConcurrentHashMap<>();
+
+	/**
+	 * txnを遅延更新モードにする。
+	 * このトランザクションにおけるハッシュツリーの上位伝播は
+	 * {@link #commitDeferred(Transaction)}が呼ばれるまで行われない。
+	 * それまでの間、同じトランザクションで読み出される上位レベルのハッシュ配列は古い。
+	 *
+	 * 必ず{@link #endDeferred(Transaction)}と対で呼ぶ。
+	 *
+	 * @param txn	書き込みトランザクション
+	 */
+	public static void beginDeferred(Transaction txn) {
+		deferred.put(txn, new HashMap<>());
+	}
+
+	/**
+	 * 遅延されていた上位伝播を全ストアについて行い、遅延更新モードを終了する。
+	 * トランザクションのコミット直前に呼ぶ。
+	 * 各ハッシュ配列は下位レベルから順に1回だけ再計算される。
+	 * 以降の書き込みは通常通り即座に上位伝播する。
+	 *
+	 * @param txn	{@link #beginDeferred(Transaction)}で指定したトランザクション
+	 * @throws Exception	DB操作に失敗、その他状態の不整合
+	 */
+	public static void commitDeferred(Transaction txn) throws Exception {
+		Map<String, TreeMap<Long, byte[]>> byStore = deferred.remove(txn);
+		if (byStore == null)
+			return;
+		for (Entry<String, TreeMap<Long, byte[]>> e : byStore.entrySet()) {
+			if (e.getValue().size() == 0)
+				continue;
+			new HashStore(e.getKey(), txn).propagate(e.getValue());
+		}
+	}
+
+	/**
+	 * 遅延更新モードを終了する。
+	 * {@link #commitDeferred(Transaction)}されていない変更は破棄される。
+	 * トランザクションがabortされた場合のためにfinallyで呼ぶ。
+	 *
+	 * @param txn	{@link #beginDeferred(Transaction)}で指定したトランザクション
+	 */
+	public static void endDeferred(Transaction txn) {
+		deferred.remove(txn);
+	}
+
 	/**
 	 * 削除されたHIDを記録しリサイクルするためのストア
 	 */
@@ -384,6 +448,14 @@ public class HashStore extends ObjectStore<byte[], HashStoreValue>
 	 * @throws Exception
 	 */
 	private boolean create(Child child) throws Exception {
+		//遅延更新モードで同じhidについて記録があれば
+		//ここで即座に書き込まれる値の方が新しいので破棄する
+		if (child.getKey().getLevel() == getObjLevel()) {
+			TreeMap<Long, byte[]> dirty = getDeferred();
+			if (dirty != null)
+				dirty.remove(child.getKey().getHid());
+		}
+
 		//ハッシュ配列を作成
 		HashStoreRecordPositioned parent = createParentRecord(child.getKey());
 
@@ -720,6 +792,51 @@ public class HashStore extends ObjectStore<byte[], HashStoreValue>
 		return createRecord(key, getValue(key), false);
 	}
 
+	/**
+	 * 複数のハッシュ配列とその下位のハッシュ配列をまとめて取得する。
+	 * レベル毎に1つのカーソルで読み出す。
+	 *
+	 * @param keys	取得するハッシュ配列のキー
+	 * @param depth	各キーについて下位何レベルまで取得するか。0ならkeysだけ
+	 * @param max	最大件数。達したらそれ以上取得しない
+	 * @return	上位レベルから順のハッシュ配列一覧。存在しないものは含まれない。
+	 * isTopは常にfalse
+	 */
+	public List<HashStoreRecordPositioned> getHashArrays(
+			List<HashStoreKey> keys, int depth, int max) {
+		List<HashStoreRecordPositioned> r = new ArrayList<>();
+		List<HashStoreKey> current = keys;
+		for (int d = 0; d <= depth && current.size() > 0; d++) {
+			List<ByteIterable> bis = new ArrayList<>(current.size());
+			for (HashStoreKey key : current)
+				bis.add(key.getBi());
+			List<byte[]> vals = util.getMulti(getMainStoreInfo(), bis,
+					bi -> cnvBA(bi));
+
+			List<HashStoreKey> next = new ArrayList<>();
+			for (int i = 0; i < current.size(); i++) {
+				byte[] val = vals.get(i);
+				if (val == null)
+					continue;
+				if (r.size() >= max)
+					return r;
+				HashStoreKey key = current.get(i);
+				r.add(createRecord(key, val, false));
+
+				//下位のハッシュ配列。オブジェクトのレベルは含めない
+				int childLevel = key.getChildLevel();
+				if (d < depth && childLevel >= getFirstArrayLevel()) {
+					for (int j = 0; j < unit; j++) {
+						next.add(new HashStoreKey(childLevel,
+								calculateChildHid(key.getHid(), j)));
+					}
+				}
+			}
+			current = next;
+		}
+		return r;
+	}
+
 	private byte[] getHashArrayNonNull(HashStoreKey key) {
 		byte[] hashArray;
 		ByteIterable bi = util.get(getMainStoreInfo(), key.getBi());
@@ -924,6 +1041,10 @@ public class HashStore extends ObjectStore<byte[], HashStoreValue>
 	 * @throws Exception
 	 */
 	private boolean remove(Child child) throws Exception {
+		//遅延更新モードなら0埋めされたハッシュを記録するだけ
+		if (recordDeferred(new NullRecord(child.getKey())))
+			return true;
+
 		//DBから読み出す
 		HashStoreRecordPositioned parent = getParentRecord(child.getKey());
 
@@ -998,6 +1119,11 @@ public class HashStore extends ObjectStore<byte[], HashStoreValue>
 	 * @throws Exception
 	 */
 	private boolean update(Child child) throws Exception {
+		//遅延更新モードならレベル0の変更を記録するだけ
+		if (child.getKey().getLevel() == getObjLevel()
+				&& recordDeferred(child))
+			return true;
+
 		HashStoreRecordPositioned parent = getParentRecord(child.getKey());
 
 		if (!parent.write(child.getHash(md), child.getKey().getHid()))
@@ -1016,6 +1142,78 @@ public class HashStore extends ObjectStore<byte[], HashStoreValue>
 		return update(parent);
 	}
 
+	/**
+	 * @return	遅延更新モードならこのストアの変更されたhid一覧、そうでなければnull
+	 */
+	private TreeMap<Long, byte[]> getDeferred() {
+		Map<String, TreeMap<Long, byte[]>> byStore = deferred
+				.get(util.getTxn());
+		if (byStore == null)
+			return null;
+		return byStore.computeIfAbsent(storeName, k -> new TreeMap<>());
+	}
+
+	/**
+	 * 遅延更新モードならレベル0の変更を記録する
+	 * @param child	レベル0の要素
+	 * @return	記録されたか。falseなら通常通り上位伝播させる必要がある
+	 */
+	private boolean recordDeferred(Child child) {
+		TreeMap<Long, byte[]> dirty = getDeferred();
+		if (dirty == null)
+			return false;
+		dirty.put(child.getKey().getHid(), child.getHash(md));
+		return true;
+	}
+
+	/**
+	 * 遅延されていた上位伝播を行う。
+	 * 変更されたhidを親配列毎にまとめて書き込み、
+	 * 書き換えられた親配列のハッシュ値を次のレベルの変更として扱う。
+	 * これをトップまで繰り返すので、各ハッシュ配列は1回だけ書き込まれる。
+	 *
+	 * @param dirtyLeaves	レベル0のhid : そのハッシュ値
+	 * @throws Exception
+	 */
+	private void propagate(TreeMap<Long, byte[]> dirtyLeaves)
+			throws Exception {
+		int topLevel = calculateTopLevel(getLastHidOfHashStore());
+		TreeMap<Long, byte[]> dirty = dirtyLeaves;
+		for (int level = getFirstArrayLevel(); level <= topLevel
+				&& dirty.size() > 0; level++) {
+			//このレベルで書き換えられるハッシュ配列
+			TreeMap<Long, HashStoreRecord> parents = new TreeMap<>();
+			for (Entry<Long, byte[]> e : dirty.entrySet()) {
+				Long parentHid = HashStoreKey.calculateParentHid(e.getKey());
+				HashStoreRecord parent = parents.get(parentHid);
+				if (parent == null) {
+					HashStoreKey parentKey = new HashStoreKey(level,
+							parentHid);
+					byte[] hashArray = getHashArrayNonNull(parentKey);
+					if (hashArray == null)
+						throw new IOException(
+								"No hash array " + parentKey + " " + storeName);
+					parent = new HashStoreRecord(parentKey,
+							new HashStoreValue(hashArray));
+					parents.put(parentHid, parent);
+				}
+				if (!parent.write(e.getValue(), e.getKey()))
+					throw new IOException("Failed to write hash");
+			}
+
+			TreeMap<Long, byte[]> next = new TreeMap<>();
+			for (HashStoreRecord parent : parents.values()) {
+				if (!util.put(getMainStoreInfo(), parent.getKey().getBi(),
+						parent.getValue().getBi()))
+					throw new IOException("Failed to update array");
+				//トップのハッシュ値は使われない
+				if (level < topLevel)
+					next.put(parent.getKey().getHid(), parent.getHash(md));
+			}
+			dirty = next;
+		}
+	}
+
 	/**
 	 * 実データ更新時に呼ぶ
 	 * @throws Exception
@@ -10,6 +10,7 @@ import javax.management.modelmbean.*;
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.administrated.individuality.core.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.core.*;
 import glb.*;
 import glb.util.*;
@@ -20,9 +21,6 @@ public class ObjectivityCoreStore
 		extends IndividualityObjectStore<ObjectivityCoreI, ObjectivityCore>
 		implements SingleObjectStoreI {
 
-	private static transient ObjectivityCore cache;
-	private static transient ByteIterable cacheBi;
-
 	public ObjectivityCoreStore(Transaction txn) {
 		super(txn);
 	}
@@ -44,14 +42,13 @@ public class ObjectivityCoreStore
 		return getMainStoreInfoStatic(modelName);
 	}
 
+	/**
+	 * 頻繁に読み出される客観コアのキャッシュは
+	 * {@link Objectivity#getCoreSnapshot()}が担当する。
+	 * ここで返すオブジェクトは変更されて保存される場合があるので、毎回デシリアライズする。
+	 */
 	@Override
 	protected ObjectivityCore chainversionup(ByteIterable bi) {
-		//デシリアライズを省略するためキャッシュがあればそれを返す
-		if (cache != null) {
-			if (bi == cacheBi) {
-				return cache;
-			}
-		}
 		try {
 			if (bi == null)
 				return null;
@@ -60,16 +57,33 @@ public class ObjectivityCoreStore
 				throw new InvalidTargetObjectTypeException(
 						"not PlatformObjectivity object in PlatformObjectivityStore");
 			}
-			ObjectivityCore r = (ObjectivityCore) o;
-			cache = r;
-			cacheBi = bi;
-			return r;
+			return (ObjectivityCore) o;
 		} catch (IOException | InvalidTargetObjectTypeException e) {
 			Glb.getLogger().error("", e);
 			return null;
 		}
 	}
 
+	@Override
+	protected void procAfterCreate(ByteIterable createdBi, ObjectivityCoreI created)
+			throws IOException {
+		super.procAfterCreate(createdBi, created);
+		Glb.getObje().coreWritten(util.getTxn(), cnvBA(createdBi));
+	}
+
+	@Override
+	protected void procAfterUpdate(ByteIterable updatedBi, ObjectivityCoreI updated,
+			ObjectivityCoreI old) throws Exception {
+		super.procAfterUpdate(updatedBi, updated, old);
+		Glb.getObje().coreWritten(util.getTxn(), cnvBA(updatedBi));
+	}
+
+	@Override
+	protected void procAfterDelete(ObjectivityCoreI deleted) throws Exception {
+		super.procAfterDelete(deleted);
+		Glb.getObje().coreDeleted(util.getTxn());
+	}
+
 	@Override
 	public boolean isSupport(Object o) {
 		if (o instanceof bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.core.ObjectivityCore)
@@ -1,6 +1,7 @@
 package bei7473p5254d69jcuat.tenyu.model.release1;
 
 import java.net.*;
+import java.nio.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.db.store.single.*;
@@ -54,11 +55,20 @@ public class P2PDefense extends Model
 			* resetPeriodMinute);
 
 	/**
-	 * dupCheckの最大件数
-	 * dupCheckをThroughputLimitというクラスでやる事にしたので
-	 * 最大件数という概念が無くなった。
+	 * dupCheckでダイジェストを正確に記録する最大件数。
+	 * これを超えるとブルームフィルタで判定される
 	 */
-	//private static final int dupCheckMax = 1000 * 500;
+	private static final int dupCheckMax = 1000 * 200;
+
+	/**
+	 * dupCheckのブルームフィルタ1世代のビット数
+	 */
+	private static final int dupCheckBloomBits = 1 << 25;
+
+	/**
+	 * dupCheckのブルームフィルタのハッシュ関数の数
+	 */
+	private static final int dupCheckBloomHashes = 5;
 
 	/**
 	 * 1分間当たりのSimpleMessageの最大回数
@@ -102,10 +112,11 @@ public class P2PDefense extends Model
 
 	/**
 	 * 重複判定用
-	 * メッセージと対応づくバイト配列：受信した時点のヒストリーインデックス
+	 * メッセージのダイジェストを記録する。
+	 * 一時的な状態なので永続化しない
 	 */
-	private ThroughputLimit<
-			Message> dupCheck = new ThroughputLimit<>(resetPeriod, 1L);
+	private transient DupFilter dupCheck = new DupFilter(resetPeriod,
+			dupCheckMax, dupCheckBloomBits, dupCheckBloomHashes);
 
 	/**
 	 * IPアドレスごとの登録件数
@@ -147,33 +158,56 @@ public class P2PDefense extends Model
 	/**
 	 * 同じメッセージを重複して受信しないようにする。
 	 *
-	 * @param c		重複判定対象
-	 * @return		重複したメッセージ、または重複判定用マップの件数が最大に達して判定不可
+	 * @param m		重複判定対象。開梱済みであること
+	 * @return		重複したメッセージ、または判定不可
 	 */
 	public boolean isDup(Message m) {
-		synchronized (dupCheck) {
-			/*
-			 * この方法はダメだった。
-			 * kryoのシリアライズはデシリアライズに影響しない無駄なデータを付加できるので
-			 * ハッシュ値を簡単に変化させられる。その場合復元後オブジェクトに影響しないので、
-			 * 署名にも影響しない。
-			 *
-			//最も内側の梱包のcontentBinaryのハッシュ値で重複判定をする。
-			//メッセージを複製して無駄に流し込む攻撃を防げる。
-			//メッセージの一部を改ざんしてハッシュ値を変化させて流し込む攻撃も
-			//多くの場合このcontentBinaryは何らかの認証が必要なデータだから防げる。
-			//唯一防げないのはあらゆる認証が無い認識の前の段階だが、
-			//それは仮近傍一覧というアイデアによって不正が防止されている。
-			byte[] contentBinary = m.getInnermostPack().getContentBinary();
-			MessageDigest md = Glb.getUtil().getMD();
-			ByteArrayWrapper contentBinaryHash = new ByteArrayWrapper(
-					md.digest(contentBinary));
-			return dupCheck.isOverCount(contentBinaryHash);
-			*/
-
-			//equals,hashcodeに頼って重複チェックを行う
-			return dupCheck.isOverCount(m);
+		byte[] digest = getDigest(m);
+		if (digest == null)
+			return true;
+		return dupCheck.isDup(digest);
+	}
+
+	/**
+	 * 重複判定用のダイジェスト。
+	 *
+	 * 受信したバイト列のハッシュ値は使えない。
+	 * kryoのシリアライズはデシリアライズに影響しない無駄なデータを付加できるので
+	 * ハッシュ値を簡単に変化させられる。その場合復元後オブジェクトに影響しないので、
+	 * 署名にも影響しない。
+	 * そこで復元後の内容を再びシリアライズしてハッシュ値を取る。
+	 * 無駄なデータは復元時に失われるので、同じ内容なら同じダイジェストになる。
+	 *
+	 * 内容は作成日時と送信者のプロセス内で一意なIDを持つので、
+	 * 正当な再送が重複とみなされる事は無い。
+	 * 異なる送信者の内容が偶然一致しないよう送信者の識別子も加える。
+	 * 拡散系のメッセージはどの近傍から届いても同じ送信者になるように、
+	 * ユーザーIDを優先する。
+	 *
+	 * @param m
+	 * @return	ダイジェスト。開梱されていなければnull
+	 */
+	private byte[] getDigest(Message m) {
+		if (m == null || m.getContent() == null)
+			return null;
+		byte[] sender;
+		Long userId = m.getUserId();
+		if (userId != null) {
+			sender = ByteBuffer.allocate(1 + Long.BYTES).put((byte) 1)
+					.putLong(userId).array();
+		} else {
+			P2PEdge e = m.getEdgeByInnermostPackage();
+			if (e != null) {
+				sender = ByteBuffer.allocate(1 + Long.BYTES).put((byte) 2)
+						.putLong(e.getEdgeId()).array();
+			} else {
+				sender = new byte[] { 0 };
+			}
 		}
+		byte[] content = Glb.getUtil().hashSecure(m.getContent());
+		if (content == null)
+			return null;
+		return Glb.getUtil().hashSecure(sender, content);
 	}
 
 	/**
@@ -229,7 +263,7 @@ public class P2PDefense extends Model
 		boolean author = Glb.getConst().getAuthor().getId().equals(userId);
 
 		//ゲームサーバーか
-		boolean server = Glb.getObje().getCore()
+		boolean server = Glb.getObje().getCoreReadOnly()
 				.isHeavyLoadServerToUserMessageListServer(userId);
 
 		//一部の者は最大サイズが引き上げられる
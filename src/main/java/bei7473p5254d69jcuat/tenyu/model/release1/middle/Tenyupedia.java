@@ -3,11 +3,15 @@ package bei7473p5254d69jcuat.tenyu.model.release1.middle;
 import java.util.*;
 import java.util.concurrent.*;
 
+import bei7473p5254d69jcuat.tenyu.db.store.*;
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.tenyupedia.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.*;
+import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.administrated.individuality.tenyupedia.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
 import glb.*;
 import jetbrains.exodus.env.*;
 
@@ -168,6 +172,30 @@ public class Tenyupedia {
 				+ ", notifications.size()=" + notifications.size() + "]";
 	}
 
+	/**
+	 * 検索条件に該当するオブジェクトをストア全体から検索する。
+	 * 通知のように1件ずつ{@link ModelCondition#is(TenyupediaObjectI)}で判定せず、
+	 * {@link ModelConditionPlan}でサブインデックスから絞り込む。
+	 *
+	 * @param mc	検索条件
+	 * @param storeName	対象ストア
+	 * @param max	最大件数。負なら全件
+	 * @return	該当するオブジェクト。ID昇順。個性系ストアでなければ空
+	 */
+	public static List<IndividualityObjectI> search(ModelCondition mc,
+			StoreNameObjectivity storeName, int max) {
+		List<IndividualityObjectI> r = Glb.getObje().readTryW(txn -> {
+			ModelStore<? extends ModelI, ?> s = storeName.getStore(txn);
+			if (!(s instanceof IndividualityObjectStore))
+				return null;
+			return ModelConditionPlan.compile(mc, txn)
+					.search((IndividualityObjectStore<?, ?>) s, max);
+		});
+		if (r == null)
+			return new ArrayList<>();
+		return r;
+	}
+
 	/**
 	 * 判定候補を判定し、該当した候補を通知に追加する。
 	 * 通知済みの古い通知を削除する。
@@ -3,13 +3,17 @@ package bei7473p5254d69jcuat.tenyu.model.release1.middle.catchup;
 import java.util.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetObj.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetObjRange.*;
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.*;
 import bei7473p5254d69jcuat.tenyu.db.store.satellite.HashStore.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.catchup.AbstractCatchUpState.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
 import glb.*;
 import glb.util.*;
 
@@ -20,14 +24,26 @@ import glb.util.*;
  *
  */
 public class CatchUpStateByStoreStepGetObj extends AbstractCatchUpByStoreStep {
+	/**
+	 * IDがこの件数以上連続していれば{@link GetObjRange}でDB上のシリアライズされた状態のまま取得する
+	 */
+	public static final int rangeMin = 100;
+
 	/**
 	 * 新規。不足オブジェクトを取得する通信の管理。
+	 * {@link GetObj}と{@link GetObjRange}をID順に登録する
 	 */
 	private AsyncRequestStatesSerialSharding<
-			GetObj> objRequests = new AsyncRequestStatesSerialSharding<>();
+			P2PEdgeCommonKeyRequest> objRequests = new AsyncRequestStatesSerialSharding<>();
 
 	private List<ModelI> tmpObjs = new ArrayList<>();
 
+	/**
+	 * tmpObjsのうち外部化されたエッジを持つ社会性からのエッジ
+	 * 社会性ID : エッジ一覧
+	 */
+	private Map<Long, List<Edge>> tmpEdges = new HashMap<>();
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -63,8 +79,10 @@ public class CatchUpStateByStoreStepGetObj extends AbstractCatchUpByStoreStep {
 	@Override
 	protected void end() {
 		if (tmpObjs.size() > 0) {
-			Glb.getObje().applySparseObjectList(storeName, tmpObjs);
+			Glb.getObje().applySparseObjectList(storeName, tmpObjs,
+					tmpEdges);
 			tmpObjs.clear();
+			tmpEdges.clear();
 		}
 	}
 
@@ -84,11 +102,18 @@ public class CatchUpStateByStoreStepGetObj extends AbstractCatchUpByStoreStep {
 			objRequests.checkAndFireRetrySerial(get -> {
 				//取得されたデータ
 				Message resM = get.getReq().getRes();
+				if (resM.getContent() instanceof GetObjRangeResponse) {
+					addRange((GetObjRange) get.getReq(),
+							(GetObjRangeResponse) resM.getContent());
+					return;
+				}
 				GetObjResponse res = (GetObjResponse) resM.getContent();
 				for (ModelI e : res.getObjs()) {
 					//一時リストに書き込み
 					tmpObjs.add(e);
 				}
+				if (res.getSocialityEdges() != null)
+					tmpEdges.putAll(res.getSocialityEdges());
 			});
 		} catch (Exception e) {
 			objRequests.clear();
@@ -97,8 +122,30 @@ public class CatchUpStateByStoreStepGetObj extends AbstractCatchUpByStoreStep {
 
 		Glb.debug("applySparseObjectList " + storeName + " tmpObjs="
 				+ toStringTmpObjs());
-		Glb.getObje().applySparseObjectList(storeName, tmpObjs);
+		Glb.getObje().applySparseObjectList(storeName, tmpObjs, tmpEdges);
 		tmpObjs.clear();
+		tmpEdges.clear();
+	}
+
+	/**
+	 * ここでデシリアライズされる。
+	 * 要求した範囲外のIDや重複したIDがあれば例外を投げて再試行させる
+	 *
+	 * @param req
+	 * @param res	reqへの返信
+	 */
+	private void addRange(GetObjRange req, GetObjRangeResponse res) {
+		List<ModelI> objs = res.getObjs();
+		if (objs == null)
+			throw new IllegalStateException("Failed to deserialize");
+		long next = req.getStartId();
+		long end = req.getStartId() + req.getCount();
+		for (ModelI e : objs) {
+			if (e.getId() == null || e.getId() < next || e.getId() >= end)
+				throw new IllegalStateException("Out of range id=" + e.getId());
+			next = e.getId() + 1;
+		}
+		tmpObjs.addAll(objs);
 	}
 
 	private String toStringTmpObjs() {
@@ -139,6 +186,60 @@ public class CatchUpStateByStoreStepGetObj extends AbstractCatchUpByStoreStep {
 		List<Long> sortedIds = new ArrayList<>(ids);
 		Collections.sort(sortedIds);
 
+		//社会性はエッジも必要なのでGetObjで取得する
+		if (!id || storeName == StoreNameObjectivity.SOCIALITY) {
+			requestGetObj(id, sortedIds);
+			return;
+		}
+
+		//連続したIDはGetObjRangeで、それ以外はGetObjでID順に取得する
+		List<Long> sparse = new ArrayList<>();
+		int i = 0;
+		while (i < sortedIds.size()) {
+			int j = i + 1;
+			while (j < sortedIds.size()
+					&& sortedIds.get(j) == sortedIds.get(j - 1) + 1)
+				j++;
+			if (j - i < rangeMin) {
+				sparse.addAll(sortedIds.subList(i, j));
+			} else {
+				requestGetObj(true, sparse);
+				sparse.clear();
+				for (int start = i; start < j; start += GetObj.max)
+					requestRange(sortedIds.get(start),
+							Math.min(GetObj.max, j - start));
+			}
+			i = j;
+		}
+		requestGetObj(true, sparse);
+	}
+
+	/**
+	 * @param startId
+	 * @param count		{@link GetObj#max}以下
+	 */
+	private void requestRange(long startId, int count) {
+		try {
+			GetObjRange req = new GetObjRange();
+			req.setStartId(startId);
+			req.setCount(count);
+			req.setStoreName(storeName);
+			req.setRaw(true);
+			objRequests.requestToRandomNeighbor(req);
+			Glb.debug("Added to objRequests");
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+		}
+	}
+
+	/**
+	 * @param id	hidならfalse
+	 * @param sortedIds	ソートされたidまたはhid一覧
+	 */
+	private void requestGetObj(boolean id, List<Long> sortedIds) {
+		if (sortedIds.size() == 0)
+			return;
+
 		//小分け
 		List<IDList> lists = IDList.compress(sortedIds, GetObj.max);
 
@@ -1,10 +1,11 @@
 package bei7473p5254d69jcuat.tenyu.model.release1.middle.catchup;
 
 import java.util.*;
+import java.util.function.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.*;
-import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetHashArray.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetHashArrays.*;
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.satellite.*;
 import bei7473p5254d69jcuat.tenyu.db.store.satellite.HashStore.*;
@@ -21,7 +22,21 @@ public class CatchUpStateByStoreStepHash extends AbstractCatchUpByStoreStep {
 	/**
 	 * 微調整。ハッシュ配列を取得する通信の管理
 	 */
-	private AsyncRequestStatesFreeSharding<GetHashArray> hashArrayRequests = new AsyncRequestStatesFreeSharding<>();
+	private AsyncRequestStatesFreeSharding<GetHashArrays> hashArrayRequests = new AsyncRequestStatesFreeSharding<>();
+
+	/**
+	 * まだ問い合わせていない差異のあるハッシュ配列のキー
+	 * レベル : キー一覧
+	 *
+	 * 差異毎に問い合わせると往復回数が差異の数に比例するので、
+	 * レベル毎にまとめて{@link GetHashArrays}で問い合わせる。
+	 */
+	private TreeMap<Integer, LinkedHashSet<HashStoreKey>> pendingKeys = new TreeMap<>();
+
+	/**
+	 * 各キーについて下位何レベル分のハッシュ配列をまとめて取得するか
+	 */
+	private static final int subtreeDepth = 1;
 
 	/**
 	 * 自分の最上位配列は随時変化していくので、
@@ -57,38 +72,42 @@ public class CatchUpStateByStoreStepHash extends AbstractCatchUpByStoreStep {
 	 * レベルに応じてハッシュ配列またはオブジェクトを取得する
 	 * @param majorityHashArray
 	 * @param myHashArray
+	 * @param next	差異のある下位のキーを受け取る
 	 * @return	リトライが不要か
 	 */
 	private boolean difAndRequest(HashStoreRecord majorityHashArray,
-			HashStoreRecord myHashArray) {
+			HashStoreRecord myHashArray, Consumer<HashStoreKey> next) {
 		if (majorityHashArray.getKey().getLevel() == HashStore
 				.getFirstArrayLevel()) {
 			return difAndRequestObj(majorityHashArray, myHashArray);
 		} else {
-			return difAndRequestHashArray(majorityHashArray, myHashArray);
+			return difAndRequestHashArray(majorityHashArray, myHashArray,
+					next);
 		}
 	}
 
 	/**
 	 * ハッシュ配列取得
 	 * ハッシュツリーのレベル１以上
-	 * 自分のハッシュ配列と異なっている部分について問い合わせを開始
+	 * 自分のハッシュ配列と異なっている部分について問い合わせを予約
 	 * @param majorityHashArray	多数派のハッシュ配列
 	 * @param myHashArray		自分のハッシュ配列
-	 * @param neighborList		この近傍一覧から問い合わせ先が加重乱択で選択される
+	 * @param next				差異のある下位のキーを受け取る
 	 * @return					このキーについてretryが必要無いならtrue
 	 */
 	private boolean difAndRequestHashArray(HashStoreRecord majorityHashArray,
-			HashStoreRecord myHashArray) {
+			HashStoreRecord myHashArray, Consumer<HashStoreKey> next) {
 		//最大同時リクエスト件数を超えていたら差異が何件あっても1件しかリクエストしない
 		//全くリクエストしないのではなく1件だけリクエストするのは、
 		//P2Pネットワークのある種のレジリエンスのため
-		boolean onlyOne = hashArrayRequests.size() > 1000 * 100;
+		boolean onlyOne = (long) hashArrayRequests.size()
+				* GetHashArrays.getMaxKeys() + getPendingKeyCount() > 1000
+						* 100;
 
 		//ハッシュ配列の差異に応じて次のリクエストを作成
 		//ハッシュ配列を取得する
 		for (HashStoreKey key : majorityHashArray.difReturnKey(myHashArray)) {
-			requestAsyncCommon(key);
+			next.accept(key);
 			if (onlyOne)
 				break;
 		}
@@ -145,7 +164,7 @@ public class CatchUpStateByStoreStepHash extends AbstractCatchUpByStoreStep {
 
 	@Override
 	protected boolean isNoRequest() {
-		return hashArrayRequests.size() == 0;
+		return hashArrayRequests.size() == 0 && pendingKeys.size() == 0;
 	}
 
 	@Override
@@ -155,49 +174,135 @@ public class CatchUpStateByStoreStepHash extends AbstractCatchUpByStoreStep {
 
 	@Override
 	protected void procResponse() {
-		//レスポンス処理の中で再度リクエストが登録される特殊なタイプ
+		//レスポンス処理の中で再度リクエストが予約される特殊なタイプ
 		hashArrayRequests.checkAndFireRetry(state -> {
 			Message resM = state.getReq().getRes();
-			GetHashArrayResponse res = (GetHashArrayResponse) resM.getContent();
-			HashStoreRecord majorityHashArray = res.getHashArray();
-			HashStoreRecord myHashArray = HashStore
-					.getHashArraySimple(state.getReq().getKey(), storeName);
-
-			if (majorityHashArray == null || myHashArray == null
-					|| !majorityHashArray.getKey()
-							.equals(myHashArray.getKey())) {
+			GetHashArraysResponse res = (GetHashArraysResponse) resM
+					.getContent();
+
+			//多数派のハッシュ配列。問い合わせたキーと、その下位のハッシュ配列
+			Map<HashStoreKey, HashStoreRecord> majority = new HashMap<>();
+			for (HashStoreRecord e : res.getHashArrays())
+				majority.put(e.getKey(), e);
+
+			List<HashStoreKey> requested = new ArrayList<>();
+			for (byte[] key : state.getReq().getKeys()) {
+				HashStoreKey parsed = HashStoreKey.parse(key);
+				//問い合わせたキーが無いなら別の近傍に問い合わせなおす
+				if (!majority.containsKey(parsed))
+					return false;
+				requested.add(parsed);
+			}
+
+			//同じ範囲の自分のハッシュ配列をまとめて読む
+			Map<HashStoreKey, HashStoreRecord> mine = new HashMap<>();
+			List<HashStoreRecordPositioned> myHashArrays = HashStore
+					.getHashArraysSimple(new ArrayList<>(majority.keySet()), 0,
+							majority.size(), storeName);
+			if (myHashArrays == null)
 				return false;
+			for (HashStoreRecord e : myHashArrays)
+				mine.put(e.getKey(), e);
+
+			//返信に含まれている下位のハッシュ配列は問い合わせずにそのまま比較する
+			Deque<HashStoreKey> queue = new ArrayDeque<>(requested);
+			while (queue.size() > 0) {
+				HashStoreKey key = queue.poll();
+				HashStoreRecord majorityHashArray = majority.get(key);
+				HashStoreRecord myHashArray = mine.get(key);
+				if (majorityHashArray == null) {
+					//件数上限で返信に含まれなかった
+					requestAsyncCommon(key);
+					continue;
+				}
+				if (myHashArray == null) {
+					Glb.debug("my hash array not found key=" + key);
+					continue;
+				}
+				difAndRequest(majorityHashArray, myHashArray, child -> {
+					if (majority.containsKey(child)) {
+						queue.add(child);
+					} else {
+						requestAsyncCommon(child);
+					}
+				});
 			}
 
 			Glb.debug("response received");
-			return difAndRequest(majorityHashArray, myHashArray);
+			return true;
 		});
+		flushRequests();
 	}
 
 	@Override
 	protected void requestAsync() {
 		difAndRequest(
-				getCtx().getMajorityAtStart().getByStore().get(storeName).getTop(),
-				myTop);
+				getCtx().getMajorityAtStart().getByStore().get(storeName)
+						.getTop(),
+				myTop, key -> requestAsyncCommon(key));
+		flushRequests();
 	}
 
 	/**
-	 * teachersから信用加重でランダムに近傍を選択して問い合わせる
+	 * 問い合わせを予約する。{@link #flushRequests()}でまとめて送信される
 	 * @param key	取得するHashStoreRecordのキー
 	 */
 	private void requestAsyncCommon(HashStoreKey key) {
 		if (key.getLevel() < HashStore.getObjLevel())
 			return;
+		pendingKeys.computeIfAbsent(key.getLevel(), k -> new LinkedHashSet<>())
+				.add(key);
+	}
+
+	private long getPendingKeyCount() {
+		long r = 0;
+		for (LinkedHashSet<HashStoreKey> keys : pendingKeys.values())
+			r += keys.size();
+		return r;
+	}
+
+	/**
+	 * 予約された問い合わせをレベル毎にまとめて、
+	 * teachersから信用加重でランダムに選択した近傍に問い合わせる
+	 */
+	private void flushRequests() {
+		//下位のハッシュ配列を含めて返信の件数上限に収まるキー数
+		long perKey = 1;
+		long width = 1;
+		for (int d = 0; d < subtreeDepth; d++) {
+			width *= HashStore.getUnit();
+			perKey += width;
+		}
+		int chunk = (int) Math.max(1, Math.min(GetHashArrays.getMaxKeys(),
+				GetHashArrays.getMaxRecords() / perKey));
+
+		for (LinkedHashSet<HashStoreKey> keys : pendingKeys.values()) {
+			List<byte[]> keysBA = new ArrayList<>();
+			for (HashStoreKey key : keys) {
+				keysBA.add(key.getKeyBA());
+				if (keysBA.size() >= chunk) {
+					requestHashArrays(keysBA);
+					keysBA = new ArrayList<>();
+				}
+			}
+			if (keysBA.size() > 0)
+				requestHashArrays(keysBA);
+		}
+		pendingKeys.clear();
+	}
 
-		GetHashArray req = new GetHashArray();
+	private void requestHashArrays(List<byte[]> keys) {
+		GetHashArrays req = new GetHashArrays();
 		req.setStoreName(storeName);
-		req.setKey(key.getKeyBA());
+		req.setKeys(keys);
+		req.setDepth(subtreeDepth);
 		hashArrayRequests.requestToRandomNeighbor(req);
 	}
 
 	@Override
 	protected void resetConcrete() {
 		hashArrayRequests.clear();
+		pendingKeys.clear();
 		getHids.clear();
 		shouldRemoveHids.clear();
 		myTop = null;
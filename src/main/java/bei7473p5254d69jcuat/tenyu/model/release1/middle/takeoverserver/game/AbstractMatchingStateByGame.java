@@ -171,7 +171,31 @@ public abstract class AbstractMatchingStateByGame {
 
 		List<List<Team>> matchedTeamList = matchingByRating(matchCount, sorted);
 
-		boolean enoughRandom = enoughRandom(matchedTeamList.size());
+		return register(matchedTeamList, type);
+	}
+
+	/**
+	 * 一度にマッチングされた試合数でランダム性を判定し、
+	 * 試合にして反映サーバに送信する
+	 * @param matchedTeamList	各試合のチーム一覧
+	 * @param type				申請型
+	 * @return	作成された試合一覧
+	 */
+	protected List<RatingGameMatch> register(List<List<Team>> matchedTeamList,
+			MatchingType type) {
+		return register(matchedTeamList, type,
+				enoughRandom(matchedTeamList.size()));
+	}
+
+	/**
+	 * マッチングされたチームを試合にして反映サーバに送信する
+	 * @param matchedTeamList	各試合のチーム一覧
+	 * @param type				申請型
+	 * @param enoughRandom		各試合の組み合わせに十分なランダム性があるか
+	 * @return	作成された試合一覧
+	 */
+	protected List<RatingGameMatch> register(List<List<Team>> matchedTeamList,
+			MatchingType type, boolean enoughRandom) {
 
 		Long myUserId = Glb.getMiddle().getMyUserId();
 		//試合オブジェクトにして返す
@@ -2,7 +2,9 @@ package bei7473p5254d69jcuat.tenyu.model.release1.middle.takeoverserver.game;
 
 import java.util.*;
 import java.util.Map.*;
+import java.util.concurrent.*;
 
+import bei7473p5254d69jcuat.tenyu.communication.request.server.ratinggamematchingserver.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.takeoverserver.game.MatchingStateByGameTeam.TeamCount.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.takeoverserver.game.Team.*;
@@ -22,6 +24,19 @@ public class MatchingStateByGameTeam extends AbstractMatchingStateByGame {
 	 */
 	private Teams fullTeams = new Teams();
 
+	/**
+	 * fullTeamsのチーム名 : メンバーが揃いマッチング待ちになった日時
+	 * 引継ぎ後の再構築でも待ち時間に応じて広がった探索範囲を保つため、引継ぎメッセージに含める。
+	 * {@link Team}は試合情報の一部として客観に保存されるのでそちらには持たせない
+	 */
+	private Map<String, Long> fullDates = new ConcurrentHashMap<>();
+
+	/**
+	 * fullTeamsのチームのうちマッチング待ちのもの。
+	 * 引継ぎメッセージには含めず、引継ぎ後にfullTeamsから再構築される
+	 */
+	private transient RatingBucketMatcher matcher;
+
 	public boolean addMember(TeamReference tref, NodeIdentifierUser node,
 			byte[] passwordHash) {
 		if (node == null)
@@ -127,7 +142,61 @@ public class MatchingStateByGameTeam extends AbstractMatchingStateByGame {
 		if (t.getState() != TeamState.CLOSED)
 			return false;
 
-		return fullTeams.addTeam(t);
+		RatingBucketMatcher m = getMatcher();
+		if (m == null)
+			return false;
+		if (!fullTeams.addTeam(t))
+			return false;
+		long now = System.currentTimeMillis();
+		fullDates.put(t.getName(), now);
+		//対戦相手の候補が十分に居ればここでマッチングされ、次のmatching()で送信される
+		if (!m.add(t, now, now)) {
+			//BAN等でマッチングできないチームは待たせない
+			removeFull(t);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param t	fullTeamsから削除するチーム
+	 * @return	削除されたか
+	 */
+	private boolean removeFull(Team t) {
+		fullDates.remove(t.getName());
+		return fullTeams.remove(t);
+	}
+
+	/**
+	 * ゲームのチームクラス数が変わっていたり引継ぎ直後の場合、
+	 * fullTeamsから作り直す。
+	 * 待ち時間は{@link #fullDates}の日時から数えられる
+	 * @return	マッチング待ちのチーム。ゲームが無ければnull
+	 */
+	private synchronized RatingBucketMatcher getMatcher() {
+		RatingGame g = Glb.getObje().getRatingGame(s -> s.get(gameId));
+		if (g == null) {
+			Glb.getLogger().warn("rating game is null. gameId=" + gameId,
+					new IllegalStateException());
+			return null;
+		}
+		int teamClassCount = g.getTeamClasses().size();
+		if (matcher != null && matcher.getTeamClassCount() == teamClassCount)
+			return matcher;
+
+		RatingBucketMatcher m = new RatingBucketMatcher(gameId,
+				teamClassCount);
+		long now = System.currentTimeMillis();
+		for (TeamsByTeamClassId byClass : fullTeams.getTeams().values()) {
+			for (Team t : byClass.getTeams().values()) {
+				Long start = fullDates.get(t.getName());
+				if (!m.add(t, start == null ? now : start, now)) {
+					removeFull(t);
+				}
+			}
+		}
+		matcher = m;
+		return matcher;
 	}
 
 	/**
@@ -219,11 +288,20 @@ public class MatchingStateByGameTeam extends AbstractMatchingStateByGame {
 	}
 
 	/**
+	 * チームは登録時に{@link RatingBucketMatcher}でマッチングされているので、
+	 * ここでは待ち時間で広がった範囲での各帯の先頭の再探索と、マッチングされた試合の送信だけを行う。
+	 * 待機中のチーム数に関わらず処理量はほぼ一定。
+	 * 延期の上限に達して少ない候補から選ばれた試合はランダム性が不十分とされる。
+	 *
 	 * このメソッドはマルチスレッドでアクセスされる事を想定していない
 	 * @return
 	 */
 	public List<RatingGameMatch> matching() {
 		game = Glb.getObje().getRatingGame(s -> s.get(gameId));
+		if (game == null) {
+			Glb.getLogger().error("rg is null", new IllegalStateException());
+			return null;
+		}
 
 		if (fullTeams == null) {
 			Glb.getLogger().error("fullTeams is null",
@@ -231,22 +309,36 @@ public class MatchingStateByGameTeam extends AbstractMatchingStateByGame {
 			return null;
 		}
 
-		if (fullTeams.getTeams().size() == 0) {
-			Glb.debug("fullTeams.size=" + fullTeams.size());
+		RatingBucketMatcher m = getMatcher();
+		if (m == null)
 			return null;
+		m.tick(System.currentTimeMillis());
+
+		List<RatingBucketMatcher.Matched> drained = m
+				.drainMatched(RegisterRatingMatches.getMatchesMax());
+		if (drained.size() == 0) {
+			Glb.debug("waiting teams=" + m.size());
+			return null;
+		}
+		List<List<Team>> random = new ArrayList<>();
+		List<List<Team>> notRandom = new ArrayList<>();
+		for (RatingBucketMatcher.Matched e : drained) {
+			if (e.isEnoughRandom()) {
+				random.add(e.getTeams());
+			} else {
+				notRandom.add(e.getTeams());
+			}
 		}
-		//各チームクラスIDのフルメンバーのチーム数のうち最小のもの
-		TeamsByTeamClassId minByClass = fullTeams.getMin();
-		List<RatingGameMatch> matched = matching(fullTeams,
-				minByClass.getDates().pace(), minByClass.size(),
-				MatchingType.TEAM);
-		if (matched == null)
-			return matched;
+		List<RatingGameMatch> matched = new ArrayList<>();
+		if (random.size() > 0)
+			matched.addAll(register(random, MatchingType.TEAM, true));
+		if (notRandom.size() > 0)
+			matched.addAll(register(notRandom, MatchingType.TEAM, false));
 		Glb.debug("matched.size=" + matched.size());
 		for (RatingGameMatch match : matched) {
 			//マッチング待ちリストから削除
 			for (Team t : match.getMatchedTeams()) {
-				if (!fullTeams.remove(t)) {
+				if (!removeFull(t)) {
 					Glb.getLogger().warn("Failed to remove team=" + t.getName(),
 							new Exception());
 				}
@@ -285,8 +377,11 @@ public class MatchingStateByGameTeam extends AbstractMatchingStateByGame {
 		boolean b = false;
 		if (acceptingTeams.remove(t))
 			b = true;
-		if (fullTeams.remove(t))
+		if (removeFull(t))
 			b = true;
+		RatingBucketMatcher m = matcher;
+		if (m != null)
+			m.remove(t);
 		return b;
 	}
 
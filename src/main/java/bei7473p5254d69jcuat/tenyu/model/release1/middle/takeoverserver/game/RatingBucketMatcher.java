@@ -0,0 +1,455 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.middle.takeoverserver.game;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.middle.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
+import glb.*;
+
+/**
+ * マッチング待ちのチームをチームクラス毎、レーティング帯毎に登録日時順で保持し、
+ * チームが追加された時点で対戦相手を探す。
+ *
+ * 全チームをコピーしてレーティングでソートする一括マッチングと異なり、
+ * 1回の探索で調べるのは近いレーティング帯の登録日時が古い方から{@link #sampleMax}件だけなので、
+ * 待機中のチーム数に関わらず処理量はほぼ一定になる。
+ * 各帯は{@link TreeSet}なので削除も待機中のチーム数の対数時間で済む。
+ *
+ * 対戦相手は届く範囲の候補からランダムに選ぶ。
+ * 候補が{@link #candidateMin}未満ならマッチングせず、{@link #deferMax}まで延期する。
+ * 登録のタイミングを合わせて特定のチームと対戦する事を防ぐためである。
+ * 延期の上限に達して候補が少ないままマッチングされた試合はランダム性が不十分とされる。
+ *
+ * 近いレーティングの相手が居ない場合、待ち時間に応じて探索する帯の範囲が広がる。
+ * 広がった範囲での再探索と延期の上限の判定は{@link #tick(long)}で各帯の先頭についてのみ行う。
+ *
+ * BANやブロックの確認は登録時に1度だけ行い、マッチング時にはDBを読まない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class RatingBucketMatcher {
+	/**
+	 * レーティング帯の幅
+	 */
+	public static final int bucketWidth = 100;
+
+	/**
+	 * この時間待つ毎に探索範囲が1帯広がる。ミリ秒
+	 */
+	public static final long widenInterval = 1000L * 20;
+
+	/**
+	 * 探索範囲の最大帯数
+	 */
+	public static final int widenMax = 10;
+
+	/**
+	 * 各チームクラスの対戦相手の候補がこの数以上居ればマッチングする
+	 */
+	public static final int candidateMin = 3;
+
+	/**
+	 * 候補が少なくてもこの時間待ったチームはマッチングする。ミリ秒
+	 */
+	public static final long deferMax = 1000L * 60 * 2;
+
+	/**
+	 * 1つの帯から候補とする最大数。登録日時が古い方から選ばれる
+	 */
+	public static final int sampleMax = 16;
+
+	/**
+	 * 帯内の順序。登録日時順、同じなら登録順
+	 */
+	private static final Comparator<Waiting> order = Comparator
+			.comparingLong((Waiting w) -> w.getStart())
+			.thenComparingLong(w -> w.seq);
+
+	/**
+	 * @param rating	レーティング
+	 * @return	帯番号
+	 */
+	public static int getBucket(int rating) {
+		return Math.floorDiv(rating, bucketWidth);
+	}
+
+	private final Long gameId;
+
+	/**
+	 * 1試合のチーム数。チームクラスIDは0からこの値未満
+	 */
+	private final int teamClassCount;
+
+	/**
+	 * チームクラスID : 帯番号 : 待機情報
+	 * 帯内は登録日時順
+	 */
+	private final Map<Integer,
+			Map<Integer, TreeSet<Waiting>>> buckets = new HashMap<>();
+
+	/**
+	 * チーム名 : 待機情報
+	 */
+	private final Map<String, Waiting> waitings = new HashMap<>();
+
+	/**
+	 * マッチングされたが取り出されていない試合
+	 */
+	private final List<Matched> matcheds = new ArrayList<>();
+
+	/**
+	 * 同じ登録日時のチームを登録順に並べるための連番
+	 */
+	private long seq = 0;
+
+	/**
+	 * @param gameId	このゲームの試合をマッチングする
+	 * @param teamClassCount	1試合のチーム数
+	 */
+	public RatingBucketMatcher(Long gameId, int teamClassCount) {
+		this.gameId = gameId;
+		this.teamClassCount = teamClassCount;
+	}
+
+	/**
+	 * チームを登録する。対戦相手の候補が十分に居れば即座にマッチングされる。
+	 * BANやブロックの確認はここで1度だけ行われる
+	 *
+	 * @param t		メンバーが揃ったチーム
+	 * @param start	登録日時。引継ぎ後の再構築では元の登録日時
+	 * @param now	現在日時
+	 * @return	登録またはマッチングされたか。BAN等で拒否された場合false
+	 */
+	public boolean add(Team t, long start, long now) {
+		if (t == null || t.getName() == null)
+			return false;
+		if (t.getTeamClassId() < 0 || t.getTeamClassId() >= teamClassCount)
+			return false;
+		//DBの読み込みはロックの外で行う
+		if (!isAllowed(t))
+			return false;
+		return addSub(t, Math.min(start, now), now);
+	}
+
+	private synchronized boolean addSub(Team t, long start, long now) {
+		if (waitings.containsKey(t.getName()))
+			return false;
+		Waiting w = new Waiting(t, start, seq++);
+		if (!tryMatch(w, now))
+			put(w);
+		return true;
+	}
+
+	/**
+	 * @param t
+	 * @return	ゲームがBANされておらず、メンバーがBANもブロックもされていないか
+	 */
+	private boolean isAllowed(Team t) {
+		Boolean r = Glb.getObje().readRet(txn -> {
+			try {
+				SocialityStore sos = new SocialityStore(txn);
+				if (sos.isBan(StoreNameObjectivity.RATING_GAME, gameId))
+					return false;
+				for (NodeIdentifierUser member : t.getMembers()) {
+					Long userId = member.getUserId();
+					if (sos.isBan(StoreNameObjectivity.USER, userId))
+						return false;
+					if (sos.isBlock(StoreNameObjectivity.RATING_GAME, gameId,
+							userId))
+						return false;
+				}
+				return true;
+			} catch (Exception e) {
+				Glb.getLogger().error("", e);
+				return false;
+			}
+		});
+		return r != null && r;
+	}
+
+	/**
+	 * 待ち時間によって広がった探索範囲と延期の上限で、各帯の先頭のチームについて再度マッチングを試みる。
+	 * 帯の先頭はその帯で最も長く待っていて探索範囲が最も広いので、
+	 * 先頭がマッチングされなければその帯の他のチームもマッチングされない。
+	 * 処理量は待機中のチーム数ではなく帯の数に比例する
+	 *
+	 * @param now	現在日時
+	 */
+	public synchronized void tick(long now) {
+		for (int c = 0; c < teamClassCount; c++) {
+			Map<Integer, TreeSet<Waiting>> byBucket = buckets.get(c);
+			if (byBucket == null)
+				continue;
+			for (Integer bucket : new ArrayList<>(byBucket.keySet())) {
+				while (true) {
+					TreeSet<Waiting> ws = byBucket.get(bucket);
+					if (ws == null || ws.size() == 0)
+						break;
+					Waiting head = ws.first();
+					//登録時から状況が変わっていなければ探索済み
+					if (head.getWidth(now) == 0
+							&& now - head.getStart() < deferMax)
+						break;
+					remove(head);
+					if (!tryMatch(head, now)) {
+						put(head);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param anchor	このチームの対戦相手を探す
+	 * @param now		現在日時
+	 * @return	マッチングされたか
+	 */
+	private boolean tryMatch(Waiting anchor, long now) {
+		boolean deferred = now - anchor.getStart() >= deferMax;
+		boolean enoughRandom = true;
+		List<Waiting> found = new ArrayList<>();
+		for (int c = 0; c < teamClassCount; c++) {
+			if (c == anchor.getTeamClassId()) {
+				found.add(anchor);
+				continue;
+			}
+			List<Waiting> candidates = getCandidates(c, anchor, now);
+			if (candidates.size() == 0)
+				return false;
+			if (candidates.size() < candidateMin) {
+				if (!deferred)
+					return false;
+				enoughRandom = false;
+			}
+			found.add(candidates
+					.get(Glb.getRnd().nextInt(candidates.size())));
+		}
+
+		//起点は待機中ではない場合がある
+		for (Waiting w : found)
+			remove(w);
+		matcheds.add(new Matched(found, enoughRandom));
+		return true;
+	}
+
+	/**
+	 * 各帯の登録日時が古い方から最大{@link #sampleMax}件を候補とする。
+	 * 起点のチームの探索範囲内の帯は全ての候補が届く。
+	 * 範囲外の帯はその帯のチームの待ち時間で広がった範囲が届く候補だけで、
+	 * 帯内は登録日時順なので先頭からの連続した範囲になる
+	 *
+	 * @param teamClassId	探すチームクラス
+	 * @param anchor		対戦相手を探しているチーム
+	 * @param now			現在日時
+	 * @return	届く候補
+	 */
+	private List<Waiting> getCandidates(int teamClassId, Waiting anchor,
+			long now) {
+		List<Waiting> r = new ArrayList<>();
+		Map<Integer, TreeSet<Waiting>> byBucket = buckets.get(teamClassId);
+		if (byBucket == null || byBucket.size() == 0)
+			return r;
+		int anchorWidth = anchor.getWidth(now);
+		for (int d = 0; d <= widenMax; d++) {
+			for (int i = 0; i < (d == 0 ? 1 : 2); i++) {
+				TreeSet<Waiting> bucket = byBucket
+						.get(anchor.getBucket() + (i == 0 ? d : -d));
+				if (bucket == null)
+					continue;
+				int count = 0;
+				for (Waiting w : bucket) {
+					if (count >= sampleMax)
+						break;
+					if (d > anchorWidth && w.getWidth(now) < d)
+						break;
+					r.add(w);
+					count++;
+				}
+			}
+		}
+		return r;
+	}
+
+	private void put(Waiting w) {
+		buckets.computeIfAbsent(w.getTeamClassId(), k -> new HashMap<>())
+				.computeIfAbsent(w.getBucket(), k -> new TreeSet<>(order))
+				.add(w);
+		waitings.put(w.getTeam().getName(), w);
+	}
+
+	private boolean remove(Waiting w) {
+		if (waitings.remove(w.getTeam().getName()) == null)
+			return false;
+		Map<Integer, TreeSet<Waiting>> byBucket = buckets
+				.get(w.getTeamClassId());
+		if (byBucket == null)
+			return true;
+		TreeSet<Waiting> bucket = byBucket.get(w.getBucket());
+		if (bucket == null)
+			return true;
+		bucket.remove(w);
+		if (bucket.size() == 0)
+			byBucket.remove(w.getBucket());
+		return true;
+	}
+
+	/**
+	 * マッチング待ちから外す。
+	 * マッチングされたが取り出されていない試合に含まれていれば、その試合を取り消し、
+	 * 他のチームを元の登録日時で待機に戻す
+	 *
+	 * @param t
+	 * @return	待機中か取り出されていない試合に含まれていたか
+	 */
+	public synchronized boolean remove(Team t) {
+		if (t == null || t.getName() == null)
+			return false;
+		boolean r = false;
+		Waiting w = waitings.get(t.getName());
+		if (w != null && remove(w))
+			r = true;
+		Iterator<Matched> it = matcheds.iterator();
+		while (it.hasNext()) {
+			Matched m = it.next();
+			if (!m.contains(t.getName()))
+				continue;
+			it.remove();
+			r = true;
+			for (Waiting other : m.waitings) {
+				if (!other.getTeam().getName().equals(t.getName()))
+					put(other);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * マッチングされた試合を取り出す
+	 * @param max	最大件数
+	 * @return	マッチングされた試合
+	 */
+	public synchronized List<Matched> drainMatched(int max) {
+		int n = Math.min(max, matcheds.size());
+		List<Matched> head = matcheds.subList(0, n);
+		List<Matched> r = new ArrayList<>(head);
+		head.clear();
+		return r;
+	}
+
+	/**
+	 * @return	マッチング待ちのチーム数
+	 */
+	public synchronized int size() {
+		return waitings.size();
+	}
+
+	public int getTeamClassCount() {
+		return teamClassCount;
+	}
+
+	public Long getGameId() {
+		return gameId;
+	}
+
+	/**
+	 * マッチングされた試合
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	public static class Matched {
+		/**
+		 * チームクラスID順
+		 */
+		private final List<Waiting> waitings;
+		/**
+		 * 全てのチームクラスで{@link RatingBucketMatcher#candidateMin}以上の候補から選ばれたか
+		 */
+		private final boolean enoughRandom;
+
+		private Matched(List<Waiting> waitings, boolean enoughRandom) {
+			this.waitings = waitings;
+			this.enoughRandom = enoughRandom;
+		}
+
+		private boolean contains(String teamName) {
+			for (Waiting w : waitings) {
+				if (w.getTeam().getName().equals(teamName))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return	チームクラスID順のチーム一覧
+		 */
+		public List<Team> getTeams() {
+			List<Team> r = new ArrayList<>();
+			for (Waiting w : waitings)
+				r.add(w.getTeam());
+			return r;
+		}
+
+		public boolean isEnoughRandom() {
+			return enoughRandom;
+		}
+	}
+
+	/**
+	 * マッチング待ちのチーム
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Waiting {
+		private final Team team;
+		private final int teamClassId;
+		private final int bucket;
+		/**
+		 * 登録日時
+		 */
+		private final long start;
+		/**
+		 * 登録順の連番
+		 */
+		private final long seq;
+
+		private Waiting(Team team, long start, long seq) {
+			this.team = team;
+			this.teamClassId = team.getTeamClassId();
+			this.bucket = RatingBucketMatcher.getBucket(team.getAveRating());
+			this.start = start;
+			this.seq = seq;
+		}
+
+		/**
+		 * @param now	現在日時
+		 * @return	待ち時間によって広がった探索範囲の帯数
+		 */
+		private int getWidth(long now) {
+			long waited = now - start;
+			if (waited <= 0)
+				return 0;
+			return (int) Math.min(widenMax, waited / widenInterval);
+		}
+
+		public Team getTeam() {
+			return team;
+		}
+
+		public int getTeamClassId() {
+			return teamClassId;
+		}
+
+		public int getBucket() {
+			return bucket;
+		}
+
+		public long getStart() {
+			return start;
+		}
+	}
+}
@@ -180,7 +180,7 @@ public class DistributedVoteManager {
 				powersDependOnPast.put(e.getKey(), e.getValue() * for1);
 			}
 			Glb.debug("voteResultLast7days=" + powersDependOnPast);
-			ObjectivityCore core = Glb.getObje().getCore();
+			ObjectivityCore core = Glb.getObje().getCore(txn);
 			//新しい全体運営者の影響力バランス
 			TenyuManagerElectionResult newBalance = new TenyuManagerElectionResult(
 					core.getHistoryIndex(), powersDependOnPast);
@@ -2,11 +2,13 @@ package bei7473p5254d69jcuat.tenyu.model.release1.objectivity;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.communication.mutual.right.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.gui.right.*;
+import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
@@ -29,6 +31,7 @@ import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.indiv
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.core.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.role.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.vote.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.other.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
 import glb.*;
@@ -157,22 +160,29 @@ public class Objectivity implements GlbMemberDynamicState, DBObj {
 		if (l == null || l.getMessages() == null || l.getMessages().size() == 0)
 			return 0L;
 		return Glb.getObje().compute(txn -> {
+			//ハッシュツリーの上位伝播はコミット直前にまとめて行う
+			HashStore.beginDeferred(txn);
 			try {
 				//メッセージリストの最大処理サイズ
 				long applySizeMax = Glb.getObje().getCore().getConfig()
 						.getLoadSetting().getUserMessageListApplySizeMax();
+				//干渉しないメッセージの読み込みや検証を書き込み前に並列に行う
+				UserMessageListApplyPlan<UserRightRequest> plan = UserMessageListApplyPlan
+						.create(l, nextHistoryIndex);
+				plan.prepare(txn);
+				Glb.debug("partitions=" + plan.getPartitionCount()
+						+ " prepared=" + plan.getPreparedCount());
+
 				//これまで処理したサイズ
 				long size = 0;
-				for (Message m : l.getMessages()) {
+				List<UserRightRequest> requests = plan.getRequests();
+				for (int i = 0; i < requests.size(); i++) {
 					if (size >= applySizeMax)
 						break;
-					//				if (!m.validateAndSetup())
-					//					continue;
-					if (!(m.getContent() instanceof UserRightRequest))
-						continue;
-					UserRightRequest c = (UserRightRequest) m.getContent();
+					UserRightRequest c = requests.get(i);
+					//書き込みはリスト内の順序通りに行うので逐次反映と結果が一致する
 					//１メッセージでも例外を出せばそのメッセージリスト全体が否定される
-					if (c.apply(txn, nextHistoryIndex)) {
+					if (plan.apply(txn, i)) {
 						size += c.getApplySize();
 					} else {
 						Glb.getLogger().warn("Failed to apply "
@@ -180,6 +190,9 @@ public class Objectivity implements GlbMemberDynamicState, DBObj {
 					}
 				}
 
+				//遅延されていたハッシュツリーの更新
+				HashStore.commitDeferred(txn);
+
 				//メッセージリストのハッシュ値を書き込む
 				UserMessageListHash historyStep = new UserMessageListHash(l,
 						nextHistoryIndex);
@@ -203,6 +216,8 @@ public class Objectivity implements GlbMemberDynamicState, DBObj {
 				Glb.getLogger().error("", e);
 				txn.abort();
 				return 0L;
+			} finally {
+				HashStore.endDeferred(txn);
 			}
 		});
 	}
@@ -247,10 +262,16 @@ public class Objectivity implements GlbMemberDynamicState, DBObj {
 	 * データA→Bの順番で書き込む必要があるとき、B、Aの順番で書き込みを試行すると、
 	 * Bが失敗しAが成功し、次のBの書き込みは成功するようになる。
 	 *
+	 * 社会性はエッジを外部化しているので、エッジと共に反映される。
+	 * 参照：{@link SocialityStore#catchUp(Sociality, List)}
+	 *
 	 * @param objs
+	 * @param socialityEdges	社会性ストアの場合、各社会性からのエッジ。
+	 * 社会性ID : エッジ一覧
 	 */
 	public synchronized void applySparseObjectList(
-			StoreNameObjectivity storeName, List<? extends ModelI> objs) {
+			StoreNameObjectivity storeName, List<? extends ModelI> objs,
+			Map<Long, List<Edge>> socialityEdges) {
 		getEnv().executeInTransaction((txn) -> {
 			try {
 				@SuppressWarnings("unchecked")
@@ -258,7 +279,13 @@ public class Objectivity implements GlbMemberDynamicState, DBObj {
 						?> s = (ModelStore<ModelI, ?>) storeName.getStore(txn);
 				for (ModelI o : objs) {
 					try {
-						s.catchUp(o);
+						if (o instanceof Sociality) {
+							new SocialityStore(txn).catchUp((Sociality) o,
+									socialityEdges == null ? null
+											: socialityEdges.get(o.getId()));
+						} else {
+							s.catchUp(o);
+						}
 					} catch (Exception e) {
 						Glb.getLogger().error("", e);
 					}
@@ -313,8 +340,135 @@ public class Objectivity implements GlbMemberDynamicState, DBObj {
 		});
 	}
 
+	/**
+	 * 最後にコミットされた客観コア
+	 */
+	private final AtomicReference<CoreSnapshot> coreSnapshot = new AtomicReference<>();
+
+	/**
+	 * {@link CoreSnapshot}が差し替えられる度に加算される
+	 */
+	private final AtomicLong coreSnapshotVersion = new AtomicLong();
+
+	/**
+	 * コミットされていない客観コアの書き込み
+	 * トランザクション : 最後に書き込まれた客観コアのシリアライズされた状態
+	 * 削除された場合{@link #deletedCore}
+	 */
+	private final Map<Transaction, byte[]> writtenCores = Collections
+			.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * {@link #writtenCores}で客観コアが削除された事を表す
+	 */
+	private static final byte[] deletedCore = new byte[0];
+
+	/**
+	 * 客観コアが書き込まれたら呼ぶ。
+	 * txnがコミットされた時に{@link #getCoreSnapshot()}が差し替えられる。
+	 *
+	 * @param txn		書き込みトランザクション
+	 * @param written	書き込まれた客観コアのシリアライズされた状態
+	 */
+	public void coreWritten(Transaction txn, byte[] written) {
+		synchronized (writtenCores) {
+			if (writtenCores.put(txn, written) == null)
+				DBUtil.addCommitHook(txn, () -> coreCommitted(txn));
+		}
+	}
+
+	/**
+	 * 客観コアが削除されたら呼ぶ。
+	 * txnがコミットされた時にスナップショットが破棄される。
+	 *
+	 * @param txn		書き込みトランザクション
+	 */
+	public void coreDeleted(Transaction txn) {
+		coreWritten(txn, deletedCore);
+	}
+
+	private void coreCommitted(Transaction txn) {
+		byte[] written = writtenCores.remove(txn);
+		if (written == null)
+			return;
+		CoreSnapshot next = null;
+		if (written != deletedCore) {
+			Object o = Glb.getUtil().fromKryoBytesForPersistence(written);
+			if (o instanceof ObjectivityCore) {
+				next = new CoreSnapshot((ObjectivityCore) o, written,
+						coreSnapshotVersion.get() + 1);
+			}
+		}
+		//nullなら次回読み出し時にDBから再読み込みする
+		synchronized (coreSnapshot) {
+			coreSnapshotVersion.incrementAndGet();
+			coreSnapshot.set(next);
+		}
+	}
+
+	/**
+	 * 読み取り専用トランザクションを作らずに最後にコミットされた客観コアを得る。
+	 *
+	 * @return	客観コアのスナップショット。客観コアがまだDBに無ければnull
+	 */
+	public CoreSnapshot getCoreSnapshot() {
+		CoreSnapshot r = coreSnapshot.get();
+		if (r != null)
+			return r;
+
+		long version = coreSnapshotVersion.get();
+		ObjectivityCore loaded = readRet(txn -> {
+			ObjectivityCoreStore s = new ObjectivityCoreStore(txn);
+			return s.get(s.getDefaultId());
+		});
+		if (loaded == null)
+			return null;
+		byte[] serialized;
+		try {
+			serialized = Glb.getUtil().toKryoBytesForPersistence(loaded);
+		} catch (IOException e) {
+			Glb.getLogger().error("", e);
+			return null;
+		}
+		synchronized (coreSnapshot) {
+			//読み込み中に書き込みか削除がコミットされていたらそちらの方が新しい
+			if (coreSnapshotVersion.get() != version)
+				return coreSnapshot.get();
+			r = new CoreSnapshot(loaded, serialized,
+					coreSnapshotVersion.incrementAndGet());
+			coreSnapshot.set(r);
+			return r;
+		}
+	}
+
+	/**
+	 * 返値はスナップショットのコピーなので変更しても他に影響しない。
+	 * 変更して保存する場合は{@link #getCore(Transaction)}を使う。
+	 *
+	 * @return	最後にコミットされた客観コアのコピー
+	 */
 	public ObjectivityCore getCore() {
-		return readRet(txn -> getCore(txn));
+		CoreSnapshot s = getCoreSnapshot();
+		if (s == null)
+			return new ObjectivityCore();
+		ObjectivityCore r = s.getCore();
+		if (r == null)
+			return new ObjectivityCore();
+		return r;
+	}
+
+	/**
+	 * {@link #getCore()}と異なりコピーを作らないので、
+	 * ヒストリーインデックスや設定を読むだけの場合はこちらを使う。
+	 *
+	 * @return	最後にコミットされた客観コアのスナップショット。
+	 * 客観コアがまだDBに無ければ初期状態の客観コアのスナップショット
+	 */
+	public CoreSnapshot getCoreReadOnly() {
+		CoreSnapshot s = getCoreSnapshot();
+		if (s == null)
+			return new CoreSnapshot(new ObjectivityCore(), null, -1);
+		return s;
 	}
 
 	/**
@@ -751,4 +905,99 @@ public class Objectivity implements GlbMemberDynamicState, DBObj {
 		});
 	}
 
+	/**
+	 * ある時点でコミットされていた客観コア
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	public static class CoreSnapshot {
+		/**
+		 * 外部に公開しない。{@link #getHistoryIndex()}等の読み取りにだけ使う
+		 */
+		private final ObjectivityCore core;
+		/**
+		 * {@link #getCore()}でコピーを作るためのシリアライズされた状態。
+		 * nullなら初期状態の客観コアのスナップショット
+		 */
+		private final byte[] serialized;
+		/**
+		 * スナップショットが差し替えられる度に増加する
+		 */
+		private final long version;
+
+		public CoreSnapshot(ObjectivityCore core, byte[] serialized,
+				long version) {
+			this.core = core;
+			this.serialized = serialized;
+			this.version = version;
+		}
+
+		/**
+		 * @return	客観コアのコピー。失敗したらnull
+		 */
+		public ObjectivityCore getCore() {
+			if (serialized == null)
+				return new ObjectivityCore();
+			Object o = Glb.getUtil().fromKryoBytesForPersistence(serialized);
+			if (!(o instanceof ObjectivityCore))
+				return null;
+			return (ObjectivityCore) o;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public long getHistoryIndex() {
+			return core.getHistoryIndex();
+		}
+
+		/**
+		 * @return	負荷設定。スナップショットが持つものなので変更してはならない。
+		 * 設定が無ければnull
+		 */
+		public LoadSetting getLoadSetting() {
+			ObjectivityCoreConfig config = core.getConfig();
+			if (config == null)
+				return null;
+			return config.getLoadSetting();
+		}
+
+		/**
+		 * @return	運営のユーザーID一覧のコピー
+		 */
+		public List<Long> getManagerIds() {
+			TenyuManagerList l = core.getManagerList();
+			if (l == null)
+				return new ArrayList<>();
+			return l.getManagerIds();
+		}
+
+		/**
+		 * @param userId
+		 * @return	運営か
+		 */
+		public boolean isManager(Long userId) {
+			TenyuManagerList l = core.getManagerList();
+			return l != null && l.isManager(userId);
+		}
+
+		/**
+		 * {@link ObjectivityCore#isHeavyLoadServerToUserMessageListServer(Long)}
+		 * @param userId
+		 * @return	メッセージリストサーバーに負荷の高い送信をするサーバーか
+		 */
+		public boolean isHeavyLoadServerToUserMessageListServer(Long userId) {
+			return core.isHeavyLoadServerToUserMessageListServer(userId);
+		}
+
+		/**
+		 * @param historyIndex	呼び出し側が期待するヒストリーインデックス
+		 * @return	このスナップショットはそれより古いか
+		 */
+		public boolean isStale(long historyIndex) {
+			return getHistoryIndex() < historyIndex;
+		}
+	}
+
 }
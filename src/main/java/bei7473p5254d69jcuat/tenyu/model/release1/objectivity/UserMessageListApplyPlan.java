@@ -0,0 +1,253 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import bei7473p5254d69jcuat.tenyu.communication.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.UserMessageListRequestI.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.gui.right.*;
+import glb.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * メッセージリスト反映処理の並列化計画。
+ *
+ * 各メッセージが{@link UserMessageListRequestI#getApplyKeys()}で宣言した
+ * 読み書きするオブジェクトから、同じオブジェクトに触れるメッセージを同じ区画にまとめる。
+ * 区画同士は干渉しないので、各区画のオブジェクトの読み込みや構築、検証を
+ * 反映前のスナップショットに対して並列に行う。
+ *
+ * DBへの書き込みは従来通り1つのトランザクションでリスト内の順序通りに行うので、
+ * 反映後の状態やハッシュツリーは逐次反映と完全に一致する。
+ *
+ * 準備できるのは、リスト内で先行するメッセージが書き込むオブジェクトを読まないメッセージだけである。
+ * 先行するメッセージの書き込みがスナップショットに含まれないので。
+ * キーを列挙できないメッセージがあると、それ以降のメッセージは全て準備されず
+ * 書き込み時に{@link UserMessageListRequestI#apply(Transaction, long)}で逐次反映される。
+ * 同じオブジェクトに2回目以降に触れるメッセージも準備されない。
+ *
+ * 準備を実装していないメッセージは区画に分けられても逐次反映される。
+ *
+ * @param <T>	反映対象のメッセージの型
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class UserMessageListApplyPlan<T extends UserMessageListRequestI> {
+	/**
+	 * @param l				反映するメッセージリスト
+	 * @param historyIndex	その回のhistoryIndex
+	 * @return	リスト内の{@link UserRightRequest}の反映計画
+	 */
+	public static UserMessageListApplyPlan<UserRightRequest> create(
+			UserMessageList l, long historyIndex) {
+		List<UserRightRequest> requests = new ArrayList<>();
+		for (Message m : l.getMessages()) {
+			if (!(m.getContent() instanceof UserRightRequest))
+				continue;
+			requests.add((UserRightRequest) m.getContent());
+		}
+		return new UserMessageListApplyPlan<>(requests, historyIndex);
+	}
+
+	/**
+	 * 並列化しても効果が無いメッセージ数
+	 */
+	private static final int parallelMin = 8;
+
+	/**
+	 * 反映対象のメッセージ。リスト内の順序
+	 */
+	private final List<T> requests = new ArrayList<>();
+
+	/**
+	 * requestsと同じ並び。準備できるならtrue
+	 */
+	private final List<Boolean> preparable = new ArrayList<>();
+
+	/**
+	 * 区画毎のrequestsの添え字一覧。添え字は昇順
+	 */
+	private final List<List<Integer>> partitions = new ArrayList<>();
+
+	/**
+	 * requestsの添え字 : 準備された書き込み処理
+	 */
+	private final Map<Integer, PreparedApply> prepared = new ConcurrentHashMap<>();
+
+	private final long historyIndex;
+
+	/**
+	 * @param requests		反映対象のメッセージ。リスト内の順序
+	 * @param historyIndex	その回のhistoryIndex
+	 */
+	public UserMessageListApplyPlan(List<T> requests, long historyIndex) {
+		this.historyIndex = historyIndex;
+		this.requests.addAll(requests);
+		plan();
+	}
+
+	/**
+	 * 干渉グラフを作成し区画に分ける
+	 */
+	private void plan() {
+		//先行するメッセージが書き込んだキー
+		Set<String> written = new HashSet<>();
+		//キーを列挙できないメッセージが先行したか
+		boolean barrier = false;
+		//キー : 区画の代表の添え字
+		Map<String, Integer> keyToIndex = new HashMap<>();
+		int[] parent = new int[requests.size()];
+		for (int i = 0; i < requests.size(); i++) {
+			parent[i] = i;
+			ApplyKeys keys = null;
+			try {
+				keys = requests.get(i).getApplyKeys();
+			} catch (Exception e) {
+				Glb.getLogger().error("", e);
+			}
+			if (keys == null) {
+				barrier = true;
+				preparable.add(false);
+				continue;
+			}
+
+			boolean independent = !barrier;
+			for (String k : keys.getReads()) {
+				if (written.contains(k))
+					independent = false;
+				Integer other = keyToIndex.get(k);
+				if (other == null) {
+					keyToIndex.put(k, i);
+				} else {
+					union(parent, other, i);
+				}
+			}
+			written.addAll(keys.getWrites());
+			preparable.add(independent);
+		}
+
+		Map<Integer, List<Integer>> byRoot = new LinkedHashMap<>();
+		for (int i = 0; i < requests.size(); i++) {
+			if (!preparable.get(i))
+				continue;
+			byRoot.computeIfAbsent(find(parent, i), k -> new ArrayList<>())
+					.add(i);
+		}
+		partitions.addAll(byRoot.values());
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra == rb)
+			return;
+		//小さい添え字を代表にする
+		if (ra < rb) {
+			parent[rb] = ra;
+		} else {
+			parent[ra] = rb;
+		}
+	}
+
+	/**
+	 * 各区画を並列に準備する。
+	 * 書き込みトランザクションで何も書き込む前に呼ぶ事。
+	 *
+	 * 準備に使う読み込み専用トランザクションが書き込みトランザクションと
+	 * 異なるスナップショットを持つ場合、その区画は準備されない。
+	 *
+	 * @param txn	客観の書き込みトランザクション
+	 */
+	public void prepare(Transaction txn) {
+		prepare(txn, Glb.getObje().getEnv());
+	}
+
+	/**
+	 * 全ワーカーの終了を待ってから戻る。割り込まれても同様で、
+	 * 準備された書き込み処理は全て使える
+	 *
+	 * @param txn	書き込みトランザクション
+	 * @param env	txnのEnvironment。準備はこのスナップショットに対して行われる
+	 */
+	public void prepare(Transaction txn, Environment env) {
+		if (partitions.size() == 0)
+			return;
+		long highAddress = txn.getHighAddress();
+		int workerMax = 1;
+		if (requests.size() >= parallelMin)
+			workerMax = Glb.getComputeExecutor().getParallelism() + 1;
+		Glb.getComputeExecutor().invoke(partitions.size(), Long.MAX_VALUE,
+				workerMax,
+				p -> prepare(env, partitions.get(p), highAddress));
+	}
+
+	private void prepare(Environment env, List<Integer> partition,
+			long highAddress) {
+		env.executeInReadonlyTransaction(rtxn -> {
+			if (rtxn.getHighAddress() != highAddress) {
+				Glb.debug("snapshot changed. partition is not prepared");
+				return;
+			}
+			for (Integer i : partition) {
+				T c = requests.get(i);
+				try {
+					PreparedApply p = c.prepareApply(rtxn, historyIndex);
+					if (p != null)
+						prepared.put(i, p);
+				} catch (Exception e) {
+					//書き込み時に逐次反映させ、従来通り例外を出させる
+					Glb.debug(() -> "failed to prepare "
+							+ c.getClass().getSimpleName() + " " + e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return	反映対象のメッセージ。リスト内の順序
+	 */
+	public List<T> getRequests() {
+		return Collections.unmodifiableList(requests);
+	}
+
+	/**
+	 * 1メッセージを反映する。準備されていれば書き込み処理を、
+	 * 準備されていなければ{@link UserMessageListRequestI#apply(Transaction, long)}を呼ぶ。
+	 * リスト内の順序通りに呼ぶ事で逐次反映と結果が一致する
+	 *
+	 * @param txn	{@link #prepare(Transaction)}に渡した書き込みトランザクション
+	 * @param index	{@link #getRequests()}の添え字
+	 * @return	{@link UserMessageListRequestI#apply(Transaction, long)}と同じ
+	 */
+	public boolean apply(Transaction txn, int index) throws Exception {
+		PreparedApply p = prepared.get(index);
+		if (p == null)
+			return requests.get(index).apply(txn, historyIndex);
+		return p.commit(txn);
+	}
+
+	/**
+	 * @param index	{@link #getRequests()}の添え字
+	 * @return	準備された書き込み処理。無ければnull
+	 */
+	public PreparedApply getPrepared(int index) {
+		return prepared.get(index);
+	}
+
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	public int getPreparedCount() {
+		return prepared.size();
+	}
+}
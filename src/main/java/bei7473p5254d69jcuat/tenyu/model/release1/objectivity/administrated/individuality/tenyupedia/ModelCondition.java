@@ -1,10 +1,12 @@
 package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia;
 
 import java.util.*;
+import java.util.function.*;
 
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.tenyupedia.*;
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.*;
 import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.administrated.*;
@@ -15,6 +17,7 @@ import bei7473p5254d69jcuat.tenyu.model.promise.reference.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia.ModelCondition.How.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
 import bei7473p5254d69jcuat.tenyu.ui.common.*;
 import bei7473p5254d69jcuat.tenyu.ui.model.administrated.individuality.tenyupedia.*;
@@ -238,13 +241,109 @@ public class ModelCondition extends IndividualityObject
 		}
 	}
 
+	/**
+	 * {@link How}が参照する他の条件をDBから読み出す
+	 */
+	private static final Function<Long,
+			ModelCondition> othersFromDB = id -> Glb.getObje()
+					.getModelCondition(mcs -> mcs.get(id));
+
 	@Override
 	public boolean is(TenyupediaObjectI<? extends ModelI> m) {
-		if (when != null) {
-			if (!when.is(m)) {
-				return false;
-			}
+		return is(m, othersFromDB);
+	}
+
+	/**
+	 * @param m	判定対象
+	 * @param others	{@link How}が参照する他の条件をIDから得る
+	 * @return	該当するか
+	 */
+	boolean is(TenyupediaObjectI<? extends ModelI> m,
+			Function<Long, ModelCondition> others) {
+		return is(m, new HashSet<>(), others);
+	}
+
+	/**
+	 * 手動指定されたもの、自身の条件とAND、NANDを満たすもの、
+	 * OR、NORを満たすもののいずれかなら該当する。
+	 * {@link ModelConditionPlan}と同じ解釈である。
+	 *
+	 * @param m	判定対象
+	 * @param visiting	{@link How}で辿っている途中の条件のID
+	 * @param others	{@link How}が参照する他の条件をIDから得る
+	 * @return	該当するか
+	 */
+	boolean is(TenyupediaObjectI<? extends ModelI> m, Set<Long> visiting,
+			Function<Long, ModelCondition> others) {
+		if (m == null)
+			return false;
+		Long id = getId();
+		if (id != null)
+			visiting.add(id);
+		try {
+			if (what != null && what.checkManual(m))
+				return true;
+			if (isOwn(m, visiting, others))
+				return true;
+			return how != null && how.isExtended(m, visiting, others);
+		} finally {
+			if (id != null)
+				visiting.remove(id);
 		}
+	}
+
+	/**
+	 * 判定の軽い条件から順に評価し、該当しない事が分かった時点で終了する。
+	 * {@link When}はメンバー変数の比較だけ、
+	 * {@link What}と{@link Who}は大半がメンバー変数の比較で、タグや認定の判定だけDBを読む。
+	 * {@link Where}はキャッシュされた到達範囲とサブインデックスを参照し、
+	 * {@link How}は他の条件を読み出して再帰的に判定する。
+	 *
+	 * @return	自身の条件とAND、NANDを満たすか
+	 */
+	private boolean isOwn(TenyupediaObjectI<? extends ModelI> m,
+			Set<Long> visiting, Function<Long, ModelCondition> others) {
+		if (when != null && !when.is(m))
+			return false;
+		if (what != null && !what.is(m))
+			return false;
+		if (who != null && !who.is(m))
+			return false;
+		if (where != null && !where.is(m))
+			return false;
+		if (how != null && !how.isConstrained(m, visiting, others))
+			return false;
+		return true;
+	}
+
+	private static boolean isSpecified(Collection<?> c) {
+		return c != null && c.size() > 0;
+	}
+
+	/**
+	 * @return	{@link ModelConditionPlan}においてサブインデックスで絞り込めない条件があるか
+	 */
+	boolean hasResidual() {
+		if (what != null && isSpecified(what.certificationIds))
+			return true;
+		if (who != null && isSpecified(who.locales))
+			return true;
+		return false;
+	}
+
+	/**
+	 * サブインデックスで絞り込めない条件だけを判定する。
+	 * 未指定の条件は無条件とみなす。
+	 *
+	 * @param m	判定対象
+	 * @return	該当するか
+	 */
+	boolean isResidual(TenyupediaObjectI<? extends ModelI> m) {
+		if (what != null && isSpecified(what.certificationIds)
+				&& !what.checkCertificationIds(m))
+			return false;
+		if (who != null && isSpecified(who.locales) && !who.checkLocales(m))
+			return false;
 		return true;
 	}
 
@@ -560,46 +659,75 @@ public class ModelCondition extends IndividualityObject
 			return b;
 		}
 
-		private boolean checkOtherCondition(
-				TenyupediaObjectI<? extends ModelI> m) {
+		/**
+		 * 他の条件を辿る最大の深さ
+		 */
+		static final int depthMax = 16;
+
+		/**
+		 * @param logics	判定する論理
+		 * @param f	他の条件と判定結果を受け取り、判定を終了するならその結果を返す
+		 * @param otherwise	最後まで終了しなかった場合の結果
+		 * @param others	他の条件をIDから得る
+		 */
+		private boolean checkOtherCondition(Set<Long> visiting,
+				EnumSet<Logic> logics,
+				BiFunction<Logic, ModelCondition, Boolean> f,
+				boolean otherwise, Function<Long, ModelCondition> others) {
 			if (otherModelConditions == null)
-				return true;
-			return Glb.getObje().getModelCondition(mcs -> {
-				for (OtherModelCondition e : otherModelConditions) {
-					ModelCondition mc = mcs.get(e.getOtherModelConditionId());
-					if (mc == null)
-						continue;
-					switch (e.getLogic()) {
-					case AND:
-						if (!mc.is(m))
-							return false;
-						break;
-					case NAND:
-						if (mc.is(m))
+				return otherwise;
+			for (OtherModelCondition e : otherModelConditions) {
+				Long otherId = e.getOtherModelConditionId();
+				if (otherId == null || !logics.contains(e.getLogic()))
+					continue;
+				//循環参照や深すぎる参照は無視する
+				if (visiting.contains(otherId) || visiting.size() >= depthMax)
+					continue;
+				ModelCondition mc = others.apply(otherId);
+				if (mc == null)
+					continue;
+				Boolean done = f.apply(e.getLogic(), mc);
+				if (done != null)
+					return done;
+			}
+			return otherwise;
+		}
+
+		/**
+		 * @return	AND、NANDの条件を全て満たすか
+		 */
+		boolean isConstrained(TenyupediaObjectI<? extends ModelI> m,
+				Set<Long> visiting, Function<Long, ModelCondition> others) {
+			return checkOtherCondition(visiting,
+					EnumSet.of(Logic.AND, Logic.NAND), (logic, mc) -> {
+						boolean b = mc.is(m, visiting, others);
+						if (logic == Logic.AND ? !b : b)
 							return false;
-						break;
-					case OR:
-						if (mc.is(m))
-							return true;
-						break;
-					case NOR:
-						if (!mc.is(m))
-							return true;
-						break;
-					default:
-					}
-				}
-				return true;
-			});
+						return null;
+					}, true, others);
+		}
 
+		/**
+		 * @return	OR条件のいずれかを満たすか、NOR条件のいずれかを満たさないか
+		 */
+		boolean isExtended(TenyupediaObjectI<? extends ModelI> m,
+				Set<Long> visiting, Function<Long, ModelCondition> others) {
+			return checkOtherCondition(visiting,
+					EnumSet.of(Logic.OR, Logic.NOR), (logic, mc) -> {
+						boolean b = mc.is(m, visiting, others);
+						if (logic == Logic.OR ? b : !b)
+							return true;
+						return null;
+					}, false, others);
 		}
 
 		@Override
 		public boolean is(TenyupediaObjectI<? extends ModelI> m) {
 			if (m == null)
 				return false;
-
-			return checkOtherCondition(m);
+			Set<Long> visiting = new HashSet<>();
+			return isConstrained(m, visiting, othersFromDB)
+					|| isExtended(m, visiting, othersFromDB);
 		}
 
 		/**
@@ -736,9 +864,12 @@ public class ModelCondition extends IndividualityObject
 			});
 		}
 
+		/**
+		 * @return	手動指定されているか
+		 */
 		private boolean checkManual(TenyupediaObjectI<? extends ModelI> m) {
 			if (manual == null)
-				return true;
+				return false;
 			for (TenyuReferenceModelI<?> r : manual) {
 				if (m.getStoreName().equals(r.getStoreName())
 						&& m.getId().equals(r.getId())) {
@@ -782,13 +913,15 @@ public class ModelCondition extends IndividualityObject
 			if (m == null)
 				return false;
 
-			if (!checkModel(m))
-				return false;
-			if (!checkManual(m))
+			//手動指定されたものは他の条件に関係無く該当する
+			if (checkManual(m))
+				return true;
+			//指定されていない条件は無条件とみなす
+			if (isSpecified(storeNames) && !checkModel(m))
 				return false;
-			if (!checkTagIds(m))
+			if (isSpecified(tagIds) && !checkTagIds(m))
 				return false;
-			if (!checkCertificationIds(m))
+			if (isSpecified(certificationIds) && !checkCertificationIds(m))
 				return false;
 			return true;
 		}
@@ -1152,16 +1285,48 @@ public class ModelCondition extends IndividualityObject
 				return false;
 			if (orderMax < 0)
 				return false;
+			ModelI o = m.getObj();
+			if (o == null)
+				return false;
 			//起点から閾値内でたどれる範囲に居るか
-			SocialityI so = Glb.getObje()
-					.getSociality(sos -> sos.get(startSocialityId));
-			if (so == null)
+			Boolean r = Glb.getObje().getSociality(sos -> {
+				FlowProximityIndex.Reach reach = getReach(sos);
+				if (reach == null)
+					return false;
+				//対象自身の社会性
+				if (o instanceof IndividualityObjectI) {
+					TenyuReferenceModelI<?> ref = ((IndividualityObjectI) o)
+							.getReference();
+					if (ref != null && reach.isWithin(
+							sos.getIdByIndividualityObject(
+									ref.getStoreKeyReferenced()),
+							threshold))
+						return true;
+				}
+				//登録者の社会性
+				if (o instanceof AdministratedObjectI) {
+					Long registerer = ((AdministratedObjectI) o)
+							.getRegistererUserId();
+					if (registerer != null && reach.isWithin(
+							sos.getIdByIndividualityObject(
+									StoreNameObjectivity.USER, registerer),
+							threshold))
+						return true;
+				}
 				return false;
+			});
+			return r == null ? false : r;
+		}
 
-			// TODO フロー計算モジュールがまだ未実装
-
-			// TODO 自動生成されたメソッド・スタブ
-			return false;
+		/**
+		 * @param sos	読み込みトランザクションの社会性ストア
+		 * @return	起点から最大次数まで辿った到達範囲。起点が無ければnull
+		 */
+		FlowProximityIndex.Reach getReach(SocialityStore sos) {
+			if (startSocialityId == null)
+				return null;
+			return Glb.getFlowProximityIndex().get(sos.getDbUtil().getTxn(),
+					startSocialityId, orderMax);
 		}
 
 		private boolean validateCommon(ValidationResult r) {
@@ -1369,15 +1534,17 @@ public class ModelCondition extends IndividualityObject
 		public boolean is(TenyupediaObjectI<? extends ModelI> m) {
 			if (m == null)
 				return false;
-			if (!checkUserIds(m)) {
+			//指定されていない条件は無条件とみなす。
+			//登録者のタグはUserを読むので最後に判定する
+			if (isSpecified(userIds) && !checkUserIds(m)) {
 				return false;
 			}
 
-			if (!checkLocales(m)) {
+			if (isSpecified(locales) && !checkLocales(m)) {
 				return false;
 			}
 
-			if (!checkTagIds(m)) {
+			if (isSpecified(tagIds) && !checkTagIds(m)) {
 				return false;
 			}
 
@@ -0,0 +1,856 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia;
+
+import java.util.*;
+import java.util.function.*;
+
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.tenyupedia.*;
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.administrated.individuality.*;
+import bei7473p5254d69jcuat.tenyu.model.promise.reference.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia.ModelCondition.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia.ModelCondition.How.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
+import glb.*;
+import glb.util.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * {@link ModelCondition}をサブインデックスによる検索計画に変換したもの。
+ *
+ * {@link ModelCondition#is(TenyupediaObjectI)}は1オブジェクトずつ判定するので、
+ * ストアから該当するものを探すには全件をデコードする事になる。
+ * 計画はタグ、登録者、作成日時、更新日時のサブインデックスから
+ * 昇順のID集合を読み、{@link How}の論理に従って積、和、差を取る。
+ * オブジェクトのデコードはサブインデックスで絞り込めない条件の判定と
+ * 最終的な結果の取得だけで行われる。
+ *
+ * 各要素の解釈
+ * {@link What}	ストア名、タグ、手動指定。手動指定されたものは他の条件に関係無く含まれる
+ * {@link Who}	登録者、登録者のタグ
+ * {@link When}	作成日時または更新日時の範囲
+ * {@link Where}	起点から閾値以上のフローが届いた社会性の主体、またはその社会性を持つユーザーが登録した
+ * {@link How}	(自身の条件 ∩ AND - NAND) ∪ OR ∪ NORの補集合
+ * 認定と言語は絞り込まれた候補をデコードして判定する。
+ * 空リストや初期値の条件は無条件とみなす。
+ *
+ * 計画は対象ストアに依存しないので、一度作成すれば複数のストアに使える。
+ * 結果は{@link ModelCondition#is(TenyupediaObjectI)}で該当するものと一致する。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class ModelConditionPlan {
+	/**
+	 * @param mc	検索条件
+	 * @param txn	{@link How}が参照する他の条件の読み出しに使う
+	 * @return	検索計画
+	 */
+	public static ModelConditionPlan compile(ModelCondition mc,
+			Transaction txn) {
+		ModelConditionStore mcs = new ModelConditionStore(txn);
+		return compile(mc, id -> mcs.get(id));
+	}
+
+	/**
+	 * @param mc	検索条件
+	 * @param others	{@link How}が参照する他の条件をIDから得る
+	 * @return	検索計画
+	 */
+	static ModelConditionPlan compile(ModelCondition mc,
+			Function<Long, ModelCondition> others) {
+		return new ModelConditionPlan(compile(mc, others, new HashSet<>()));
+	}
+
+	private static Node compile(ModelCondition mc,
+			Function<Long, ModelCondition> others, Set<Long> visiting) {
+		if (mc.getId() != null)
+			visiting.add(mc.getId());
+
+		List<Node> and = new ArrayList<>();
+		What what = mc.getWhat();
+		if (what != null) {
+			if (isSpecified(what.getStoreNames()))
+				and.add(new StoreNameNode(what.getStoreNames()));
+			if (isSpecified(what.getTagIds()))
+				and.add(new TagNode(what.getTagIds()));
+		}
+		Who who = mc.getWho();
+		if (who != null) {
+			if (isSpecified(who.getUserIds()))
+				and.add(new RegistererNode(who.getUserIds()));
+			if (isSpecified(who.getTagIds()))
+				and.add(new RegistererTagNode(who.getTagIds()));
+		}
+		When when = mc.getWhen();
+		if (when != null && (when.getStartDate() != When.init
+				|| when.getEndDate() != When.init)) {
+			and.add(new DateNode(when.isCreate(),
+					when.getStartDate() == When.init ? 0 : when.getStartDate(),
+					when.getEndDate() == When.init ? Long.MAX_VALUE
+							: when.getEndDate()));
+		}
+		Where where = mc.getWhere();
+		if (where != null && where.getStartSocialityId() != null) {
+			and.add(new WhereNode(where));
+		}
+
+		List<Node> nand = new ArrayList<>();
+		List<Node> or = new ArrayList<>();
+		How how = mc.getHow();
+		if (how != null && how.getOtherModelConditions() != null) {
+			for (OtherModelCondition e : how.getOtherModelConditions()) {
+				Long otherId = e.getOtherModelConditionId();
+				if (otherId == null || e.getLogic() == null)
+					continue;
+				//循環参照や深すぎる参照は{@link ModelCondition#is(TenyupediaObjectI)}と同様に無視する
+				if (visiting.contains(otherId)
+						|| visiting.size() >= How.depthMax) {
+					Glb.debug(() -> "cyclic or too deep otherModelCondition. id="
+							+ mc.getId() + " otherId=" + otherId);
+					continue;
+				}
+				ModelCondition other = others.apply(otherId);
+				if (other == null)
+					continue;
+				Node o = compile(other, others, visiting);
+				switch (e.getLogic()) {
+				case AND:
+					if (o != null)
+						and.add(o);
+					break;
+				case NAND:
+					//無条件の否定は空集合
+					nand.add(o == null ? NoneNode.instance : o);
+					break;
+				case OR:
+					//無条件との和集合は無条件
+					or.add(o);
+					break;
+				case NOR:
+					if (o != null)
+						or.add(new AndNotNode(null, o));
+					break;
+				default:
+				}
+			}
+		}
+
+		Node r = and(and);
+		if (nand.size() > 0)
+			r = new AndNotNode(r, or(nand));
+		if (mc.hasResidual())
+			r = new FilterNode(r, mc);
+		if (or.size() > 0) {
+			or.add(0, r);
+			r = or(or);
+		}
+		if (what != null && isSpecified(what.getManual()) && r != null) {
+			r = new OrNode(Arrays.asList(r, new ManualNode(what.getManual())));
+		}
+
+		if (mc.getId() != null)
+			visiting.remove(mc.getId());
+		return r;
+	}
+
+	/**
+	 * @param l	nullは無条件
+	 * @return	積集合の節。全て無条件ならnull
+	 */
+	private static Node and(List<Node> l) {
+		List<Node> children = new ArrayList<>();
+		for (Node n : l) {
+			if (n != null)
+				children.add(n);
+		}
+		if (children.size() == 0)
+			return null;
+		if (children.size() == 1)
+			return children.get(0);
+		return new AndNode(children);
+	}
+
+	/**
+	 * @param l	nullは無条件
+	 * @return	和集合の節。無条件が含まれればnull
+	 */
+	private static Node or(List<Node> l) {
+		for (Node n : l) {
+			if (n == null)
+				return null;
+		}
+		if (l.size() == 1)
+			return l.get(0);
+		return new OrNode(new ArrayList<>(l));
+	}
+
+	private static boolean isSpecified(Collection<?> c) {
+		return c != null && c.size() > 0;
+	}
+
+	/**
+	 * 計画の根。nullなら無条件
+	 */
+	private final Node root;
+
+	private ModelConditionPlan(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return	サブインデックスを使わず全件を走査するか
+	 */
+	public boolean isFullScan() {
+		return root == null || root.isFullScan();
+	}
+
+	/**
+	 * 検索を実行する。オブジェクトはサブインデックスで絞り込めない条件の判定にだけデコードされる
+	 *
+	 * @param store	対象ストア
+	 * @return	該当するID
+	 */
+	public SortedIdSet execute(IndividualityObjectStore<?, ?> store) {
+		return execute(new StoreIndex(store));
+	}
+
+	/**
+	 * @param index	対象ストアのサブインデックス
+	 * @return	該当するID
+	 */
+	SortedIdSet execute(Index index) {
+		Context ctx = new Context(index);
+		SortedIdSet r = root == null ? null : root.eval(ctx);
+		if (r == null)
+			r = ctx.getAll();
+		return r;
+	}
+
+	/**
+	 * @param store	対象ストア
+	 * @param max	最大件数。負なら全件
+	 * @return	該当するオブジェクト。ID昇順
+	 */
+	public List<IndividualityObjectI> search(
+			IndividualityObjectStore<?, ?> store, int max) {
+		List<IndividualityObjectI> r = new ArrayList<>();
+		for (Long id : execute(store).toList(max)) {
+			IndividualityObjectI o = store.get(id);
+			if (o != null)
+				r.add(o);
+		}
+		return r;
+	}
+
+	@Override
+	public String toString() {
+		return "ModelConditionPlan [root=" + (root == null ? "ALL" : root)
+				+ "]";
+	}
+
+	/**
+	 * 計画が参照する対象ストアのサブインデックス
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	static interface Index {
+		/**
+		 * @return	対象ストアのモデル名
+		 */
+		String getName();
+
+		/**
+		 * @param id
+		 * @return	デコードせずに確認した、対象ストアにIDが存在するか
+		 */
+		boolean exist(Long id);
+
+		IndividualityObjectI get(Long id);
+
+		void forEach(BiFunction<Long, IndividualityObjectI, Boolean> f);
+
+		SortedIdSet getAllIdSet();
+
+		List<Long> getIdsByTagId(Long tagId);
+
+		List<Long> getIdsByRegisterer(Long userId);
+
+		SortedIdSet getIdSetByCreateDate(long start, long end);
+
+		SortedIdSet getIdSetByUpdateDate(long start, long end);
+
+		/**
+		 * @param tagId
+		 * @return	このタグを持つユーザーのID
+		 */
+		List<Long> getUserIdsByTagId(Long tagId);
+
+		/**
+		 * @param where
+		 * @return	起点からの到達範囲。起点が無ければnull
+		 */
+		FlowProximityIndex.Reach getReach(Where where);
+	}
+
+	/**
+	 * DBのストアのサブインデックス
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class StoreIndex implements Index {
+		private final IndividualityObjectStore<?, ?> store;
+
+		private StoreIndex(IndividualityObjectStore<?, ?> store) {
+			this.store = store;
+		}
+
+		@Override
+		public String getName() {
+			return store.getName();
+		}
+
+		@Override
+		public boolean exist(Long id) {
+			return store.existById(id);
+		}
+
+		@Override
+		public IndividualityObjectI get(Long id) {
+			return store.get(id);
+		}
+
+		@Override
+		public void forEach(
+				BiFunction<Long, IndividualityObjectI, Boolean> f) {
+			store.forEach((id, o) -> f.apply(id, o));
+		}
+
+		@Override
+		public SortedIdSet getAllIdSet() {
+			return store.getAllIdSet();
+		}
+
+		@Override
+		public List<Long> getIdsByTagId(Long tagId) {
+			return store.getIdsByTagId(tagId);
+		}
+
+		@Override
+		public List<Long> getIdsByRegisterer(Long userId) {
+			return store.getIdsByRegisterer(userId);
+		}
+
+		@Override
+		public SortedIdSet getIdSetByCreateDate(long start, long end) {
+			return store.getIdSetByCreateDate(start, end);
+		}
+
+		@Override
+		public SortedIdSet getIdSetByUpdateDate(long start, long end) {
+			return store.getIdSetByUpdateDate(start, end);
+		}
+
+		@Override
+		public List<Long> getUserIdsByTagId(Long tagId) {
+			return new UserStore(store.getDbUtil().getTxn())
+					.getIdsByTagId(tagId);
+		}
+
+		@Override
+		public FlowProximityIndex.Reach getReach(Where where) {
+			return where.getReach(
+					new SocialityStore(store.getDbUtil().getTxn()));
+		}
+	}
+
+	/**
+	 * 1回の実行に関する状態
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Context {
+		private final Index store;
+		private SortedIdSet all = null;
+
+		private Context(Index store) {
+			this.store = store;
+		}
+
+		/**
+		 * @return	対象ストアの全ID。キーだけを走査し、結果は実行中使い回す
+		 */
+		private SortedIdSet getAll() {
+			if (all == null)
+				all = store.getAllIdSet();
+			return all;
+		}
+	}
+
+	/**
+	 * 計画の節
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static abstract class Node {
+		/**
+		 * @return	該当するID。nullなら無条件
+		 */
+		abstract SortedIdSet eval(Context ctx);
+
+		/**
+		 * @return	評価にメインストアの全件走査が必要か
+		 */
+		boolean isFullScan() {
+			return false;
+		}
+	}
+
+	/**
+	 * 該当するものが無い
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class NoneNode extends Node {
+		private static final NoneNode instance = new NoneNode();
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			return SortedIdSet.empty();
+		}
+
+		@Override
+		public String toString() {
+			return "NONE";
+		}
+	}
+
+	/**
+	 * 対象ストアがいずれかのストア名であれば無条件、そうでなければ空集合
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class StoreNameNode extends Node {
+		private final List<StoreName> storeNames;
+
+		private StoreNameNode(List<StoreName> storeNames) {
+			this.storeNames = storeNames;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			String name = ctx.store.getName();
+			for (StoreName sn : storeNames) {
+				if (sn != null && name.equals(sn.getModelName()))
+					return null;
+			}
+			return SortedIdSet.empty();
+		}
+
+		@Override
+		public String toString() {
+			return "StoreName" + storeNames;
+		}
+	}
+
+	/**
+	 * いずれかのタグを持つ
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class TagNode extends Node {
+		private final List<Long> tagIds;
+
+		private TagNode(List<Long> tagIds) {
+			this.tagIds = tagIds;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			SortedIdSet.Builder b = new SortedIdSet.Builder();
+			for (Long tagId : tagIds) {
+				if (tagId == null)
+					continue;
+				List<Long> ids = ctx.store.getIdsByTagId(tagId);
+				if (ids == null)
+					continue;
+				for (Long id : ids)
+					b.add(id);
+			}
+			return b.build();
+		}
+
+		@Override
+		public String toString() {
+			return "Tag" + tagIds;
+		}
+	}
+
+	/**
+	 * いずれかのユーザーが登録した
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class RegistererNode extends Node {
+		private final List<Long> userIds;
+
+		private RegistererNode(List<Long> userIds) {
+			this.userIds = userIds;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			return getIdsByRegisterers(ctx, userIds);
+		}
+
+		@Override
+		public String toString() {
+			return "Registerer" + userIds;
+		}
+	}
+
+	private static SortedIdSet getIdsByRegisterers(Context ctx,
+			Collection<Long> userIds) {
+		SortedIdSet.Builder b = new SortedIdSet.Builder();
+		for (Long userId : userIds) {
+			if (userId == null)
+				continue;
+			List<Long> ids = ctx.store.getIdsByRegisterer(userId);
+			if (ids == null)
+				continue;
+			for (Long id : ids)
+				b.add(id);
+		}
+		return b.build();
+	}
+
+	/**
+	 * 登録者がいずれかのタグを持つ。
+	 * {@link UserStore}のタグのサブインデックスでユーザーを得て、
+	 * 対象ストアの登録者のサブインデックスを引く
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class RegistererTagNode extends Node {
+		private final List<Long> userTagIds;
+
+		private RegistererTagNode(List<Long> userTagIds) {
+			this.userTagIds = userTagIds;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			SortedIdSet.Builder users = new SortedIdSet.Builder();
+			for (Long tagId : userTagIds) {
+				if (tagId == null)
+					continue;
+				List<Long> ids = ctx.store.getUserIdsByTagId(tagId);
+				if (ids == null)
+					continue;
+				for (Long id : ids)
+					users.add(id);
+			}
+			return getIdsByRegisterers(ctx, users.build().toList());
+		}
+
+		@Override
+		public String toString() {
+			return "RegistererTag" + userTagIds;
+		}
+	}
+
+	/**
+	 * 作成日時または更新日時が範囲内
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class DateNode extends Node {
+		private final boolean create;
+		private final long start;
+		private final long end;
+
+		private DateNode(boolean create, long start, long end) {
+			this.create = create;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			if (create)
+				return ctx.store.getIdSetByCreateDate(start, end);
+			return ctx.store.getIdSetByUpdateDate(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return (create ? "CreateDate[" : "UpdateDate[") + start + ", "
+					+ end + "]";
+		}
+	}
+
+	/**
+	 * 起点から閾値以上のフローが届いた社会性の主体、
+	 * またはその社会性を持つユーザーが登録した。
+	 * 到達範囲は{@link FlowProximityIndex}にキャッシュされる
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class WhereNode extends Node {
+		private final Where where;
+
+		private WhereNode(Where where) {
+			this.where = where;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			if (where.getThreshold() < 0 || where.getOrderMax() < 0)
+				return SortedIdSet.empty();
+			FlowProximityIndex.Reach reach = ctx.store.getReach(where);
+			if (reach == null)
+				return SortedIdSet.empty();
+			SortedIdSet own = reach.getObjectIds(ctx.store.getName(),
+					where.getThreshold());
+			SortedIdSet users = reach.getObjectIds(
+					StoreNameObjectivity.USER.getModelName(),
+					where.getThreshold());
+			return own.or(getIdsByRegisterers(ctx, users.toList()));
+		}
+
+		@Override
+		public String toString() {
+			return "Where[startSocialityId=" + where.getStartSocialityId()
+					+ ", orderMax=" + where.getOrderMax() + ", threshold="
+					+ where.getThreshold() + "]";
+		}
+	}
+
+	/**
+	 * 手動指定されたもののうち対象ストアに存在するもの
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class ManualNode extends Node {
+		private final List<TenyuReferenceModelI<?>> manual;
+
+		private ManualNode(List<? extends TenyuReferenceModelI<?>> manual) {
+			this.manual = new ArrayList<>(manual);
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			String name = ctx.store.getName();
+			SortedIdSet.Builder b = new SortedIdSet.Builder();
+			for (TenyuReferenceModelI<?> ref : manual) {
+				if (ref == null || ref.getStoreName() == null
+						|| ref.getId() == null)
+					continue;
+				if (name.equals(ref.getStoreName().getModelName())
+						&& ctx.store.exist(ref.getId()))
+					b.add(ref.getId());
+			}
+			return b.build();
+		}
+
+		@Override
+		public String toString() {
+			return "Manual[size=" + manual.size() + "]";
+		}
+	}
+
+	/**
+	 * 積集合。途中で空になれば残りは評価しない
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class AndNode extends Node {
+		private final List<Node> children;
+
+		private AndNode(List<Node> children) {
+			//全件走査を要する節は他の節で絞り込んでから評価したいので後ろに回す
+			List<Node> sorted = new ArrayList<>(children);
+			sorted.sort((a, b) -> Boolean.compare(a.isFullScan(),
+					b.isFullScan()));
+			this.children = sorted;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			SortedIdSet r = null;
+			for (Node n : children) {
+				SortedIdSet s = n.eval(ctx);
+				if (s == null)
+					continue;
+				r = r == null ? s : r.and(s);
+				if (r.isEmpty())
+					return r;
+			}
+			return r;
+		}
+
+		@Override
+		boolean isFullScan() {
+			for (Node n : children) {
+				if (!n.isFullScan())
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "AND" + children;
+		}
+	}
+
+	/**
+	 * 和集合
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class OrNode extends Node {
+		private final List<Node> children;
+
+		private OrNode(List<Node> children) {
+			this.children = children;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			SortedIdSet r = SortedIdSet.empty();
+			for (Node n : children) {
+				SortedIdSet s = n.eval(ctx);
+				if (s == null)
+					return null;
+				r = r.or(s);
+			}
+			return r;
+		}
+
+		@Override
+		boolean isFullScan() {
+			for (Node n : children) {
+				if (n.isFullScan())
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return "OR" + children;
+		}
+	}
+
+	/**
+	 * 差集合
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class AndNotNode extends Node {
+		/**
+		 * nullなら全ID
+		 */
+		private final Node base;
+		private final Node subtracted;
+
+		private AndNotNode(Node base, Node subtracted) {
+			this.base = base;
+			this.subtracted = subtracted;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			SortedIdSet b = base == null ? null : base.eval(ctx);
+			if (b != null && b.isEmpty())
+				return b;
+			SortedIdSet s = subtracted.eval(ctx);
+			if (s == null)
+				return SortedIdSet.empty();
+			if (b == null)
+				b = ctx.getAll();
+			return b.andNot(s);
+		}
+
+		@Override
+		boolean isFullScan() {
+			return base == null || base.isFullScan();
+		}
+
+		@Override
+		public String toString() {
+			return "ANDNOT[" + (base == null ? "ALL" : base) + ", "
+					+ subtracted + "]";
+		}
+	}
+
+	/**
+	 * サブインデックスで絞り込めない条件を候補をデコードして判定する
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class FilterNode extends Node {
+		/**
+		 * nullなら全件
+		 */
+		private final Node candidates;
+		private final ModelCondition mc;
+
+		private FilterNode(Node candidates, ModelCondition mc) {
+			this.candidates = candidates;
+			this.mc = mc;
+		}
+
+		@Override
+		SortedIdSet eval(Context ctx) {
+			SortedIdSet.Builder b = new SortedIdSet.Builder();
+			SortedIdSet c = candidates == null ? null
+					: candidates.eval(ctx);
+			if (c == null) {
+				Glb.debug(() -> "full scan by ModelCondition. id="
+						+ mc.getId() + " store=" + ctx.store.getName());
+				ctx.store.forEach((id, o) -> {
+					if (o != null && mc.isResidual(o))
+						b.add(id);
+					return true;
+				});
+				return b.build();
+			}
+			for (int i = 0; i < c.size(); i++) {
+				IndividualityObjectI o = ctx.store.get(c.get(i));
+				if (o != null && mc.isResidual(o))
+					b.add(c.get(i));
+			}
+			return b.build();
+		}
+
+		@Override
+		boolean isFullScan() {
+			return candidates == null || candidates.isFullScan();
+		}
+
+		@Override
+		public String toString() {
+			return "FILTER[" + (candidates == null ? "ALL" : candidates)
+					+ ", id=" + mc.getId() + "]";
+		}
+	}
+}
@@ -3,6 +3,7 @@ package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.soci
 import java.util.*;
 import java.util.Map.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.*;
@@ -59,12 +60,17 @@ public class EdgeManager implements ValidatableI {
 
 	/**
 	 * 新規作成または既存のエッジの重みを修正する場合に使用する
+	 * 埋め込み形式ではtxnとsocialityIdは使われない
+	 *
+	 * @param txn	書き込みトランザクション
+	 * @param socialityId	このオブジェクトを持つ社会性のID
 	 * @param add	増分を表現したEdge
 	 * @param historyIndex	更新された時のhistoryIndex
 	 * @return	成功すればtrue。少しも更新が生じ無かった場合false
 	 * @throws	中途半端に更新が生じて更新が完了しなかった場合
 	 */
-	public boolean add(Edge add, long historyIndex) throws Exception {
+	public boolean add(Transaction txn, Long socialityId, Edge add,
+			long historyIndex) throws Exception {
 		//1つの社会性が短期間に過剰に重みを変化させる事ができない
 		if (!changeAmount.add(add.getWeight(), historyIndex)) {
 			return false;
@@ -86,8 +92,52 @@ public class EdgeManager implements ValidatableI {
 		return Collections.unmodifiableMap(edges);
 	}
 
-	public Edge remove(Long socialityId, long historyIndex) {
-		Edge e = edges.remove(socialityId);
+	/**
+	 * @return	エッジ数
+	 */
+	public int getEdgeCount() {
+		return edges.size();
+	}
+
+	/**
+	 * 埋め込み形式と{@link ExternalEdgeManager}のどちらでも使えるエッジの取得
+	 * @param txn
+	 * @param socialityId	このオブジェクトを持つ社会性のID
+	 * @param destSocialityId	行き先
+	 * @return	エッジ。無ければnull
+	 */
+	public Edge getEdge(Transaction txn, Long socialityId,
+			Long destSocialityId) {
+		return edges.get(destSocialityId);
+	}
+
+	/**
+	 * 埋め込み形式と{@link ExternalEdgeManager}のどちらでも使えるエッジの走査
+	 * @param txn
+	 * @param socialityId	このオブジェクトを持つ社会性のID
+	 * @param f		エッジを受け取る。falseを返したら終了
+	 */
+	public void forEach(Transaction txn, Long socialityId,
+			Function<Edge, Boolean> f) {
+		for (Edge e : edges.values()) {
+			if (!f.apply(e))
+				return;
+		}
+	}
+
+	/**
+	 * 埋め込み形式ではtxnとsocialityIdは使われない
+	 *
+	 * @param txn	書き込みトランザクション
+	 * @param socialityId	このオブジェクトを持つ社会性のID
+	 * @param destSocialityId	削除されるエッジの行き先
+	 * @param historyIndex
+	 * @return	削除されたエッジ。無ければnull
+	 * @throws Exception
+	 */
+	public Edge remove(Transaction txn, Long socialityId,
+			Long destSocialityId, long historyIndex) throws Exception {
+		Edge e = edges.remove(destSocialityId);
 		if (e == null)
 			return null;
 		changeAmount.add(-e.getWeight(), historyIndex);
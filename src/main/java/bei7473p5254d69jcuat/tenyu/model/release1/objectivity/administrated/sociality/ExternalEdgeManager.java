@@ -0,0 +1,328 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
+import glb.*;
+import glb.util.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * エッジを{@link SocialityEdgeStore}に外部化した{@link EdgeManager}。
+ * 埋め込み形式の{@link EdgeManager}の次のバージョンであり、
+ * {@link ChainVersionup}の規約に従って変更されたメンバーだけを再定義している。
+ * 社会性のフィールドの型は{@link EdgeManager}のままなので、社会性自体のクラスは変わらない。
+ *
+ * エッジの追加や更新はストア上のエッジ1件と、このオブジェクトのエッジ数とハッシュ値だけを書き換える。
+ * 社会性のハッシュ値はこのオブジェクトを含むので、
+ * エッジの状態はハッシュツリーに反映される。
+ *
+ * 各エッジのハッシュ値の合計を2^(ハッシュ値のビット数)を法として保持する。
+ * 合計は順序に依存せず、エッジ1件の変更は古いハッシュ値の減算と新しいハッシュ値の加算で済む。
+ *
+ * 埋め込み形式から変換された場合、旧エッジは{@link #legacyEdges}に保持され、
+ * 次に社会性が書き込まれる時にストアに移される。
+ * 読み出されただけの社会性はDB上で旧形式のまま残るが、
+ * 書き込みは全ノードで同じように行われるので、DBの状態は全ノードで一致する。
+ * 変換はエッジ数に比例する処理なので、変換後の社会性は{@link SocialityStore}がキャッシュする。
+ *
+ * 同調ではエッジが社会性と共に送られ、{@link #matches(Collection)}で
+ * エッジ数とハッシュ値が一致した場合のみストアに反映される。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class ExternalEdgeManager extends EdgeManager {
+	/**
+	 * @param e
+	 * @return	エッジのハッシュ値
+	 */
+	private static byte[] hash(Edge e) {
+		return Glb.getUtil().hashSecure(e);
+	}
+
+	/**
+	 * @param sum	これまでの合計。nullなら0
+	 * @param h		加減するハッシュ値
+	 * @param subtract	減算するか
+	 * @return	ビッグエンディアンの整数として加減した値。桁あふれは捨てられる
+	 */
+	private static byte[] addHash(byte[] sum, byte[] h, boolean subtract) {
+		byte[] r = sum == null ? new byte[h.length] : sum.clone();
+		if (r.length != h.length)
+			throw new IllegalStateException(
+					"hash length mismatch. " + r.length + " " + h.length);
+		int carry = 0;
+		for (int i = r.length - 1; i >= 0; i--) {
+			int v;
+			if (subtract) {
+				v = (r[i] & 0xff) - (h[i] & 0xff) - carry;
+				carry = v < 0 ? 1 : 0;
+			} else {
+				v = (r[i] & 0xff) + (h[i] & 0xff) + carry;
+				carry = v >>> 8;
+			}
+			r[i] = (byte) v;
+		}
+		return r;
+	}
+
+	/**
+	 * エッジ数
+	 */
+	private int edgeCount = 0;
+
+	/**
+	 * 各エッジのハッシュ値の合計。エッジが無ければnull
+	 */
+	private byte[] edgesHash = null;
+
+	/**
+	 * 埋め込み形式から変換された時の旧エッジ。
+	 * 行き先社会性ID : Edge
+	 * ストアに移されるとnullになる。永続化しない
+	 */
+	private transient Map<Long, Edge> legacyEdges = null;
+
+	@SuppressWarnings("unused")
+	private ExternalEdgeManager() {
+	}
+
+	public ExternalEdgeManager(long historyIndex) {
+		super(historyIndex);
+	}
+
+	/**
+	 * 埋め込み形式からのバージョンアップ
+	 * @param old	旧バージョン
+	 */
+	public ExternalEdgeManager(EdgeManager old) {
+		setChangeAmount(old.getChangeAmount());
+		Map<Long, Edge> oldEdges = old.getEdges();
+		if (oldEdges.size() == 0)
+			return;
+		legacyEdges = new HashMap<>(oldEdges);
+		for (Edge e : legacyEdges.values())
+			edgesHash = addHash(edgesHash, hash(e), false);
+		edgeCount = legacyEdges.size();
+	}
+
+	/**
+	 * 新規作成または既存のエッジの重みを修正する
+	 * @param txn	書き込みトランザクション
+	 * @param socialityId	このオブジェクトを持つ社会性のID
+	 * @param add	増分を表現したEdge
+	 * @param historyIndex	更新された時のhistoryIndex
+	 * @return	成功すればtrue。少しも更新が生じ無かった場合false
+	 * @throws Exception	中途半端に更新が生じて更新が完了しなかった場合
+	 */
+	@Override
+	public boolean add(Transaction txn, Long socialityId, Edge add,
+			long historyIndex) throws Exception {
+		//1つの社会性が短期間に過剰に重みを変化させる事ができない
+		if (!getChangeAmount().add(add.getWeight(), historyIndex)) {
+			return false;
+		}
+		SocialityEdgeStore s = new SocialityEdgeStore(txn);
+		moveLegacyEdges(s, socialityId);
+
+		Edge exist = s.get(socialityId, add.getDestSocialityId());
+		if (exist == null) {
+			exist = new Edge(add.getDestSocialityId(), add.getType());
+			edgeCount++;
+		} else {
+			edgesHash = addHash(edgesHash, hash(exist), true);
+		}
+		exist.add(add);
+		edgesHash = addHash(edgesHash, hash(exist), false);
+		if (!s.put(socialityId, exist))
+			throw new IOException("Failed to put edge. socialityId="
+					+ socialityId + " edge=" + exist);
+		return true;
+	}
+
+	/**
+	 * @param txn	書き込みトランザクション
+	 * @param socialityId	このオブジェクトを持つ社会性のID
+	 * @param destSocialityId	削除されるエッジの行き先
+	 * @param historyIndex
+	 * @return	削除されたエッジ。無ければnull
+	 * @throws Exception
+	 */
+	@Override
+	public Edge remove(Transaction txn, Long socialityId,
+			Long destSocialityId, long historyIndex) throws Exception {
+		SocialityEdgeStore s = new SocialityEdgeStore(txn);
+		moveLegacyEdges(s, socialityId);
+
+		Edge e = s.get(socialityId, destSocialityId);
+		if (e == null)
+			return null;
+		if (!s.delete(socialityId, destSocialityId))
+			throw new IOException("Failed to delete edge. socialityId="
+					+ socialityId + " destSocialityId=" + destSocialityId);
+		edgeCount--;
+		edgesHash = edgeCount == 0 ? null
+				: addHash(edgesHash, hash(e), true);
+		getChangeAmount().add(-e.getWeight(), historyIndex);
+		return e;
+	}
+
+	/**
+	 * 旧エッジをストアに移す。
+	 * 社会性が書き込まれる時に呼ばれる
+	 *
+	 * @param txn	書き込みトランザクション
+	 * @param socialityId	このオブジェクトを持つ社会性のID
+	 * @throws IOException
+	 */
+	public void moveLegacyEdges(Transaction txn, Long socialityId)
+			throws IOException {
+		if (legacyEdges == null)
+			return;
+		moveLegacyEdges(new SocialityEdgeStore(txn), socialityId);
+	}
+
+	private void moveLegacyEdges(SocialityEdgeStore s, Long socialityId)
+			throws IOException {
+		if (legacyEdges == null)
+			return;
+		for (Edge e : legacyEdges.values()) {
+			if (!s.put(socialityId, e))
+				throw new IOException("Failed to move edge. socialityId="
+						+ socialityId + " edge=" + e);
+		}
+		legacyEdges = null;
+	}
+
+	/**
+	 * 外部化されたエッジは含まれない。
+	 * {@link #forEach(Transaction, Long, Function)}を使う
+	 *
+	 * @return	ストアに移されていない旧エッジ
+	 */
+	@Override
+	public Map<Long, Edge> getEdges() {
+		if (legacyEdges == null)
+			return Collections.emptyMap();
+		return Collections.unmodifiableMap(legacyEdges);
+	}
+
+	@Override
+	public Edge getEdge(Transaction txn, Long socialityId,
+			Long destSocialityId) {
+		if (legacyEdges != null)
+			return legacyEdges.get(destSocialityId);
+		return new SocialityEdgeStore(txn).get(socialityId, destSocialityId);
+	}
+
+	@Override
+	public void forEach(Transaction txn, Long socialityId,
+			Function<Edge, Boolean> f) {
+		if (legacyEdges != null) {
+			for (Edge e : legacyEdges.values()) {
+				if (!f.apply(e))
+					return;
+			}
+			return;
+		}
+		new SocialityEdgeStore(txn).forEach(socialityId, f);
+	}
+
+	@Override
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	public byte[] getEdgesHash() {
+		return edgesHash;
+	}
+
+	/**
+	 * @param edges	ある社会性からのエッジ一覧
+	 * @return	edgesがこのオブジェクトのエッジ数とハッシュ値に一致するか。
+	 * 行き先の重複があれば一致しない
+	 */
+	public boolean matches(Collection<Edge> edges) {
+		if (edges == null || edges.size() != edgeCount)
+			return false;
+		Set<Long> dests = new HashSet<>();
+		byte[] sum = null;
+		for (Edge e : edges) {
+			if (e == null || !dests.add(e.getDestSocialityId()))
+				return false;
+			sum = addHash(sum, hash(e), false);
+		}
+		return Arrays.equals(sum, edgesHash);
+	}
+
+	/**
+	 * @param txn
+	 * @param socialityId	このオブジェクトを持つ社会性のID
+	 * @return	ストア上のエッジがこのオブジェクトのエッジ数とハッシュ値に一致するか
+	 */
+	public boolean matchesStore(Transaction txn, Long socialityId) {
+		if (legacyEdges != null)
+			return true;
+		return matches(new SocialityEdgeStore(txn).getEdges(socialityId));
+	}
+
+	@Override
+	public boolean validateAtCreate(ValidationResult r) {
+		boolean b = super.validateAtCreate(r);
+		if (!validateAtCommonExternal(r))
+			b = false;
+		return b;
+	}
+
+	@Override
+	public boolean validateAtUpdate(ValidationResult r) {
+		boolean b = super.validateAtUpdate(r);
+		if (!validateAtCommonExternal(r))
+			b = false;
+		return b;
+	}
+
+	private boolean validateAtCommonExternal(ValidationResult r) {
+		boolean b = true;
+		if (edgeCount < 0 || edgeCount > edgeMax) {
+			r.add(Lang.EDGEMANAGER_EDGES, Lang.ERROR_INVALID,
+					"edgeCount=" + edgeCount);
+			b = false;
+		}
+		if ((edgeCount == 0) != (edgesHash == null)) {
+			r.add(Lang.EDGEMANAGER_EDGES, Lang.ERROR_INVALID,
+					"edgeCount=" + edgeCount);
+			b = false;
+		}
+		return b;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + edgeCount;
+		result = prime * result + Arrays.hashCode(edgesHash);
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!super.equals(obj))
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ExternalEdgeManager other = (ExternalEdgeManager) obj;
+		if (edgeCount != other.edgeCount)
+			return false;
+		if (!Arrays.equals(edgesHash, other.edgesHash))
+			return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,145 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality;
+
+import java.util.*;
+
+import glb.*;
+
+/**
+ * 相互評価フローネットワークのフロー計算。
+ *
+ * 共同主体から出たフローはエッジの係数に従って分配され、
+ * 二次以降のフローは{@link #passRate}を掛けられて次のノードへ流れる。
+ * 次数毎に全ノードのフローを一斉に更新し、各ノードはその次数で流れてきたフローを合計していく。
+ * 残りのフローが十分小さくなるか最大次数に達すると終了する。
+ *
+ * 並列計算はノードを固定サイズのチャンクに分割して
+ * {@link Glb#getComputeExecutor()}で行う。
+ * 各ノードは自分に入ってくるエッジを{@link FlowGraph}の順序で集めるだけで、
+ * 他のノードの値を書き換えないのでロックは不要である。
+ * チャンクの分割はスレッド数に依らず、チャンク毎の部分和もチャンク順に合計されるので、
+ * 計算結果はスレッド数やタスクの実行順に依らずビット単位で一致する。
+ * 浮動小数点演算の環境差を避けるためstrictfpとする。
+ *
+ * メモリ消費はスナップショットの他にノード数に比例する配列3本である。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public strictfp class FlowEngine {
+	/**
+	 * 二次以降のフローが次のノードへ流れる割合
+	 */
+	public static final double passRate = 0.5;
+
+	/**
+	 * 最大次数
+	 */
+	public static final int orderMax = 60;
+
+	/**
+	 * 1次数で流れたフローの合計が共同主体が出したフローのこの割合未満になれば終了する
+	 */
+	public static final double epsilon = 1.0E-12;
+
+	/**
+	 * 1タスクで計算するノード数。
+	 * スレッド数に依存させると部分和の合計順が変わるので固定値とする
+	 */
+	private static final int chunkSize = 4096;
+
+	/**
+	 * 最後に計算された結果
+	 */
+	private volatile FlowResult latest = null;
+
+	/**
+	 * @return	最後に計算された結果。まだ無ければnull
+	 */
+	public FlowResult getLatest() {
+		return latest;
+	}
+
+	/**
+	 * 客観からスナップショットを作成し、フローを計算して結果を保持する
+	 *
+	 * @return	計算結果。共同主体の社会性が無ければnull
+	 */
+	public FlowResult computeAndStore() {
+		long start = System.currentTimeMillis();
+		FlowGraph g = Glb.getObje().readRet(txn -> FlowGraph.build(txn));
+		if (g == null)
+			return null;
+		long built = System.currentTimeMillis();
+		FlowResult r = compute(g);
+		latest = r;
+		Glb.getFlow().setLastSocialityId(r.getLastSocialityId());
+		Glb.debug(() -> "flow computed. " + r + " build="
+				+ (built - start) + "ms compute="
+				+ (System.currentTimeMillis() - built) + "ms");
+		return r;
+	}
+
+	/**
+	 * @param g	スナップショット
+	 * @return	計算結果
+	 */
+	public FlowResult compute(FlowGraph g) {
+		int n = g.getNodeCount();
+		int[] inOffsets = g.getInOffsets();
+		int[] inSources = g.getInSources();
+		double[] inCoefficients = g.getInCoefficients();
+
+		double[] current = new double[n];
+		double[] next = new double[n];
+		double[] total = new double[n];
+		current[g.getSourceIndex()] = FlowComputationState.multiplier;
+
+		int chunkCount = (n + chunkSize - 1) / chunkSize;
+		double[] partialSums = new double[chunkCount];
+		List<Double> totalByOrder = new ArrayList<>();
+		totalByOrder.add(FlowComputationState.multiplier);
+		int workerMax = Glb.getComputeExecutor().getParallelism() + 1;
+
+		for (int order = 1; order <= orderMax; order++) {
+			double rate = order == 1 ? 1.0 : passRate;
+			double[] from = current;
+			double[] to = next;
+			int done = Glb.getComputeExecutor().invoke(chunkCount,
+					Long.MAX_VALUE, workerMax, chunk -> {
+						int end = Math.min(n, (chunk + 1) * chunkSize);
+						double sum = 0;
+						for (int v = chunk * chunkSize; v < end; v++) {
+							double in = 0;
+							for (int e = inOffsets[v]; e < inOffsets[v
+									+ 1]; e++) {
+								in += from[inSources[e]] * inCoefficients[e];
+							}
+							double flow = in * rate;
+							to[v] = flow;
+							total[v] += flow;
+							sum += flow;
+						}
+						partialSums[chunk] = sum;
+					});
+			if (done != chunkCount)
+				throw new IllegalStateException(
+						"flow computation failed. order=" + order + " done="
+								+ done + " chunkCount=" + chunkCount);
+
+			double orderTotal = 0;
+			for (double p : partialSums)
+				orderTotal += p;
+			totalByOrder.add(orderTotal);
+
+			current = to;
+			next = from;
+			if (orderTotal < FlowComputationState.multiplier * epsilon)
+				break;
+		}
+
+		double[] byOrder = new double[totalByOrder.size()];
+		for (int i = 0; i < byOrder.length; i++)
+			byOrder[i] = totalByOrder.get(i);
+		return new FlowResult(g, total, byOrder);
+	}
+}
@@ -0,0 +1,243 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
+import glb.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * 相互評価フローネットワークのある時点のスナップショット。
+ * 全社会性のエッジを圧縮行格納形式(CSR)で保持する。
+ *
+ * 社会性は社会性ID昇順に0から番号を振られ、以降は番号で扱われる。
+ * エッジは行き先毎にまとめられ、各行き先の中では出元の番号昇順に並ぶ。
+ * フロー計算は行き先毎に入ってくるフローを集めるので、
+ * 各行き先の計算はこの順序で加算され、スレッド数に依らず結果が一致する。
+ *
+ * 各エッジの係数は出元の全エッジの重みの合計に対するそのエッジの重みの割合である。
+ * BANされた社会性はノードに含まれず、そこへのエッジやそこからのエッジも無い。
+ * 出元のブラックリストにある行き先へのエッジ、重みが0以下のエッジ、
+ * 自己ループ、存在しない社会性へのエッジも除外される。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class FlowGraph {
+	/**
+	 * 客観から作成する
+	 *
+	 * @param txn	読み込みトランザクション。全社会性を同じスナップショットから読む
+	 * @return	スナップショット。共同主体の社会性が無ければnull
+	 */
+	public static FlowGraph build(Transaction txn) {
+		SocialityStore s = new SocialityStore(txn);
+		Long sourceId = s.getIdByIndividualityObject(
+				new TenyuReferenceModelSingle<>(StoreNameSingle.OBJECTIVITY_CORE)
+						.getStoreKeyReferenced());
+		if (sourceId == null)
+			return null;
+		long historyIndex = Glb.getObje().getCore(txn).getHistoryIndex();
+
+		//読み込み順の社会性情報
+		Loader l = new Loader();
+		s.forEach((id, so) -> {
+			if (id == null || so == null || so.isBanned())
+				return true;
+			l.add(txn, id, so);
+			return true;
+		});
+		return l.build(sourceId, historyIndex);
+	}
+
+	/**
+	 * 全社会性を1件ずつ読み込み、プリミティブ配列に詰める。
+	 * 社会性オブジェクトは読み込み後すぐに破棄されるので、
+	 * メモリ消費はエッジ数に比例する配列だけになる
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Loader {
+		private int nodeCount = 0;
+		private long[] ids = new long[1024];
+		/**
+		 * 読み込み順の番号 : その社会性の最初のエッジの位置
+		 */
+		private int[] edgeStarts = new int[1025];
+
+		private int edgeCount = 0;
+		private long[] destIds = new long[1024];
+		private int[] weights = new int[1024];
+
+		private void add(Transaction txn, Long id, Sociality so) {
+			if (nodeCount + 1 >= ids.length) {
+				ids = Arrays.copyOf(ids, ids.length * 2);
+				edgeStarts = Arrays.copyOf(edgeStarts, ids.length + 1);
+			}
+			ids[nodeCount] = id;
+			edgeStarts[nodeCount] = edgeCount;
+			Set<Long> black = so.getBlackList();
+			if (so.getEdgeManager() != null) {
+				so.forEachEdge(txn, e -> {
+					Long dest = e.getDestSocialityId();
+					if (dest == null || e.getWeight() <= 0
+							|| dest.equals(id))
+						return true;
+					if (black != null && black.contains(dest))
+						return true;
+					if (edgeCount >= destIds.length) {
+						destIds = Arrays.copyOf(destIds, destIds.length * 2);
+						weights = Arrays.copyOf(weights, destIds.length);
+					}
+					destIds[edgeCount] = dest;
+					weights[edgeCount] = e.getWeight();
+					edgeCount++;
+					return true;
+				});
+			}
+			nodeCount++;
+			edgeStarts[nodeCount] = edgeCount;
+		}
+
+		private FlowGraph build(long sourceId, long historyIndex) {
+			//社会性ID昇順の番号を振る。DBのキー順に依存しない
+			Integer[] order = new Integer[nodeCount];
+			for (int i = 0; i < nodeCount; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+			long[] sortedIds = new long[nodeCount];
+			for (int i = 0; i < nodeCount; i++)
+				sortedIds[i] = ids[order[i]];
+
+			int sourceIndex = Arrays.binarySearch(sortedIds, sourceId);
+			if (sourceIndex < 0)
+				return null;
+
+			//エッジの行き先を番号にし、出元毎の重みの合計と行き先毎の件数を数える。
+			//行き先が無いエッジは-1
+			int[] destIndexes = new int[edgeCount];
+			long[] outWeightSums = new long[nodeCount];
+			int[] inOffsets = new int[nodeCount + 1];
+			for (int src = 0; src < nodeCount; src++) {
+				int loaded = order[src];
+				for (int e = edgeStarts[loaded]; e < edgeStarts[loaded
+						+ 1]; e++) {
+					int dest = Arrays.binarySearch(sortedIds, destIds[e]);
+					destIndexes[e] = dest < 0 ? -1 : dest;
+					if (dest < 0)
+						continue;
+					outWeightSums[src] += weights[e];
+					inOffsets[dest + 1]++;
+				}
+			}
+			for (int i = 0; i < nodeCount; i++)
+				inOffsets[i + 1] += inOffsets[i];
+
+			//出元の番号昇順に走査して行き先毎に詰めるので、各行き先の中で出元昇順になる
+			int validEdgeCount = inOffsets[nodeCount];
+			int[] inSources = new int[validEdgeCount];
+			double[] inCoefficients = new double[validEdgeCount];
+			int[] fill = Arrays.copyOf(inOffsets, nodeCount);
+			for (int src = 0; src < nodeCount; src++) {
+				int loaded = order[src];
+				for (int e = edgeStarts[loaded]; e < edgeStarts[loaded
+						+ 1]; e++) {
+					int dest = destIndexes[e];
+					if (dest < 0)
+						continue;
+					int pos = fill[dest]++;
+					inSources[pos] = src;
+					inCoefficients[pos] = (double) weights[e]
+							/ (double) outWeightSums[src];
+				}
+			}
+			return new FlowGraph(historyIndex, sortedIds, sourceIndex,
+					inOffsets, inSources, inCoefficients);
+		}
+	}
+
+	/**
+	 * スナップショットを作成した時点のヒストリーインデックス
+	 */
+	private final long historyIndex;
+
+	/**
+	 * 番号 : 社会性ID。昇順
+	 */
+	private final long[] ids;
+
+	/**
+	 * 共同主体の社会性の番号
+	 */
+	private final int sourceIndex;
+
+	/**
+	 * 行き先の番号 : その行き先へのエッジの開始位置。
+	 * 要素数はノード数+1で、最後の要素はエッジ数
+	 */
+	private final int[] inOffsets;
+
+	/**
+	 * エッジの出元の番号
+	 */
+	private final int[] inSources;
+
+	/**
+	 * エッジの係数
+	 */
+	private final double[] inCoefficients;
+
+	public FlowGraph(long historyIndex, long[] ids, int sourceIndex,
+			int[] inOffsets, int[] inSources, double[] inCoefficients) {
+		this.historyIndex = historyIndex;
+		this.ids = ids;
+		this.sourceIndex = sourceIndex;
+		this.inOffsets = inOffsets;
+		this.inSources = inSources;
+		this.inCoefficients = inCoefficients;
+	}
+
+	public int getNodeCount() {
+		return ids.length;
+	}
+
+	public int getEdgeCount() {
+		return inSources.length;
+	}
+
+	public long getHistoryIndex() {
+		return historyIndex;
+	}
+
+	/**
+	 * @return	番号 : 社会性ID。変更してはならない
+	 */
+	long[] getIds() {
+		return ids;
+	}
+
+	public int getSourceIndex() {
+		return sourceIndex;
+	}
+
+	int[] getInOffsets() {
+		return inOffsets;
+	}
+
+	int[] getInSources() {
+		return inSources;
+	}
+
+	double[] getInCoefficients() {
+		return inCoefficients;
+	}
+
+	@Override
+	public String toString() {
+		return "FlowGraph [historyIndex=" + historyIndex + ", nodeCount="
+				+ ids.length + ", edgeCount=" + inSources.length
+				+ ", sourceId=" + ids[sourceIndex] + "]";
+	}
+}
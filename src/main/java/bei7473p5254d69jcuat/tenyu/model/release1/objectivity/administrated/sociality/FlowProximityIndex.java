@@ -0,0 +1,472 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.model.promise.reference.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
+import glb.util.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * ある社会性を起点とした相互評価フローネットワーク上の近さのキャッシュ。
+ * 起点と最大次数毎に、起点から流れ出たフローが各社会性に何次で届き、
+ * 合計でどれだけ届いたかを保持する。
+ *
+ * フローの流れ方は{@link FlowEngine}と同じで、起点の代わりに任意の社会性からフローを出す。
+ * 起点から出たフローを1とし、一次フローはエッジの係数に従い、
+ * 二次以降は{@link FlowEngine#passRate}を掛けられて流れる。
+ * 起点から届く範囲だけを辿るので、計算量は全体の社会性数に依存しない。
+ *
+ * 社会性が書き込まれると、その社会性に届いている、あるいはその社会性へのエッジが
+ * 除外されていた項目だけが無効化され、次に参照された時に計算し直される。
+ * エッジの変更は出元の社会性の書き込みを伴うので、これで全ての変更を捉えられる。
+ * 届いていない社会性の変更は、そこまでフローが届かないので結果に影響しない。
+ *
+ * 無効化は書き込みトランザクションのコミット時に行われ、
+ * 無効化より前のスナップショットから計算された結果は登録されない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public strictfp class FlowProximityIndex {
+	/**
+	 * キャッシュする最大件数
+	 */
+	private static final int entriesMax = 256;
+
+	/**
+	 * 1回の計算で辿る最大の社会性数
+	 */
+	private static final int reachMax = 1000 * 1000;
+
+	/**
+	 * 起点と最大次数 : 到達範囲。アクセス順のLRU
+	 */
+	private final LinkedHashMap<Key, Reach> entries = new LinkedHashMap<>(16,
+			0.75f, true);
+
+	/**
+	 * 最後に無効化を行ったトランザクションのHighAddress
+	 */
+	private long invalidatedAddress = -1;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	/**
+	 * @param txn	読み込みトランザクション
+	 * @param startSocialityId	起点
+	 * @param orderMax	辿る最大次数
+	 * @return	到達範囲。起点が無いかBANされていればnull
+	 */
+	public Reach get(Transaction txn, Long startSocialityId, int orderMax) {
+		if (startSocialityId == null || orderMax < 0)
+			return null;
+		Key key = new Key(startSocialityId,
+				Math.min(orderMax, FlowEngine.orderMax));
+		synchronized (this) {
+			Reach r = entries.get(key);
+			if (r != null) {
+				hitCount.incrementAndGet();
+				return r;
+			}
+		}
+		missCount.incrementAndGet();
+
+		long address = txn.getHighAddress();
+		Reach r = compute(new SocialityStore(txn), key);
+		if (r == null)
+			return null;
+		synchronized (this) {
+			//無効化より前のスナップショットから計算されたかもしれない
+			if (address > invalidatedAddress) {
+				entries.put(key, r);
+				Iterator<Reach> it = entries.values().iterator();
+				while (entries.size() > entriesMax && it.hasNext()) {
+					it.next();
+					it.remove();
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * 社会性の書き込みがコミットされた時に呼ばれる
+	 *
+	 * @param address	書き込みトランザクションのHighAddress
+	 * @param socialityId	書き込まれた社会性
+	 */
+	public synchronized void invalidate(long address, Long socialityId) {
+		if (address > invalidatedAddress)
+			invalidatedAddress = address;
+		if (socialityId == null)
+			return;
+		Iterator<Reach> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isAffectedBy(socialityId)) {
+				it.remove();
+				invalidationCount.incrementAndGet();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	/**
+	 * 辿っている途中の社会性
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Node {
+		private final StoreName nodeType;
+		private final long objectId;
+		/**
+		 * 有効なエッジの行き先と係数。必要になるまで読まない
+		 */
+		private long[] destIds;
+		private double[] coefficients;
+
+		private double flow = 0;
+		private int order;
+
+		private Node(Sociality so, int order) {
+			TenyuReferenceModelI<?> ref = so.getIndividualityObjectConcreteRef();
+			nodeType = ref == null ? null : ref.getStoreName();
+			objectId = ref == null || ref.getId() == null ? -1 : ref.getId();
+			this.order = order;
+		}
+	}
+
+	/**
+	 * 起点から次数毎にフローを流す
+	 */
+	private Reach compute(SocialityStore s, Key key) {
+		Sociality start = s.get(key.startSocialityId);
+		if (start == null || start.isBanned())
+			return null;
+
+		Map<Long, Node> nodes = new HashMap<>();
+		//存在しないかBANされているため除外された行き先
+		SortedIdSet.Builder excluded = new SortedIdSet.Builder();
+		Node startNode = new Node(start, 0);
+		startNode.flow = 1.0;
+		nodes.put(key.startSocialityId, startNode);
+
+		Map<Long, Double> current = new HashMap<>();
+		current.put(key.startSocialityId, 1.0);
+		Map<Long, Sociality> loaded = new HashMap<>();
+		loaded.put(key.startSocialityId, start);
+
+		for (int order = 1; order <= key.orderMax
+				&& current.size() > 0; order++) {
+			double rate = order == 1 ? 1.0 : FlowEngine.passRate;
+			Map<Long, Double> next = new HashMap<>();
+			//加算順を固定するため社会性ID昇順に流す
+			long[] froms = new long[current.size()];
+			int n = 0;
+			for (Long id : current.keySet())
+				froms[n++] = id;
+			Arrays.sort(froms);
+			for (long from : froms) {
+				Node fromNode = nodes.get(from);
+				if (fromNode.destIds == null)
+					loadEdges(s, from, fromNode, loaded, excluded);
+				double f = current.get(from) * rate;
+				for (int i = 0; i < fromNode.destIds.length; i++) {
+					next.merge(fromNode.destIds[i],
+							f * fromNode.coefficients[i], Double::sum);
+				}
+			}
+
+			double total = 0;
+			Map<Long, Double> nextKept = new HashMap<>();
+			for (Map.Entry<Long, Double> e : next.entrySet()) {
+				Long dest = e.getKey();
+				double f = e.getValue();
+				Node destNode = nodes.get(dest);
+				if (destNode == null) {
+					if (nodes.size() >= reachMax)
+						continue;
+					destNode = new Node(loaded.get(dest), order);
+					nodes.put(dest, destNode);
+				}
+				destNode.flow += f;
+				total += f;
+				nextKept.put(dest, f);
+			}
+			current = nextKept;
+			if (total < FlowEngine.epsilon)
+				break;
+		}
+
+		return new Reach(key, nodes, excluded.build());
+	}
+
+	/**
+	 * 出元のエッジを読み、行き先が存在してBANされていないものだけを係数にする。
+	 * 読んだ行き先はloadedに入れられ、{@link Node}の作成に使われる
+	 */
+	private void loadEdges(SocialityStore s, long from, Node fromNode,
+			Map<Long, Sociality> loaded, SortedIdSet.Builder excluded) {
+		Sociality so = loaded.get(from);
+		List<Long> dests = new ArrayList<>();
+		List<Integer> weights = new ArrayList<>();
+		if (so != null && so.getEdgeManager() != null) {
+			Set<Long> black = so.getBlackList();
+			so.forEachEdge(s.getDbUtil().getTxn(), e -> {
+				Long dest = e.getDestSocialityId();
+				if (dest == null || e.getWeight() <= 0 || dest.equals(from))
+					return true;
+				if (black != null && black.contains(dest))
+					return true;
+				dests.add(dest);
+				weights.add(e.getWeight());
+				return true;
+			});
+		}
+
+		long sum = 0;
+		for (int i = 0; i < dests.size(); i++) {
+			Long dest = dests.get(i);
+			Sociality destSo = loaded.get(dest);
+			if (destSo == null && !loaded.containsKey(dest)) {
+				destSo = s.get(dest);
+				loaded.put(dest, destSo);
+			}
+			if (destSo == null || destSo.isBanned()) {
+				excluded.add(dest);
+				weights.set(i, 0);
+				continue;
+			}
+			sum += weights.get(i);
+		}
+
+		int valid = 0;
+		for (Integer w : weights) {
+			if (w > 0)
+				valid++;
+		}
+		fromNode.destIds = new long[valid];
+		fromNode.coefficients = new double[valid];
+		int j = 0;
+		for (int i = 0; i < dests.size(); i++) {
+			int w = weights.get(i);
+			if (w <= 0)
+				continue;
+			fromNode.destIds[j] = dests.get(i);
+			fromNode.coefficients[j] = (double) w / (double) sum;
+			j++;
+		}
+	}
+
+	/**
+	 * 起点と最大次数
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Key {
+		private final long startSocialityId;
+		private final int orderMax;
+
+		private Key(long startSocialityId, int orderMax) {
+			this.startSocialityId = startSocialityId;
+			this.orderMax = orderMax;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + orderMax;
+			result = prime * result
+					+ (int) (startSocialityId ^ (startSocialityId >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			if (orderMax != other.orderMax)
+				return false;
+			if (startSocialityId != other.startSocialityId)
+				return false;
+			return true;
+		}
+	}
+
+	/**
+	 * 起点から届いた範囲。不変
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	public static class Reach {
+		private final long startSocialityId;
+		private final int orderMax;
+
+		/**
+		 * 番号 : 社会性ID。昇順
+		 */
+		private final long[] ids;
+		/**
+		 * 番号 : 届いたフローの合計。起点は1に戻ってきたフローを加えたもの
+		 */
+		private final double[] flows;
+		/**
+		 * 番号 : 最初に届いた次数。起点は0
+		 */
+		private final int[] orders;
+		/**
+		 * 番号 : 社会性の種類
+		 */
+		private final StoreName[] nodeTypes;
+		/**
+		 * 番号 : 社会性の主体のID。無ければ-1
+		 */
+		private final long[] objectIds;
+
+		/**
+		 * 存在しないかBANされていたため除外された行き先
+		 */
+		private final SortedIdSet excluded;
+
+		private Reach(Key key, Map<Long, Node> nodes, SortedIdSet excluded) {
+			this.startSocialityId = key.startSocialityId;
+			this.orderMax = key.orderMax;
+			this.excluded = excluded;
+			int n = nodes.size();
+			ids = new long[n];
+			int i = 0;
+			for (Long id : nodes.keySet())
+				ids[i++] = id;
+			Arrays.sort(ids);
+			flows = new double[n];
+			orders = new int[n];
+			nodeTypes = new StoreName[n];
+			objectIds = new long[n];
+			for (i = 0; i < n; i++) {
+				Node node = nodes.get(ids[i]);
+				flows[i] = node.flow;
+				orders[i] = node.order;
+				nodeTypes[i] = node.nodeType;
+				objectIds[i] = node.objectId;
+			}
+		}
+
+		/**
+		 * @param socialityId	書き込まれた社会性
+		 * @return	その書き込みで結果が変わりうるか
+		 */
+		private boolean isAffectedBy(long socialityId) {
+			return socialityId == startSocialityId
+					|| Arrays.binarySearch(ids, socialityId) >= 0
+					|| excluded.contains(socialityId);
+		}
+
+		/**
+		 * @param socialityId
+		 * @param threshold	届いたフローの閾値
+		 * @return	最大次数以内に閾値以上のフローが届いたか
+		 */
+		public boolean isWithin(Long socialityId, double threshold) {
+			if (socialityId == null)
+				return false;
+			int i = Arrays.binarySearch(ids, socialityId);
+			return i >= 0 && flows[i] >= threshold;
+		}
+
+		/**
+		 * @param socialityId
+		 * @return	届いたフローの合計。届かなければ0
+		 */
+		public double getFlow(Long socialityId) {
+			if (socialityId == null)
+				return 0;
+			int i = Arrays.binarySearch(ids, socialityId);
+			return i < 0 ? 0 : flows[i];
+		}
+
+		/**
+		 * @param socialityId
+		 * @return	最初に届いた次数。届かなければ-1
+		 */
+		public int getOrder(Long socialityId) {
+			if (socialityId == null)
+				return -1;
+			int i = Arrays.binarySearch(ids, socialityId);
+			return i < 0 ? -1 : orders[i];
+		}
+
+		/**
+		 * @param modelName	社会性の主体のモデル名
+		 * @param threshold	届いたフローの閾値
+		 * @return	閾値以上のフローが届いた社会性のうち、その種類のものの主体のID
+		 */
+		public SortedIdSet getObjectIds(String modelName, double threshold) {
+			SortedIdSet.Builder b = new SortedIdSet.Builder();
+			for (int i = 0; i < ids.length; i++) {
+				if (flows[i] < threshold || objectIds[i] < 0
+						|| nodeTypes[i] == null)
+					continue;
+				if (modelName.equals(nodeTypes[i].getModelName()))
+					b.add(objectIds[i]);
+			}
+			return b.build();
+		}
+
+		public long getStartSocialityId() {
+			return startSocialityId;
+		}
+
+		public int getOrderMax() {
+			return orderMax;
+		}
+
+		public int size() {
+			return ids.length;
+		}
+
+		@Override
+		public String toString() {
+			return "Reach [startSocialityId=" + startSocialityId
+					+ ", orderMax=" + orderMax + ", size=" + ids.length + "]";
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FlowProximityIndex [count=" + getCount() + ", hitCount="
+				+ getHitCount() + ", missCount=" + getMissCount()
+				+ ", invalidationCount=" + getInvalidationCount() + "]";
+	}
+}
@@ -0,0 +1,134 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality;
+
+import java.nio.*;
+import java.util.*;
+
+import glb.*;
+
+/**
+ * あるスナップショットに対するフロー計算の結果。
+ * 各社会性への到達フローの合計を持つ。
+ *
+ * 同じスナップショットからは全ノードでビット単位で同じ結果が得られるので、
+ * {@link #getHash()}を比較する事で計算結果の一致を確認できる。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class FlowResult {
+	/**
+	 * スナップショットを作成した時点のヒストリーインデックス
+	 */
+	private final long historyIndex;
+
+	/**
+	 * 番号 : 社会性ID。昇順
+	 */
+	private final long[] ids;
+
+	/**
+	 * 番号 : 到達フローの合計。
+	 * 共同主体から出た一次フローの合計を{@link FlowComputationState#multiplier}とした値
+	 */
+	private final double[] flows;
+
+	/**
+	 * 次数 : その次数で流れたフローの合計。
+	 * 0番目は共同主体が出したフロー
+	 */
+	private final double[] totalByOrder;
+
+	private final int edgeCount;
+
+	private final byte[] hash;
+
+	public FlowResult(FlowGraph g, double[] flows, double[] totalByOrder) {
+		this.historyIndex = g.getHistoryIndex();
+		this.ids = g.getIds();
+		this.flows = flows;
+		this.totalByOrder = totalByOrder;
+		this.edgeCount = g.getEdgeCount();
+		this.hash = createHash();
+	}
+
+	/**
+	 * 社会性IDと到達フローのビット表現からハッシュ値を作る
+	 */
+	private byte[] createHash() {
+		ByteBuffer buf = ByteBuffer
+				.allocate(Long.BYTES * (1 + ids.length * 2));
+		buf.putLong(historyIndex);
+		for (int i = 0; i < ids.length; i++) {
+			buf.putLong(ids[i]);
+			buf.putLong(Double.doubleToLongBits(flows[i]));
+		}
+		return Glb.getUtil().hashSecure(buf.array());
+	}
+
+	/**
+	 * @param socialityId
+	 * @return	その社会性への到達フロー。計算対象外なら0
+	 */
+	public double getFlow(Long socialityId) {
+		if (socialityId == null)
+			return 0;
+		int i = Arrays.binarySearch(ids, socialityId);
+		if (i < 0)
+			return 0;
+		return flows[i];
+	}
+
+	/**
+	 * @return	共同主体が出したフローに対するその社会性への到達フローの割合
+	 */
+	public double getFlowRate(Long socialityId) {
+		return getFlow(socialityId) / FlowComputationState.multiplier;
+	}
+
+	/**
+	 * @return	計算された最大の社会性ID。社会性が無ければnull
+	 */
+	public Long getLastSocialityId() {
+		if (ids.length == 0)
+			return null;
+		return ids[ids.length - 1];
+	}
+
+	public long getHistoryIndex() {
+		return historyIndex;
+	}
+
+	public int getNodeCount() {
+		return ids.length;
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * @return	計算された次数
+	 */
+	public int getOrder() {
+		return totalByOrder.length - 1;
+	}
+
+	/**
+	 * @param order	次数
+	 * @return	その次数で流れたフローの合計
+	 */
+	public double getTotalByOrder(int order) {
+		return totalByOrder[order];
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "FlowResult [historyIndex=" + historyIndex + ", nodeCount="
+				+ ids.length + ", edgeCount=" + edgeCount + ", order="
+				+ getOrder() + "]";
+	}
+}
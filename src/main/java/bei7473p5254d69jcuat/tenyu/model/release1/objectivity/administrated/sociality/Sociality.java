@@ -1,6 +1,7 @@
 package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality;
 
 import java.util.*;
+import java.util.function.*;
 
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
@@ -75,6 +76,9 @@ public class Sociality extends AdministratedObject
 	/**
 	 * このオブジェクトからのエッジ
 	 * SocialityId : Edge
+	 *
+	 * 新しく作成される社会性やDBから読み出された社会性は{@link ExternalEdgeManager}を持ち、
+	 * エッジ自体は{@link SocialityEdgeStore}にある。
 	 */
 	protected EdgeManager edgeManager = new EdgeManager();
 
@@ -110,7 +114,7 @@ public class Sociality extends AdministratedObject
 	 * @param historyIndex
 	 */
 	public Sociality(long historyIndex) {
-		edgeManager = new EdgeManager(historyIndex);
+		edgeManager = new ExternalEdgeManager(historyIndex);
 		createHistoryIndex = historyIndex;
 	}
 
@@ -241,6 +245,54 @@ public class Sociality extends AdministratedObject
 		return edgeManager;
 	}
 
+	/**
+	 * 埋め込み形式のエッジ管理を外部化されたものにする。
+	 * 旧エッジは次に書き込まれる時に{@link SocialityEdgeStore}に移される
+	 *
+	 * @return	外部化されたエッジ管理
+	 */
+	public ExternalEdgeManager chainversionupEdgeManager() {
+		if (edgeManager != null
+				&& !(edgeManager instanceof ExternalEdgeManager))
+			edgeManager = new ExternalEdgeManager(edgeManager);
+		return (ExternalEdgeManager) edgeManager;
+	}
+
+	/**
+	 * 新規作成または既存のエッジの重みを修正する。
+	 * エッジはすぐにストアに書き込まれるが、
+	 * この社会性も同じトランザクションで更新される必要がある
+	 *
+	 * @param txn	書き込みトランザクション
+	 * @param add	増分を表現したEdge
+	 * @param historyIndex	更新された時のhistoryIndex
+	 * @return	成功すればtrue。少しも更新が生じ無かった場合false
+	 * @throws Exception
+	 */
+	public boolean addEdge(Transaction txn, Edge add, long historyIndex)
+			throws Exception {
+		return chainversionupEdgeManager().add(txn, getId(), add,
+				historyIndex);
+	}
+
+	/**
+	 * @param txn
+	 * @param destSocialityId	行き先
+	 * @return	この社会性からのエッジ。無ければnull
+	 */
+	public Edge getEdge(Transaction txn, Long destSocialityId) {
+		return edgeManager.getEdge(txn, getId(), destSocialityId);
+	}
+
+	/**
+	 * この社会性からのエッジを走査する
+	 * @param txn
+	 * @param f		エッジを受け取る。falseを返したら終了
+	 */
+	public void forEachEdge(Transaction txn, Function<Edge, Boolean> f) {
+		edgeManager.forEach(txn, getId(), f);
+	}
+
 	public double getFlowFromCooperativeAccount() {
 		return flowFromCooperativeAccount;
 	}
@@ -449,7 +501,7 @@ public class Sociality extends AdministratedObject
 			r.add(Lang.SOCIALITY_EDGES, Lang.ERROR_EMPTY);
 			b = false;
 		} else {
-			int edgeCount = edgeManager.getEdges().size();
+			int edgeCount = edgeManager.getEdgeCount();
 			int edgeMax = getEdgeCountMaxByNodeType(sn);
 			if (edgeCount > edgeMax) {
 				r.add(Lang.SOCIALITY_EDGES, Lang.ERROR_TOO_MANY,
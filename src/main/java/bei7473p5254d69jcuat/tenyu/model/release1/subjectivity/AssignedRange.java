@@ -61,13 +61,16 @@ public class AssignedRange {
 	 */
 	public void descent(boolean bit) {
 		bits.expand(bit);
+		P2PNode.keyModified();
 	}
 
 	/**
 	 * 分担範囲を2倍にする
 	 */
 	public boolean ascent() {
-		return bits.contract();
+		boolean r = bits.contract();
+		P2PNode.keyModified();
+		return r;
 	}
 
 	/**
@@ -111,6 +114,7 @@ public class AssignedRange {
 
 	public void setBits(Bits bits) {
 		this.bits = bits;
+		P2PNode.keyModified();
 	}
 
 	/**
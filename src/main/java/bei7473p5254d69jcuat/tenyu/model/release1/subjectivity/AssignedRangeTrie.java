@@ -0,0 +1,94 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.subjectivity;
+
+import java.util.*;
+
+import glb.*;
+import glb.util.*;
+
+/**
+ * 分担範囲のビット列による二分木。
+ * {@link AssignedRange}の説明にある二分木をそのまま実装したもので、
+ * 各値はその分担範囲のビット列が示す節に置かれる。
+ *
+ * あるハッシュ値を担当する分担範囲はそのハッシュ値の接頭辞なので、
+ * ルートからハッシュ値のビットに沿って降りていく経路上の節に置かれた値が全てである。
+ * そのため全分担範囲を走査せずに、最長の分担範囲のビット数に比例する計算量で求まる。
+ *
+ * スレッドセーフではない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ * @param <V>	値
+ */
+public class AssignedRangeTrie<V> {
+	/**
+	 * 二分木の節
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class TrieNode<V> {
+		/**
+		 * 0 : ビットが0の子、1 : ビットが1の子
+		 */
+		@SuppressWarnings("unchecked")
+		private final TrieNode<V>[] children = new TrieNode[2];
+		/**
+		 * この節を分担範囲とする値
+		 */
+		private List<V> values = null;
+	}
+
+	private final TrieNode<V> root = new TrieNode<>();
+
+	private int size = 0;
+
+	/**
+	 * @param range	分担範囲。nullなら全範囲
+	 * @param value
+	 */
+	public void put(AssignedRange range, V value) {
+		Bits bits = range == null ? null : range.getBits();
+		TrieNode<V> n = root;
+		if (bits != null) {
+			for (int i = 0; i <= bits.getLastBitIndex(); i++) {
+				int bit = bits.isStand(i) ? 1 : 0;
+				if (n.children[bit] == null)
+					n.children[bit] = new TrieNode<>();
+				n = n.children[bit];
+			}
+		}
+		if (n.values == null)
+			n.values = new ArrayList<>(1);
+		n.values.add(value);
+		size++;
+	}
+
+	/**
+	 * @param hash
+	 * @return	hashを担当する分担範囲を持つ値。浅い節の値ほど前にある
+	 */
+	public List<V> getSupporting(byte[] hash) {
+		List<V> r = new ArrayList<>();
+		TrieNode<V> n = root;
+		if (n.values != null)
+			r.addAll(n.values);
+		//空のハッシュ値は全範囲の分担範囲のみが担当する
+		if (hash == null || hash.length == 0)
+			return r;
+		BitUtil u = Glb.getBitUtil();
+		int bitSize = hash.length * 8;
+		for (int i = 0; i < bitSize; i++) {
+			n = n.children[u.isStand(hash, i) ? 1 : 0];
+			if (n == null)
+				break;
+			if (n.values != null)
+				r.addAll(n.values);
+		}
+		return r;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,215 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.subjectivity;
+
+import java.util.*;
+
+import bei7473p5254d69jcuat.tenyu.model.release1.subjectivity.P2PNode.*;
+import glb.util.Util.*;
+
+/**
+ * 近傍リストの索引。
+ * P2PノードID、アドレス+ポート、分担範囲で近傍を検索できる。
+ * またレイテンシ昇順に並べられた近傍一覧を持つ。
+ *
+ * 索引は読み取り専用のスナップショットで、検索はロック無しで行われる。
+ * 近傍リストの変更や{@link P2PNode}の識別情報の変更、
+ * {@link P2PEdge}のレイテンシの変更があると古くなり、
+ * 次の検索時に作り直される（コピーオンライト）。
+ * 近傍の変更は検索に比べて稀なので、作り直しの費用は償却される。
+ *
+ * 変更の検出は近傍リストの変更回数と
+ * {@link P2PNode#getKeyVersion()}、{@link P2PEdge#getLatencyVersion()}による。
+ * 近傍リストの内部Mapを直接変更した場合、
+ * {@link ReadonlyNeighborList#neighborsModified()}を呼ぶ必要がある。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class NeighborIndex {
+	/**
+	 * アドレス+ポート
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class AddrKey {
+		private final ByteArrayWrapper addr;
+		private final int p2pPort;
+
+		public AddrKey(byte[] addr, int p2pPort) {
+			this.addr = addr == null ? null : new ByteArrayWrapper(addr);
+			this.p2pPort = p2pPort;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			AddrKey other = (AddrKey) obj;
+			if (addr == null) {
+				if (other.addr != null)
+					return false;
+			} else if (!addr.equals(other.addr))
+				return false;
+			if (p2pPort != other.p2pPort)
+				return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + ((addr == null) ? 0 : addr.hashCode());
+			result = prime * result + p2pPort;
+			return result;
+		}
+	}
+
+	/**
+	 * ある時点の近傍リストから作られた索引
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Snapshot {
+		private final Map<Long, P2PEdge> source;
+		private final long modCount;
+		private final long keyVersion;
+
+		private final Map<NodeIdentifierP2PEdge, P2PEdge> byP2PNodeId = new HashMap<>();
+		private final Map<AddrKey, P2PEdge> byAddr = new HashMap<>();
+		private final AssignedRangeTrie<P2PEdge> byRange = new AssignedRangeTrie<>();
+
+		private Snapshot(Map<Long, P2PEdge> source, long modCount,
+				long keyVersion) {
+			this.source = source;
+			this.modCount = modCount;
+			this.keyVersion = keyVersion;
+			for (P2PEdge e : source.values()) {
+				P2PNode n = e.getNode();
+				if (n == null)
+					continue;
+				//同じキーの近傍が複数あれば従来の線形探索と同様にどれか1つを返す
+				if (n.getPubKey() != null)
+					byP2PNodeId.putIfAbsent(n.getP2PNodeId(), e);
+				try {
+					byAddr.putIfAbsent(new AddrKey(n.getAddr(), n.getP2pPort()),
+							e);
+				} catch (IllegalStateException ex) {
+					//アドレス情報が無い
+				}
+				if (n.getRange() != null)
+					byRange.put(n.getRange(), e);
+			}
+		}
+
+		private boolean isFresh(Map<Long, P2PEdge> neighbors, long modCount) {
+			return source == neighbors && this.modCount == modCount
+					&& keyVersion == P2PNode.getKeyVersion();
+		}
+	}
+
+	/**
+	 * ある時点のレイテンシ昇順の近傍一覧
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class LatencyView {
+		private final Map<Long, P2PEdge> source;
+		private final long modCount;
+		private final long latencyVersion;
+		private final List<P2PEdge> sorted;
+
+		private LatencyView(Map<Long, P2PEdge> source, long modCount,
+				long latencyVersion) {
+			this.source = source;
+			this.modCount = modCount;
+			this.latencyVersion = latencyVersion;
+			List<P2PEdge> l = new ArrayList<>(source.values());
+			Collections.sort(l, Comparator.comparing(P2PEdge::getLatency));
+			sorted = Collections.unmodifiableList(l);
+		}
+
+		private boolean isFresh(Map<Long, P2PEdge> neighbors, long modCount) {
+			return source == neighbors && this.modCount == modCount
+					&& latencyVersion == P2PEdge.getLatencyVersion();
+		}
+	}
+
+	private volatile Snapshot snapshot = null;
+	private volatile LatencyView latencyView = null;
+
+	/**
+	 * 変更回数やバージョンは索引の作成前に読む。
+	 * 作成中に変更されても、次の検索で古いと判定され作り直される。
+	 */
+	private Snapshot getSnapshot(Map<Long, P2PEdge> neighbors,
+			long modCount) {
+		Snapshot s = snapshot;
+		if (s != null && s.isFresh(neighbors, modCount))
+			return s;
+		synchronized (this) {
+			s = snapshot;
+			if (s != null && s.isFresh(neighbors, modCount))
+				return s;
+			s = new Snapshot(neighbors, modCount, P2PNode.getKeyVersion());
+			snapshot = s;
+			return s;
+		}
+	}
+
+	/**
+	 * @param neighbors	近傍リストの内部Map
+	 * @param modCount	近傍リストの変更回数
+	 * @return	レイテンシ昇順の近傍一覧。変更不可
+	 */
+	public List<P2PEdge> getLowLatency(Map<Long, P2PEdge> neighbors,
+			long modCount) {
+		LatencyView v = latencyView;
+		if (v != null && v.isFresh(neighbors, modCount))
+			return v.sorted;
+		synchronized (this) {
+			v = latencyView;
+			if (v != null && v.isFresh(neighbors, modCount))
+				return v.sorted;
+			v = new LatencyView(neighbors, modCount,
+					P2PEdge.getLatencyVersion());
+			latencyView = v;
+			return v.sorted;
+		}
+	}
+
+	public P2PEdge getByP2PNodeId(Map<Long, P2PEdge> neighbors, long modCount,
+			NodeIdentifierP2PEdge p2pNodeId) {
+		if (p2pNodeId == null)
+			return null;
+		return getSnapshot(neighbors, modCount).byP2PNodeId.get(p2pNodeId);
+	}
+
+	public P2PEdge getByAddr(Map<Long, P2PEdge> neighbors, long modCount,
+			byte[] addr, int p2pPort) {
+		return getSnapshot(neighbors, modCount).byAddr
+				.get(new AddrKey(addr, p2pPort));
+	}
+
+	/**
+	 * @return	hashを担当する分担範囲を持つ近傍一覧
+	 */
+	public List<P2PEdge> getByHash(Map<Long, P2PEdge> neighbors,
+			long modCount, byte[] hash) {
+		return getSnapshot(neighbors, modCount).byRange.getSupporting(hash);
+	}
+
+	/**
+	 * 索引を破棄する
+	 */
+	public void clear() {
+		snapshot = null;
+		latencyView = null;
+	}
+}
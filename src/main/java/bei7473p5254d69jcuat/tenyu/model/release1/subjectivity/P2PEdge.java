@@ -4,6 +4,7 @@ import java.time.*;
 import java.time.format.*;
 import java.util.*;
 import java.util.Map.*;
+import java.util.concurrent.atomic.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.*;
@@ -233,6 +234,16 @@ public class P2PEdge extends P2PEdgeBase {
 	 */
 	protected long latency = P2P.getInitlatency();
 
+	/**
+	 * いずれかのエッジのレイテンシが更新される度に増える。
+	 * {@link NeighborIndex}がレイテンシ順の一覧が古くなった事を検出するために使う
+	 */
+	private static final AtomicLong latencyVersion = new AtomicLong();
+
+	public static long getLatencyVersion() {
+		return latencyVersion.get();
+	}
+
 	/**
 	 * このノードが自分に伝えた自分のグローバルアドレス
 	 */
@@ -446,6 +457,7 @@ public class P2PEdge extends P2PEdgeBase {
 
 	public void setLatency(long latency) {
 		this.latency = latency;
+		latencyVersion.incrementAndGet();
 	}
 
 	public void setMyGlobalAddr(byte[] myGlobalAddr) {
@@ -4,6 +4,7 @@ import java.net.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import com.maxmind.geoip2.model.*;
 
@@ -17,6 +18,25 @@ import glb.util.Util.*;
 import jetbrains.exodus.env.*;
 
 public class P2PNode implements ValidatableI {
+	/**
+	 * いずれかのノードの識別情報（公開鍵、ノード番号、アドレス、分担範囲等）が
+	 * 変更される度に増える。
+	 * {@link NeighborIndex}が索引が古くなった事を検出するために使う。
+	 * 近傍リストに無いノードの変更でも増えるが、索引が余分に作り直されるだけである。
+	 */
+	private static final AtomicLong keyVersion = new AtomicLong();
+
+	public static long getKeyVersion() {
+		return keyVersion.get();
+	}
+
+	/**
+	 * 識別情報が変更された事を記録する
+	 */
+	static void keyModified() {
+		keyVersion.incrementAndGet();
+	}
+
 	/**
 	 * {@link Subjectivity#getObservation()}が場合によってセットされる
 	 */
@@ -107,12 +127,14 @@ public class P2PNode implements ValidatableI {
 		if (addrInfo == null)
 			addrInfo = new AddrInfo();
 		addrInfo.setAddress(addr);
+		keyModified();
 	}
 
 	public void setP2pPort(int p2pPort) {
 		if (addrInfo == null)
 			addrInfo = new AddrInfo();
 		addrInfo.setP2pPort(p2pPort);
+		keyModified();
 	}
 
 	public void setFqdn(String fqdn) {
@@ -256,6 +278,7 @@ public class P2PNode implements ValidatableI {
 	public void setAddrInfo(AddrInfo addrInfo) {
 		this.addrInfo = addrInfo;
 		updateDiscriminated();
+		keyModified();
 	}
 
 	public void setAddrInfo(P2PNode n) {
@@ -272,22 +295,27 @@ public class P2PNode implements ValidatableI {
 
 	public void setNodeNumber(int nodeNumber) {
 		this.nodeNumber = nodeNumber;
+		keyModified();
 	}
 
 	public void setPubKey(byte[] pubKey) {
 		this.pubKey = new ByteArrayWrapper(pubKey);
+		keyModified();
 	}
 
 	public void setPubKey(ByteArrayWrapper pubKey) {
 		this.pubKey = pubKey;
+		keyModified();
 	}
 
 	public void setRange(AssignedRange range) {
 		this.range = range;
+		keyModified();
 	}
 
 	public void setType(KeyType type) {
 		this.type = type;
+		keyModified();
 	}
 
 	public void setVeteran(boolean veteran) {
@@ -332,8 +360,13 @@ public class P2PNode implements ValidatableI {
 	 * ホスト名から最新のアドレスを設定する
 	 */
 	public void updateAddrByFqdn() {
-		if (addrInfo != null)
-			addrInfo.updateAddrByFqdn();
+		if (addrInfo == null)
+			return;
+		byte[] old = addrInfo.getAddress();
+		addrInfo.updateAddrByFqdn();
+		//定期的に全近傍について呼ばれるので、変わった場合だけ記録する
+		if (!Arrays.equals(old, addrInfo.getAddress()))
+			keyModified();
 	}
 
 	public void updateDiscriminated() {
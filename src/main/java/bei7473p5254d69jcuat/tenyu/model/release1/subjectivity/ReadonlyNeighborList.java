@@ -4,6 +4,7 @@ import java.net.*;
 import java.util.*;
 import java.util.Map.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import bei7473p5254d69jcuat.tenyu.model.release1.middle.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.*;
@@ -31,6 +32,16 @@ public class ReadonlyNeighborList {
 	 */
 	protected volatile Map<Long, P2PEdge> neighbors;
 
+	/**
+	 * 近傍リストの変更回数。索引が古くなった事の検出に使う
+	 */
+	private final transient AtomicLong modCount = new AtomicLong();
+
+	/**
+	 * 近傍の索引。検索の度に全近傍を走査しないために使う
+	 */
+	private final transient NeighborIndex index = new NeighborIndex();
+
 	public ReadonlyNeighborList() {
 	}
 
@@ -46,6 +57,15 @@ public class ReadonlyNeighborList {
 		this.neighbors = neighbors;
 	}
 
+	/**
+	 * 近傍リストが変更された事を記録し、索引を古いものとする。
+	 * 子クラスの変更系メソッドは変更後に呼ぶ。
+	 * {@link #getNeighborsUnsafe()}等で内部のMapを直接変更した場合も呼ぶ必要がある。
+	 */
+	public void neighborsModified() {
+		modCount.incrementAndGet();
+	}
+
 	public List<P2PEdge> getNeighborsRecentlyConnected() {
 		List<P2PEdge> r = new ArrayList<>();
 		for (P2PEdge e : getNeighborsCopy()) {
@@ -198,31 +218,17 @@ public class ReadonlyNeighborList {
 		try {
 			User u = Glb.getObje()
 					.getUser(us -> us.get(identifier.getUserId()));
-			for (P2PEdge n : neighbors.values()) {
-				//ノードが設定している鍵タイプに応じて
-				//Userのどの鍵と比較するかを決める
-				byte[] userPub = null;
-				switch (n.getNode().getType()) {
-				case MOBILE:
-					userPub = u.getMobilePublicKey();
-					break;
-				case PC:
-					userPub = u.getPcPublicKey();
-					break;
-				case OFFLINE:
-					userPub = u.getOfflinePublicKey();
-					break;
-				default:
-				}
-				if (!Arrays.equals(userPub,
-						n.getNode().getPubKey().getByteArray())) {
-					continue;
-				}
-				if (n.getNode().getNodeNumber() != identifier.getNodeNumber()) {
-					continue;
-				}
-				return n;
-			}
+			//ノードが設定している鍵タイプに応じて
+			//Userのどの鍵と比較するかを決める
+			P2PEdge r = getNeighbor(u.getMobilePublicKey(),
+					identifier.getNodeNumber(), KeyType.MOBILE);
+			if (r == null)
+				r = getNeighbor(u.getPcPublicKey(), identifier.getNodeNumber(),
+						KeyType.PC);
+			if (r == null)
+				r = getNeighbor(u.getOfflinePublicKey(),
+						identifier.getNodeNumber(), KeyType.OFFLINE);
+			return r;
 		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 		}
@@ -230,26 +236,31 @@ public class ReadonlyNeighborList {
 
 	}
 
+	/**
+	 * @param userPub		ユーザーの公開鍵
+	 * @param nodeNumber
+	 * @param type			userPubの鍵タイプ
+	 * @return	userPubとnodeNumberで動作し、鍵タイプがtypeである近傍
+	 */
+	private P2PEdge getNeighbor(byte[] userPub, int nodeNumber, KeyType type) {
+		if (userPub == null)
+			return null;
+		P2PEdge r = getNeighbor(new NodeIdentifierP2PEdge(userPub, nodeNumber));
+		if (r == null || r.getNode().getType() != type)
+			return null;
+		return r;
+	}
+
 	public P2PEdge getNeighbor(byte[] p2pNodeId) {
 		return getNeighbor(new NodeIdentifierP2PEdge(p2pNodeId));
 	}
 
 	public P2PEdge getNeighbor(NodeIdentifierP2PEdge p2pNodeId) {
-		for (P2PEdge n : neighbors.values()) {
-			if (n.getNode().getPubKey() != null
-					&& n.getNode().getP2PNodeId().equals(p2pNodeId))
-				return n;
-		}
-		return null;
+		return index.getByP2PNodeId(neighbors, modCount.get(), p2pNodeId);
 	}
 
 	public P2PEdge getNeighbor(byte[] addr, int p2pPort) {
-		for (P2PEdge n : neighbors.values()) {
-			if (Arrays.equals(n.getNode().getAddr(), addr)
-					&& n.getNode().getP2pPort() == p2pPort)
-				return n;
-		}
-		return null;
+		return index.getByAddr(neighbors, modCount.get(), addr, p2pPort);
 	}
 
 	public P2PEdge getNeighbor(long edgeIdFromMe) {
@@ -260,11 +271,7 @@ public class ReadonlyNeighborList {
 	 * @return	最近接続したノードの中で最も低レイテンシなノード
 	 */
 	public P2PEdge getNeighborLowLatency() {
-		List<P2PEdge> l = getNeighborsCopy();
-
-		Collections.sort(l, Comparator.comparing(P2PEdge::getLatency));
-
-		for (P2PEdge n : l) {
+		for (P2PEdge n : index.getLowLatency(neighbors, modCount.get())) {
 			if (!n.isConnectedIn5Minute())
 				continue;
 			return n;
@@ -276,18 +283,19 @@ public class ReadonlyNeighborList {
 	 * @return	レイテンシ昇順の近傍一覧のコピー
 	 */
 	public List<P2PEdge> getNeighborsLowLatency() {
-		List<P2PEdge> l = getNeighborsCopy();
-		Collections.sort(l, Comparator.comparing(P2PEdge::getLatency));
-		return l;
+		return new ArrayList<>(index.getLowLatency(neighbors, modCount.get()));
 	}
 
 	/**
 	 * @return	レイテンシソートされた最近5分以内に接続があった近傍の一覧
 	 */
 	public List<P2PEdge> getNeighborsLowLatencySortConnectedIn5Minute() {
-		List<P2PEdge> l = getNeighborsRecentlyConnected();
-		Collections.sort(l, Comparator.comparing(P2PEdge::getLatency));
-		return l;
+		List<P2PEdge> r = new ArrayList<>();
+		for (P2PEdge e : index.getLowLatency(neighbors, modCount.get())) {
+			if (e.isConnectedIn5Minute())
+				r.add(e);
+		}
+		return r;
 	}
 
 	/**
@@ -349,18 +357,9 @@ public class ReadonlyNeighborList {
 	 */
 	public List<P2PEdge> getNeighborsByHashConnectedIn5Minute(byte[] hash,
 			boolean connectedRecentlyOnly) {
-		List<P2PEdge> r = new ArrayList<>();
-		for (P2PEdge e : getNeighborsCopy()) {
-			if (e.getNode() == null || e.getNode().getRange() == null) {
-				continue;
-			}
-			if (connectedRecentlyOnly && !e.isConnectedIn5Minute()) {
-				continue;
-			}
-			if (e.getNode().getRange().support(hash)) {
-				r.add(e);
-			}
-		}
+		List<P2PEdge> r = index.getByHash(neighbors, modCount.get(), hash);
+		if (connectedRecentlyOnly)
+			r.removeIf(e -> !e.isConnectedIn5Minute());
 		return r;
 	}
 
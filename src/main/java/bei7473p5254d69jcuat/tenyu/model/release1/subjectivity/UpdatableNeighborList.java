@@ -81,6 +81,7 @@ public class UpdatableNeighborList extends ReadonlyNeighborList {
 			add.setEdgeId(generateEdgeId());
 
 		neighbors.put(add.getEdgeId(), add);
+		neighborsModified();
 		add.setCreateDate(System.currentTimeMillis());
 		return add;
 	}
@@ -249,18 +250,18 @@ public class UpdatableNeighborList extends ReadonlyNeighborList {
 	 * 近傍を削除
 	 */
 	public boolean removeNeighbor(NodeIdentifierP2PEdge p2pNodeId) {
-		for (P2PEdge n : neighbors.values()) {
-			NodeIdentifierP2PEdge hereP2PNodeId = n.getNode().getP2PNodeId();
-			if (hereP2PNodeId != null && hereP2PNodeId.equals(p2pNodeId)) {
-				removeNeighbor(n.getEdgeId());
-				return true;
-			}
-		}
-		return false;
+		P2PEdge n = getNeighbor(p2pNodeId);
+		if (n == null)
+			return false;
+		removeNeighbor(n.getEdgeId());
+		return true;
 	}
 
 	public boolean removeNeighbor(long edgeId) {
-		return neighbors.remove(edgeId) != null;
+		boolean r = neighbors.remove(edgeId) != null;
+		if (r)
+			neighborsModified();
+		return r;
 	}
 
 	public void setNeighborMax(int neighborMax) {
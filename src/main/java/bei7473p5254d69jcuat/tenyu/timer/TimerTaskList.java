@@ -6,6 +6,7 @@ import org.quartz.*;
 
 import bei7473p5254d69jcuat.tenyu.communication.mutual.processorprovement.*;
 import bei7473p5254d69jcuat.tenyu.communication.mutual.right.*;
+import bei7473p5254d69jcuat.tenyu.timer.daily.*;
 import glb.*;
 import glb.Glb.*;
 
@@ -33,6 +34,7 @@ public class TimerTaskList implements GlbMemberDynamicState {
 		Glb.getP2p().addSeq(ObjectivityUpdateSequence.getJob());
 
 		//非通信系 timerパッケージのもの
+		Glb.getP2p().addSeq(VirtualCurrencyDistribution.getJob());
 	}
 
 	@Override
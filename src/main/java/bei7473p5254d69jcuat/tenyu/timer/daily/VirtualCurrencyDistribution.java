@@ -2,21 +2,41 @@ package bei7473p5254d69jcuat.tenyu.timer.daily;
 
 import org.quartz.*;
 
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.timer.*;
+import glb.*;
+
 /**
  * 仮想通貨分配
  *
+ * 分配量の根拠となる相互評価フローネットワークのフロー計算を行う。
+ * 計算結果は{@link Glb#getFlowEngine()}に保持される。
+ *
  * @author exceptiontenyu@gmail.com
  *
  */
 @DisallowConcurrentExecution
 public class VirtualCurrencyDistribution implements Job {
+	/**
+	 * 毎日3時30分
+	 */
+	public static String startSchedule = "0 30 3 * * ?";
+
+	public static TimerTaskList.JobAndTrigger getJob() {
+		return TimerTaskList.getJob(null, VirtualCurrencyDistribution.class,
+				startSchedule);
+	}
 
 	@Override
 	public void execute(JobExecutionContext context)
 			throws JobExecutionException {
-		// TODO 自動生成されたメソッド・スタブ
-
+		try {
+			FlowResult r = Glb.getFlowEngine().computeAndStore();
+			if (r == null)
+				Glb.debug("flow computation skipped. no cooperative account.");
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+		}
 	}
 
-
 }
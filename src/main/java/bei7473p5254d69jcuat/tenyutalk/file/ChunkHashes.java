@@ -0,0 +1,262 @@
+package bei7473p5254d69jcuat.tenyutalk.file;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import glb.*;
+
+/**
+ * ファイルを{@link WriteBits#unit}毎に区切った各チャンクのハッシュ値一覧。
+ * 1チャンクがwriteBitsの1ビットに対応する。
+ *
+ * 分散DLにおいて、ファイル全体の受信を待たずに受信した断片毎に検証するために使う。
+ * ファイル全体のハッシュ値だけでは、1つの近傍から壊れた断片を1つ受信しただけで
+ * どの部分が壊れているか分からず、ファイル全体をDLし直す事になる。
+ *
+ * 近傍から受け取った一覧は、ハッシュ値一覧をハッシュツリーにした根毎に数えて多数決で選ばれる。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class ChunkHashes {
+	/**
+	 * ファイルからチャンク毎のハッシュ値一覧を作成する
+	 * @param p			対象ファイル
+	 * @param fileHash	ファイル全体のハッシュ値
+	 * @param fileSize	ファイルサイズ
+	 * @return	作成されたハッシュ値一覧。失敗したらnull
+	 */
+	public static ChunkHashes create(Path p, byte[] fileHash, long fileSize) {
+		if (p == null || fileHash == null || fileSize < 0)
+			return null;
+		try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+			if (ch.size() < fileSize)
+				return null;
+			ChunkHashes r = new ChunkHashes();
+			r.setHash(fileHash);
+			ByteBuffer buf = ByteBuffer.allocate((int) WriteBits.unit);
+			int count = count(fileSize);
+			for (int i = 0; i < count; i++) {
+				byte[] h = hashChunk(ch, i, fileSize, buf);
+				if (h == null)
+					return null;
+				r.getHashes().add(h);
+			}
+			return r;
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param fileSize
+	 * @return	チャンク数。writeBitsのビット数と一致する
+	 */
+	public static int count(long fileSize) {
+		int r = (int) (fileSize / WriteBits.unit);
+		if (fileSize % WriteBits.unit > 0)
+			r++;
+		return r;
+	}
+
+	/**
+	 * @param index		チャンク番号
+	 * @param fileSize	ファイルサイズ
+	 * @return	そのチャンクのサイズ。最後のチャンクだけ{@link WriteBits#unit}より小さい場合がある
+	 */
+	public static long chunkSize(int index, long fileSize) {
+		long start = index * WriteBits.unit;
+		long end = Math.min(start + WriteBits.unit, fileSize);
+		return end - start;
+	}
+
+	/**
+	 * ファイルから1チャンクを読み込んでハッシュ値を計算する
+	 * @param ch		読み込み元
+	 * @param index		チャンク番号
+	 * @param fileSize	ファイルサイズ
+	 * @param buf		読み込みに使うバッファ。{@link WriteBits#unit}以上の容量が必要
+	 * @return	ハッシュ値。読み込めなかったらnull
+	 */
+	public static byte[] hashChunk(FileChannel ch, int index, long fileSize,
+			ByteBuffer buf) {
+		try {
+			long size = chunkSize(index, fileSize);
+			if (size <= 0)
+				return null;
+			long position = index * WriteBits.unit;
+			buf.clear();
+			buf.limit((int) size);
+			while (buf.hasRemaining()) {
+				int read = ch.read(buf, position + buf.position());
+				if (read < 0)
+					return null;
+			}
+			buf.flip();
+			return Glb.getUtil().hashSecureBuffer(buf);
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param hashes	チャンク毎のハッシュ値一覧
+	 * @return	ハッシュ値一覧を葉とする二分木の根。
+	 * 奇数個のレベルでは最後のハッシュ値がそのまま上位レベルに上がる
+	 */
+	public static byte[] root(List<byte[]> hashes) {
+		if (hashes == null || hashes.size() == 0)
+			return null;
+		List<byte[]> level = hashes;
+		while (level.size() > 1) {
+			List<byte[]> upper = new ArrayList<>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 < level.size()) {
+					upper.add(Glb.getUtil().hashSecure(level.get(i),
+							level.get(i + 1)));
+				} else {
+					upper.add(level.get(i));
+				}
+			}
+			level = upper;
+		}
+		return level.get(0);
+	}
+
+	public static ChunkHashes deserializeStatic(byte[] serialized) {
+		ChunkHashes r = new ChunkHashes();
+		r.deserialize(serialized);
+		return r;
+	}
+
+	/**
+	 * ファイル全体のハッシュ値
+	 */
+	private byte[] hash;
+
+	/**
+	 * チャンク毎のハッシュ値
+	 */
+	private List<byte[]> hashes = new ArrayList<>();
+
+	public void deserialize(byte[] serialized) {
+		ByteBuffer buf = ByteBuffer.wrap(serialized);
+		int count = buf.getInt();
+		int hashSize = Glb.getConst().getHashSize();
+		if (count < 0 || (long) hashSize * (count + 1) > buf.remaining())
+			throw new IllegalArgumentException("count=" + count);
+		hash = new byte[hashSize];
+		buf.get(hash);
+		hashes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] h = new byte[hashSize];
+			buf.get(h);
+			hashes.add(h);
+		}
+	}
+
+	public byte[] serialize() {
+		int hashSize = Glb.getConst().getHashSize();
+		ByteBuffer buf = ByteBuffer
+				.allocate(Integer.BYTES + hashSize * (hashes.size() + 1));
+		buf.putInt(hashes.size());
+		buf.put(hash);
+		for (byte[] h : hashes)
+			buf.put(h);
+		return buf.array();
+	}
+
+	/**
+	 * @return	ハッシュツリーの根
+	 */
+	public byte[] getRoot() {
+		return root(hashes);
+	}
+
+	/**
+	 * @param index		チャンク番号
+	 * @param chunkHash	受信したチャンクのハッシュ値
+	 * @return	受信したチャンクが正しいか
+	 */
+	public boolean verify(int index, byte[] chunkHash) {
+		if (index < 0 || index >= hashes.size() || chunkHash == null)
+			return false;
+		return Arrays.equals(hashes.get(index), chunkHash);
+	}
+
+	/**
+	 * @param count	期待されるチャンク数
+	 * @return	形式的に正しいか
+	 */
+	public boolean validate(int count) {
+		int hashSize = Glb.getConst().getHashSize();
+		if (hash == null || hash.length != hashSize || hashes == null
+				|| hashes.size() != count)
+			return false;
+		for (byte[] h : hashes)
+			if (h == null || h.length != hashSize)
+				return false;
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ChunkHashes other = (ChunkHashes) obj;
+		if (!Arrays.equals(hash, other.hash))
+			return false;
+		if (hashes == null) {
+			if (other.hashes != null)
+				return false;
+		} else {
+			if (other.hashes == null || hashes.size() != other.hashes.size())
+				return false;
+			for (int i = 0; i < hashes.size(); i++)
+				if (!Arrays.equals(hashes.get(i), other.hashes.get(i)))
+					return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + Arrays.hashCode(hash);
+		if (hashes != null)
+			for (byte[] h : hashes)
+				result = prime * result + Arrays.hashCode(h);
+		return result;
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+	public List<byte[]> getHashes() {
+		return hashes;
+	}
+
+	public void setHash(byte[] hash) {
+		this.hash = hash;
+	}
+
+	public void setHashes(List<byte[]> hashes) {
+		this.hashes = hashes;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkHashes [count=" + (hashes == null ? 0 : hashes.size())
+				+ "]";
+	}
+}
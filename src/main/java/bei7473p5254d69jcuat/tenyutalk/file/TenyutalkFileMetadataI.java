@@ -46,13 +46,100 @@ public interface TenyutalkFileMetadataI extends FileMetadataI, ValidatableI {
 	}
 
 	/**
-	 * writeBitsとファイルを削除する。
+	 * writeBitsとチャンクハッシュ一覧とファイルを削除する。
 	 * @return	いずれかが削除されたか
 	 */
 	default boolean delete() {
 		boolean f = Glb.getFile().remove(getRelativePath());
 		boolean wri = deleteWriteBits();
-		return f || wri;
+		boolean chunk = deleteChunkHashes();
+		return f || wri || chunk;
+	}
+
+	/**
+	 * メタデータはチャンクハッシュ一覧の根を持たないので、形式的な検証のみ行われる
+	 *
+	 * @param chunkHashes
+	 * @return	chunkHashesはこのファイルのものとして正しいか
+	 */
+	default boolean validateChunkHashes(ChunkHashes chunkHashes) {
+		if (chunkHashes == null
+				|| !chunkHashes.validate(getWriteBitsCount())) {
+			return false;
+		}
+		if (!Arrays.equals(getFileHash(), chunkHashes.getHash())) {
+			return false;
+		}
+		return true;
+	}
+
+	default Path getChunkHashesPath() {
+		String p = getRelativePathStr() + Glb.getFile().getChunkHashesSuffix();
+		if (!Glb.getFile().isAppPathRelative(p) || !Glb.getUtil()
+				.validatePath(p, ChunkedDataConcatFile.fileNameLenMax)) {
+			return null;
+		}
+		return Paths.get(p);
+	}
+
+	/**
+	 * @return	ファイルシステムから読み込まれた正しいチャンクハッシュ一覧。無ければnull
+	 */
+	default ChunkHashes loadChunkHashes() {
+		try {
+			byte[] serialized = Files.readAllBytes(getChunkHashesPath());
+			ChunkHashes r = ChunkHashes.deserializeStatic(serialized);
+			if (!validateChunkHashes(r))
+				return null;
+			return r;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * ファイルシステムから読み込み、無ければ完成したファイルから作成する。
+	 * 作成されたものはファイルシステムに書き込まれる。
+	 * @return	このファイルのチャンクハッシュ一覧。
+	 * ファイルが未完成で作成できなかった場合null
+	 */
+	default ChunkHashes getChunkHashesAndInit() {
+		ChunkHashes r = loadChunkHashes();
+		if (r != null)
+			return r;
+		WriteBits wb = loadWriteBits();
+		if (wb != null && !wb.getBits().isFilledOne())
+			return null;
+		if (!validateFile())
+			return null;
+		r = ChunkHashes.create(getRelativePath(), getFileHash(),
+				getFileSize());
+		if (!validateChunkHashes(r))
+			return null;
+		writeChunkHashes(r);
+		return r;
+	}
+
+	default boolean writeChunkHashes(ChunkHashes chunkHashes) {
+		Path p = getChunkHashesPath();
+		return Glb.getFile().create(p, chunkHashes.serialize(), true);
+	}
+
+	default boolean deleteChunkHashes() {
+		return Glb.getFile().remove(getChunkHashesPath());
+	}
+
+	/**
+	 * ファイル全体のハッシュ値を計算せずに、DL途中である事を判定する。
+	 * @return	最新のwriteBitsがあり、未DLの部分が残っているか
+	 */
+	default boolean isDownloading() {
+		try {
+			WriteBits wb = loadWriteBits();
+			return validateWriteBits(wb) && !wb.getBits().isFilledOne();
+		} catch (Exception e) {
+			return false;
+		}
 	}
 
 	TenyutalkFileMetadataI clone();
@@ -456,6 +456,10 @@ public class FileManagement {
 		return ".writeBits";
 	}
 
+	public String getChunkHashesSuffix() {
+		return ".chunkHashes";
+	}
+
 	public boolean isAppPathAbsolute(String absolutePath) {
 		int index = absolutePath.toUpperCase()
 				.indexOf(Glb.getConst().getAppName().toUpperCase());
@@ -32,11 +32,14 @@ import bei7473p5254d69jcuat.tenyu.communication.request.HasUserMessageList.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetCore.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetHashArray.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetHashArrays.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetIntegrity.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetObj.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetObjRange.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetRecycleHidList.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetUpdatedIDList.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetUserMessageList.*;
+import bei7473p5254d69jcuat.tenyu.communication.request.catchup.GetUserMessageListChunks.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.gui.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.gui.GuiCausedSimpleMessageGui.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.gui.right.*;
@@ -49,7 +52,9 @@ import bei7473p5254d69jcuat.tenyu.communication.request.subjectivity.GetAddresse
 import bei7473p5254d69jcuat.tenyu.communication.request.subjectivity.PeriodicNotification.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.subjectivity.Recognition.*;
 import bei7473p5254d69jcuat.tenyu.communication.request.useredge.*;
+import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.*;
+import bei7473p5254d69jcuat.tenyu.db.store.administrated.sociality.*;
 import bei7473p5254d69jcuat.tenyu.db.store.satellite.*;
 import bei7473p5254d69jcuat.tenyu.db.store.satellite.HashStore.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.*;
@@ -285,6 +290,10 @@ public class Glb {
 	 * P2P通信における重複チェックなどある種の防御機能
 	 */
 	private static P2PDefense p2pdefense;
+	/**
+	 * 署名検証の共通処理
+	 */
+	private static SignatureVerifier signatureVerifier;
 	/**
 	 * 同PC上の他のプロセスとの通信
 	 */
@@ -311,6 +320,14 @@ public class Glb {
 	 * 相互評価フローネットワークのフロー計算
 	 */
 	private static FlowComputationState flow;
+	/**
+	 * 相互評価フローネットワークのフロー計算の実行と最新の結果
+	 */
+	private static FlowEngine flowEngine;
+	/**
+	 * 相互評価フローネットワーク上の近さのキャッシュ
+	 */
+	private static FlowProximityIndex flowProximityIndex;
 
 	//制御フラグ。getter,setterはpackage-private
 	private static Boolean isCpuProvementTime;
@@ -335,6 +352,11 @@ public class Glb {
 	 */
 	private static ExecutorService executorSlow;
 
+	/**
+	 * 計算負荷の高い並列処理用
+	 */
+	private static ComputeExecutor computeExecutor;
+
 	/**
 	 * 定期処理用
 	 * 処理をして一定時間待ちまた処理をする。
@@ -362,6 +384,11 @@ public class Glb {
 	 * Tenyutalk永続化専用Kryo
 	 */
 	private static ThreadLocal<Kryo> kryoForTenyutalk;
+	/**
+	 * 同調処理で他ノードから受け取った永続化形式のバイト列を読むKryo。
+	 * 永続化専用Kryoと同じ形式を読めるが、読み出すクラスが限定される
+	 */
+	private static ThreadLocal<Kryo> kryoForCatchUp;
 
 	/**
 	 * 定期処理一覧
@@ -554,6 +581,15 @@ public class Glb {
 
 		//		k.register(GroupLock.class);
 
+		//以下は後から追加されたクラス。
+		//クラスIDは登録順で決まるので、既存ノードとの互換性のため必ず末尾に追加する
+		k.register(GetHashArrays.class);
+		k.register(GetHashArraysResponse.class);
+		k.register(UserMessageListAnnounce.class);
+		k.register(GetUserMessageListChunks.class);
+		k.register(GetUserMessageListChunksResponse.class);
+		k.register(GetObjRange.class);
+		k.register(GetObjRangeResponse.class);
 	}
 
 	public static void kryoSetupForPersistence(Kryo k) {
@@ -691,6 +727,10 @@ public class Glb {
 			executorSlow = Executors.newFixedThreadPool(8);
 		if (executorPeriodic == null)
 			executorPeriodic = Executors.newScheduledThreadPool(8);
+		if (computeExecutor == null)
+			computeExecutor = new ComputeExecutor();
+		if (signatureVerifier == null)
+			signatureVerifier = new SignatureVerifier();
 
 		if (kryoForPersistence == null) {
 			kryoForPersistence = new ThreadLocal<Kryo>() {
@@ -716,6 +756,21 @@ public class Glb {
 			};
 		}
 
+		if (kryoForCatchUp == null) {
+			kryoForCatchUp = new ThreadLocal<Kryo>() {
+				protected Kryo initialValue() {
+					//永続化専用Kryoと同じ設定でなければ読めない
+					Kryo kryo = new Kryo(new AllowedPackageClassResolver(),
+							null);
+					kryo.setRegistrationRequired(false);
+					kryo.addDefaultSerializer(InetSocketAddress.class,
+							InetSocketAddressSerializer.class);
+
+					return kryo;
+				};
+			};
+		}
+
 		if (kryoForTenyutalk == null) {
 			kryoForTenyutalk = new ThreadLocal<Kryo>() {
 				protected Kryo initialValue() {
@@ -795,6 +850,7 @@ public class Glb {
 				*/
 			}
 			new ObjectivityUpdateDataStore(txn).initStores();
+			new SocialityEdgeStore(txn).initStores();
 
 			StoreNameSingle.OBJECTIVITY_CORE.getStore(txn).initStores();
 		});
@@ -824,6 +880,12 @@ public class Glb {
 		if (flow == null) {
 			flow = new FlowComputationState();
 		}
+		if (flowEngine == null) {
+			flowEngine = new FlowEngine();
+		}
+		if (flowProximityIndex == null) {
+			flowProximityIndex = new FlowProximityIndex();
+		}
 		if (gui == null) {
 			gui = new Gui();
 		}
@@ -988,16 +1050,19 @@ public class Glb {
 		if (obje != null)
 			obje.stop();
 
+		//DBを閉じる前に計算中のタスクを終わらせる
+		if (computeExecutor != null)
+			computeExecutor.close();
+
 		if (db != null) {
 			for (Environment e : db.values()) {
+				DBUtil.clearOpenedStores(e);
 				if (e.isOpen()) {
 					e.getEnvironmentConfig().setEnvCloseForcedly(true);
 					e.close();
 				}
 			}
 		}
-
-		ThroughputLimit.stop();
 	}
 
 	public static Gui getGui() {
@@ -1024,6 +1089,14 @@ public class Glb {
 		return flow;
 	}
 
+	public static FlowEngine getFlowEngine() {
+		return flowEngine;
+	}
+
+	public static FlowProximityIndex getFlowProximityIndex() {
+		return flowProximityIndex;
+	}
+
 	public static FileManagement getFile() {
 		return file;
 	}
@@ -1089,6 +1162,15 @@ public class Glb {
 		Glb.flow = flow;
 	}
 
+	public static void setFlowEngine(FlowEngine flowEngine) {
+		Glb.flowEngine = flowEngine;
+	}
+
+	public static void setFlowProximityIndex(
+			FlowProximityIndex flowProximityIndex) {
+		Glb.flowProximityIndex = flowProximityIndex;
+	}
+
 	public static Environment getDb(String path) {
 		Environment e = db.get(path);
 		if (e == null) {
@@ -1169,6 +1251,23 @@ public class Glb {
 		Glb.p2pdefense = p2pDefense;
 	}
 
+	public static ComputeExecutor getComputeExecutor() {
+		return computeExecutor;
+	}
+
+	public static void setComputeExecutor(ComputeExecutor computeExecutor) {
+		Glb.computeExecutor = computeExecutor;
+	}
+
+	public static SignatureVerifier getSignatureVerifier() {
+		return signatureVerifier;
+	}
+
+	public static void setSignatureVerifier(
+			SignatureVerifier signatureVerifier) {
+		Glb.signatureVerifier = signatureVerifier;
+	}
+
 	public static Random getRnd() {
 		return rnd;
 	}
@@ -1193,6 +1292,10 @@ public class Glb {
 		return kryoForTenyutalk.get();
 	}
 
+	public static Kryo getKryoForCatchUp() {
+		return kryoForCatchUp.get();
+	}
+
 	/*
 		public static Kryo getKryoForPackage() {
 			return kryoForPackage.get();
@@ -8,6 +8,7 @@ import java.util.*;
 import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.db.store.administrated.individuality.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.user.*;
+import glb.util.Util.*;
 import jetbrains.exodus.env.*;
 
 /**
@@ -45,11 +46,12 @@ public interface NominalSignatureI extends ValidatableI {
 	 * @return		署名対象
 	 */
 	default byte[] createSignTarget(long date, byte[] signTargetOrig) {
-		ByteBuffer buffer = ByteBuffer
-				.allocate(Long.BYTES + signTargetOrig.length);
-		buffer.put(signTargetOrig);
-		buffer.putLong(date);
-		return Glb.getUtil().hashSecure(buffer.array());
+		//署名対象は大きい場合があるので、連結せずにハッシュ値を計算する
+		ByteBuffer dateB = ByteBuffer.allocate(Long.BYTES);
+		dateB.putLong(date);
+		dateB.flip();
+		return Glb.getUtil().hashSecureBuffer(ByteBuffer.wrap(signTargetOrig),
+				dateB);
 	}
 
 	default byte[] createSignTarget(long date, byte[] signTargetOrig,
@@ -65,15 +67,18 @@ public interface NominalSignatureI extends ValidatableI {
 	 */
 	default PublicKey getCurrentSignerPublicKey()
 			throws InvalidKeySpecException, NoSuchAlgorithmException {
-		return Glb.getUtil()
-				.getPub(Glb.getObje().getUser(us -> us.get(getSignerUserId()))
+		Long signerUserId = getSignerUserId();
+		return Glb.getSignatureVerifier().getPub(signerUserId, getKeyType(),
+				Glb.getObje().getUser(us -> us.get(signerUserId))
 						.getPubKey(getKeyType()));
 	}
 
 	default PublicKey getCurrentSignerPublicKey(Transaction txn)
 			throws InvalidKeySpecException, NoSuchAlgorithmException {
-		return Glb.getUtil().getPub(new UserStore(txn).get(getSignerUserId(txn))
-				.getPubKey(getKeyType(txn)));
+		Long signerUserId = getSignerUserId(txn);
+		return Glb.getSignatureVerifier().getPub(signerUserId,
+				getKeyType(txn), new UserStore(txn).get(signerUserId)
+						.getPubKey(getKeyType(txn)));
 	}
 
 	KeyType getKeyType();
@@ -219,9 +224,15 @@ public interface NominalSignatureI extends ValidatableI {
 		try {
 			//鍵の更新を想定し、古い鍵からも探す。
 			KeysLog log = getPubOldKeys();
-			List<PublicKey> candidates = log.getOldKeysPublicKey(getKeyType());
-			for (PublicKey e : candidates) {
+			Long signerUserId = getSignerUserId();
+			KeyType type = getKeyType();
+			SignatureVerifier v = Glb.getSignatureVerifier();
+			//前回成功した鍵から試す
+			for (ByteArrayWrapper old : v.order(signerUserId, type,
+					log.getOldKeys(type))) {
+				PublicKey e = v.getPub(signerUserId, type, old.getByteArray());
 				if (simpleVerify(e)) {
+					v.succeeded(signerUserId, type, old);
 					return e;
 				}
 			}
@@ -236,10 +247,15 @@ public interface NominalSignatureI extends ValidatableI {
 		try {
 			//鍵の更新を想定し、古い鍵からも探す。
 			KeysLog log = getPubOldKeys(txn);
-			List<PublicKey> candidates = log
-					.getOldKeysPublicKey(getKeyType(txn));
-			for (PublicKey e : candidates) {
+			Long signerUserId = getSignerUserId(txn);
+			KeyType type = getKeyType(txn);
+			SignatureVerifier v = Glb.getSignatureVerifier();
+			//前回成功した鍵から試す
+			for (ByteArrayWrapper old : v.order(signerUserId, type,
+					log.getOldKeys(type))) {
+				PublicKey e = v.getPub(signerUserId, type, old.getByteArray());
 				if (simpleVerify(e, txn)) {
+					v.succeeded(signerUserId, type, old);
 					return e;
 				}
 			}
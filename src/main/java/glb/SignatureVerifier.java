@@ -0,0 +1,221 @@
+package glb;
+
+import java.security.*;
+import java.security.spec.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import glb.util.*;
+import glb.util.Util.*;
+
+/**
+ * 署名検証の共通処理。
+ *
+ * 公開鍵のバイナリ表現からの復元は署名検証1回に匹敵するほど重いが、
+ * メッセージリストの検証では同じユーザーの鍵で何度も検証するので、
+ * 復元された公開鍵を(ユーザー、鍵の種類、鍵のバイナリ表現)毎にLRUで保持する。
+ * 鍵の世代を表す番号は無いので、鍵のバイナリ表現で世代を識別する。
+ *
+ * また過去の鍵で検証に成功した場合、そのユーザーの次の署名も同じ鍵で
+ * 署名されている可能性が高いので、成功した鍵を記録し次回最初に試す。
+ *
+ * 多数の検証を{@link #verifyAll(List, Predicate)}でまとめて
+ * {@link Glb#getComputeExecutor()}で並列に処理できる。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class SignatureVerifier {
+	/**
+	 * 保持する公開鍵の最大数
+	 */
+	private static final int pubCacheMax = 1000 * 20;
+
+	/**
+	 * 最後に検証に成功した過去の鍵を記録する最大ユーザー数
+	 */
+	private static final int lastSucceededMax = 1000 * 20;
+
+	/**
+	 * 公開鍵の識別子
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class PubKey {
+		private final Long userId;
+		private final KeyType type;
+		private final ByteArrayWrapper encoded;
+
+		public PubKey(Long userId, KeyType type, ByteArrayWrapper encoded) {
+			this.userId = userId;
+			this.type = type;
+			this.encoded = encoded;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			PubKey other = (PubKey) obj;
+			if (encoded == null) {
+				if (other.encoded != null)
+					return false;
+			} else if (!encoded.equals(other.encoded))
+				return false;
+			if (type != other.type)
+				return false;
+			if (userId == null) {
+				if (other.userId != null)
+					return false;
+			} else if (!userId.equals(other.userId))
+				return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result
+					+ ((encoded == null) ? 0 : encoded.hashCode());
+			result = prime * result + ((type == null) ? 0 : type.hashCode());
+			result = prime * result
+					+ ((userId == null) ? 0 : userId.hashCode());
+			return result;
+		}
+	}
+
+	/**
+	 * 復元された公開鍵
+	 */
+	private final Map<PubKey, PublicKey> pubCache = new LinkedHashMap<PubKey,
+			PublicKey>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<PubKey, PublicKey> eldest) {
+			return size() > pubCacheMax;
+		}
+	};
+
+	/**
+	 * (ユーザー、鍵の種類) : 最後に検証に成功した過去の鍵のバイナリ表現
+	 */
+	private final Map<PubKey, ByteArrayWrapper> lastSucceeded = new LinkedHashMap<PubKey,
+			ByteArrayWrapper>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<PubKey, ByteArrayWrapper> eldest) {
+			return size() > lastSucceededMax;
+		}
+	};
+
+	private final AtomicLong pubCacheHit = new AtomicLong();
+	private final AtomicLong pubCacheMiss = new AtomicLong();
+
+	/**
+	 * @param userId	鍵の所有者
+	 * @param type		鍵の種類
+	 * @param encoded	公開鍵のバイナリ表現
+	 * @return	復元された公開鍵
+	 */
+	public PublicKey getPub(Long userId, KeyType type, byte[] encoded)
+			throws InvalidKeySpecException, NoSuchAlgorithmException {
+		if (encoded == null)
+			return null;
+		PubKey k = new PubKey(userId, type, new ByteArrayWrapper(encoded));
+		synchronized (pubCache) {
+			PublicKey r = pubCache.get(k);
+			if (r != null) {
+				pubCacheHit.incrementAndGet();
+				return r;
+			}
+		}
+		pubCacheMiss.incrementAndGet();
+		//復元はロック外で行う。同時に復元されても結果は同じ
+		PublicKey r = Glb.getUtil().getPub(encoded);
+		if (r == null)
+			return null;
+		synchronized (pubCache) {
+			pubCache.put(k, r);
+		}
+		return r;
+	}
+
+	/**
+	 * @param userId
+	 * @param type
+	 * @return	最後に検証に成功した過去の鍵のバイナリ表現。無ければnull
+	 */
+	public ByteArrayWrapper getLastSucceeded(Long userId, KeyType type) {
+		synchronized (lastSucceeded) {
+			return lastSucceeded.get(new PubKey(userId, type, null));
+		}
+	}
+
+	/**
+	 * 過去の鍵で検証に成功した事を記録する
+	 * @param userId
+	 * @param type
+	 * @param encoded	検証に成功した鍵のバイナリ表現
+	 */
+	public void succeeded(Long userId, KeyType type,
+			ByteArrayWrapper encoded) {
+		synchronized (lastSucceeded) {
+			lastSucceeded.put(new PubKey(userId, type, null), encoded);
+		}
+	}
+
+	/**
+	 * 過去の鍵の候補を試す順に並べる。
+	 * 最後に検証に成功した鍵があればそれを最初にする
+	 * @param userId
+	 * @param type
+	 * @param olds	過去の鍵一覧
+	 * @return	試す順に並べられた過去の鍵一覧
+	 */
+	public List<ByteArrayWrapper> order(Long userId, KeyType type,
+			List<ByteArrayWrapper> olds) {
+		ByteArrayWrapper last = getLastSucceeded(userId, type);
+		if (last == null || olds.size() < 2 || !olds.contains(last))
+			return olds;
+		List<ByteArrayWrapper> r = new ArrayList<>(olds.size());
+		r.add(last);
+		for (ByteArrayWrapper e : olds)
+			if (!e.equals(last))
+				r.add(e);
+		return r;
+	}
+
+	/**
+	 * 多数の検証を並列に行う。
+	 *
+	 * @param targets	検証対象
+	 * @param verifier	検証処理。スレッドセーフである事
+	 * @return	targetsと同じ並びの検証結果
+	 */
+	public <T> boolean[] verifyAll(List<T> targets, Predicate<T> verifier) {
+		boolean[] r = new boolean[targets.size()];
+		ComputeExecutor e = Glb.getComputeExecutor();
+		e.invoke(targets.size(), Long.MAX_VALUE, e.getParallelism() + 1,
+				i -> r[i] = verifier.test(targets.get(i)));
+		return r;
+	}
+
+	public long getPubCacheHit() {
+		return pubCacheHit.get();
+	}
+
+	public long getPubCacheMiss() {
+		return pubCacheMiss.get();
+	}
+}
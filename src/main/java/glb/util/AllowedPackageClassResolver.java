@@ -0,0 +1,57 @@
+package glb.util;
+
+import java.util.*;
+
+import com.esotericsoftware.kryo.*;
+import com.esotericsoftware.kryo.io.*;
+import com.esotericsoftware.kryo.util.*;
+
+/**
+ * 他ノードから受け取ったバイト列を登録不要のKryoで読む場合に、
+ * 読み出すクラスをこのアプリのクラスと一部の標準ライブラリのクラスに限定する。
+ * 許可されないクラス名があればインスタンスを作る前に例外を投げる。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class AllowedPackageClassResolver extends DefaultClassResolver {
+	/**
+	 * このパッケージのクラスを許可する。サブパッケージは含まない
+	 */
+	private static final Set<String> allowedPackages = new HashSet<>(
+			Arrays.asList("java.lang", "java.util", "java.util.concurrent",
+					"java.util.concurrent.atomic", "java.net", "java.math",
+					"java.time"));
+
+	/**
+	 * この接頭辞で始まるクラスを許可する
+	 */
+	private static final String[] allowedPrefixes = { "bei7473p5254d69jcuat.",
+			"glb." };
+
+	/**
+	 * @param type
+	 * @return	読み出しを許可されたクラスか
+	 */
+	public static boolean isAllowed(Class<?> type) {
+		while (type.isArray())
+			type = type.getComponentType();
+		if (type.isPrimitive())
+			return true;
+		String name = type.getName();
+		for (String prefix : allowedPrefixes) {
+			if (name.startsWith(prefix))
+				return true;
+		}
+		int i = name.lastIndexOf('.');
+		return i > 0 && allowedPackages.contains(name.substring(0, i));
+	}
+
+	@Override
+	public Registration readClass(Input input) {
+		Registration r = super.readClass(input);
+		if (r != null && !isAllowed(r.getType()))
+			throw new KryoException("Not allowed type=" + r.getType());
+		return r;
+	}
+}
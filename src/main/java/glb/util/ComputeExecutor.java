@@ -0,0 +1,258 @@
+package glb.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import glb.*;
+import glb.util.Util.*;
+
+/**
+ * アプリ全体で共有される計算用スレッドプール。
+ *
+ * 計算負荷の高い並列処理の度にスレッドプールを作成するとスレッドの作成と破棄が繰り返され、
+ * 同時に複数の並列処理が行われると合計のスレッド数がコア数を大きく超える。
+ * 全ての並列計算をこのプールで行う事で並列度の上限が決まり、統計情報も得られる。
+ *
+ * 期限はタスク毎に設定され、期限を過ぎると新しいタスクは開始されない。
+ * 実行中のタスクを強制終了する事は無いので、長いタスクは
+ * {@link #isExpired()}を定期的に確認して自ら中断する必要がある。
+ *
+ * 呼び出し側のスレッドもワーカーとして参加するので、プールが他の処理で埋まっていても完了し、
+ * プールのスレッドから入れ子で呼び出してもデッドロックしない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class ComputeExecutor {
+	/**
+	 * 現在のスレッドで実行中のタスクの期限
+	 */
+	private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+	/**
+	 * @return	現在のスレッドで実行中のタスクが期限を過ぎたか。
+	 * このプールのタスク外ならfalse
+	 */
+	public static boolean isExpired() {
+		Long d = deadline.get();
+		return d != null && System.currentTimeMillis() > d;
+	}
+
+	private final ForkJoinPool pool;
+
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	/**
+	 * 期限切れにより開始されなかったタスク群の回数
+	 */
+	private final AtomicLong expired = new AtomicLong();
+
+	public ComputeExecutor() {
+		this(Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	/**
+	 * @param parallelism	プールのスレッド数
+	 */
+	public ComputeExecutor(int parallelism) {
+		pool = new ForkJoinPool(parallelism < 1 ? 1 : parallelism);
+	}
+
+	/**
+	 * @return	プールのスレッド数
+	 */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * count個のタスクを並列処理する。
+	 * 各ワーカーは未処理のタスクを1つずつ取り出して処理する。
+	 *
+	 * @param count		タスク数
+	 * @param endTime	この日時以降新しいタスクを開始しない。期限無しなら{@link Long#MAX_VALUE}
+	 * @param workerMax	最大ワーカー数。呼び出し側のスレッドを含む
+	 * @param task		タスク。引数はタスク番号。
+	 * InterruptedExceptionを投げるとそのワーカーは終了する
+	 * @return	完了したタスク数
+	 */
+	public int invoke(int count, long endTime, int workerMax,
+			MultiThreadTask task) {
+		if (count <= 0)
+			return 0;
+		AtomicInteger next = new AtomicInteger(0);
+		AtomicInteger done = new AtomicInteger(0);
+		runWorkers(Math.min(count, workerMax), endTime, () -> {
+			int i;
+			while ((i = next.getAndIncrement()) < count) {
+				if (isExpired()) {
+					expired.incrementAndGet();
+					return;
+				}
+				if (!call(task, i))
+					return;
+				done.incrementAndGet();
+			}
+		});
+		return done.get();
+	}
+
+	/**
+	 * @return	ワーカーを続行するか
+	 */
+	private boolean call(MultiThreadTask task, int taskId) {
+		started.incrementAndGet();
+		try {
+			task.call(taskId);
+			completed.incrementAndGet();
+			return true;
+		} catch (InterruptedException e) {
+			completed.incrementAndGet();
+			return false;
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			Glb.getLogger().error("", e);
+			return true;
+		}
+	}
+
+	/**
+	 * ワーカーを並列に実行し、全ワーカーの終了を待つ。
+	 * ワーカーは自らタスクを取り出すループを持ち、
+	 * {@link #isExpired()}で期限を確認する。
+	 *
+	 * @param workerNum	ワーカー数。呼び出し側のスレッドを含む
+	 * @param endTime	期限
+	 * @param worker	ワーカーの処理。全ワーカーで共有される
+	 */
+	public void runWorkers(int workerNum, long endTime, Runnable worker) {
+		Workers workers = new Workers();
+		Runnable w = () -> {
+			Long old = deadline.get();
+			deadline.set(endTime);
+			try {
+				worker.run();
+			} catch (Exception e) {
+				Glb.getLogger().error("", e);
+			} finally {
+				if (old == null) {
+					deadline.remove();
+				} else {
+					deadline.set(old);
+				}
+			}
+		};
+
+		int helper = Math.min(workerNum, pool.getParallelism() + 1) - 1;
+		for (int i = 0; i < helper; i++) {
+			//終了処理中なら呼び出し側だけで処理する
+			if (pool.isShutdown())
+				break;
+			try {
+				pool.execute(() -> {
+					//呼び出し側が全て処理し終えた後に開始されたなら何もしない
+					if (!workers.enter())
+						return;
+					try {
+						w.run();
+					} finally {
+						workers.exit();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				break;
+			}
+		}
+		w.run();
+		workers.closeAndAwait();
+	}
+
+	/**
+	 * 実行中のヘルパーワーカー数
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Workers {
+		private int active = 0;
+		private boolean closed = false;
+
+		public synchronized boolean enter() {
+			if (closed)
+				return false;
+			active++;
+			return true;
+		}
+
+		public synchronized void exit() {
+			active--;
+			if (active == 0)
+				notifyAll();
+		}
+
+		/**
+		 * 新しいヘルパーの開始を禁止し、実行中のヘルパーの終了を待つ
+		 */
+		public synchronized void closeAndAwait() {
+			closed = true;
+			boolean interrupted = false;
+			while (active > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					//ヘルパーが共有状態を書き換えている間に戻る事はできない
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getExpired() {
+		return expired.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getStarted() {
+		return started.get();
+	}
+
+	/**
+	 * 終了時に実行中のタスクを待つ最大時間。ミリ秒
+	 */
+	private static final long closeWait = 1000L * 5;
+
+	/**
+	 * 新しいヘルパーを開始せず、実行中のタスクの終了を最大{@link #closeWait}待つ。
+	 * 以降の並列処理は呼び出し側のスレッドだけで行われる
+	 */
+	public void close() {
+		pool.shutdown();
+		try {
+			if (!pool.awaitTermination(closeWait, TimeUnit.MILLISECONDS))
+				Glb.getLogger().warn("ComputeExecutor is not terminated "
+						+ toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ComputeExecutor [parallelism=" + pool.getParallelism()
+				+ ", active=" + pool.getActiveThreadCount() + ", queued="
+				+ pool.getQueuedSubmissionCount() + ", started="
+				+ started.get() + ", completed=" + completed.get()
+				+ ", failed=" + failed.get() + ", expired=" + expired.get()
+				+ "]";
+	}
+}
@@ -0,0 +1,259 @@
+package glb.util;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import glb.util.Util.*;
+
+/**
+ * ダイジェストによる重複判定。
+ * 直近periodに登録されたダイジェストと一致すれば重複とする。
+ *
+ * 正確な判定は分割されたLRUで行う。分割毎にロックするので競合は少ない。
+ * 大量のメッセージを受信してLRUが期間内のダイジェストを保持しきれなくなった場合、
+ * 世代交代するブルームフィルタで判定を補う。
+ * ブルームフィルタは偽陽性があるので、LRUが期間内を網羅している間は使わない。
+ *
+ * スレッドセーフ。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class DupFilter {
+	/**
+	 * LRUの分割数
+	 */
+	private static final int stripeCount = 16;
+
+	/**
+	 * 世代交代するブルームフィルタの1世代
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Generation {
+		private final AtomicLongArray bits;
+		private final long start;
+
+		public Generation(int bitSize, long start) {
+			bits = new AtomicLongArray(bitSize / Long.SIZE);
+			this.start = start;
+		}
+	}
+
+	/**
+	 * LRUの1区画
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Stripe {
+		/**
+		 * ダイジェスト : 登録日時
+		 */
+		private final LinkedHashMap<ByteArrayWrapper, Long> recent;
+		/**
+		 * LRUから溢れた中で最も新しい登録日時
+		 */
+		private long evictedNewest = 0;
+
+		public Stripe(int max) {
+			recent = new LinkedHashMap<ByteArrayWrapper, Long>(16, 0.75f,
+					true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<ByteArrayWrapper, Long> eldest) {
+					if (size() <= max)
+						return false;
+					if (eldest.getValue() > evictedNewest)
+						evictedNewest = eldest.getValue();
+					return true;
+				}
+			};
+		}
+	}
+
+	/**
+	 * 重複とみなす期間
+	 */
+	private final long period;
+
+	/**
+	 * ブルームフィルタ1世代のビット数。64の倍数
+	 */
+	private final int bloomBits;
+	/**
+	 * ブルームフィルタのハッシュ関数の数
+	 */
+	private final int bloomHashes;
+
+	private final Stripe[] stripes = new Stripe[stripeCount];
+
+	private volatile Generation current;
+	private volatile Generation previous;
+
+	private final AtomicLong dupCount = new AtomicLong();
+	private final AtomicLong bloomDupCount = new AtomicLong();
+
+	/**
+	 * @param period		重複とみなす期間
+	 * @param exactMax		LRUで正確に記録する最大件数
+	 * @param bloomBits		ブルームフィルタ1世代のビット数
+	 * @param bloomHashes	ブルームフィルタのハッシュ関数の数
+	 */
+	public DupFilter(long period, int exactMax, int bloomBits,
+			int bloomHashes) {
+		this.period = period;
+		int stripeMax = exactMax / stripeCount;
+		for (int i = 0; i < stripeCount; i++)
+			stripes[i] = new Stripe(stripeMax < 1 ? 1 : stripeMax);
+		int words = bloomBits / Long.SIZE;
+		this.bloomBits = (words < 1 ? 1 : words) * Long.SIZE;
+		this.bloomHashes = bloomHashes < 1 ? 1 : bloomHashes;
+		long now = System.currentTimeMillis();
+		current = new Generation(this.bloomBits, now);
+		previous = new Generation(this.bloomBits, now);
+	}
+
+	/**
+	 * 重複判定をし、重複していなければ登録する
+	 *
+	 * @param digest	メッセージ等のダイジェスト。一様に分布している事
+	 * @return	直近periodに同じダイジェストが登録されていたか
+	 */
+	public boolean isDup(byte[] digest) {
+		if (digest == null)
+			return true;
+		long now = System.currentTimeMillis();
+		rotate(now);
+
+		ByteArrayWrapper key = new ByteArrayWrapper(digest);
+		Stripe s = stripes[(key.hashCode() & 0x7fffffff) % stripeCount];
+		boolean dup;
+		synchronized (s) {
+			Long registered = s.recent.get(key);
+			if (registered != null && now - registered < period) {
+				dup = true;
+			} else if (s.evictedNewest > now - period
+					&& mightContain(digest)) {
+				//LRUが期間内を網羅していないのでブルームフィルタで判定する
+				dup = true;
+				bloomDupCount.incrementAndGet();
+			} else {
+				dup = false;
+				s.recent.put(key, now);
+			}
+		}
+		if (dup) {
+			dupCount.incrementAndGet();
+		} else {
+			put(digest);
+		}
+		return dup;
+	}
+
+	/**
+	 * 現世代が期間を過ぎたら世代交代する。
+	 * 前世代は破棄され、ブルームフィルタは直近period以上2period未満を記録する
+	 */
+	private void rotate(long now) {
+		if (now - current.start < period)
+			return;
+		synchronized (this) {
+			if (now - current.start < period)
+				return;
+			previous = current;
+			current = new Generation(bloomBits, now);
+		}
+	}
+
+	private void put(byte[] digest) {
+		AtomicLongArray bits = current.bits;
+		long h1 = hash1(digest);
+		long h2 = hash2(digest);
+		for (int i = 0; i < bloomHashes; i++) {
+			int pos = index(h1, h2, i);
+			long mask = 1L << (pos & 63);
+			int word = pos >>> 6;
+			long old;
+			while (((old = bits.get(word)) & mask) == 0) {
+				if (bits.compareAndSet(word, old, old | mask))
+					break;
+			}
+		}
+	}
+
+	private boolean mightContain(byte[] digest) {
+		return mightContain(current.bits, digest)
+				|| mightContain(previous.bits, digest);
+	}
+
+	private boolean mightContain(AtomicLongArray bits, byte[] digest) {
+		long h1 = hash1(digest);
+		long h2 = hash2(digest);
+		for (int i = 0; i < bloomHashes; i++) {
+			int pos = index(h1, h2, i);
+			if ((bits.get(pos >>> 6) & (1L << (pos & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 2つのハッシュ値からi番目のハッシュ関数の値を作る
+	 */
+	private int index(long h1, long h2, int i) {
+		long h = h1 + i * h2;
+		return (int) ((h & Long.MAX_VALUE) % bloomBits);
+	}
+
+	/**
+	 * ダイジェストは一様に分布しているので、その一部をそのままハッシュ値とする
+	 */
+	private static long hash1(byte[] digest) {
+		if (digest.length >= Long.BYTES)
+			return ByteBuffer.wrap(digest).getLong(0);
+		return Arrays.hashCode(digest);
+	}
+
+	private static long hash2(byte[] digest) {
+		long r;
+		if (digest.length >= Long.BYTES * 2) {
+			r = ByteBuffer.wrap(digest).getLong(Long.BYTES);
+		} else {
+			r = Arrays.hashCode(digest) * 0x9E3779B97F4A7C15L;
+		}
+		//0だと全ハッシュ関数が同じ値になる
+		return r | 1;
+	}
+
+	/**
+	 * @return	重複と判定された件数
+	 */
+	public long getDupCount() {
+		return dupCount.get();
+	}
+
+	/**
+	 * @return	ブルームフィルタによって重複と判定された件数
+	 */
+	public long getBloomDupCount() {
+		return bloomDupCount.get();
+	}
+
+	/**
+	 * @return	LRUに記録されている件数
+	 */
+	public int size() {
+		int r = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				r += s.recent.size();
+			}
+		}
+		return r;
+	}
+}
@@ -0,0 +1,268 @@
+package glb.util;
+
+import java.util.*;
+
+/**
+ * 昇順で重複の無いID集合。
+ * サブインデックスから読んだID一覧の積集合、和集合、差集合を
+ * オブジェクトをデコードせずに計算するためにある。
+ *
+ * 不変であり、集合演算は新しいインスタンスを返す。
+ * 積集合は一方が十分小さい場合、小さい方の各IDを大きい方から二分探索するので
+ * 大きい方の長さにほぼ依存しない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public final class SortedIdSet {
+	private static final SortedIdSet empty = new SortedIdSet(new long[0], 0);
+
+	/**
+	 * 積集合で二分探索に切り替えるサイズ比
+	 */
+	private static final int gallopRatio = 32;
+
+	public static SortedIdSet empty() {
+		return empty;
+	}
+
+	/**
+	 * @param ids	順序や重複は問わない
+	 * @return	IDの集合
+	 */
+	public static SortedIdSet of(Collection<Long> ids) {
+		if (ids == null || ids.size() == 0)
+			return empty;
+		Builder b = new Builder(ids.size());
+		for (Long id : ids) {
+			if (id != null)
+				b.add(id);
+		}
+		return b.build();
+	}
+
+	private final long[] ids;
+	private final int size;
+
+	/**
+	 * @param ids	昇順で重複が無い事
+	 * @param size	有効な要素数
+	 */
+	private SortedIdSet(long[] ids, int size) {
+		this.ids = ids;
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param i	番号
+	 * @return	i番目に小さいID
+	 */
+	public long get(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("i=" + i + " size=" + size);
+		return ids[i];
+	}
+
+	public boolean contains(long id) {
+		return Arrays.binarySearch(ids, 0, size, id) >= 0;
+	}
+
+	/**
+	 * @return	積集合
+	 */
+	public SortedIdSet and(SortedIdSet o) {
+		if (size == 0 || o.size == 0)
+			return empty;
+		SortedIdSet small = size <= o.size ? this : o;
+		SortedIdSet large = small == this ? o : this;
+		long[] r = new long[small.size];
+		int n = 0;
+		if ((long) small.size * gallopRatio < large.size) {
+			int from = 0;
+			for (int i = 0; i < small.size; i++) {
+				int found = Arrays.binarySearch(large.ids, from, large.size,
+						small.ids[i]);
+				if (found >= 0) {
+					r[n++] = small.ids[i];
+					from = found + 1;
+				} else {
+					from = -found - 1;
+				}
+				if (from >= large.size)
+					break;
+			}
+		} else {
+			int i = 0, j = 0;
+			while (i < small.size && j < large.size) {
+				long a = small.ids[i];
+				long b = large.ids[j];
+				if (a == b) {
+					r[n++] = a;
+					i++;
+					j++;
+				} else if (a < b) {
+					i++;
+				} else {
+					j++;
+				}
+			}
+		}
+		return n == 0 ? empty : new SortedIdSet(r, n);
+	}
+
+	/**
+	 * @return	和集合
+	 */
+	public SortedIdSet or(SortedIdSet o) {
+		if (o.size == 0)
+			return this;
+		if (size == 0)
+			return o;
+		long[] r = new long[size + o.size];
+		int i = 0, j = 0, n = 0;
+		while (i < size && j < o.size) {
+			long a = ids[i];
+			long b = o.ids[j];
+			if (a == b) {
+				r[n++] = a;
+				i++;
+				j++;
+			} else if (a < b) {
+				r[n++] = a;
+				i++;
+			} else {
+				r[n++] = b;
+				j++;
+			}
+		}
+		while (i < size)
+			r[n++] = ids[i++];
+		while (j < o.size)
+			r[n++] = o.ids[j++];
+		return new SortedIdSet(r, n);
+	}
+
+	/**
+	 * @return	このインスタンスからoのIDを除いた差集合
+	 */
+	public SortedIdSet andNot(SortedIdSet o) {
+		if (size == 0)
+			return empty;
+		if (o.size == 0)
+			return this;
+		long[] r = new long[size];
+		int i = 0, j = 0, n = 0;
+		while (i < size) {
+			long a = ids[i];
+			while (j < o.size && o.ids[j] < a)
+				j++;
+			if (j >= o.size || o.ids[j] != a)
+				r[n++] = a;
+			i++;
+		}
+		return n == 0 ? empty : new SortedIdSet(r, n);
+	}
+
+	/**
+	 * @param max	最大件数。負なら全件
+	 * @return	小さい方からmax件
+	 */
+	public List<Long> toList(int max) {
+		int n = max < 0 ? size : Math.min(size, max);
+		List<Long> r = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			r.add(ids[i]);
+		return r;
+	}
+
+	public List<Long> toList() {
+		return toList(-1);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = 1;
+		for (int i = 0; i < size; i++)
+			result = 31 * result + (int) (ids[i] ^ (ids[i] >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		SortedIdSet other = (SortedIdSet) obj;
+		if (size != other.size)
+			return false;
+		for (int i = 0; i < size; i++) {
+			if (ids[i] != other.ids[i])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "SortedIdSet [size=" + size + "]";
+	}
+
+	/**
+	 * 任意の順序でIDを追加し、最後に整列と重複除去をする。
+	 * 昇順で追加された場合は整列しない。
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	public static final class Builder {
+		private long[] buf;
+		private int size = 0;
+		private boolean sorted = true;
+
+		public Builder() {
+			this(16);
+		}
+
+		public Builder(int initialCapacity) {
+			buf = new long[Math.max(initialCapacity, 1)];
+		}
+
+		public Builder add(long id) {
+			if (size == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			if (size > 0 && buf[size - 1] > id)
+				sorted = false;
+			buf[size++] = id;
+			return this;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public SortedIdSet build() {
+			if (size == 0)
+				return empty;
+			long[] r = Arrays.copyOf(buf, size);
+			if (!sorted)
+				Arrays.sort(r);
+			int n = 1;
+			for (int i = 1; i < r.length; i++) {
+				if (r[i] != r[n - 1])
+					r[n++] = r[i];
+			}
+			return new SortedIdSet(r, n);
+		}
+	}
+}
@@ -2,12 +2,22 @@ package glb.util;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import glb.*;
 
 /**
  * 粗い帯域制限。
  *
+ * キー毎に直近clearPeriodの量をスライディングウィンドウで数える。
+ * ウィンドウは{@link #bucketCount}個の桶に分割され、各桶は{@link LongAdder}なので
+ * 多数のスレッドが同じキーに同時に加算しても競合しない。
+ * 古い桶は新しい時刻の桶として再利用される事で捨てられるので、
+ * 全キーを一斉にリセットする必要は無い。
+ *
+ * 判定と加算は原子的ではないので、同時に判定したスレッドの数だけ
+ * maxを僅かに超える場合がある。
+ *
  * @author exceptiontenyu@gmail.com
  *
  * @param <K>	equals, hashCodeを実装した何らかのクラス
@@ -15,7 +25,13 @@ import glb.*;
 public class ThroughputLimit<K> {
 	private static transient final List<
 			ThroughputLimit<?>> instances = new CopyOnWriteArrayList<>();
-	private static transient Thread t = null;
+
+	/**
+	 * ウィンドウの分割数。
+	 * clearPeriodが32秒以下なら桶の幅は1秒未満になる。
+	 * 長いclearPeriodで桶を増やすとキー毎のメモリ消費が増えるので固定している
+	 */
+	private static final int bucketCount = 32;
 
 	public static void start() {
 		long period = 1000L * 20;
@@ -23,10 +39,7 @@ public class ThroughputLimit<K> {
 			long currentDate = System.currentTimeMillis();
 			for (ThroughputLimit<?> e : instances) {
 				try {
-					long dif = currentDate - e.getLastClearDate();
-					if (dif > e.getClearPeriod()) {
-						e.reset();
-					}
+					e.removeIdle(currentDate);
 				} catch (Exception e1) {
 					Glb.getLogger().error("", e1);
 				}
@@ -34,14 +47,81 @@ public class ThroughputLimit<K> {
 		}, period, period, TimeUnit.MILLISECONDS);
 	}
 
-	public static void stop() {
-		if (t != null)
-			t.interrupt();
-		t = null;
+	/**
+	 * ウィンドウの一区間
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Bucket {
+		/**
+		 * 桶番号。日時を桶の幅で割ったもの
+		 */
+		private final long number;
+		private final LongAdder amount = new LongAdder();
+
+		public Bucket(long number) {
+			this.number = number;
+		}
 	}
 
 	/**
-	 * カウントされた帯域量をリセットする間隔
+	 * キー毎のスライディングウィンドウ
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Window {
+		private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(
+				bucketCount);
+		/**
+		 * 最後に加算された桶番号
+		 */
+		private volatile long lastBucket;
+
+		/**
+		 * @param current	現在の桶番号
+		 * @return	ウィンドウ内の合計
+		 */
+		public long sum(long current) {
+			long r = 0;
+			for (int i = 0; i < bucketCount; i++) {
+				Bucket b = buckets.get(i);
+				if (b != null && b.number > current - bucketCount)
+					r += b.amount.sum();
+			}
+			return r;
+		}
+
+		public void add(long current, long amount) {
+			int i = (int) (current % bucketCount);
+			Bucket b = buckets.get(i);
+			//古い桶を現在の桶に置き換える。
+			//置き換え前の桶に遅れて加算された分はウィンドウ外なので失われても問題無い
+			while (b == null || b.number < current) {
+				Bucket created = new Bucket(current);
+				if (buckets.compareAndSet(i, b, created)) {
+					b = created;
+					break;
+				}
+				b = buckets.get(i);
+			}
+			//時刻が戻った場合等b.number > currentだが、ウィンドウ内なのでそのまま加算する
+			b.amount.add(amount);
+			if (lastBucket < current)
+				lastBucket = current;
+		}
+
+		/**
+		 * @return	ウィンドウ内に何も加算されていないか
+		 */
+		public boolean isIdle(long current) {
+			return lastBucket <= current - bucketCount;
+		}
+	}
+
+	/**
+	 * ウィンドウの長さ
 	 */
 	private final long clearPeriod;
 
@@ -49,19 +129,13 @@ public class ThroughputLimit<K> {
 	 * 通信されるオブジェクトまたはそれに対応づくもの : 量
 	 * 量はバイト数の場合もあるし、件数制限をしたい場合は件数の場合もある。
 	 *
-	 * keyToCountは可変長データだが、
-	 * clearPeriodとmaxの指定によって最大件数が制限される。
-	 */
-	private Map<K, Long> keyToCount = new ConcurrentHashMap<>();
-
-	/**
-	 * 最後に帯域量がリセットされた日時
+	 * ウィンドウ内に加算が無いキーは定期的に削除される。
+	 * 一時的な状態なので永続化しない。
 	 */
-	private long lastClearDate = System.currentTimeMillis();
+	private transient final Map<K, Window> keyToWindow = new ConcurrentHashMap<>();
 
 	/**
-	 * 制限時間内にmax件を超えると制限される"可能性が生じる"。
-	 * 最大で制限時間内にmaxの2倍までのスループットがありうる。
+	 * 直近clearPeriodにmaxを超えると制限される。
 	 */
 	private final long max;
 
@@ -70,7 +144,7 @@ public class ThroughputLimit<K> {
 	}
 
 	/**
-	 * @param clearPeriod	定期的なクリアの周期
+	 * @param clearPeriod	ウィンドウの長さ
 	 * @param max			最大件数
 	 */
 	public ThroughputLimit(long clearPeriod, long max) {
@@ -83,8 +157,16 @@ public class ThroughputLimit<K> {
 		return clearPeriod;
 	}
 
-	public long getLastClearDate() {
-		return lastClearDate;
+	/**
+	 * @return	桶の幅
+	 */
+	private long getBucketWidth() {
+		long r = clearPeriod / bucketCount;
+		return r < 1 ? 1 : r;
+	}
+
+	private long getBucketNumber(long date) {
+		return date / getBucketWidth();
 	}
 
 	/**
@@ -110,26 +192,37 @@ public class ThroughputLimit<K> {
 		if (key == null || addCount < 0)
 			return true;
 
-		Long count = keyToCount.get(key);
-		if (count == null)
-			count = 0L;
-
-		if (count + addCount > max * maxMultiplier) {
+		long current = getBucketNumber(System.currentTimeMillis());
+		Window w = keyToWindow.computeIfAbsent(key, k -> new Window());
+		if (w.sum(current) + addCount > max * maxMultiplier) {
 			return true;
 		}
-		count += addCount;
-
-		keyToCount.put(key, count);
+		w.add(current, addCount);
 		return false;
+	}
 
+	/**
+	 * @param key
+	 * @return	直近clearPeriodの量
+	 */
+	public long getCount(K key) {
+		if (key == null)
+			return 0;
+		Window w = keyToWindow.get(key);
+		if (w == null)
+			return 0;
+		return w.sum(getBucketNumber(System.currentTimeMillis()));
 	}
 
-	private void reset() {
-		keyToCount.clear();
-		lastClearDate = System.currentTimeMillis();
+	/**
+	 * ウィンドウ内に加算が無いキーを削除する
+	 */
+	private void removeIdle(long currentDate) {
+		long current = getBucketNumber(currentDate);
+		keyToWindow.entrySet().removeIf(e -> e.getValue().isIdle(current));
 	}
 
 	public long size() {
-		return keyToCount.size();
+		return keyToWindow.size();
 	}
 }
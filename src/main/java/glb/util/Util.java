@@ -36,6 +36,7 @@ import bei7473p5254d69jcuat.tenyu.db.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.*;
 import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.*;
 import glb.*;
+import io.netty.buffer.*;
 import jetbrains.exodus.env.*;
 
 /**
@@ -845,14 +846,7 @@ public class Util {
 	 * @return		oのハッシュ値
 	 */
 	public byte[] hashSecure(Object o) {
-		try {
-			MessageDigest md = MessageDigest
-					.getInstance(Glb.getConst().getDigestAlgorithmSecure());
-			return hash(o, md);
-		} catch (Exception e) {
-			Glb.getLogger().error("", e);
-			return null;
-		}
+		return hash(o, mdSecurePool);
 	}
 
 	/**
@@ -864,14 +858,7 @@ public class Util {
 	 * @return
 	 */
 	public byte[] hashFast(Object o) {
-		try {
-			MessageDigest md = MessageDigest
-					.getInstance(Glb.getConst().getDigestAlgorithmFast());
-			return hash(o, md);
-		} catch (Exception e) {
-			Glb.getLogger().error("", e);
-			return null;
-		}
+		return hash(o, mdFastPool);
 	}
 
 	/**
@@ -881,16 +868,21 @@ public class Util {
 	 * しかしファイルのハッシュ値等に間違って使ってはならない。
 	 *
 	 * @param o
-	 * @param md
+	 * @param pool
 	 * @return
 	 */
-	private byte[] hash(Object o, MessageDigest md) {
+	private byte[] hash(Object o, InstancePool<MessageDigest> pool) {
+		MessageDigest md = null;
 		try {
+			//シリアライズ中に入れ子でハッシュ値が計算される可能性があるので先にシリアライズする
 			byte[] seri = Glb.getUtil().toKryoBytesForPersistence(o);
+			md = pool.borrow();
 			return md.digest(seri);
 		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 			return null;
+		} finally {
+			pool.release(md);
 		}
 	}
 
@@ -900,42 +892,89 @@ public class Util {
 	 * @return	oのハッシュ値
 	 */
 	public byte[] hashFast(byte[] o) {
+		MessageDigest md = null;
 		try {
-			MessageDigest md = MessageDigest
-					.getInstance(Glb.getConst().getDigestAlgorithmFast());
+			md = mdFastPool.borrow();
 			return md.digest(o);
-		} catch (NoSuchAlgorithmException e) {
+		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 			return null;
+		} finally {
+			mdFastPool.release(md);
 		}
 	}
 
+	/**
+	 * 高速
+	 * 連結した配列を作らずに複数のバッファのハッシュ値を計算する。
+	 * 各バッファのpositionからlimitまでが対象で、バッファのpositionは変化しない。
+	 * hashFast(ByteBuffer...)にすると引数1つの場合に{@link #hashFast(Object)}が
+	 * 呼ばれてしまうので名前を分けている。
+	 * @param o
+	 * @return	oを連結したもののハッシュ値
+	 */
+	public byte[] hashFastBuffer(ByteBuffer... o) {
+		return hash(mdFastPool, o);
+	}
+
 	/**
 	 * 衝突率が低い
 	 * @param o
 	 * @return	oのハッシュ値
 	 */
 	public byte[] hashSecure(byte[] o) {
+		MessageDigest md = null;
 		try {
-			MessageDigest md = MessageDigest
-					.getInstance(Glb.getConst().getDigestAlgorithmSecure());
+			md = mdSecurePool.borrow();
 			return md.digest(o);
-		} catch (NoSuchAlgorithmException e) {
+		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 			return null;
+		} finally {
+			mdSecurePool.release(md);
 		}
 	}
 
 	public byte[] hashSecure(byte[]... o) {
+		MessageDigest md = null;
 		try {
-			MessageDigest md = MessageDigest
-					.getInstance(Glb.getConst().getDigestAlgorithmSecure());
+			md = mdSecurePool.borrow();
 			for (byte[] e : o)
 				md.update(e);
 			return md.digest();
-		} catch (NoSuchAlgorithmException e) {
+		} catch (Exception e) {
+			Glb.getLogger().error("", e);
+			return null;
+		} finally {
+			mdSecurePool.release(md);
+		}
+	}
+
+	/**
+	 * 衝突率が低い
+	 * 連結した配列を作らずに複数のバッファのハッシュ値を計算する。
+	 * 各バッファのpositionからlimitまでが対象で、バッファのpositionは変化しない。
+	 * hashSecure(ByteBuffer...)にすると引数1つの場合に{@link #hashSecure(Object)}が
+	 * 呼ばれてしまうので名前を分けている。
+	 * @param o
+	 * @return	oを連結したもののハッシュ値
+	 */
+	public byte[] hashSecureBuffer(ByteBuffer... o) {
+		return hash(mdSecurePool, o);
+	}
+
+	private byte[] hash(InstancePool<MessageDigest> pool, ByteBuffer... o) {
+		MessageDigest md = null;
+		try {
+			md = pool.borrow();
+			for (ByteBuffer e : o)
+				md.update(e.duplicate());
+			return md.digest();
+		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 			return null;
+		} finally {
+			pool.release(md);
 		}
 	}
 
@@ -1037,14 +1076,16 @@ public class Util {
 		byte[] r = null;
 		SecretKeySpec keyObj = setupCommonKey(key);
 		IvParameterSpec ivObj = new IvParameterSpec(iv);
+		Cipher cipher = null;
 		try {
-			Cipher cipher = Cipher.getInstance(
-					Glb.getConst().getCommonKeyCipherAlgorithm(),
-					Glb.getConst().getSecurityProvider());
+			cipher = commonKeyCipherPool.borrow();
+			//initで前回の状態は全て破棄される
 			cipher.init(mode, keyObj, ivObj);
 			r = cipher.doFinal(data);
 		} catch (Exception e) {
 			Glb.getLogger().error("", e);
+		} finally {
+			commonKeyCipherPool.release(cipher);
 		}
 		return r;
 	}
@@ -1070,9 +1111,9 @@ public class Util {
 	 * @return			署名
 	 */
 	public byte[] sign(String nominal, byte[] target, PrivateKey pri) {
-		Signature s;
+		Signature s = null;
 		try {
-			s = getSignature();
+			s = signaturePool.borrow();
 			s.initSign(pri, new SecureRandom());
 			Charset c = Glb.getConst().getCharsetNio();
 			s.update(Glb.getConst().getAppName().getBytes(c));
@@ -1080,8 +1121,10 @@ public class Util {
 				s.update(nominal.getBytes(c));
 			s.update(target);
 			return s.sign();
-		} catch (InvalidKeyException | SignatureException e) {
+		} catch (Exception e) {
 			Glb.getLogger().error("", e);
+		} finally {
+			signaturePool.release(s);
 		}
 		return null;
 	}
@@ -1097,8 +1140,9 @@ public class Util {
 	 */
 	public boolean verify(String nominal, byte[] signature, PublicKey pub,
 			byte[] target) {
+		Signature s = null;
 		try {
-			Signature s = getSignature();
+			s = signaturePool.borrow();
 			s.initVerify(pub);
 			Charset c = Glb.getConst().getCharsetNio();
 			s.update(Glb.getConst().getAppName().getBytes(c));
@@ -1109,6 +1153,8 @@ public class Util {
 		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 			return false;
+		} finally {
+			signaturePool.release(s);
 		}
 	}
 
@@ -1228,15 +1274,16 @@ public class Util {
 	}
 
 	private byte[] rsa(Key key, byte[] data, int mode) {
+		Cipher cipher = null;
 		try {
-			Cipher cipher = Cipher.getInstance(
-					Glb.getConst().getRsaCipherAlgorithm(),
-					Glb.getConst().getSecurityProvider());
+			cipher = rsaCipherPool.borrow();
 			cipher.init(mode, key);
 			return cipher.doFinal(data);
 		} catch (Exception e) {
 			Glb.getLogger().error("", e);
 			return null;
+		} finally {
+			rsaCipherPool.release(cipher);
 		}
 	}
 
@@ -1509,6 +1556,11 @@ public class Util {
 	 * タスクを並列処理する。
 	 * この方法はtという１インスタンスがマルチスレッドで実行されるので
 	 * 内部状態など注意が必要。
+	 *
+	 * {@link Glb#getComputeExecutor()}で処理される。
+	 * endTimeを過ぎると新しいタスクは開始されないが、実行中のタスクは強制終了されないので
+	 * 長いタスクは{@link ComputeExecutor#isExpired()}を確認して中断する事。
+	 *
 	 * @param endTime		この時間まで出来るだけたくさん処理する
 	 * 						20分以内であること
 	 * @param ThreadSolveMax	1スレッドあたりの最大t.call()回数
@@ -1526,80 +1578,43 @@ public class Util {
 		if (threadNum < 1)
 			threadNum = 1;
 		AtomicInteger ai = new AtomicInteger(0);
-		final ExecutorService threadpool = Executors
-				.newFixedThreadPool(threadNum);
-
-		try {
-			//処理内容の設定
-			Collection<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
-			for (int i = 0; i < threadNum; i++) {
-				jobs.add(new Callable<Void>() {
-					@Override
-					public Void call() throws Exception {
-						//時間内に出来るだけたくさん解く
-						try {
-							int solvedThisThread = 0;
-							long solveStart = System.currentTimeMillis();
-							long expect = 1;
-							//expectに応じて次の処理をするかを決定する事は、
-							//このようなタスク内ループを使わなければできない。
-							while (expect > 0) {
-								int taskId = ai.getAndIncrement();
-								try {
-									t.call(taskId);
-								} catch (InterruptedException e) {
-									break;
-								}
-								solvedThisThread++;
-
-								if (solvedThisThread > ThreadSolveMax)
-									break;
-
-								//経過時間
-								long elapsed = System.currentTimeMillis()
-										- solveStart;
-								Glb.debug("elapsed:" + elapsed);
-								//1回あたりの時間
-								long perSolve = elapsed / solvedThisThread;
-								//残り時間
-								long solveRemaining = endTime
-										- System.currentTimeMillis();
-
-								//残り時間で期待される回数
-								if (perSolve > 0)
-									expect = solveRemaining / perSolve;
-							}
-						} catch (Exception e) {
-							Glb.getLogger().error("", e);
-						}
-						return null;
-					}
-				});
-			}
 
-			//定期的に終了時間をチェックして越えていたら強制終了する
-			Glb.getExecutor().execute(() -> {
-				while (true) {
+		Glb.getComputeExecutor().runWorkers(threadNum, endTime, () -> {
+			//時間内に出来るだけたくさん解く
+			try {
+				int solvedThisThread = 0;
+				long solveStart = System.currentTimeMillis();
+				long expect = 1;
+				//expectに応じて次の処理をするかを決定する事は、
+				//このようなタスク内ループを使わなければできない。
+				while (expect > 0 && !ComputeExecutor.isExpired()) {
+					int taskId = ai.getAndIncrement();
 					try {
-						Thread.sleep(10);
+						t.call(taskId);
 					} catch (InterruptedException e) {
-						return;
-					}
-					if (endTime < System.currentTimeMillis()) {
-						threadpool.shutdownNow();
-						return;
+						break;
 					}
+					solvedThisThread++;
+
+					if (solvedThisThread > ThreadSolveMax)
+						break;
+
+					//経過時間
+					long elapsed = System.currentTimeMillis() - solveStart;
+					Glb.debug("elapsed:" + elapsed);
+					//1回あたりの時間
+					long perSolve = elapsed / solvedThisThread;
+					//残り時間
+					long solveRemaining = endTime - System.currentTimeMillis();
+
+					//残り時間で期待される回数
+					if (perSolve > 0)
+						expect = solveRemaining / perSolve;
 				}
-			});
-
-			//並列処理開始
-			threadpool.invokeAll(jobs);
-		} catch (Exception e) {
-			Glb.getLogger().error("", e);
-		} finally {
-			if (threadpool != null && !threadpool.isShutdown())
-				threadpool.shutdownNow();
-		}
+			} catch (Exception e) {
+				Glb.getLogger().error("", e);
+			}
+		});
 	}
 
 	/**
@@ -1638,6 +1653,45 @@ public class Util {
 		return entries;
 	}
 
+	/**
+	 * 暗号系のインスタンスのスレッド毎のプール。
+	 * getInstanceはプロバイダの探索とインスタンス作成を伴い、
+	 * ハッシュ値計算や署名検証のたびに呼ぶとプロファイル上で目立つので使い回す。
+	 *
+	 * Signature, Cipherは使用前に必ずinitされ、それにより前回の状態が破棄されるので
+	 * 返却時のリセットは不要。MessageDigestは返却時にresetする。
+	 */
+	private static final InstancePool<MessageDigest> mdSecurePool = new InstancePool<>(
+			() -> MessageDigest.getInstance(
+					Glb.getConst().getDigestAlgorithmSecure(),
+					Glb.getConst().getSecurityProvider()),
+			md -> md.reset());
+	private static final InstancePool<MessageDigest> mdFastPool = new InstancePool<>(
+			() -> MessageDigest.getInstance(
+					Glb.getConst().getDigestAlgorithmFast(),
+					Glb.getConst().getSecurityProvider()),
+			md -> md.reset());
+	private static final InstancePool<Signature> signaturePool = new InstancePool<>(
+			() -> Signature.getInstance(Glb.getConst().getSignatureAlgorithm(),
+					Glb.getConst().getSecurityProvider()),
+			null);
+	private static final InstancePool<Cipher> commonKeyCipherPool = new InstancePool<>(
+			() -> Cipher.getInstance(
+					Glb.getConst().getCommonKeyCipherAlgorithm(),
+					Glb.getConst().getSecurityProvider()),
+			null);
+	private static final InstancePool<Cipher> rsaCipherPool = new InstancePool<>(
+			() -> Cipher.getInstance(Glb.getConst().getRsaCipherAlgorithm(),
+					Glb.getConst().getSecurityProvider()),
+			null);
+
+	/**
+	 * シリアライズ、デシリアライズで使うスレッド毎のバッファ。
+	 * DB書き込みやメッセージの送受信毎にバッファを作成しないために使う。
+	 */
+	private static final ThreadLocal<KryoBuffers> kryoBuffers = ThreadLocal
+			.withInitial(() -> new KryoBuffers());
+
 	public byte[] toKryoBytesForPersistence(final Object o) throws IOException {
 		return toKryoBytes(o, Glb.getKryoForPersistence());
 	}
@@ -1648,16 +1702,67 @@ public class Util {
 	}
 
 	public byte[] toKryoBytes(final Object o, Kryo kryo) throws IOException {
-		final byte[] b;
-		try (final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				final Output output = new Output(bos)) {
+		final KryoBuffers buffers = kryoBuffers.get();
+		final Output output = buffers.borrowOutput();
+		try {
 			kryo.writeClassAndObject(output, o);
-			output.flush();
-			b = bos.toByteArray();
 			//			if (b != null)
 			//				Glb.debug(() -> "toKryoBytes object size:" + b.length);
+			return output.toBytes();
+		} finally {
+			buffers.release(output);
+		}
+	}
+
+	public int toKryoBytesForCommunication(final Object o, ByteBuf out)
+			throws IOException {
+		return toKryoBytes(o, Glb.getKryoForCommunication(), out);
+	}
+
+	/**
+	 * 呼び出し側が用意したByteBufにシリアライズする。
+	 * byte[]を経由しないので、送信時にそのままNettyに渡せる。
+	 *
+	 * @param o		シリアライズされるオブジェクト
+	 * @param kryo
+	 * @param out	書き込み先。writerIndexから書き込まれ、必要なら拡張される
+	 * @return	書き込まれたバイト数
+	 */
+	public int toKryoBytes(final Object o, Kryo kryo, ByteBuf out)
+			throws IOException {
+		final KryoBuffers buffers = kryoBuffers.get();
+		final Output output = buffers.borrowOutput();
+		try {
+			kryo.writeClassAndObject(output, o);
+			int size = output.position();
+			out.writeBytes(output.getBuffer(), 0, size);
+			return size;
+		} finally {
+			buffers.release(output);
+		}
+	}
+
+	/**
+	 * 呼び出し側が用意したByteBufferにシリアライズする。
+	 *
+	 * @param o		シリアライズされるオブジェクト
+	 * @param kryo
+	 * @param out	書き込み先。positionから書き込まれ、positionが進む
+	 * @return	書き込まれたバイト数
+	 * @throws BufferOverflowException	outの残りが足りない場合。outは変更されない
+	 */
+	public int toKryoBytes(final Object o, Kryo kryo, ByteBuffer out)
+			throws IOException {
+		final KryoBuffers buffers = kryoBuffers.get();
+		final Output output = buffers.borrowOutput();
+		try {
+			kryo.writeClassAndObject(output, o);
+			int size = output.position();
+			out.put(output.getBuffer(), 0, size);
+			return size;
+		} finally {
+			buffers.release(output);
 		}
-		return b;
 	}
 
 	public Object fromKryoBytesForCommunication(final byte[] b) {
@@ -1668,11 +1773,78 @@ public class Util {
 		return fromKryoBytes(b, Glb.getKryoForPersistence());
 	}
 
+	/**
+	 * 他ノードから受け取った永続化形式のバイト列を読む。
+	 * 許可されないクラスが含まれていたり、壊れていればnull
+	 *
+	 * @param b
+	 * @return	デシリアライズされたオブジェクト
+	 */
+	public Object fromKryoBytesForCatchUp(final byte[] b) {
+		try {
+			return fromKryoBytes(b, Glb.getKryoForCatchUp());
+		} catch (KryoException e) {
+			Glb.getLogger().warn("", e);
+			return null;
+		}
+	}
+
 	public Object fromKryoBytes(final byte[] b, final Kryo kryo) {
 		if (b == null)
 			return null;
 		//Glb.debug(() -> "fromKryoBytes object size:" + b.length);
-		Input input = new Input(new ByteArrayInputStream(b));
+		return fromKryoBytes(b, 0, b.length, kryo);
+	}
+
+	public Object fromKryoBytes(final byte[] b, int offset, int length,
+			final Kryo kryo) {
+		final KryoBuffers buffers = kryoBuffers.get();
+		final Input input = buffers.borrowInput();
+		try {
+			input.setBuffer(b, offset, length);
+			return kryo.readObject(input, kryo.readClass(input).getType());
+		} finally {
+			buffers.release(input);
+		}
+	}
+
+	public Object fromKryoBytesForCommunication(final ByteBuf b) {
+		return fromKryoBytes(b, Glb.getKryoForCommunication());
+	}
+
+	/**
+	 * readerIndexからwriterIndexまでをデシリアライズする。
+	 * bのreaderIndexは変更されない。
+	 */
+	public Object fromKryoBytes(final ByteBuf b, final Kryo kryo) {
+		if (b == null)
+			return null;
+		if (b.hasArray()) {
+			return fromKryoBytes(b.array(), b.arrayOffset() + b.readerIndex(),
+					b.readableBytes(), kryo);
+		}
+		if (b.nioBufferCount() == 1) {
+			return fromKryoBytes(b.nioBuffer(), kryo);
+		}
+		//CompositeByteBuf等。連続した領域にコピーせずストリームとして読む
+		Input input = new Input(new ByteBufInputStream(b.duplicate()),
+				1024 * 8);
+		return kryo.readObject(input, kryo.readClass(input).getType());
+	}
+
+	/**
+	 * positionからlimitまでをデシリアライズする。
+	 * bのpositionは変更されない。
+	 */
+	public Object fromKryoBytes(final ByteBuffer b, final Kryo kryo) {
+		if (b == null)
+			return null;
+		if (b.hasArray()) {
+			return fromKryoBytes(b.array(), b.arrayOffset() + b.position(),
+					b.remaining(), kryo);
+		}
+		//ダイレクトバッファはヒープにコピーせずに読む
+		Input input = new ByteBufferInput(b.slice());
 		return kryo.readObject(input, kryo.readClass(input).getType());
 	}
 
@@ -1744,6 +1916,129 @@ public class Util {
 		return option;
 	}
 
+	/**
+	 * スレッド毎に再利用されるKryoのバッファ。
+	 *
+	 * シリアライズ中に再帰的にシリアライズが呼ばれた場合、
+	 * 使用中のバッファを壊さないようにその呼び出しでは新しいバッファを作る。
+	 *
+	 * 大きなオブジェクトをシリアライズして拡張されたバッファは
+	 * 保持し続けるとスレッド数分メモリを占有するので、使用後に初期サイズに戻す。
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class KryoBuffers {
+		/**
+		 * 出力バッファの初期サイズ
+		 */
+		private static final int initialSize = 1024 * 4;
+		/**
+		 * これより大きく拡張された出力バッファは使用後に捨てる
+		 */
+		private static final int retainSize = 1024 * 1024;
+		/**
+		 * 出力バッファの上限。
+		 * これを超えるシリアライズはKryoExceptionになり、呼び出し側のエラー処理に任される。
+		 * DBの値やメッセージとしてこれより大きいものは想定されない
+		 */
+		private static final int maxSize = 1024 * 1024 * 256;
+
+		private static final byte[] empty = new byte[0];
+
+		private Output output = new Output(initialSize, maxSize);
+		private boolean outputInUse = false;
+
+		private final Input input = new Input();
+		private boolean inputInUse = false;
+
+		public Output borrowOutput() {
+			if (outputInUse)
+				return new Output(initialSize, maxSize);
+			outputInUse = true;
+			output.reset();
+			return output;
+		}
+
+		public void release(Output o) {
+			if (o != output)
+				return;
+			outputInUse = false;
+			if (output.getBuffer().length > retainSize)
+				output = new Output(initialSize, maxSize);
+		}
+
+		public Input borrowInput() {
+			if (inputInUse)
+				return new Input();
+			inputInUse = true;
+			return input;
+		}
+
+		public void release(Input i) {
+			if (i != input)
+				return;
+			inputInUse = false;
+			//呼び出し側の配列への参照を残さない
+			input.setBuffer(empty);
+		}
+	}
+
+	/**
+	 * スレッド毎に使い回されるインスタンス。
+	 * 同じスレッドで入れ子に借りられた場合は新しいインスタンスを渡すので、
+	 * 返却されるまで他の処理と状態を共有しない。
+	 *
+	 * 例外が出た場合も必ず{@link #release(Object)}する事。
+	 * 返却時のリセットに失敗したインスタンスは捨てられる。
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 * @param <T>
+	 */
+	private static class InstancePool<T> {
+		/**
+		 * 1スレッドあたり保持する最大数
+		 */
+		private static final int retainMax = 2;
+
+		private final Callable<T> factory;
+		/**
+		 * 返却時の初期化処理。不要ならnull
+		 */
+		private final Consumer<T> reset;
+
+		private final ThreadLocal<ArrayDeque<T>> free = ThreadLocal
+				.withInitial(() -> new ArrayDeque<>());
+
+		public InstancePool(Callable<T> factory, Consumer<T> reset) {
+			this.factory = factory;
+			this.reset = reset;
+		}
+
+		public T borrow() throws Exception {
+			T r = free.get().pollFirst();
+			if (r != null)
+				return r;
+			return factory.call();
+		}
+
+		public void release(T o) {
+			if (o == null)
+				return;
+			try {
+				if (reset != null)
+					reset.accept(o);
+			} catch (Exception e) {
+				Glb.getLogger().error("", e);
+				return;
+			}
+			ArrayDeque<T> d = free.get();
+			if (d.size() < retainMax)
+				d.addFirst(o);
+		}
+	}
+
 	public static class ByteArrayWrapper implements Comparable {
 		private byte[] byteArray;
 
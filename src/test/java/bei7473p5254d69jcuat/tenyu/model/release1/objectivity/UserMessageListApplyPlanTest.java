@@ -0,0 +1,328 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import bei7473p5254d69jcuat.tenyu.communication.request.*;
+import bei7473p5254d69jcuat.tenyu.db.store.satellite.*;
+import bei7473p5254d69jcuat.tenyu.db.store.satellite.HashStore.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
+import glb.*;
+import jetbrains.exodus.*;
+import jetbrains.exodus.bindings.*;
+import jetbrains.exodus.env.*;
+
+/**
+ * {@link UserMessageListApplyPlan}による並列の準備と反映が、
+ * 逐次反映と同じ結果とハッシュツリーの根になる事を確認する。
+ *
+ * 一時フォルダのEnvironmentに数値を保持するストアとそのHashStoreを作成し、
+ * 同じ初期状態に対して同じメッセージ列を逐次反映した場合と計画を通じて反映した場合を比較する。
+ * どちらもコミットせずに破棄するので、各反映は同じ初期状態から始まる。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class UserMessageListApplyPlanTest {
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	private static final String storeName = "applyPlanTest";
+	private static final String hashStoreName = "applyPlanTestHash";
+
+	/**
+	 * 初期状態で作成されるオブジェクト数。HashStoreが複数レベルになる数
+	 */
+	private static final int objCount = 500;
+
+	private static final long historyIndex = 7L;
+
+	private static Environment env;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		Glb.setupForCommon();
+		if (Glb.getConf() == null)
+			Glb.setConf(new Conf());
+		env = Environments.newInstance(tmp.newFolder());
+		env.executeInTransaction(txn -> {
+			try {
+				env.openStore(storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+				HashStore hs = new HashStore(hashStoreName, txn);
+				hs.initStores();
+				for (long id = 0; id < objCount; id++)
+					Counter.write(txn, id, id * 10);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		if (env != null)
+			env.close();
+	}
+
+	@Test
+	public void randomListsMatchSequential() throws Exception {
+		for (long seed = 0; seed < 20; seed++) {
+			List<Counter> requests = randomRequests(new Random(seed), 400);
+			Result sequential = applySequential(requests);
+			Result parallel = applyPlan(requests);
+			assertEquals("seed=" + seed, sequential, parallel);
+			assertTrue("seed=" + seed, parallel.prepared > 0);
+		}
+	}
+
+	@Test
+	public void independentListIsFullyPrepared() throws Exception {
+		List<Counter> requests = new ArrayList<>();
+		for (long id = 0; id < 100; id++)
+			requests.add(new Counter(id, 3, true));
+		Result sequential = applySequential(requests);
+		Result parallel = applyPlan(requests);
+		assertEquals(sequential, parallel);
+		assertEquals(requests.size(), parallel.prepared);
+	}
+
+	@Test
+	public void laterWriterAndAfterBarrierAreNotPrepared() throws Exception {
+		List<Counter> requests = new ArrayList<>();
+		//0 準備される
+		requests.add(new Counter(1L, 5, true));
+		//1 0が書き込むので準備されない
+		requests.add(new Counter(1L, 7, true));
+		//2 干渉しないので準備される
+		requests.add(new Counter(2L, 1, true));
+		//3 キーを宣言しない
+		requests.add(new Counter(3L, 1, false));
+		//4 3より後なので準備されない
+		requests.add(new Counter(4L, 1, true));
+		for (long id = 10; id < 20; id++)
+			requests.add(new Counter(id, 1, true));
+
+		UserMessageListApplyPlan<Counter> plan = env.computeInTransaction(
+				txn -> {
+					UserMessageListApplyPlan<Counter> r = new UserMessageListApplyPlan<>(
+							requests, historyIndex);
+					r.prepare(txn, env);
+					txn.abort();
+					return r;
+				});
+		assertNotNull(plan.getPrepared(0));
+		assertNull(plan.getPrepared(1));
+		assertNotNull(plan.getPrepared(2));
+		assertNull(plan.getPrepared(3));
+		assertNull(plan.getPrepared(4));
+		assertNull(plan.getPrepared(5));
+
+		assertEquals(applySequential(requests), applyPlan(requests));
+	}
+
+	/**
+	 * @param rnd
+	 * @param count
+	 * @return	同じオブジェクトへの複数回の書き込み、キーを宣言しないメッセージ、
+	 * 存在しないオブジェクトへの書き込みを含むメッセージ列
+	 */
+	private static List<Counter> randomRequests(Random rnd, int count) {
+		List<Counter> r = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			long id = rnd.nextInt(objCount + 10);
+			long delta = rnd.nextInt(1000) - 500;
+			//後半ほどキーを宣言しないメッセージが現れやすい
+			boolean declared = rnd.nextInt(count * 2) > i;
+			r.add(new Counter(id, delta, declared));
+		}
+		return r;
+	}
+
+	private static Result applySequential(List<Counter> requests) {
+		return apply(txn -> {
+			List<Boolean> applied = new ArrayList<>();
+			for (Counter c : requests)
+				applied.add(c.apply(txn, historyIndex));
+			return new Result(applied, 0);
+		});
+	}
+
+	private static Result applyPlan(List<Counter> requests) {
+		return apply(txn -> {
+			UserMessageListApplyPlan<Counter> plan = new UserMessageListApplyPlan<>(
+					requests, historyIndex);
+			plan.prepare(txn, env);
+			List<Boolean> applied = new ArrayList<>();
+			for (int i = 0; i < plan.getRequests().size(); i++)
+				applied.add(plan.apply(txn, i));
+			return new Result(applied, plan.getPreparedCount());
+		});
+	}
+
+	/**
+	 * {@link Objectivity#applyMessageList}と同様に遅延更新モードで反映し、
+	 * 反映後の状態を読み出してから破棄する
+	 */
+	private static Result apply(ApplyProc proc) {
+		return env.computeInTransaction(txn -> {
+			HashStore.beginDeferred(txn);
+			try {
+				Result r = proc.apply(txn);
+				HashStore.commitDeferred(txn);
+				HashStore hs = new HashStore(hashStoreName, txn);
+				r.values = Counter.readAll(txn);
+				r.top = hs.getTopHash();
+				r.topKey = hs.getTopKey().getKeyBA();
+				return r;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			} finally {
+				HashStore.endDeferred(txn);
+				txn.abort();
+			}
+		});
+	}
+
+	private static interface ApplyProc {
+		Result apply(Transaction txn) throws Exception;
+	}
+
+	/**
+	 * 反映結果
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Result {
+		/**
+		 * メッセージ毎の反映結果
+		 */
+		private final List<Boolean> applied;
+		/**
+		 * 準備されたメッセージ数。比較対象外
+		 */
+		private final int prepared;
+		private Map<Long, Long> values;
+		private HashStoreRecordPositioned top;
+		private byte[] topKey;
+
+		private Result(List<Boolean> applied, int prepared) {
+			this.applied = applied;
+			this.prepared = prepared;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Result))
+				return false;
+			Result o = (Result) obj;
+			return applied.equals(o.applied) && values.equals(o.values)
+					&& Objects.equals(top, o.top)
+					&& Arrays.equals(topKey, o.topKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(applied, values, top);
+		}
+
+		@Override
+		public String toString() {
+			return "Result [applied=" + applied + ", top=" + top + "]";
+		}
+	}
+
+	/**
+	 * 1オブジェクトの数値に加算するメッセージ。
+	 * 存在しないオブジェクトへの加算はfalseになる
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class Counter implements UserMessageListRequestI {
+		private static ByteIterable key(long id) {
+			return LongBinding.longToEntry(id);
+		}
+
+		private static Long read(Transaction txn, long id) {
+			Store s = txn.getEnvironment().openStore(storeName,
+					StoreConfig.USE_EXISTING, txn);
+			ByteIterable v = s.get(txn, key(id));
+			return v == null ? null : LongBinding.entryToLong(v);
+		}
+
+		private static void write(Transaction txn, long id, long value)
+				throws Exception {
+			Store s = txn.getEnvironment().openStore(storeName,
+					StoreConfig.USE_EXISTING, txn);
+			ByteIterable v = LongBinding.longToEntry(value);
+			boolean exist = s.get(txn, key(id)) != null;
+			s.put(txn, key(id), v);
+			HashStore hs = new HashStore(hashStoreName, txn);
+			if (exist) {
+				hs.updated(id, v);
+			} else {
+				hs.created(id, v);
+			}
+		}
+
+		private static Map<Long, Long> readAll(Transaction txn) {
+			Map<Long, Long> r = new TreeMap<>();
+			Store s = txn.getEnvironment().openStore(storeName,
+					StoreConfig.USE_EXISTING, txn);
+			try (Cursor c = s.openCursor(txn)) {
+				while (c.getNext())
+					r.put(LongBinding.entryToLong(c.getKey()),
+							LongBinding.entryToLong(c.getValue()));
+			}
+			return r;
+		}
+
+		private final long id;
+		private final long delta;
+		/**
+		 * 読み書きするオブジェクトを宣言するか
+		 */
+		private final boolean declared;
+
+		private Counter(long id, long delta, boolean declared) {
+			this.id = id;
+			this.delta = delta;
+			this.declared = declared;
+		}
+
+		@Override
+		public boolean apply(Transaction txn, long historyIndex)
+				throws Exception {
+			Long v = read(txn, id);
+			if (v == null)
+				return false;
+			write(txn, id, v + delta + historyIndex);
+			return true;
+		}
+
+		@Override
+		public ApplyKeys getApplyKeys() {
+			if (!declared)
+				return null;
+			return new ApplyKeys().addWrite(StoreNameObjectivity.USER, id);
+		}
+
+		@Override
+		public PreparedApply prepareApply(Transaction txn, long historyIndex)
+				throws Exception {
+			Long v = read(txn, id);
+			if (v == null)
+				return t -> false;
+			long updated = v + delta + historyIndex;
+			return t -> {
+				write(t, id, updated);
+				return true;
+			};
+		}
+	}
+}
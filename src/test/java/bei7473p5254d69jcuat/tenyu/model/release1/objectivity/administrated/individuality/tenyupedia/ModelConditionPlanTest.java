@@ -0,0 +1,318 @@
+package bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.function.*;
+
+import org.junit.*;
+
+import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.*;
+import bei7473p5254d69jcuat.tenyu.model.promise.objectivity.administrated.individuality.*;
+import bei7473p5254d69jcuat.tenyu.model.promise.reference.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia.ModelCondition.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.individuality.tenyupedia.ModelCondition.How.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.objectivity.administrated.sociality.*;
+import bei7473p5254d69jcuat.tenyu.model.release1.reference.*;
+import glb.*;
+import glb.util.*;
+
+/**
+ * {@link ModelConditionPlan}の実行結果が、
+ * 全オブジェクトを{@link ModelCondition#is(TenyupediaObjectI)}で判定した結果と一致する事を確認する。
+ *
+ * メモリ上のサブインデックスに対してランダムな条件を計画に変換して実行する。
+ * {@link How}が参照する他の条件もメモリ上から読み出すので、循環参照を含む。
+ * DBを読む登録者のタグ、認定、{@link Where}は扱わない。
+ *
+ * @author exceptiontenyu@gmail.com
+ *
+ */
+public class ModelConditionPlanTest {
+	private static final int objCount = 300;
+	private static final int conditionCount = 12;
+	private static final int tagCount = 6;
+	private static final int userCount = 6;
+	private static final long dateMax = 1000;
+	private static final Locale[] locales = { Locale.JAPANESE,
+			Locale.ENGLISH, Locale.FRENCH };
+
+	@BeforeClass
+	public static void setup() {
+		Glb.setupForCommon();
+	}
+
+	@Test
+	public void randomConditionsMatchIs() {
+		for (long seed = 0; seed < 50; seed++) {
+			Random rnd = new Random(seed);
+			MemoryIndex index = new MemoryIndex(randomWebs(rnd));
+			Map<Long, ModelCondition> mcs = new HashMap<>();
+			for (long id = 1; id <= conditionCount; id++)
+				mcs.put(id, randomCondition(rnd, id));
+			for (ModelCondition mc : mcs.values())
+				assertPlan("seed=" + seed, mc, mcs::get, index);
+		}
+	}
+
+	@Test
+	public void manualOfOtherStoreOrMissingIsExcluded() {
+		MemoryIndex index = new MemoryIndex(randomWebs(new Random(0)));
+		ModelCondition mc = new ModelCondition();
+		mc.setId(1L);
+		What what = new What();
+		what.setStoreNames(new ArrayList<>(
+				Arrays.asList(StoreNameObjectivity.USER)));
+		List<TenyuReferenceModelI<? extends ModelI>> manual = new ArrayList<>();
+		manual.add(new TenyuReferenceModelSimple<Web>(3L,
+				StoreNameObjectivity.WEB));
+		manual.add(new TenyuReferenceModelSimple<Web>(4L,
+				StoreNameObjectivity.USER));
+		manual.add(new TenyuReferenceModelSimple<Web>(objCount + 1L,
+				StoreNameObjectivity.WEB));
+		what.setManual(manual);
+		mc.setWhat(what);
+
+		SortedIdSet r = ModelConditionPlan.compile(mc, id -> null)
+				.execute(index);
+		assertEquals(SortedIdSet.of(Arrays.asList(3L)), r);
+		assertPlan("", mc, id -> null, index);
+	}
+
+	@Test
+	public void cyclicNorIsIgnored() {
+		MemoryIndex index = new MemoryIndex(randomWebs(new Random(1)));
+		Map<Long, ModelCondition> mcs = new HashMap<>();
+		ModelCondition a = new ModelCondition();
+		a.setId(1L);
+		Who who = new Who();
+		who.setUserIds(new ArrayList<>(Arrays.asList(1L)));
+		a.setWho(who);
+		a.setHow(how(other(Logic.NOR, 2L)));
+		ModelCondition b = new ModelCondition();
+		b.setId(2L);
+		b.setHow(how(other(Logic.OR, 1L), other(Logic.NAND, 2L)));
+		mcs.put(1L, a);
+		mcs.put(2L, b);
+
+		assertPlan("", a, mcs::get, index);
+		assertPlan("", b, mcs::get, index);
+	}
+
+	private static void assertPlan(String msg, ModelCondition mc,
+			Function<Long, ModelCondition> others, MemoryIndex index) {
+		List<Long> expected = new ArrayList<>();
+		for (Web w : index.objs.values()) {
+			if (mc.is(w, others))
+				expected.add(w.getId());
+		}
+		ModelConditionPlan plan = ModelConditionPlan.compile(mc, others);
+		assertEquals(msg + " id=" + mc.getId() + " " + plan,
+				SortedIdSet.of(expected), plan.execute(index));
+	}
+
+	private static List<Web> randomWebs(Random rnd) {
+		List<Web> r = new ArrayList<>();
+		for (long id = 0; id < objCount; id++) {
+			Web w = new Web();
+			w.setId(id);
+			w.setRegistererUserId((long) rnd.nextInt(userCount));
+			List<Long> tagIds = new ArrayList<>();
+			for (long tagId = 0; tagId < tagCount; tagId++) {
+				if (rnd.nextInt(4) == 0)
+					tagIds.add(tagId);
+			}
+			w.setTagIds(tagIds);
+			long create = rnd.nextInt((int) dateMax);
+			w.setCreateDate(create);
+			w.setUpdateDate(create + rnd.nextInt((int) (dateMax - create)));
+			int locale = rnd.nextInt(locales.length + 1);
+			w.setLocale(locale == locales.length ? null : locales[locale]);
+			r.add(w);
+		}
+		return r;
+	}
+
+	private static ModelCondition randomCondition(Random rnd, long id) {
+		ModelCondition mc = new ModelCondition();
+		mc.setId(id);
+
+		What what = new What();
+		List<StoreName> storeNames = new ArrayList<>();
+		switch (rnd.nextInt(4)) {
+		case 1:
+			storeNames.add(StoreNameObjectivity.WEB);
+			break;
+		case 2:
+			storeNames.add(StoreNameObjectivity.USER);
+			break;
+		case 3:
+			storeNames.add(StoreNameObjectivity.USER);
+			storeNames.add(StoreNameObjectivity.WEB);
+			break;
+		default:
+		}
+		what.setStoreNames(storeNames);
+		what.setTagIds(randomIds(rnd, tagCount, 3));
+		List<TenyuReferenceModelI<? extends ModelI>> manual = new ArrayList<>();
+		if (rnd.nextInt(3) == 0) {
+			for (int i = 0; i < 3; i++) {
+				manual.add(new TenyuReferenceModelSimple<Web>(
+						(long) rnd.nextInt(objCount + 5),
+						rnd.nextInt(4) == 0 ? StoreNameObjectivity.USER
+								: StoreNameObjectivity.WEB));
+			}
+		}
+		what.setManual(manual);
+		mc.setWhat(what);
+
+		Who who = new Who();
+		who.setUserIds(randomIds(rnd, userCount, 3));
+		List<Locale> ls = new ArrayList<>();
+		if (rnd.nextInt(4) == 0) {
+			for (Locale l : locales) {
+				if (rnd.nextBoolean())
+					ls.add(l);
+			}
+		}
+		who.setLocales(ls);
+		mc.setWho(who);
+
+		When when = new When();
+		when.setCreate(rnd.nextBoolean());
+		if (rnd.nextInt(3) == 0)
+			when.setStartDate(rnd.nextInt((int) dateMax));
+		if (rnd.nextInt(3) == 0)
+			when.setEndDate(rnd.nextInt((int) dateMax));
+		mc.setWhen(when);
+
+		Logic[] logics = Logic.values();
+		List<OtherModelCondition> others = new ArrayList<>();
+		int otherCount = rnd.nextInt(4);
+		for (int i = 0; i < otherCount; i++) {
+			others.add(other(logics[rnd.nextInt(logics.length)],
+					(long) (rnd.nextInt(conditionCount) + 1)));
+		}
+		How how = new How();
+		how.setOtherModelConditions(others);
+		mc.setHow(how);
+		return mc;
+	}
+
+	/**
+	 * @param rnd
+	 * @param bound	IDの上限
+	 * @param oneIn	この内1回の割合で指定する
+	 * @return	空またはランダムなID一覧
+	 */
+	private static List<Long> randomIds(Random rnd, int bound, int oneIn) {
+		List<Long> r = new ArrayList<>();
+		if (rnd.nextInt(oneIn) != 0)
+			return r;
+		for (long id = 0; id < bound; id++) {
+			if (rnd.nextInt(3) == 0)
+				r.add(id);
+		}
+		return r;
+	}
+
+	private static How how(OtherModelCondition... others) {
+		How r = new How();
+		r.setOtherModelConditions(new ArrayList<>(Arrays.asList(others)));
+		return r;
+	}
+
+	private static OtherModelCondition other(Logic logic, Long id) {
+		OtherModelCondition r = new OtherModelCondition();
+		r.setLogic(logic);
+		r.setOtherModelConditionId(id);
+		return r;
+	}
+
+	/**
+	 * メモリ上のWebのサブインデックス
+	 *
+	 * @author exceptiontenyu@gmail.com
+	 *
+	 */
+	private static class MemoryIndex implements ModelConditionPlan.Index {
+		private final TreeMap<Long, Web> objs = new TreeMap<>();
+
+		private MemoryIndex(List<Web> webs) {
+			for (Web w : webs)
+				objs.put(w.getId(), w);
+		}
+
+		private SortedIdSet filter(Predicate<Web> p) {
+			SortedIdSet.Builder b = new SortedIdSet.Builder();
+			for (Web w : objs.values()) {
+				if (p.test(w))
+					b.add(w.getId());
+			}
+			return b.build();
+		}
+
+		@Override
+		public String getName() {
+			return StoreNameObjectivity.WEB.getModelName();
+		}
+
+		@Override
+		public boolean exist(Long id) {
+			return objs.containsKey(id);
+		}
+
+		@Override
+		public IndividualityObjectI get(Long id) {
+			return objs.get(id);
+		}
+
+		@Override
+		public void forEach(
+				BiFunction<Long, IndividualityObjectI, Boolean> f) {
+			for (Web w : objs.values()) {
+				if (!f.apply(w.getId(), w))
+					return;
+			}
+		}
+
+		@Override
+		public SortedIdSet getAllIdSet() {
+			return SortedIdSet.of(objs.keySet());
+		}
+
+		@Override
+		public List<Long> getIdsByTagId(Long tagId) {
+			return filter(w -> w.getTagIds().contains(tagId)).toList();
+		}
+
+		@Override
+		public List<Long> getIdsByRegisterer(Long userId) {
+			return filter(w -> userId.equals(w.getRegistererUserId()))
+					.toList();
+		}
+
+		@Override
+		public SortedIdSet getIdSetByCreateDate(long start, long end) {
+			return filter(w -> w.getCreateDate() >= start
+					&& w.getCreateDate() <= end);
+		}
+
+		@Override
+		public SortedIdSet getIdSetByUpdateDate(long start, long end) {
+			return filter(w -> w.getUpdateDate() >= start
+					&& w.getUpdateDate() <= end);
+		}
+
+		@Override
+		public List<Long> getUserIdsByTagId(Long tagId) {
+			return new ArrayList<>();
+		}
+
+		@Override
+		public FlowProximityIndex.Reach getReach(Where where) {
+			return null;
+		}
+	}
+}